@@ -0,0 +1,216 @@
+package com.mixapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Lookups in a catalog of 50,000 assets used by 1,000 playlists: each must be answered from an
+ * index, and fast enough to run on the main thread.
+ *
+ * Runs on a device (the JVM tests have no SQLite), against its own database so the app's
+ * library is left alone. The query plans are checked as well as the times, since a table scan
+ * of this size can still come in under budget on a fast device.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MediaLibraryTest {
+    private static final String DATABASE_NAME = "library_test.db";
+    private static final int ASSETS = 50000;
+    private static final int PLAYLISTS = 1000;
+    private static final int ITEMS = 25;
+    private static final int RUNS = 25;
+    // Per lookup, median of RUNS
+    private static final long BUDGET_NS = 10 * 1000000L;
+    private static final String[] KINDS = {"Jingle", "Liner", "News bed", "Promo", "Spot", "Station ID", "Sweeper"};
+    
+    private Context context;
+    private MediaLibrary library;
+    private String[] names;
+    private String[] cacheNames;
+    private List<Set<String>> playlistsUsing;
+    
+    @Before
+    public void setUp() throws JSONException {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+        library = new MediaLibrary(context, context.getCacheDir(), DATABASE_NAME);
+        long start = System.nanoTime();
+        
+        int rate = EngineFormat.DEFAULT_SAMPLE_RATE;
+        names = new String[ASSETS];
+        cacheNames = new String[ASSETS];
+        SQLiteDatabase db = library.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < ASSETS; i++) {
+                names[i] = KINDS[i % KINDS.length] + " " + i;
+                cacheNames[i] = cacheName(i);
+                library.addAsset(names[i], new File(cacheNames[i]), (30L + i % 600) * rate, rate);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        
+        Random random = new Random(1);
+        playlistsUsing = new ArrayList<>();
+        for (int i = 0; i < ASSETS; i++) {
+            playlistsUsing.add(new HashSet<>());
+        }
+        for (int p = 0; p < PLAYLISTS; p++) {
+            String id = String.format(Locale.ROOT, "playlist-%04d", p);
+            JSONObject json = new JSONObject();
+            json.put("tracks", items(id, ITEMS - 5, random, rate));
+            json.put("announcements", items(id, 5, random, rate));
+            library.setPlaylistItems(id, json);
+        }
+        System.out.printf("Catalog of %d assets and %d playlists filled in %.1f s%n",
+                ASSETS, PLAYLISTS, (System.nanoTime() - start) / 1e9);
+    }
+    
+    @After
+    public void tearDown() {
+        library.close();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+    
+    @Test
+    public void lookupsUseIndexes() {
+        assertIndexed(MediaLibrary.SEARCH_SQL + 50, "jin%");
+        assertIndexed(MediaLibrary.ASSET_SQL, cacheNames[12345]);
+        assertIndexed(MediaLibrary.HASH_SQL, MediaCache.getContentHash(cacheNames[12345]));
+        assertIndexed(MediaLibrary.PLAYLISTS_USING_SQL, cacheNames[12345]);
+    }
+    
+    @Test
+    public void lookupsAreCorrect() {
+        List<MediaLibrary.Asset> jingles = library.search("jIN", 50);
+        assertEquals(50, jingles.size());
+        for (int i = 0; i < jingles.size(); i++) {
+            assertTrue(jingles.get(i).name, jingles.get(i).name.startsWith("Jingle "));
+            if (i > 0) {
+                assertTrue(jingles.get(i - 1).name.compareToIgnoreCase(jingles.get(i).name) <= 0);
+            }
+        }
+        // Wildcards in the prefix are matched literally
+        assertTrue(library.search("%", 10).isEmpty());
+        
+        MediaLibrary.Asset asset = library.getAsset(cacheNames[31337]);
+        assertNotNull(asset);
+        assertEquals(names[31337], asset.name);
+        assertEquals(1, library.getAssetsByHash(asset.contentHash).size());
+        for (int i : new int[]{0, 4711, 31337, ASSETS - 1}) {
+            assertEquals(playlistsUsing.get(i), new HashSet<>(library.getPlaylistsUsing(cacheNames[i])));
+        }
+    }
+    
+    /**
+     * Median time of each lookup, with a different argument every run
+     */
+    @Test
+    public void benchmarkLookupsAt50kAssets() {
+        Random random = new Random(2);
+        long[] times = new long[RUNS];
+        
+        for (String prefix : Arrays.asList("sp", "station id 4", "promo 31342")) {
+            for (int i = 0; i < RUNS; i++) {
+                long start = System.nanoTime();
+                assertFalse(prefix, library.search(prefix, 50).isEmpty());
+                times[i] = System.nanoTime() - start;
+            }
+            report("search \"" + prefix + "\"", times);
+        }
+        for (int i = 0; i < RUNS; i++) {
+            String cacheName = cacheNames[random.nextInt(ASSETS)];
+            long start = System.nanoTime();
+            assertNotNull(library.getAsset(cacheName));
+            times[i] = System.nanoTime() - start;
+        }
+        report("getAsset", times);
+        for (int i = 0; i < RUNS; i++) {
+            String hash = MediaCache.getContentHash(cacheNames[random.nextInt(ASSETS)]);
+            long start = System.nanoTime();
+            assertEquals(1, library.getAssetsByHash(hash).size());
+            times[i] = System.nanoTime() - start;
+        }
+        report("getAssetsByHash", times);
+        for (int i = 0; i < RUNS; i++) {
+            int asset = random.nextInt(ASSETS);
+            long start = System.nanoTime();
+            assertEquals(playlistsUsing.get(asset).size(), library.getPlaylistsUsing(cacheNames[asset]).size());
+            times[i] = System.nanoTime() - start;
+        }
+        report("getPlaylistsUsing", times);
+    }
+    
+    private void assertIndexed(String sql, String arg) {
+        List<String> plan = new ArrayList<>();
+        try (Cursor cursor = library.getReadableDatabase().rawQuery("EXPLAIN QUERY PLAN " + sql, new String[]{arg})) {
+            int detail = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.add(cursor.getString(detail));
+            }
+        }
+        System.out.println(sql + "\n    " + plan);
+        boolean indexed = false;
+        for (String step : plan) {
+            assertFalse("Table scan in " + plan, step.startsWith("SCAN"));
+            indexed |= step.contains("INDEX");
+        }
+        assertTrue("No index in " + plan, indexed);
+    }
+    
+    private static void report(String lookup, long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        long median = sorted[sorted.length / 2];
+        System.out.printf("%s with %d assets: median %.2f ms, worst %.2f ms%n",
+                lookup, ASSETS, median / 1e6, sorted[sorted.length - 1] / 1e6);
+        assertTrue(lookup + " took " + median / 1000 + " us", median < BUDGET_NS);
+    }
+    
+    private static String cacheName(int asset) {
+        return MediaCache.FILE_PREFIX + String.format(Locale.ROOT, "%064x", asset + 1) + ".pcm";
+    }
+    
+    /**
+     * Playlist items as savePlaylist stores them, drawn from the whole catalog
+     */
+    private JSONArray items(String playlistId, int count, Random random, int rate) throws JSONException {
+        JSONArray array = new JSONArray();
+        for (int i = 0; i < count; i++) {
+            int asset = random.nextInt(ASSETS);
+            playlistsUsing.get(asset).add(playlistId);
+            JSONObject item = new JSONObject();
+            item.put("name", names[asset]);
+            item.put("index", i);
+            item.put("dataFile", cacheNames[asset]);
+            item.put("sampleCount", (30L + asset % 600) * rate);
+            item.put("sampleRate", rate);
+            array.put(item);
+        }
+        return array;
+    }
+}
@@ -0,0 +1,266 @@
+package com.mixapp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * IMA-ADPCM block codec for compact PCM caches (about 4:1 versus 16-bit PCM).
+ *
+ * File layout (little-endian):
+ *   Header (32 bytes): magic "MXAD", version, channels, sampleRate, framesPerBlock, totalFrames
+ *   Blocks: every block holds framesPerBlock frames and has the same size, so the block containing
+ *   any frame is found in O(1) as HEADER_SIZE + (frame / framesPerBlock) * blockBytes.
+ *   Each block is channel-planar: per channel a 4-byte preamble (first sample, step index, pad)
+ *   followed by (framesPerBlock - 1) 4-bit codes, two per byte, low nibble first.
+ *
+ * Every block restarts the predictor, so blocks decode independently of each other.
+ */
+public class AdpcmCodec {
+    static final byte[] MAGIC_BYTES = {'M', 'X', 'A', 'D'};
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int DEFAULT_FRAMES_PER_BLOCK = 1025;
+    
+    private static final int[] STEP_TABLE = {
+        7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+        50, 55, 60, 66, 73, 80, 88, 97, 107, 118, 130, 143, 157, 173, 190, 209, 230,
+        253, 279, 307, 337, 371, 408, 449, 494, 544, 598, 658, 724, 796, 876, 963,
+        1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066, 2272, 2499, 2749, 3024, 3327,
+        3660, 4026, 4428, 4871, 5358, 5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487,
+        12635, 13899, 15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+    };
+    
+    private static final int[] INDEX_TABLE = {
+        -1, -1, -1, -1, 2, 4, 6, 8,
+        -1, -1, -1, -1, 2, 4, 6, 8
+    };
+    
+    /**
+     * Header fields of an ADPCM cache file
+     */
+    static class Header {
+        int channels;
+        int sampleRate;
+        int framesPerBlock;
+        long totalFrames;
+        
+        int blockBytes() {
+            return channelBytes(framesPerBlock) * channels;
+        }
+    }
+    
+    /**
+     * Number of bytes needed to store the 4-bit codes of one channel in a block
+     */
+    static int channelBytes(int framesPerBlock) {
+        return 4 + framesPerBlock / 2; // ceil((framesPerBlock - 1) / 2) code bytes
+    }
+    
+    /**
+     * Transcode a raw 16-bit PCM cache into the ADPCM cache format, keeping its rate and channel count
+     * @param pcmFile Raw PCM cache input (rate, channels and length come from its header)
+     * @param adpcmFile Output file
+     * @return Number of frames encoded
+     */
+    public static long encodeFile(File pcmFile, File adpcmFile) throws IOException {
+        int framesPerBlock = DEFAULT_FRAMES_PER_BLOCK;
+        PCMCacheHeader pcmHeader = PCMCacheHeader.read(pcmFile);
+        int sampleRate = pcmHeader.sampleRate;
+        int channels = pcmHeader.channels;
+        long totalFrames = PCMCacheHeader.getFrameCount(pcmFile);
+        
+        FileInputStream in = new FileInputStream(pcmFile);
+        FileOutputStream out = new FileOutputStream(adpcmFile);
+        try {
+            in.getChannel().position(pcmHeader.dataOffset);
+            out.write(buildHeader(channels, sampleRate, framesPerBlock, totalFrames));
+            
+            int pcmBlockBytes = framesPerBlock * channels * 2;
+            byte[] pcmBytes = new byte[pcmBlockBytes];
+            short[] pcm = new short[framesPerBlock * channels];
+            byte[] block = new byte[channelBytes(framesPerBlock) * channels];
+            
+            long framesDone = 0;
+            while (framesDone < totalFrames) {
+                int frames = (int) Math.min(framesPerBlock, totalFrames - framesDone);
+                readFully(in, pcmBytes, frames * channels * 2);
+                ByteBuffer.wrap(pcmBytes, 0, frames * channels * 2).order(ByteOrder.LITTLE_ENDIAN)
+                        .asShortBuffer().get(pcm, 0, frames * channels);
+                // Pad the last block with silence so every block has the same size
+                for (int i = frames * channels; i < pcm.length; i++) {
+                    pcm[i] = 0;
+                }
+                encodeBlock(pcm, channels, framesPerBlock, block);
+                out.write(block);
+                framesDone += frames;
+            }
+            return totalFrames;
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+    
+    static byte[] buildHeader(int channels, int sampleRate, int framesPerBlock, long totalFrames) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(MAGIC_BYTES);
+        header.putShort((short) VERSION);
+        header.putShort((short) channels);
+        header.putInt(sampleRate);
+        header.putInt(framesPerBlock);
+        header.putLong(totalFrames);
+        return header.array();
+    }
+    
+    /**
+     * Parse and validate an ADPCM cache header
+     */
+    static Header parseHeader(byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        for (byte b : MAGIC_BYTES) {
+            if (buffer.get() != b) {
+                throw new IOException("Not an ADPCM cache file");
+            }
+        }
+        int version = buffer.getShort();
+        if (version != VERSION) {
+            throw new IOException("Unsupported ADPCM cache version: " + version);
+        }
+        Header header = new Header();
+        header.channels = buffer.getShort();
+        header.sampleRate = buffer.getInt();
+        header.framesPerBlock = buffer.getInt();
+        header.totalFrames = buffer.getLong();
+        if (header.channels <= 0 || header.framesPerBlock <= 1) {
+            throw new IOException("Corrupt ADPCM cache header");
+        }
+        return header;
+    }
+    
+    /**
+     * Encode one block of interleaved PCM (exactly framesPerBlock frames)
+     */
+    static void encodeBlock(short[] pcm, int channels, int framesPerBlock, byte[] out) {
+        int channelBytes = channelBytes(framesPerBlock);
+        for (int ch = 0; ch < channels; ch++) {
+            int base = ch * channelBytes;
+            int predictor = pcm[ch];
+            // Start from a step size that suits the first difference to avoid a slow attack
+            int stepIndex = initialStepIndex(pcm, ch, channels, framesPerBlock);
+            
+            out[base] = (byte) predictor;
+            out[base + 1] = (byte) (predictor >> 8);
+            out[base + 2] = (byte) stepIndex;
+            out[base + 3] = 0;
+            
+            int codeByte = 0;
+            for (int f = 1; f < framesPerBlock; f++) {
+                int sample = pcm[f * channels + ch];
+                int step = STEP_TABLE[stepIndex];
+                int diff = sample - predictor;
+                int code = 0;
+                if (diff < 0) {
+                    code = 8;
+                    diff = -diff;
+                }
+                int delta = step >> 3;
+                if (diff >= step) {
+                    code |= 4;
+                    diff -= step;
+                    delta += step;
+                }
+                step >>= 1;
+                if (diff >= step) {
+                    code |= 2;
+                    diff -= step;
+                    delta += step;
+                }
+                step >>= 1;
+                if (diff >= step) {
+                    code |= 1;
+                    delta += step;
+                }
+                predictor += ((code & 8) != 0) ? -delta : delta;
+                predictor = clamp16(predictor);
+                stepIndex = clampIndex(stepIndex + INDEX_TABLE[code]);
+                
+                int nibble = f - 1;
+                if ((nibble & 1) == 0) {
+                    codeByte = code;
+                } else {
+                    out[base + 4 + (nibble >> 1)] = (byte) (codeByte | (code << 4));
+                }
+            }
+            if (((framesPerBlock - 1) & 1) == 1) {
+                out[base + 4 + ((framesPerBlock - 2) >> 1)] = (byte) codeByte;
+            }
+        }
+    }
+    
+    /**
+     * Decode one block into interleaved PCM (framesPerBlock frames)
+     */
+    static void decodeBlock(byte[] in, int channels, int framesPerBlock, short[] pcm) {
+        int channelBytes = channelBytes(framesPerBlock);
+        for (int ch = 0; ch < channels; ch++) {
+            int base = ch * channelBytes;
+            int predictor = (short) ((in[base] & 0xFF) | (in[base + 1] << 8));
+            int stepIndex = clampIndex(in[base + 2] & 0xFF);
+            pcm[ch] = (short) predictor;
+            
+            int out = channels + ch;
+            for (int f = 1; f < framesPerBlock; f++) {
+                int nibble = f - 1;
+                int packed = in[base + 4 + (nibble >> 1)];
+                int code = ((nibble & 1) == 0) ? (packed & 0x0F) : ((packed >> 4) & 0x0F);
+                
+                int step = STEP_TABLE[stepIndex];
+                int delta = step >> 3;
+                if ((code & 4) != 0) delta += step;
+                if ((code & 2) != 0) delta += step >> 1;
+                if ((code & 1) != 0) delta += step >> 2;
+                predictor += ((code & 8) != 0) ? -delta : delta;
+                predictor = clamp16(predictor);
+                stepIndex = clampIndex(stepIndex + INDEX_TABLE[code]);
+                
+                pcm[out] = (short) predictor;
+                out += channels;
+            }
+        }
+    }
+    
+    private static int initialStepIndex(short[] pcm, int ch, int channels, int framesPerBlock) {
+        if (framesPerBlock < 2) {
+            return 0;
+        }
+        int diff = Math.abs(pcm[channels + ch] - pcm[ch]);
+        int index = 0;
+        while (index < STEP_TABLE.length - 1 && STEP_TABLE[index] < diff / 2) {
+            index++;
+        }
+        return index;
+    }
+    
+    private static int clamp16(int value) {
+        return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+    }
+    
+    private static int clampIndex(int index) {
+        return Math.max(0, Math.min(STEP_TABLE.length - 1, index));
+    }
+    
+    private static void readFully(FileInputStream in, byte[] buffer, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int read = in.read(buffer, offset, length - offset);
+            if (read < 0) {
+                throw new IOException("Unexpected end of PCM file");
+            }
+            offset += read;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.mixapp;
+
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Streams PCM audio from an IMA-ADPCM cache file (see AdpcmCodec for the layout).
+ * Blocks are fixed-size, so seeking to any sample is a single multiply; the most recently
+ * decoded block is kept so sequential reads decode each block only once.
+ */
+public class AdpcmFileStream implements AudioStream {
+    private static final String TAG = "AdpcmFileStream";
+    
+    private RandomAccessFile fileHandle;
+    private final AdpcmCodec.Header header;
+    private final int blockBytes;
+    private final byte[] blockBuffer;
+    private final short[] decodedBlock;
+    private long decodedBlockIndex = -1;
+    private final int outputChannels; // A mono file is upmixed to this
+    
+    /**
+     * Open an ADPCM cache file
+     * @param file The .adpcm file
+     * @param sampleRate Expected sample rate (must match the header)
+     * @param channels Channels to return (a mono file is upmixed)
+     */
+    public AdpcmFileStream(File file, int sampleRate, int channels) throws IOException {
+        if (!file.exists()) {
+            throw new IOException("ADPCM file does not exist: " + file.getAbsolutePath());
+        }
+        
+        fileHandle = new RandomAccessFile(file, "r");
+        try {
+            byte[] headerBytes = new byte[AdpcmCodec.HEADER_SIZE];
+            fileHandle.readFully(headerBytes);
+            header = AdpcmCodec.parseHeader(headerBytes);
+        } catch (IOException e) {
+            fileHandle.close();
+            fileHandle = null;
+            throw e;
+        }
+        
+        if (header.sampleRate != sampleRate) {
+            Log.w(TAG, "Rate mismatch in " + file.getName() + ": " + header.sampleRate + " Hz (expected " +
+                  sampleRate + " Hz)");
+        }
+        outputChannels = channels;
+        
+        blockBytes = header.blockBytes();
+        blockBuffer = new byte[blockBytes];
+        decodedBlock = new short[header.framesPerBlock * header.channels];
+        
+        Log.d(TAG, "Opened ADPCM stream: " + file.getName() + " (" + header.totalFrames + " samples, " +
+              (file.length() / 1024) + " KB)");
+    }
+    
+    @Override
+    public int readSamples(long startSample, int numSamples, short[] outputBuffer) throws IOException {
+        if (fileHandle == null) {
+            throw new IOException("File stream is closed");
+        }
+        if (startSample >= header.totalFrames) {
+            return 0;
+        }
+        
+        int channels = header.channels;
+        int framesPerBlock = header.framesPerBlock;
+        int samplesToRead = (int) Math.min(numSamples, header.totalFrames - startSample);
+        int samplesRead = 0;
+        
+        while (samplesRead < samplesToRead) {
+            long position = startSample + samplesRead;
+            long blockIndex = position / framesPerBlock;
+            if (blockIndex != decodedBlockIndex) {
+                fileHandle.seek(AdpcmCodec.HEADER_SIZE + blockIndex * blockBytes);
+                fileHandle.readFully(blockBuffer);
+                AdpcmCodec.decodeBlock(blockBuffer, channels, framesPerBlock, decodedBlock);
+                decodedBlockIndex = blockIndex;
+            }
+            
+            int offsetInBlock = (int) (position - blockIndex * framesPerBlock);
+            int frames = Math.min(samplesToRead - samplesRead, framesPerBlock - offsetInBlock);
+            if (channels == outputChannels) {
+                System.arraycopy(decodedBlock, offsetInBlock * channels, outputBuffer, samplesRead * channels, frames * channels);
+            } else {
+                // Copy each stored channel to as many output channels as it covers (mono to both sides)
+                int out = samplesRead * outputChannels;
+                for (int f = offsetInBlock; f < offsetInBlock + frames; f++) {
+                    for (int ch = 0; ch < outputChannels; ch++) {
+                        outputBuffer[out++] = decodedBlock[f * channels + Math.min(ch, channels - 1)];
+                    }
+                }
+            }
+            samplesRead += frames;
+        }
+        return samplesRead;
+    }
+    
+    @Override
+    public long getTotalSamples() {
+        return header.totalFrames;
+    }
+    
+    @Override
+    public boolean isEndOfStream(long position) {
+        return position >= header.totalFrames;
+    }
+    
+    @Override
+    public int getSampleRate() {
+        return header.sampleRate;
+    }
+    
+    @Override
+    public int getChannels() {
+        return outputChannels;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        if (fileHandle != null) {
+            fileHandle.close();
+            fileHandle = null;
+        }
+    }
+    
+    @Override
+    public boolean isClosed() {
+        return fileHandle == null;
+    }
+}
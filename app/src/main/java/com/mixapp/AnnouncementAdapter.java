@@ -17,6 +17,7 @@ public class AnnouncementAdapter extends RecyclerView.Adapter<AnnouncementAdapte
     private List<AudioMixer.AnnouncementData> announcements;
     private OnItemMoveListener moveListener;
     private OnItemDeleteListener deleteListener;
+    private OnItemClickListener clickListener;
     
     public interface OnItemMoveListener {
         void onItemMove(int fromPosition, int toPosition);
@@ -26,6 +27,10 @@ public class AnnouncementAdapter extends RecyclerView.Adapter<AnnouncementAdapte
         void onItemDelete(int position);
     }
     
+    public interface OnItemClickListener {
+        void onItemClick(int position);
+    }
+    
     public AnnouncementAdapter(List<AudioMixer.AnnouncementData> announcements, OnItemMoveListener moveListener, OnItemDeleteListener deleteListener) {
         // Create a new list to avoid reference issues
         this.announcements = announcements != null ? new ArrayList<>(announcements) : new ArrayList<>();
@@ -33,6 +38,13 @@ public class AnnouncementAdapter extends RecyclerView.Adapter<AnnouncementAdapte
         this.deleteListener = deleteListener;
     }
     
+    /**
+     * Set the listener for taps on an item (to edit its rotation rules)
+     */
+    public void setOnItemClickListener(OnItemClickListener clickListener) {
+        this.clickListener = clickListener;
+    }
+    
     /**
      * Get the current announcements list
      */
@@ -52,7 +64,12 @@ public class AnnouncementAdapter extends RecyclerView.Adapter<AnnouncementAdapte
     public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
         if (announcements != null && position < announcements.size()) {
             AudioMixer.AnnouncementData ann = announcements.get(position);
-            holder.textView.setText((position + 1) + ". " + ann.name);
+            holder.textView.setText(getLabel(position));
+            holder.itemView.setOnClickListener(v -> {
+                if (clickListener != null) {
+                    clickListener.onItemClick(holder.getAdapterPosition());
+                }
+            });
             holder.btnDelete.setOnClickListener(v -> {
                 if (deleteListener != null) {
                     deleteListener.onItemDelete(position);
@@ -70,11 +87,25 @@ public class AnnouncementAdapter extends RecyclerView.Adapter<AnnouncementAdapte
         } else {
             // Partial update - just update the position number
             if (announcements != null && position < announcements.size()) {
-                holder.textView.setText((position + 1) + ". " + announcements.get(position).name);
+                holder.textView.setText(getLabel(position));
             }
         }
     }
     
+    /**
+     * Position and name, plus the sponsor and quota when the clip has rotation rules
+     */
+    private String getLabel(int position) {
+        AudioMixer.AnnouncementData ann = announcements.get(position);
+        String label = (position + 1) + ". " + ann.name;
+        if (ann.sponsor != null) {
+            label += " (" + ann.sponsor + (ann.playsPerHour > 0 ? ", " + ann.playsPerHour + "/h" : "") + ")";
+        } else if (ann.playsPerHour > 0) {
+            label += " (" + ann.playsPerHour + "/h)";
+        }
+        return label;
+    }
+    
     @Override
     public int getItemCount() {
         return announcements != null ? announcements.size() : 0;
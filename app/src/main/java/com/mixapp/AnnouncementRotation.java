@@ -0,0 +1,268 @@
+package com.mixapp;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Picks the next rotation announcement, honouring what sponsors bought: plays per hour, a
+ * minimum spacing between plays of the same sponsor, and a minimum time between plays of
+ * competitors (clips of different sponsors in one competitor group).
+ *
+ * Weighted fair queuing: each clip has a virtual finish tag that moves on by 1/weight per
+ * play (weight = plays per hour, HOUSE_WEIGHT for clips without a quota), and the eligible clip
+ * with the lowest tag plays next, so over time each gets its share of the slots. A clip held
+ * back by a rule waits in a second heap keyed on when it becomes eligible again, and returns
+ * without credit for the wait, except for the plays it is still short of its quota over the
+ * last hour (its deficit), which it may catch up on. Each clip sits in one heap at a time, so
+ * a pick costs O(log n). Rules are checked again when a clip comes up, since another clip of
+ * the same sponsor may have played meanwhile.
+ *
+ * With no rules set this plays the clips in list order, like the plain sequence it replaces.
+ * The seed only staggers the first turns of clips with quotas; the same seed, clips and call
+ * times give the same picks, so a day's rotation can be replayed for an audit.
+ *
+ * When the playlist is reloaded (reordered, edited, switched by the schedule) the new rotation
+ * takes over the history of the old one: clips are matched by their cache file, not their
+ * position, and keep their plays, tags and spacing; only the heaps are rebuilt.
+ */
+public class AnnouncementRotation {
+    // Sliding window for quotas and deficits
+    static final long WINDOW_MS = 3600 * 1000L;
+    // Weight of clips without a quota, in plays per hour
+    private static final double HOUSE_WEIGHT = 1.0;
+    
+    /**
+     * A clip's place in the rotation
+     */
+    private static class Slot {
+        final int index;
+        final String key; // Stable across reloads (see keysOf)
+        final AudioMixer.AnnouncementData clip;
+        final double weight;
+        final String sponsorKey;
+        ArrayDeque<Long> plays = new ArrayDeque<>(); // Start times within the window
+        double finishTag;
+        long eligibleAtMs;
+        
+        Slot(int index, String key, AudioMixer.AnnouncementData clip) {
+            this.index = index;
+            this.key = key;
+            this.clip = clip;
+            this.weight = (clip.playsPerHour > 0) ? clip.playsPerHour : HOUSE_WEIGHT;
+            // Clips without a sponsor are spaced on their own
+            this.sponsorKey = (clip.sponsor != null) ? "s:" + clip.sponsor : "c:" + key;
+        }
+        
+        boolean hasSameRules(AudioMixer.AnnouncementData other) {
+            return Objects.equals(clip.sponsor, other.sponsor) &&
+                   Objects.equals(clip.competitorGroup, other.competitorGroup) &&
+                   clip.playsPerHour == other.playsPerHour &&
+                   clip.minSpacingSeconds == other.minSpacingSeconds &&
+                   clip.competitorSeparationSeconds == other.competitorSeparationSeconds;
+        }
+    }
+    
+    private static final Comparator<Slot> BY_TAG = (a, b) -> {
+        int order = Double.compare(a.finishTag, b.finishTag);
+        return (order != 0) ? order : Integer.compare(a.index, b.index);
+    };
+    
+    private final long seed;
+    private final List<Slot> slots = new ArrayList<>();
+    private final PriorityQueue<Slot> ready = new PriorityQueue<>(BY_TAG);
+    private final PriorityQueue<Slot> waiting = new PriorityQueue<>(
+            (a, b) -> Long.compare(a.eligibleAtMs, b.eligibleAtMs));
+    // When each sponsor's last play ends
+    private final Map<String, Long> sponsorEndMs = new HashMap<>();
+    // When each competitor group's last play ends, and whose play it was
+    private final Map<String, Long> groupEndMs = new HashMap<>();
+    private final Map<String, String> groupSponsorKey = new HashMap<>();
+    private double virtualTime = 0;
+    private boolean rulesChanged = false;
+    
+    /**
+     * @param clips The playlist's announcements, in list order (not copied; don't change it while in use)
+     * @param seed Staggers the first turns of clips with quotas
+     */
+    public AnnouncementRotation(List<AudioMixer.AnnouncementData> clips, long seed) {
+        this(clips, seed, null);
+    }
+    
+    /**
+     * Rotation over a reloaded list that carries on from the previous one. Clips found in both
+     * keep their history (even if their rules were edited); new clips join at the current
+     * virtual time, as if they had just become eligible.
+     * @param previous Rotation over the list before the reload (null to start afresh)
+     */
+    public AnnouncementRotation(List<AudioMixer.AnnouncementData> clips, long seed, AnnouncementRotation previous) {
+        this.seed = seed;
+        Random random = new Random(seed);
+        Map<String, Slot> before = new HashMap<>();
+        Set<String> wasWaiting = new HashSet<>();
+        if (previous != null) {
+            for (Slot slot : previous.slots) {
+                before.put(slot.key, slot);
+            }
+            for (Slot slot : previous.waiting) {
+                wasWaiting.add(slot.key);
+            }
+            virtualTime = previous.virtualTime;
+            sponsorEndMs.putAll(previous.sponsorEndMs);
+            groupEndMs.putAll(previous.groupEndMs);
+            groupSponsorKey.putAll(previous.groupSponsorKey);
+        }
+        List<String> keys = keysOf(clips);
+        for (int i = 0; i < clips.size(); i++) {
+            Slot slot = new Slot(i, keys.get(i), clips.get(i));
+            Slot old = before.get(slot.key);
+            double stagger = (slot.clip.playsPerHour > 0) ? 1 + random.nextDouble() : 1;
+            if (old != null) {
+                rulesChanged |= !old.hasSameRules(slot.clip);
+                slot.plays = old.plays;
+                slot.finishTag = old.finishTag;
+                slot.eligibleAtMs = old.eligibleAtMs;
+            } else {
+                slot.finishTag = virtualTime + stagger / slot.weight;
+            }
+            slots.add(slot);
+            if (old != null && wasWaiting.contains(slot.key)) {
+                waiting.add(slot);
+            } else {
+                ready.add(slot);
+            }
+        }
+    }
+    
+    /**
+     * Whether a clip carried over from the previous rotation has different rules now
+     */
+    public boolean haveRulesChanged() {
+        return rulesChanged;
+    }
+    
+    public long getSeed() {
+        return seed;
+    }
+    
+    /**
+     * Choose the clip to start now and record its play
+     * @return Index of the clip in the list, or -1 if none may play now
+     */
+    public int next(long nowMs) {
+        while (!waiting.isEmpty() && waiting.peek().eligibleAtMs <= nowMs) {
+            Slot slot = waiting.poll();
+            double fresh = virtualTime + (1 - getDeficit(slot, nowMs)) / slot.weight;
+            slot.finishTag = Math.max(slot.finishTag, fresh);
+            ready.add(slot);
+        }
+        while (!ready.isEmpty()) {
+            Slot slot = ready.poll();
+            long eligibleAt = eligibleAt(slot, nowMs);
+            if (eligibleAt > nowMs) {
+                slot.eligibleAtMs = eligibleAt;
+                waiting.add(slot);
+                continue;
+            }
+            record(slot, nowMs);
+            ready.add(slot);
+            return slot.index;
+        }
+        return -1;
+    }
+    
+    /**
+     * Plays a clip is short of its quota over the last hour (0 for clips without one)
+     */
+    public int getDeficit(int index, long nowMs) {
+        return getDeficit(slots.get(index), nowMs);
+    }
+    
+    /**
+     * Clips in the order they are expected to come up, ignoring rules that may hold them back
+     */
+    public List<AudioMixer.AnnouncementData> getUpcoming() {
+        List<Slot> order = new ArrayList<>(slots);
+        Collections.sort(order, BY_TAG);
+        List<AudioMixer.AnnouncementData> clips = new ArrayList<>();
+        for (Slot slot : order) {
+            clips.add(slot.clip);
+        }
+        return clips;
+    }
+    
+    /**
+     * Stable identities of a list's clips: the cache file, plus a count for repeats of one file
+     */
+    private static List<String> keysOf(List<AudioMixer.AnnouncementData> clips) {
+        Map<String, Integer> seen = new HashMap<>();
+        List<String> keys = new ArrayList<>();
+        for (AudioMixer.AnnouncementData clip : clips) {
+            String file = (clip.pcmFile != null) ? clip.pcmFile.getPath() : "name:" + clip.name;
+            int repeat = seen.merge(file, 1, Integer::sum);
+            keys.add(file + "#" + repeat);
+        }
+        return keys;
+    }
+    
+    /**
+     * Earliest time the rules let a clip start (nowMs if it may start now)
+     */
+    private long eligibleAt(Slot slot, long nowMs) {
+        AudioMixer.AnnouncementData clip = slot.clip;
+        long at = nowMs;
+        Long sponsorEnd = sponsorEndMs.get(slot.sponsorKey);
+        if (sponsorEnd != null && clip.minSpacingSeconds > 0) {
+            at = Math.max(at, sponsorEnd + clip.minSpacingSeconds * 1000L);
+        }
+        if (clip.playsPerHour > 0) {
+            expire(slot, nowMs);
+            if (slot.plays.size() >= clip.playsPerHour) {
+                at = Math.max(at, slot.plays.peekFirst() + WINDOW_MS);
+            }
+        }
+        if (clip.competitorGroup != null && clip.competitorSeparationSeconds > 0) {
+            Long groupEnd = groupEndMs.get(clip.competitorGroup);
+            if (groupEnd != null && !slot.sponsorKey.equals(groupSponsorKey.get(clip.competitorGroup))) {
+                at = Math.max(at, groupEnd + clip.competitorSeparationSeconds * 1000L);
+            }
+        }
+        return at;
+    }
+    
+    private void record(Slot slot, long nowMs) {
+        long endMs = nowMs + EngineFormat.framesToMs(slot.clip.sampleCount);
+        virtualTime = slot.finishTag;
+        slot.finishTag += 1 / slot.weight;
+        slot.plays.addLast(nowMs);
+        expire(slot, nowMs);
+        sponsorEndMs.put(slot.sponsorKey, endMs);
+        if (slot.clip.competitorGroup != null) {
+            groupEndMs.put(slot.clip.competitorGroup, endMs);
+            groupSponsorKey.put(slot.clip.competitorGroup, slot.sponsorKey);
+        }
+    }
+    
+    private static int getDeficit(Slot slot, long nowMs) {
+        if (slot.clip.playsPerHour <= 0) {
+            return 0;
+        }
+        expire(slot, nowMs);
+        return Math.max(0, slot.clip.playsPerHour - slot.plays.size());
+    }
+    
+    private static void expire(Slot slot, long nowMs) {
+        while (!slot.plays.isEmpty() && slot.plays.peekFirst() <= nowMs - WINDOW_MS) {
+            slot.plays.pollFirst();
+        }
+    }
+}
@@ -8,6 +8,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -17,17 +18,24 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public class AudioMixer {
     private static final String TAG = "AudioMixer";
     
-    // Audio format constants - using 16-bit PCM at 44.1kHz for compatibility
-    private static final int SAMPLE_RATE = 44100;
+    // Audio format constants - 16-bit stereo PCM at the device's native rate (see EngineFormat)
     private static final int CHANNEL_CONFIG = AudioFormat.CHANNEL_OUT_STEREO;
     private static final int AUDIO_FORMAT = AudioFormat.ENCODING_PCM_16BIT;
     private static final int BYTES_PER_SAMPLE = 2; // 16-bit = 2 bytes
-    private static final int CHANNELS = 2; // Stereo
+    private static final int CHANNELS = EngineFormat.CHANNELS; // Stereo
     
-    // Buffer size for smooth playback (about 100ms of audio)
-    private static final int BUFFER_SIZE = AudioTrack.getMinBufferSize(SAMPLE_RATE, CHANNEL_CONFIG, AUDIO_FORMAT) * 4;
+    // Output rate, fixed for the lifetime of the mixer
+    private final int sampleRate = EngineFormat.getSampleRate();
+    // AudioTrack buffer size in bytes (set by initialize)
+    private int bufferSize;
     
-    private AudioTrack audioTrack;
+    // Time source and output (the system clock and an AudioTrack, unless given, e.g. by SimulationTest)
+    private final EngineClock clock;
+    private final boolean externalSink;
+    private AudioSink sink;
+    private volatile Listener listener;
+    private volatile PlayLog playLog;
+    private long engineFrames = 0; // Frames rendered since the mixer was created (positions in the play log)
     private Thread playbackThread;
     private AtomicBoolean isPlaying = new AtomicBoolean(false);
     private AtomicBoolean shouldStop = new AtomicBoolean(false);
@@ -44,7 +52,13 @@ public class AudioMixer {
     // Announcement timing
     private int announcementIntervalSeconds = 30;
     private boolean playAtEndOnly = false;
-    private int nextAnnouncementIndex = 0; // Track which announcement should play next in sequence
+    private AnnouncementRotation rotation = new AnnouncementRotation(new ArrayList<>(), 0); // Picks the next announcement
+    private Long rotationSeed = null; // Fixed seed for replaying a rotation, or null for a fresh one per playlist
+    private long lastRotationEndMs = 0; // When the last rotation announcement finished (0 = none yet; kept across stops and reloads)
+    private int breakRemaining = 0; // For "Play at End Only" - announcements left in the break after a track
+    private volatile long placementToleranceMs = 0; // Window around the due time to find a quiet start in (0 = on time)
+    private TrackData plannedTrack = null; // Track the next interval announcement is placed in (null = not planned yet)
+    private long plannedFrame = 0; // Where in plannedTrack it starts
     
     // Sequential track playback
     private int currentTrackIndex = 0; // Track which main track is currently playing
@@ -70,16 +84,110 @@ public class AudioMixer {
     private long duckStartTime = 0;
     private float volumeBeforeDuck = 1.0f; // Store volume before ducking
     
+    // Envelope-following ducking, for announcements whose envelope is loaded (see EnergyIndex):
+    // the bed is fully ducked while the announcement is within FULL_DB of its loudest, not at all
+    // when it is more than GATE_DB below it (pauses, tails), and in proportion in between
+    private static final float ENVELOPE_FULL_DB = 12f;
+    private static final float ENVELOPE_GATE_DB = 36f;
+    private static final float ENVELOPE_ATTACK_SECONDS = 0.08f; // Full duck depth down in this time
+    private static final float ENVELOPE_RELEASE_SECONDS = 0.4f; // And back up in this time
+    private static final long ENVELOPE_LOOKAHEAD_MS = 100; // Start ducking this far ahead of speech
+    private boolean isEnvelopeDucking = false;
+    
+    // Announcements at fixed clock times (see Scheduler), earliest first
+    private static final long TIMED_ANNOUNCEMENT_MAX_LATE_MS = 30 * 1000; // Skipped if this late
+    private static final float PREWARM_SECONDS = 2.0f; // Read ahead when warming up a stream
+    private final PriorityQueue<TimedAnnouncement> timedAnnouncements =
+            new PriorityQueue<>(8, (a, b) -> Long.compare(a.startMs, b.startMs));
+    private AnnouncementData timedAnnouncement = null; // Playing now, if any
+    private volatile Playlist loadedPlaylist = null; // Last playlist loaded, for saving corrected lengths
+    
+    /**
+     * An announcement due at a wall-clock time
+     */
+    private static class TimedAnnouncement {
+        final AnnouncementData announcement;
+        final long startMs;
+        
+        TimedAnnouncement(AnnouncementData announcement, long startMs) {
+            this.announcement = announcement;
+            this.startMs = startMs;
+        }
+    }
+    
+    /**
+     * Told about playback events, on the playback thread (must not block)
+     */
+    public interface Listener {
+        /**
+         * A timed announcement started
+         * @param dueMs When it was scheduled for
+         * @param heardAtMs When its first frame is heard
+         */
+        void onTimedAnnouncementStart(AnnouncementData ann, long dueMs, long heardAtMs);
+        
+        /**
+         * A file decoded on the fly turned out to have another length than its metadata said
+         * (known once its decoder reached the end); the playlist's items using it should be
+         * updated and saved
+         */
+        default void onLengthKnown(Playlist playlist, File file, long sampleCount) {
+        }
+    }
+    
+    /**
+     * Mixer for the device: system clock, output through an AudioTrack created by initialize()
+     */
+    public AudioMixer() {
+        this.clock = EngineClock.SYSTEM;
+        this.externalSink = false;
+    }
+    
+    /**
+     * Mixer on a given clock and output (e.g. a simulated device)
+     * @param bufferSize Bytes written to the sink per buffer
+     */
+    AudioMixer(EngineClock clock, AudioSink sink, int bufferSize) {
+        this.clock = clock;
+        this.sink = sink;
+        this.bufferSize = bufferSize;
+        this.externalSink = true;
+    }
+    
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+    
+    /**
+     * Record every item start, finish and cut in a proof-of-play log (null for none)
+     */
+    public void setPlayLog(PlayLog playLog) {
+        this.playLog = playLog;
+        synchronized (mainTracks) {
+            for (TrackData track : mainTracks) {
+                track.logId = internForLog(track.name, track.pcmFile);
+            }
+        }
+        synchronized (announcements) {
+            for (AnnouncementData ann : announcements) {
+                ann.logId = internForLog(ann.name, ann.pcmFile);
+            }
+        }
+    }
+    
     /**
      * Represents a loaded audio track with file-based PCM data streaming
      */
     public static class TrackData {
         String name;
-        File pcmFile; // File path to PCM data on disk
-        long sampleCount;
+        File pcmFile; // File path to PCM data on disk (or the compressed source when decoded on the fly)
+        volatile long sampleCount; // Estimated until a progressive import finishes decoding
         long currentPosition = 0; // Current position in samples
         boolean isLooping = true; // Main tracks loop continuously
-        private PCMFileStream stream; // Lazy-loaded stream
+        int logId = -1; // Number in the play log (-1 = not logged)
+        long onAirFrom = -1; // Position playback entered at, while logged as playing (-1 = not on air)
+        volatile boolean lengthExact = false; // sampleCount confirmed by the decoder reaching the end
+        volatile EnergyIndex energy; // Loudness over time, for placing announcements (null until loaded)
         
         TrackData(String name, File pcmFile, long sampleCount) {
             this.name = name;
@@ -88,27 +196,24 @@ public class AudioMixer {
         }
         
         /**
-         * Get or create the PCM file stream for this track
+         * Get this track's stream from the shared pool, pinned until releaseStream()
          */
-        synchronized PCMFileStream getStream() throws IOException {
-            if (stream == null || stream.isClosed()) {
-                stream = new PCMFileStream(pcmFile, SAMPLE_RATE, CHANNELS);
-            }
-            return stream;
+        AudioStream acquireStream() throws IOException {
+            return StreamPool.acquire(this, pcmFile);
+        }
+        
+        /**
+         * Unpin the stream after rendering a buffer (it stays open while the pool has room)
+         */
+        void releaseStream() {
+            StreamPool.release(this);
         }
         
         /**
          * Close the stream (call when done playing)
          */
-        synchronized void closeStream() {
-            if (stream != null) {
-                try {
-                    stream.close();
-                } catch (IOException e) {
-                    Log.e(TAG, "Error closing stream for " + name, e);
-                }
-                stream = null;
-            }
+        void closeStream() {
+            StreamPool.close(this);
         }
     }
     
@@ -117,12 +222,21 @@ public class AudioMixer {
      */
     public static class AnnouncementData {
         String name;
-        File pcmFile; // File path to PCM data on disk
+        File pcmFile; // File path to PCM data on disk (or the compressed source when decoded on the fly)
         long sampleCount;
         long currentPosition = 0; // Current position in samples
         long lastPlayTime = 0;
         boolean hasPlayed = false;
-        private PCMFileStream stream; // Lazy-loaded stream
+        int logId = -1; // Number in the play log (-1 = not logged)
+        long onAirFrom = -1; // Position playback entered at, while logged as playing (-1 = not on air)
+        boolean lengthExact = false; // sampleCount confirmed by the decoder reaching the end
+        // Rotation rules (see AnnouncementRotation)
+        String sponsor;          // Plays of the same sponsor are spaced apart (null = none)
+        String competitorGroup;  // Clips of different sponsors in one group are kept apart (null = none)
+        int playsPerHour;        // Quota bought by the sponsor (0 = none, fills the remaining slots)
+        int minSpacingSeconds;   // Least time between the end of a sponsor's play and its next one
+        int competitorSeparationSeconds; // Least time between the end of a competitor's play and this one
+        volatile EnergyIndex envelope; // Level over time, for ducking (null until loaded)
         
         AnnouncementData(String name, File pcmFile, long sampleCount) {
             this.name = name;
@@ -131,27 +245,42 @@ public class AudioMixer {
         }
         
         /**
-         * Get or create the PCM file stream for this announcement
+         * Take over another announcement's rotation rules
          */
-        synchronized PCMFileStream getStream() throws IOException {
-            if (stream == null || stream.isClosed()) {
-                stream = new PCMFileStream(pcmFile, SAMPLE_RATE, CHANNELS);
-            }
-            return stream;
+        void copyRulesFrom(AnnouncementData other) {
+            sponsor = other.sponsor;
+            competitorGroup = other.competitorGroup;
+            playsPerHour = other.playsPerHour;
+            minSpacingSeconds = other.minSpacingSeconds;
+            competitorSeparationSeconds = other.competitorSeparationSeconds;
         }
         
         /**
-         * Close the stream (call when done playing)
+         * Get this announcement's stream: short clips play from memory once loaded (see ClipCache),
+         * others come from the shared pool, pinned until releaseStream()
          */
-        synchronized void closeStream() {
-            if (stream != null) {
-                try {
-                    stream.close();
-                } catch (IOException e) {
-                    Log.e(TAG, "Error closing stream for " + name, e);
+        AudioStream acquireStream() throws IOException {
+            if (ClipCache.isEligible(sampleCount)) {
+                AudioStream clip = ClipCache.get(pcmFile);
+                if (clip != null) {
+                    return clip;
                 }
-                stream = null;
             }
+            return StreamPool.acquire(this, pcmFile);
+        }
+        
+        /**
+         * Unpin the stream after rendering a buffer (it stays open while the pool has room)
+         */
+        void releaseStream() {
+            StreamPool.release(this);
+        }
+        
+        /**
+         * Close the stream (call when done playing)
+         */
+        void closeStream() {
+            StreamPool.close(this);
         }
     }
     
@@ -159,7 +288,10 @@ public class AudioMixer {
      * Initialize the AudioTrack for playback
      */
     public void initialize() {
-        if (audioTrack != null) {
+        if (externalSink) {
+            return;
+        }
+        if (sink != null) {
             release();
         }
         
@@ -168,20 +300,24 @@ public class AudioMixer {
                 .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
                 .build();
         
+        // Buffer size for smooth playback (about 100ms of audio)
+        bufferSize = AudioTrack.getMinBufferSize(sampleRate, CHANNEL_CONFIG, AUDIO_FORMAT) * 4;
+        
         AudioFormat audioFormat = new AudioFormat.Builder()
-                .setSampleRate(SAMPLE_RATE)
+                .setSampleRate(sampleRate)
                 .setEncoding(AUDIO_FORMAT)
                 .setChannelMask(CHANNEL_CONFIG)
                 .build();
         
-        audioTrack = new AudioTrack.Builder()
+        AudioTrack audioTrack = new AudioTrack.Builder()
                 .setAudioAttributes(audioAttributes)
                 .setAudioFormat(audioFormat)
-                .setBufferSizeInBytes(BUFFER_SIZE)
+                .setBufferSizeInBytes(bufferSize)
                 .setTransferMode(AudioTrack.MODE_STREAM)
                 .build();
+        sink = new AudioTrackSink(audioTrack);
         
-        Log.d(TAG, "AudioTrack initialized with buffer size: " + BUFFER_SIZE);
+        Log.d(TAG, "AudioTrack initialized at " + sampleRate + " Hz with buffer size: " + bufferSize);
     }
     
     /**
@@ -194,6 +330,20 @@ public class AudioMixer {
     public TrackData loadAudioFile(File file, File pcmOutputFile, String displayName) throws IOException {
         Log.d(TAG, "Loading audio file: " + displayName + " (decoding directly to disk)");
         
+        if (AudioStream.isAdpcmCache(pcmOutputFile)) {
+            // Compact cache: decode to raw PCM first, then transcode to ADPCM blocks
+            File rawFile = new File(pcmOutputFile.getParentFile(), pcmOutputFile.getName() + ".pcm");
+            try {
+                MP3Decoder.DecodeResult result = MP3Decoder.decodeAudioToFile(file, rawFile);
+                long frames = AdpcmCodec.encodeFile(rawFile, pcmOutputFile);
+                Log.d(TAG, "Compacted cache: " + (rawFile.length() / 1024) + " KB -> " + 
+                      (pcmOutputFile.length() / 1024) + " KB");
+                return new TrackData(displayName, pcmOutputFile, frames);
+            } finally {
+                rawFile.delete();
+            }
+        }
+        
         // Decode audio directly to disk (streaming, low memory)
         MP3Decoder.DecodeResult result = MP3Decoder.decodeAudioToFile(file, pcmOutputFile);
         
@@ -201,6 +351,18 @@ public class AudioMixer {
         return new TrackData(displayName, pcmOutputFile, result.sampleCount);
     }
     
+    /**
+     * Register a compressed audio file for decode-on-the-fly playback (no PCM cache is written)
+     * @param sourceFile The compressed file, already in app storage
+     * @param displayName Display name for the track
+     * @return TrackData referencing the compressed file, with the duration estimated from metadata
+     */
+    public TrackData loadCompressedFile(File sourceFile, String displayName) throws IOException {
+        MP3Decoder.DecodeResult probe = MP3Decoder.probeAudioFile(sourceFile);
+        Log.d(TAG, "Loading audio file: " + displayName + " (decode on the fly, " + probe.mimeType + ")");
+        return new TrackData(displayName, sourceFile, probe.sampleCount);
+    }
+    
     /**
      * Save PCM data to a file in raw binary format (little-endian 16-bit samples)
      */
@@ -265,6 +427,39 @@ public class AudioMixer {
         this.announcementIntervalSeconds = seconds;
     }
     
+    /**
+     * Let interval announcements start up to half this window before or after they are due, at
+     * the quietest moment of the track (0 = exactly on time)
+     */
+    public void setPlacementTolerance(int seconds) {
+        placementToleranceMs = seconds * 1000L;
+        synchronized (mainTracks) {
+            for (TrackData track : mainTracks) {
+                EnergyIndex index = track.energy;
+                if (index != null) {
+                    index.prepare(placementToleranceMs);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Fix the seed of the announcement rotation, to replay a logged rotation (null for a new
+     * seed each time a playlist is loaded). Takes effect with the next loadPlaylist().
+     */
+    public void setRotationSeed(Long seed) {
+        this.rotationSeed = seed;
+    }
+    
+    /**
+     * Seed of the current announcement rotation (logged when a playlist is loaded)
+     */
+    public long getRotationSeed() {
+        synchronized (announcements) {
+            return rotation.getSeed();
+        }
+    }
+    
     /**
      * Set whether announcements play only at the end
      */
@@ -277,10 +472,14 @@ public class AudioMixer {
      */
     public void loadPlaylist(Playlist playlist) {
         boolean wasPlaying = isPlaying.get();
+        loadedPlaylist = playlist;
         
         if (wasPlaying) {
             // Stop playback completely to ensure clean state
             stop();
+        } else if (isPaused) {
+            // Nothing of the old list is resumed, so what was paused mid-way is cut off
+            logCuts(clock.currentTimeMillis());
         }
         
         // Clear and reload main tracks
@@ -289,6 +488,10 @@ public class AudioMixer {
             // Create new list to avoid reference issues
             List<TrackData> newTracks = new ArrayList<>(playlist.getTracks());
             mainTracks.addAll(newTracks);
+            // The new list plays from its top, also when resumed from pause
+            for (TrackData track : mainTracks) {
+                track.currentPosition = 0;
+            }
         }
         
         // Clear and reload announcements with new order
@@ -297,21 +500,59 @@ public class AudioMixer {
         for (AudioMixer.AnnouncementData ann : playlist.getAnnouncements()) {
             // Use the same announcement objects but reset their state
             AnnouncementData newAnn = new AnnouncementData(ann.name, ann.pcmFile, ann.sampleCount);
+            newAnn.copyRulesFrom(ann);
             newAnn.currentPosition = 0;
             newAnn.lastPlayTime = 0;
             newAnn.hasPlayed = false;
             newAnnouncements.add(newAnn);
         }
         
-        // Atomically replace the entire list
+        // Atomically replace the entire list; the rotation carries its history over (plays, spacing,
+        // competitors), so reordering, editing or switching playlists doesn't reset the quotas
+        long seed = (rotationSeed != null) ? rotationSeed : clock.currentTimeMillis();
         synchronized (announcements) {
             announcements.clear();
             announcements.addAll(newAnnouncements);
+            rotation = new AnnouncementRotation(announcements, seed, rotation);
+            if (rotation.haveRulesChanged()) {
+                // Edited rules start the interval over
+                lastRotationEndMs = 0;
+            }
+            breakRemaining = 0;
+            plannedTrack = null;
         }
+        Log.d(TAG, "Announcement rotation seed: " + seed);
         
         // Reset sequence tracking to start from beginning
-        nextAnnouncementIndex = 0;
         currentTrackIndex = 0;
+        prefetchAnnouncements();
+        
+        // Number the items for the play log here, not while rendering
+        synchronized (mainTracks) {
+            for (TrackData track : mainTracks) {
+                track.logId = internForLog(track.name, track.pcmFile);
+            }
+        }
+        synchronized (announcements) {
+            for (AnnouncementData ann : announcements) {
+                ann.logId = internForLog(ann.name, ann.pcmFile);
+                loadEnvelope(ann);
+            }
+        }
+        
+        // Loudness indexes for placing announcements, read (or built) in the background
+        synchronized (mainTracks) {
+            for (TrackData track : mainTracks) {
+                if (track.energy == null && DecodeProgress.get(track.pcmFile) == null) {
+                    EnergyIndex.loadInBackground(track.pcmFile, index -> {
+                        index.prepare(placementToleranceMs);
+                        track.energy = index;
+                        // Again, in case the tolerance changed meanwhile (a no-op otherwise)
+                        index.prepare(placementToleranceMs);
+                    });
+                }
+            }
+        }
         
         Log.d(TAG, "Loaded playlist: " + playlist.getName() + 
               " (Tracks: " + playlist.getTracks().size() + 
@@ -337,6 +578,84 @@ public class AudioMixer {
         this.fadeDurationSeconds = seconds;
     }
     
+    /**
+     * Warm up a playlist that is about to be loaded (e.g. for a scheduled daypart): read its first
+     * track's first seconds, and load its first short announcement, so playback starts without
+     * waiting on storage. Blocks on I/O - call it off the main and playback threads.
+     */
+    public void prewarm(Playlist playlist) {
+        List<TrackData> tracks = playlist.getTracks();
+        if (!tracks.isEmpty()) {
+            readAhead(tracks.get(0).name, tracks.get(0).pcmFile);
+        }
+        for (AnnouncementData ann : playlist.getAnnouncements()) {
+            if (ClipCache.isEligible(ann.sampleCount)) {
+                ClipCache.prefetch(ann.pcmFile, ann.sampleCount);
+                break;
+            }
+        }
+    }
+    
+    /**
+     * Play an announcement at a wall-clock time, over whatever is playing (main tracks duck as
+     * for any announcement). It starts on the exact frame heard at that time, or after an
+     * announcement already playing has finished. Loads the clip now - call it ahead of time,
+     * off the main and playback threads.
+     */
+    public void scheduleAnnouncement(AnnouncementData ann, long startMs) {
+        if (ClipCache.isEligible(ann.sampleCount)) {
+            ClipCache.prefetch(ann.pcmFile, ann.sampleCount);
+        } else {
+            readAhead(ann.name, ann.pcmFile);
+        }
+        ann.logId = internForLog(ann.name, ann.pcmFile);
+        loadEnvelope(ann);
+        synchronized (timedAnnouncements) {
+            timedAnnouncements.add(new TimedAnnouncement(ann, startMs));
+        }
+        Log.d(TAG, "Scheduled announcement " + ann.name + " in " + (startMs - clock.currentTimeMillis()) + " ms");
+    }
+    
+    /**
+     * Read the first seconds of a file so they are in memory when playback starts. Uses a stream
+     * of its own: the item's pooled stream may be playing (the same item in the current
+     * playlist), and streams are not safe to read from two threads.
+     */
+    private void readAhead(String name, File file) {
+        int frames = (int) (sampleRate * PREWARM_SECONDS);
+        try {
+            AudioStream stream = AudioStream.open(file, sampleRate, CHANNELS);
+            try {
+                stream.readSamples(0, frames, new short[frames * CHANNELS]);
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not warm up " + name, e);
+        }
+    }
+    
+    /**
+     * Take the timed announcement due within a buffer, dropping any that were missed
+     * (e.g. while playback was stopped)
+     * @param bufferStartMs Wall-clock time at which the buffer being mixed starts to be heard
+     * @param bufferEndMs Wall-clock time at which its end is heard
+     */
+    private TimedAnnouncement pollTimedAnnouncement(long bufferStartMs, long bufferEndMs) {
+        synchronized (timedAnnouncements) {
+            while (!timedAnnouncements.isEmpty() &&
+                    timedAnnouncements.peek().startMs < bufferStartMs - TIMED_ANNOUNCEMENT_MAX_LATE_MS) {
+                TimedAnnouncement missed = timedAnnouncements.poll();
+                Log.w(TAG, "Skipped timed announcement " + missed.announcement.name + " (" +
+                      (bufferStartMs - missed.startMs) + " ms late)");
+            }
+            if (!timedAnnouncements.isEmpty() && timedAnnouncements.peek().startMs < bufferEndMs) {
+                return timedAnnouncements.poll();
+            }
+            return null;
+        }
+    }
+    
     /**
      * Start playback
      */
@@ -350,7 +669,7 @@ public class AudioMixer {
             return;
         }
         
-        if (audioTrack == null) {
+        if (sink == null) {
             initialize();
         }
         
@@ -374,18 +693,20 @@ public class AudioMixer {
                 }
             }
             
-            // Reset sequence tracking
-            nextAnnouncementIndex = 0;
+            // Reset sequence tracking (the rotation and the interval keep their history, so quotas and
+            // spacing hold across a stop)
+            breakRemaining = 0;
+            plannedTrack = null;
             currentTrackIndex = 0; // Start with first track
             waitingForAnnouncementsAfterTrack = false;
             
             // Reset fade state - start at 0, then fade in over 3 seconds
             currentMainVolumeMultiplier = 0.0f;
             isFadingIn = true; // Always fade in when play starts
-            fadeStartTime = System.currentTimeMillis();
+            fadeStartTime = clock.currentTimeMillis();
             
             // Reset position tracking
-            playbackStartTime = System.currentTimeMillis();
+            playbackStartTime = clock.currentTimeMillis();
             totalSamplesPlayed = 0;
             seekOffsetSamples = 0;
         } else {
@@ -394,10 +715,10 @@ public class AudioMixer {
             // If fade was complete, don't restart it
             if (isFadingIn && fadeStartTime > 0) {
                 // Continue fade from where we left off
-                long elapsed = System.currentTimeMillis() - fadeStartTime;
+                long elapsed = clock.currentTimeMillis() - fadeStartTime;
                 if (elapsed < fadeDurationSeconds * 1000) {
                     // Still fading - adjust start time
-                    fadeStartTime = System.currentTimeMillis() - elapsed;
+                    fadeStartTime = clock.currentTimeMillis() - elapsed;
                 } else {
                     // Fade complete - don't restart
                     isFadingIn = false;
@@ -417,7 +738,7 @@ public class AudioMixer {
             }
         }
         
-        audioTrack.play();
+        sink.play();
         
         // Start playback thread (always start new thread when resuming)
         playbackThread = new Thread(this::playbackLoop);
@@ -437,10 +758,19 @@ public class AudioMixer {
      * Pause playback
      */
     public void pause() {
-        if (audioTrack != null && isPlaying.get()) {
+        if (sink != null && isPlaying.get()) {
             isPaused = true; // Mark as paused (not stopped) before stopping thread
             isPlaying.set(false); // This will cause playback loop to exit
-            audioTrack.pause();
+            sink.pause();
+            // Let the loop finish its buffer, so a quick resume can't leave two loops rendering
+            if (playbackThread != null && playbackThread != Thread.currentThread()) {
+                try {
+                    playbackThread.join(2000);
+                } catch (InterruptedException e) {
+                    Log.e(TAG, "Error pausing playback thread", e);
+                    Thread.currentThread().interrupt();
+                }
+            }
             Log.d(TAG, "Playback paused");
         }
     }
@@ -453,11 +783,11 @@ public class AudioMixer {
         isPlaying.set(false);
         isPaused = false; // Not paused, fully stopped
         
-        if (audioTrack != null) {
+        if (sink != null) {
             try {
-                audioTrack.stop();
+                sink.stop();
             } catch (Exception e) {
-                Log.e(TAG, "Error stopping AudioTrack", e);
+                Log.e(TAG, "Error stopping output", e);
             }
         }
         
@@ -473,13 +803,16 @@ public class AudioMixer {
         }
         
         resetPlaybackState();
-        Log.d(TAG, "Playback stopped");
+        Log.d(TAG, "Playback stopped (streams: " + StreamPool.getStats() + "; clips: " + ClipCache.getStats() + ")");
     }
     
     /**
      * Reset playback state
      */
     private void resetPlaybackState() {
+        // Whatever was playing is cut off
+        logCuts(clock.currentTimeMillis());
+        
         // Reset positions and close streams
         synchronized (mainTracks) {
             for (TrackData track : mainTracks) {
@@ -502,7 +835,8 @@ public class AudioMixer {
         currentMainVolumeMultiplier = 0.0f;
         isFadingIn = false;
         fadeStartTime = 0;
-        nextAnnouncementIndex = 0;
+        breakRemaining = 0;
+        plannedTrack = null;
         currentTrackIndex = 0;
         waitingForAnnouncementsAfterTrack = false;
         
@@ -511,12 +845,19 @@ public class AudioMixer {
         totalSamplesPlayed = 0;
         seekOffsetSamples = 0;
         
+        // A timed announcement cut off by stopping is not resumed
+        if (timedAnnouncement != null) {
+            timedAnnouncement.closeStream();
+            timedAnnouncement = null;
+        }
+        
         // Reset ducking state
         isDucking = false;
         isDuckingOut = false;
         isDuckingIn = false;
         duckStartTime = 0;
         volumeBeforeDuck = 1.0f;
+        isEnvelopeDucking = false;
         
         isPaused = false; // Reset pause state
         
@@ -527,9 +868,9 @@ public class AudioMixer {
      * Main playback loop - mixes all tracks and writes to AudioTrack
      */
     private void playbackLoop() {
-        int samplesPerBuffer = BUFFER_SIZE / (BYTES_PER_SAMPLE * CHANNELS);
+        int samplesPerBuffer = bufferSize / (BYTES_PER_SAMPLE * CHANNELS);
         short[] mixBuffer = new short[samplesPerBuffer * CHANNELS];
-        long startTime = System.currentTimeMillis();
+        long startTime = clock.currentTimeMillis();
         
         // Track total duration of all tracks for "play at end" detection
         long totalTrackDurationSamples = 0;
@@ -538,7 +879,13 @@ public class AudioMixer {
                 totalTrackDurationSamples += track.sampleCount;
             }
         }
-        long totalTrackDurationMs = (totalTrackDurationSamples * 1000) / SAMPLE_RATE;
+        long totalTrackDurationMs = EngineFormat.framesToMs(totalTrackDurationSamples);
+        
+        // Output clock: frames written vs. frames played, to know when a buffer will be heard
+        long framesWritten = 0;
+        long framesPlayed = 0;
+        int lastHeadPosition = sink.getPlaybackHeadPosition();
+        long bufferMs = EngineFormat.framesToMs(samplesPerBuffer);
         
         while (!shouldStop.get() && isPlaying.get()) {
             // Clear mix buffer
@@ -546,9 +893,17 @@ public class AudioMixer {
                 mixBuffer[i] = 0;
             }
             
-            long currentTime = System.currentTimeMillis();
+            long currentTime = clock.currentTimeMillis();
             long elapsedSeconds = (currentTime - startTime) / 1000;
             
+            // The head position is a 32-bit frame counter that wraps after about a day
+            int headPosition = sink.getPlaybackHeadPosition();
+            framesPlayed += (headPosition - lastHeadPosition) & 0xFFFFFFFFL;
+            lastHeadPosition = headPosition;
+            // Mapped from the wall clock afresh for every buffer, so timed starts never drift
+            long queuedFrames = Math.max(0, Math.min(framesWritten - framesPlayed, bufferSize / (BYTES_PER_SAMPLE * CHANNELS)));
+            long bufferHeardAtMs = currentTime + EngineFormat.framesToMs(queuedFrames);
+            
             // Check if any announcement is currently playing (for ducking)
             AnnouncementData currentlyPlayingAnnouncement = null;
             synchronized (announcements) {
@@ -561,7 +916,11 @@ public class AudioMixer {
             }
             
             // Handle ducking: fade main track to 15% when announcement plays
-            boolean shouldDuck = (currentlyPlayingAnnouncement != null && announcementIntervalSeconds > 0);
+            boolean shouldDuck = (currentlyPlayingAnnouncement != null && announcementIntervalSeconds > 0) ||
+                    timedAnnouncement != null;
+            float envelopeDepth = shouldDuck ? getEnvelopeDepth(
+                    (announcementIntervalSeconds > 0) ? currentlyPlayingAnnouncement : null,
+                    timedAnnouncement, samplesPerBuffer) : -1;
             
             // Calculate fade multiplier for main tracks
             float mainVolumeMultiplier = currentMainVolumeMultiplier;
@@ -577,11 +936,21 @@ public class AudioMixer {
                     isFadingIn = false;
                 }
                 currentMainVolumeMultiplier = mainVolumeMultiplier;
+            } else if (shouldDuck && envelopeDepth >= 0) {
+                // Announcement is playing - duck as deep as it is loud now, recovering in its pauses
+                float target = 1.0f - (1.0f - duckVolume) * envelopeDepth;
+                mainVolumeMultiplier = slewDuck(currentMainVolumeMultiplier, target, bufferMs);
+                isDucking = true;
+                isDuckingOut = false;
+                isDuckingIn = false;
+                isEnvelopeDucking = true;
+                currentMainVolumeMultiplier = mainVolumeMultiplier;
             } else if (shouldDuck) {
                 // Announcement is playing - duck main track to 15%
-                if (!isDucking) {
-                    // Start ducking - fade out to 15%
+                if (!isDucking || isEnvelopeDucking) {
+                    // Start ducking - fade out to 15% (from wherever an envelope duck left it)
                     isDucking = true;
+                    isEnvelopeDucking = false;
                     isDuckingOut = true;
                     isDuckingIn = false;
                     duckStartTime = currentTime;
@@ -604,6 +973,14 @@ public class AudioMixer {
                     mainVolumeMultiplier = duckVolume;
                 }
                 currentMainVolumeMultiplier = mainVolumeMultiplier;
+            } else if (isDucking && isEnvelopeDucking) {
+                // Announcement finished - release back to 100%
+                mainVolumeMultiplier = slewDuck(currentMainVolumeMultiplier, 1.0f, bufferMs);
+                if (mainVolumeMultiplier >= 1.0f) {
+                    isDucking = false;
+                    isEnvelopeDucking = false;
+                }
+                currentMainVolumeMultiplier = mainVolumeMultiplier;
             } else if (isDucking) {
                 // Announcement finished - fade back in to 100%
                 if (isDuckingOut) {
@@ -644,18 +1021,31 @@ public class AudioMixer {
                 }
             }
             
+            long trackFrom = -1; // Track position at the start of this buffer (-1 = no track playing)
             if (currentTrack != null && !waitingForAnnouncementsAfterTrack) {
                 // Mix only the current track
+                trackFrom = currentTrack.currentPosition;
                 mixTrack(currentTrack, mixBuffer, samplesPerBuffer, mainVolume * mainVolumeMultiplier);
+                if (currentTrack.onAirFrom < 0 && currentTrack.currentPosition > trackFrom) {
+                    // From the top, or mid-way after a seek or a reload while paused
+                    currentTrack.onAirFrom = trackFrom;
+                    logPlay(bufferHeardAtMs, engineFrames, currentTrack.logId, PlayLog.KIND_TRACK, PlayLog.EVENT_START,
+                            trackFrom);
+                }
                 
                 // Check if current track finished
                 if (currentTrack.currentPosition >= currentTrack.sampleCount) {
+                    if (currentTrack.onAirFrom >= 0) {
+                        long mixed = currentTrack.currentPosition - trackFrom;
+                        logPlay(bufferHeardAtMs + EngineFormat.framesToMs(mixed), engineFrames + mixed, currentTrack.logId,
+                                PlayLog.KIND_TRACK, PlayLog.EVENT_FINISH, currentTrack.currentPosition - currentTrack.onAirFrom);
+                        currentTrack.onAirFrom = -1;
+                    }
                     // Track finished
                     if (playAtEndOnly && !announcements.isEmpty()) {
-                        // "Play at End Only" - play announcements after this track finishes
-                        // Reset announcement sequence for this track
+                        // "Play at End Only" - play a break of announcements after this track finishes
                         synchronized (announcements) {
-                            nextAnnouncementIndex = 0;
+                            breakRemaining = announcements.size();
                             for (AnnouncementData ann : announcements) {
                                 ann.currentPosition = 0;
                                 ann.lastPlayTime = 0;
@@ -693,171 +1083,373 @@ public class AudioMixer {
                 }
             }
             
+            // Announcements at clock times go before the rotation, which waits while one plays
+            if (timedAnnouncement == null && currentlyPlayingAnnouncement == null) {
+                TimedAnnouncement due = pollTimedAnnouncement(bufferHeardAtMs, bufferHeardAtMs + bufferMs);
+                if (due != null) {
+                    int offset = (int) Math.max(0, Math.min(samplesPerBuffer - 1,
+                            EngineFormat.msToFrames(due.startMs - bufferHeardAtMs)));
+                    timedAnnouncement = due.announcement;
+                    timedAnnouncement.currentPosition = 0;
+                    mixAnnouncement(timedAnnouncement, mixBuffer, offset, samplesPerBuffer - offset, announcementVolume);
+                    long heardAtMs = bufferHeardAtMs + EngineFormat.framesToMs(offset);
+                    Log.d(TAG, "Starting timed announcement " + timedAnnouncement.name + " (" +
+                          (heardAtMs - due.startMs) + " ms off)");
+                    timedAnnouncement.onAirFrom = 0;
+                    logPlay(heardAtMs, engineFrames + offset, timedAnnouncement.logId, PlayLog.KIND_TIMED_ANNOUNCEMENT,
+                            PlayLog.EVENT_START, 0);
+                    Listener current = listener;
+                    if (current != null) {
+                        current.onTimedAnnouncementStart(timedAnnouncement, due.startMs, heardAtMs);
+                    }
+                    if (timedAnnouncement.currentPosition >= timedAnnouncement.sampleCount) {
+                        // Shorter than the rest of the buffer
+                        long end = offset + timedAnnouncement.currentPosition;
+                        logPlay(bufferHeardAtMs + EngineFormat.framesToMs(end), engineFrames + end, timedAnnouncement.logId,
+                                PlayLog.KIND_TIMED_ANNOUNCEMENT, PlayLog.EVENT_FINISH, timedAnnouncement.currentPosition);
+                        timedAnnouncement.onAirFrom = -1;
+                    }
+                }
+            } else if (timedAnnouncement != null) {
+                long from = timedAnnouncement.currentPosition;
+                mixAnnouncement(timedAnnouncement, mixBuffer, 0, samplesPerBuffer, announcementVolume);
+                if (timedAnnouncement.onAirFrom < 0) {
+                    // Resumed after a reload while paused logged it as cut
+                    timedAnnouncement.onAirFrom = from;
+                    logPlay(bufferHeardAtMs, engineFrames, timedAnnouncement.logId, PlayLog.KIND_TIMED_ANNOUNCEMENT,
+                            PlayLog.EVENT_START, from);
+                }
+                if (timedAnnouncement.currentPosition >= timedAnnouncement.sampleCount) {
+                    long mixed = timedAnnouncement.currentPosition - from;
+                    logPlay(bufferHeardAtMs + EngineFormat.framesToMs(mixed), engineFrames + mixed, timedAnnouncement.logId,
+                            PlayLog.KIND_TIMED_ANNOUNCEMENT, PlayLog.EVENT_FINISH,
+                            timedAnnouncement.currentPosition - timedAnnouncement.onAirFrom);
+                    timedAnnouncement.onAirFrom = -1;
+                }
+            }
+            if (timedAnnouncement != null && timedAnnouncement.currentPosition >= timedAnnouncement.sampleCount) {
+                timedAnnouncement.closeStream();
+                timedAnnouncement = null;
+            }
+            
             // Mix the currently playing announcement (if any)
             if (currentlyPlayingAnnouncement != null) {
                 // Continue playing the current announcement
-                mixAnnouncement(currentlyPlayingAnnouncement, mixBuffer, samplesPerBuffer, announcementVolume);
+                long from = currentlyPlayingAnnouncement.currentPosition;
+                mixAnnouncement(currentlyPlayingAnnouncement, mixBuffer, 0, samplesPerBuffer, announcementVolume);
                 
                 if (currentlyPlayingAnnouncement.currentPosition >= currentlyPlayingAnnouncement.sampleCount) {
-                    // Announcement finished - reset for next play
-                    currentlyPlayingAnnouncement.currentPosition = 0;
-                    currentlyPlayingAnnouncement.lastPlayTime = currentTime; // Update time when finished
-                    currentlyPlayingAnnouncement.hasPlayed = true;
-                    currentlyPlayingAnnouncement.closeStream(); // Close stream when done
-                    
-                    // Move to next announcement in sequence
-                    synchronized (announcements) {
-                        nextAnnouncementIndex++;
-                        if (nextAnnouncementIndex >= announcements.size()) {
-                            // All announcements played
-                            if (waitingForAnnouncementsAfterTrack) {
-                                // We were waiting for announcements after a track - now move to next track
-                                waitingForAnnouncementsAfterTrack = false;
-                                synchronized (mainTracks) {
-                                    currentTrackIndex++;
-                                    if (currentTrackIndex >= mainTracks.size()) {
-                                        // All tracks finished
-                                        if (!playAtEndOnly) {
-                                            // Loop back to first track for continuous playback
-                                            currentTrackIndex = 0;
-                                            // Reset all track positions for next cycle
-                                            for (TrackData track : mainTracks) {
-                                                track.currentPosition = 0;
-                                            }
-                                        }
-                                    } else {
-                                        // Reset next track position
-                                        if (currentTrackIndex < mainTracks.size()) {
-                                            mainTracks.get(currentTrackIndex).currentPosition = 0;
-                                        }
-                                    }
-                                }
-                            }
-                            // Reset to start for next cycle
-                            nextAnnouncementIndex = 0;
-                            // Reset all hasPlayed flags for next cycle
-                            for (AnnouncementData ann : announcements) {
-                                ann.hasPlayed = false;
-                            }
-                        }
-                    }
+                    finishAnnouncement(currentlyPlayingAnnouncement, bufferHeardAtMs,
+                            currentlyPlayingAnnouncement.currentPosition - from, currentTime);
                 }
-            } else {
-                // No announcement is currently playing - check if we should start a new one
+            } else if (timedAnnouncement == null) {
+                // No announcement is currently playing - ask the rotation whether one should start
                 boolean shouldStartAnnouncement = false;
                 int announcementIndexToPlay = -1;
+                int startOffset = 0;
                 
-                if (playAtEndOnly) {
-                    // Play at end only - play announcements after each track finishes
-                    // This is triggered when waitingForAnnouncementsAfterTrack is true
-                    if (waitingForAnnouncementsAfterTrack && !announcements.isEmpty()) {
-                        // Find next announcement in sequence that hasn't played yet
-                        synchronized (announcements) {
-                            // Play announcements in sequence starting from nextAnnouncementIndex
-                            for (int i = 0; i < announcements.size(); i++) {
-                                int idx = (nextAnnouncementIndex + i) % announcements.size();
-                                AnnouncementData ann = announcements.get(idx);
-                                if (ann.currentPosition == 0 && !ann.hasPlayed) {
-                                    shouldStartAnnouncement = true;
-                                    announcementIndexToPlay = idx;
-                                    break;
-                                }
+                synchronized (announcements) {
+                    if (announcements.isEmpty()) {
+                        shouldStartAnnouncement = false;
+                    } else if (playAtEndOnly) {
+                        // Play at end only - a break of announcements after each track finishes
+                        if (waitingForAnnouncementsAfterTrack) {
+                            announcementIndexToPlay = rotation.next(currentTime);
+                            if (announcementIndexToPlay < 0) {
+                                // Nothing may play now (quotas, spacing) - cut the break short
+                                endBreak();
                             }
                         }
-                    }
-                } else {
-                    // Interval-based playback
-                    synchronized (announcements) {
-                        if (announcements.isEmpty()) {
-                            shouldStartAnnouncement = false;
-                        } else if (announcementIntervalSeconds == 0) {
-                            // Interval is 0 - play ASAP (immediately, one after another in sequence)
-                            if (nextAnnouncementIndex < announcements.size()) {
-                                AnnouncementData ann = announcements.get(nextAnnouncementIndex);
-                                // Play next in sequence immediately (no delay)
-                                if (ann.currentPosition == 0) {
-                                    shouldStartAnnouncement = true;
-                                    announcementIndexToPlay = nextAnnouncementIndex;
-                                }
-                            }
-                        } else {
-                            // Interval > 0 - first announcement plays immediately, then respect interval
-                            if (nextAnnouncementIndex < announcements.size()) {
-                                AnnouncementData ann = announcements.get(nextAnnouncementIndex);
-                                
-                                // Check if it's time to play this announcement
-                                boolean timeToPlay = false;
-                                
-                                if (nextAnnouncementIndex == 0) {
-                                    // First announcement (index 0)
-                                    if (ann.lastPlayTime > 0) {
-                                        // Already played before (cycling) - check interval since last finished
-                                        long timeSinceLastFinished = currentTime - ann.lastPlayTime;
-                                        timeToPlay = (timeSinceLastFinished >= (announcementIntervalSeconds * 1000));
-                                    } else if (!ann.hasPlayed && ann.currentPosition == 0) {
-                                        // Never played before - play immediately when playback starts
-                                        timeToPlay = true;
-                                    }
-                                } else {
-                                    // Subsequent announcements - check interval since previous finished
-                                    AnnouncementData prevAnn = announcements.get(nextAnnouncementIndex - 1);
-                                    if (prevAnn.lastPlayTime > 0) {
-                                        // Previous announcement has finished - check interval
-                                        long timeSincePrevFinished = currentTime - prevAnn.lastPlayTime;
-                                        timeToPlay = (timeSincePrevFinished >= (announcementIntervalSeconds * 1000));
-                                    }
-                                }
-                                
-                                if (timeToPlay && ann.currentPosition == 0) {
-                                    shouldStartAnnouncement = true;
-                                    announcementIndexToPlay = nextAnnouncementIndex;
-                                }
-                            }
+                    } else if (lastRotationEndMs == 0) {
+                        // First announcement plays right away
+                        announcementIndexToPlay = rotation.next(currentTime);
+                    } else {
+                        // Then one per interval (0 = back to back), at a quiet moment near its due time;
+                        // when the rules hold every clip back, the slot waits until one may play
+                        startOffset = placeAnnouncement(currentTime, lastRotationEndMs + announcementIntervalSeconds * 1000L,
+                                currentTrack, trackFrom, samplesPerBuffer);
+                        if (startOffset >= 0) {
+                            announcementIndexToPlay = rotation.next(currentTime);
                         }
                     }
+                    shouldStartAnnouncement = announcementIndexToPlay >= 0;
                 }
                 
                 // Start playing the selected announcement
+                AnnouncementData endedAtOnce = null;
+                long endedAt = 0;
                 if (shouldStartAnnouncement && announcementIndexToPlay >= 0) {
                     synchronized (announcements) {
                         if (announcementIndexToPlay < announcements.size()) {
                             AnnouncementData ann = announcements.get(announcementIndexToPlay);
                             // Start playing this announcement
                             ann.currentPosition = 0; // Reset position
-                            mixAnnouncement(ann, mixBuffer, samplesPerBuffer, announcementVolume);
+                            mixAnnouncement(ann, mixBuffer, startOffset, samplesPerBuffer - startOffset, announcementVolume);
                             // Don't set lastPlayTime here - it will be set when announcement finishes
                             ann.hasPlayed = true;
+                            plannedTrack = null;
+                            ann.onAirFrom = 0;
+                            logPlay(bufferHeardAtMs + EngineFormat.framesToMs(startOffset), engineFrames + startOffset,
+                                    ann.logId, PlayLog.KIND_ANNOUNCEMENT, PlayLog.EVENT_START, 0);
                             Log.d(TAG, "Starting announcement " + announcementIndexToPlay + ": " + ann.name);
+                            if (ann.currentPosition >= ann.sampleCount) {
+                                // Shorter than the rest of the buffer (it is not picked up as playing next time)
+                                endedAtOnce = ann;
+                                endedAt = startOffset + ann.currentPosition;
+                            }
                         }
                     }
                 }
+                if (endedAtOnce != null) {
+                    finishAnnouncement(endedAtOnce, bufferHeardAtMs, endedAt, currentTime);
+                }
             }
             
             // Write mixed buffer to AudioTrack
-            int written = audioTrack.write(mixBuffer, 0, mixBuffer.length);
+            int written = sink.write(mixBuffer, 0, mixBuffer.length);
             if (written < 0) {
                 Log.e(TAG, "Error writing to AudioTrack: " + written);
                 break;
             }
+            framesWritten += written / CHANNELS;
+            engineFrames += written / CHANNELS;
             
             // Track position is updated via currentPosition in TrackData
         }
         
         // Only stop AudioTrack if we're not paused (i.e., actually stopping)
-        if (audioTrack != null && !isPaused) {
-            audioTrack.stop();
+        if (sink != null && !isPaused) {
+            sink.stop();
         }
         
         Log.d(TAG, "Playback loop ended");
     }
     
+    /**
+     * A rotation announcement reached its end in this buffer (endFrame frames in, whether it
+     * started in this buffer or earlier): log it, release its stream, and count it against the
+     * interval and the break after a track
+     */
+    private void finishAnnouncement(AnnouncementData ann, long bufferHeardAtMs, long endFrame, long currentTime) {
+        if (ann.onAirFrom >= 0) {
+            logPlay(bufferHeardAtMs + EngineFormat.framesToMs(endFrame), engineFrames + endFrame, ann.logId,
+                    PlayLog.KIND_ANNOUNCEMENT, PlayLog.EVENT_FINISH, ann.currentPosition - ann.onAirFrom);
+            ann.onAirFrom = -1;
+        }
+        // Reset for the next play
+        ann.currentPosition = 0;
+        ann.lastPlayTime = currentTime;
+        ann.hasPlayed = true;
+        ann.closeStream();
+        
+        // The break ends when all have had a turn
+        synchronized (announcements) {
+            lastRotationEndMs = currentTime;
+            if (waitingForAnnouncementsAfterTrack && --breakRemaining <= 0) {
+                endBreak();
+            }
+        }
+        // Have the next clips in memory before their turn (in case any was dropped)
+        prefetchAnnouncements();
+    }
+    
+    /**
+     * Number for an item in the play log, or -1 without a log
+     */
+    private int internForLog(String name, File file) {
+        PlayLog log = playLog;
+        return (log != null) ? log.intern(name, file.getName()) : -1;
+    }
+    
+    /**
+     * Add an entry to the play log (copied to its ring; no I/O here)
+     */
+    private void logPlay(long timeMs, long frame, int logId, int kind, int event, long playedFrames) {
+        PlayLog log = playLog;
+        if (log != null && logId >= 0) {
+            log.append(timeMs, frame, logId, kind, event, playedFrames);
+        }
+    }
+    
+    /**
+     * Log every item on air as cut off (stop, seek, reload); the next START comes when
+     * playback enters an item again
+     */
+    private void logCuts(long timeMs) {
+        synchronized (mainTracks) {
+            for (TrackData track : mainTracks) {
+                logCut(track, timeMs);
+            }
+        }
+        synchronized (announcements) {
+            for (AnnouncementData ann : announcements) {
+                logCut(ann, PlayLog.KIND_ANNOUNCEMENT, timeMs);
+            }
+        }
+        AnnouncementData timed = timedAnnouncement;
+        if (timed != null) {
+            logCut(timed, PlayLog.KIND_TIMED_ANNOUNCEMENT, timeMs);
+        }
+    }
+    
+    private void logCut(TrackData track, long timeMs) {
+        if (track.onAirFrom >= 0) {
+            logPlay(timeMs, engineFrames, track.logId, PlayLog.KIND_TRACK, PlayLog.EVENT_CUT,
+                    Math.max(0, track.currentPosition - track.onAirFrom));
+            track.onAirFrom = -1;
+        }
+    }
+    
+    private void logCut(AnnouncementData ann, int kind, long timeMs) {
+        if (ann.onAirFrom >= 0) {
+            logPlay(timeMs, engineFrames, ann.logId, kind, PlayLog.EVENT_CUT, Math.max(0, ann.currentPosition - ann.onAirFrom));
+            ann.onAirFrom = -1;
+        }
+    }
+    
+    /**
+     * How deep to duck over the coming buffer for the announcements playing, from their
+     * envelopes: 0 in their pauses, 1 under speech, the deeper one if two play at once. Looks at
+     * the few envelope hops the buffer (and ENVELOPE_LOOKAHEAD_MS) spans, nothing else.
+     * @return The depth, or -1 if an announcement has no envelope yet (duck the fixed way)
+     */
+    private static float getEnvelopeDepth(AnnouncementData rotating, AnnouncementData timed, int frames) {
+        float rotatingDepth = getEnvelopeDepth(rotating, frames);
+        float timedDepth = getEnvelopeDepth(timed, frames);
+        if (rotatingDepth < 0 || timedDepth < 0) {
+            return -1;
+        }
+        return Math.min(1.0f, Math.max(rotatingDepth, timedDepth));
+    }
+    
+    /**
+     * Depth for one announcement (0 without one, -1 if it has no envelope yet)
+     */
+    private static float getEnvelopeDepth(AnnouncementData ann, int frames) {
+        if (ann == null) {
+            return 0;
+        }
+        EnergyIndex envelope = ann.envelope;
+        if (envelope == null) {
+            return -1;
+        }
+        long from = ann.currentPosition;
+        long to = from + frames + EngineFormat.msToFrames(ENVELOPE_LOOKAHEAD_MS);
+        float belowPeak = envelope.getPeakDb() - envelope.getMaxEnergyDb(from, to);
+        return Math.max(0, (ENVELOPE_GATE_DB - belowPeak) / (ENVELOPE_GATE_DB - ENVELOPE_FULL_DB));
+    }
+    
+    /**
+     * Move the bed volume toward a target by one buffer's step of the envelope attack (down) or
+     * release (up)
+     */
+    private float slewDuck(float from, float to, long bufferMs) {
+        float seconds = (to < from) ? ENVELOPE_ATTACK_SECONDS : ENVELOPE_RELEASE_SECONDS;
+        float step = (1.0f - duckVolume) * (bufferMs / 1000.0f) / seconds;
+        return (to < from) ? Math.max(to, from - step) : Math.min(to, from + step);
+    }
+    
+    /**
+     * Read (or build) an announcement's envelope in the background; it ducks the fixed way until then
+     */
+    private static void loadEnvelope(AnnouncementData ann) {
+        if (ann.envelope == null && DecodeProgress.get(ann.pcmFile) == null) {
+            EnergyIndex.loadInBackground(ann.pcmFile, index -> ann.envelope = index);
+        }
+    }
+    
+    /**
+     * Where in this buffer the next interval announcement starts, or -1 to wait. Without a
+     * placement tolerance (or an energy index for the track) it starts when due. With one, half
+     * the tolerance before it is due the quietest start within the tolerance is looked up once
+     * (O(1), from the index's prepared table) and the announcement starts when the track gets
+     * there, or at once if the track changes first.
+     * @param trackFrom Position of the track at the start of this buffer (-1 = no track playing)
+     */
+    private int placeAnnouncement(long nowMs, long dueMs, TrackData track, long trackFrom, int frames) {
+        long tolerance = placementToleranceMs;
+        EnergyIndex index = (track != null) ? track.energy : null;
+        if (tolerance <= 0 || index == null || trackFrom < 0) {
+            return (nowMs >= dueMs) ? 0 : -1;
+        }
+        if (nowMs < dueMs - tolerance / 2) {
+            return -1;
+        }
+        if (plannedTrack != track) {
+            if (plannedTrack != null) {
+                // The planned track ended before the quiet moment came
+                return 0;
+            }
+            plannedTrack = track;
+            plannedFrame = index.findQuietFrame(trackFrom);
+        }
+        long offset = plannedFrame - trackFrom;
+        if (offset < frames) {
+            // Already there if the track was seeked past it
+            return (int) Math.max(0, offset);
+        }
+        // Never later than the window allows (e.g. after seeking back)
+        return (nowMs >= dueMs + tolerance) ? 0 : -1;
+    }
+    
+    /**
+     * End the break of announcements after a track and move on to the next track
+     * ("Play at End Only" stops after the last one)
+     */
+    private void endBreak() {
+        waitingForAnnouncementsAfterTrack = false;
+        breakRemaining = 0;
+        synchronized (mainTracks) {
+            currentTrackIndex++;
+            if (currentTrackIndex >= mainTracks.size()) {
+                // All tracks finished
+                if (!playAtEndOnly) {
+                    // Loop back to first track for continuous playback
+                    currentTrackIndex = 0;
+                    // Reset all track positions for next cycle
+                    for (TrackData track : mainTracks) {
+                        track.currentPosition = 0;
+                    }
+                }
+            } else {
+                // Reset next track position
+                mainTracks.get(currentTrackIndex).currentPosition = 0;
+            }
+        }
+    }
+    
+    /**
+     * Load the short announcements into memory in the order they will play next, as far as
+     * the clip cache has room
+     */
+    private void prefetchAnnouncements() {
+        synchronized (announcements) {
+            long plannedBytes = 0;
+            for (AnnouncementData ann : rotation.getUpcoming()) {
+                if (!ClipCache.isEligible(ann.sampleCount)) {
+                    continue;
+                }
+                // Stop before a later clip would push out a sooner one
+                plannedBytes += ann.sampleCount * CHANNELS * BYTES_PER_SAMPLE;
+                if (plannedBytes > ClipCache.getBudgetBytes()) {
+                    break;
+                }
+                ClipCache.prefetch(ann.pcmFile, ann.sampleCount);
+            }
+        }
+    }
+    
     /**
      * Mix a track into the mix buffer by streaming from file
      */
     private void mixTrack(TrackData track, short[] mixBuffer, int samplesPerBuffer, float volume) {
         try {
-            PCMFileStream stream = track.getStream();
-            long samplesToMix = Math.min(samplesPerBuffer, track.sampleCount - track.currentPosition);
+            AudioStream stream = track.acquireStream();
+            // A compressed source's length is a metadata estimate until its decoder reaches the
+            // end, so read on past it rather than stop there
+            boolean estimated = !track.lengthExact && isDecodedOnTheFly(track.pcmFile);
+            long samplesToMix = estimated ? samplesPerBuffer :
+                    Math.min(samplesPerBuffer, track.sampleCount - track.currentPosition);
             
             if (samplesToMix <= 0) {
                 return;
@@ -877,18 +1469,41 @@ public class AudioMixer {
                 // Update position
                 track.currentPosition += samplesRead;
             }
+            if (estimated) {
+                if (stream.isEndOfStream(track.currentPosition)) {
+                    // The real end: from now on the length is exact
+                    track.lengthExact = true;
+                    if (track.sampleCount != track.currentPosition) {
+                        track.sampleCount = track.currentPosition;
+                        reportLength(track.pcmFile, track.sampleCount);
+                    }
+                } else if (track.currentPosition >= track.sampleCount) {
+                    // Longer than the estimate - keep it ahead until the decoder gets to the end
+                    track.sampleCount = track.currentPosition + 1;
+                }
+            } else if (samplesRead <= 0 && stream.isEndOfStream(track.currentPosition)) {
+                // Source ended before the stored length - treat as finished
+                track.currentPosition = track.sampleCount;
+            }
         } catch (IOException e) {
             Log.e(TAG, "Error reading track data for " + track.name, e);
+        } finally {
+            track.releaseStream();
         }
     }
     
     /**
      * Mix an announcement into the mix buffer by streaming from file
+     * @param offsetFrames Where in the buffer the announcement's audio starts
      */
-    private void mixAnnouncement(AnnouncementData ann, short[] mixBuffer, int samplesPerBuffer, float volume) {
+    private void mixAnnouncement(AnnouncementData ann, short[] mixBuffer, int offsetFrames, int samplesPerBuffer,
+                                 float volume) {
         try {
-            PCMFileStream stream = ann.getStream();
-            long samplesToMix = Math.min(samplesPerBuffer, ann.sampleCount - ann.currentPosition);
+            AudioStream stream = ann.acquireStream();
+            // As for tracks, an estimated length does not end the announcement
+            boolean estimated = !ann.lengthExact && isDecodedOnTheFly(ann.pcmFile);
+            long samplesToMix = estimated ? samplesPerBuffer :
+                    Math.min(samplesPerBuffer, ann.sampleCount - ann.currentPosition);
             
             if (samplesToMix <= 0) {
                 return;
@@ -900,16 +1515,53 @@ public class AudioMixer {
             
             if (samplesRead > 0) {
                 // Mix into buffer with volume applied
+                int base = offsetFrames * CHANNELS;
                 for (int i = 0; i < samplesRead * CHANNELS; i++) {
-                    int mixed = mixBuffer[i] + (int)(readBuffer[i] * volume);
-                    mixBuffer[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, mixed));
+                    int mixed = mixBuffer[base + i] + (int)(readBuffer[i] * volume);
+                    mixBuffer[base + i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, mixed));
                 }
                 
                 // Update position
                 ann.currentPosition += samplesRead;
             }
+            if (estimated) {
+                if (stream.isEndOfStream(ann.currentPosition)) {
+                    ann.lengthExact = true;
+                    if (ann.sampleCount != ann.currentPosition) {
+                        ann.sampleCount = ann.currentPosition;
+                        reportLength(ann.pcmFile, ann.sampleCount);
+                    }
+                } else if (ann.currentPosition >= ann.sampleCount) {
+                    ann.sampleCount = ann.currentPosition + 1;
+                }
+            } else if (samplesRead <= 0 && stream.isEndOfStream(ann.currentPosition)) {
+                // Source ended before the stored length - treat as finished
+                ann.currentPosition = ann.sampleCount;
+            }
         } catch (IOException e) {
             Log.e(TAG, "Error reading announcement data for " + ann.name, e);
+        } finally {
+            ann.releaseStream();
+        }
+    }
+    
+    /**
+     * Whether a file is played by decoding it during playback, so its length is only an estimate
+     * until the decoder reaches the end
+     */
+    private static boolean isDecodedOnTheFly(File file) {
+        return !AudioStream.isPCMCache(file) && !AudioStream.isAdpcmCache(file);
+    }
+    
+    /**
+     * Pass a corrected length on to be saved with the playlist
+     */
+    private void reportLength(File file, long sampleCount) {
+        Log.d(TAG, "Length of " + file.getName() + " is " + sampleCount + " frames");
+        Listener current = listener;
+        Playlist playlist = loadedPlaylist;
+        if (current != null && playlist != null) {
+            current.onLengthKnown(playlist, file, sampleCount);
         }
     }
     
@@ -957,9 +1609,13 @@ public class AudioMixer {
      */
     public void release() {
         stop();
-        if (audioTrack != null) {
-            audioTrack.release();
-            audioTrack = null;
+        synchronized (timedAnnouncements) {
+            timedAnnouncements.clear();
+        }
+        StreamPool.clear();
+        if (sink != null && !externalSink) {
+            sink.release();
+            sink = null;
         }
     }
     
@@ -973,7 +1629,7 @@ public class AudioMixer {
             }
             TrackData currentTrack = mainTracks.get(currentTrackIndex);
             long positionSamples = currentTrack.currentPosition;
-            return (positionSamples * 1000) / SAMPLE_RATE;
+            return EngineFormat.framesToMs(positionSamples);
         }
     }
     
@@ -987,7 +1643,7 @@ public class AudioMixer {
             }
             TrackData currentTrack = mainTracks.get(currentTrackIndex);
             long durationSamples = currentTrack.sampleCount;
-            return (durationSamples * 1000) / SAMPLE_RATE;
+            return EngineFormat.framesToMs(durationSamples);
         }
     }
     
@@ -1007,7 +1663,7 @@ public class AudioMixer {
                 TrackData currentTrack = mainTracks.get(currentTrackIndex);
                 totalSamples += currentTrack.currentPosition;
             }
-            return (totalSamples * 1000) / SAMPLE_RATE;
+            return EngineFormat.framesToMs(totalSamples);
         }
     }
     
@@ -1023,7 +1679,7 @@ public class AudioMixer {
             for (TrackData track : mainTracks) {
                 totalSamples += track.sampleCount;
             }
-            return (totalSamples * 1000) / SAMPLE_RATE;
+            return EngineFormat.framesToMs(totalSamples);
         }
     }
     
@@ -1036,8 +1692,12 @@ public class AudioMixer {
                 return;
             }
             TrackData currentTrack = mainTracks.get(currentTrackIndex);
-            long positionSamples = (positionMs * SAMPLE_RATE) / 1000;
+            long positionSamples = EngineFormat.msToFrames(positionMs);
             positionSamples = Math.max(0, Math.min(positionSamples, currentTrack.sampleCount));
+            if (positionSamples != currentTrack.currentPosition) {
+                // Logged as cut here and started again where playback picks up
+                logCut(currentTrack, clock.currentTimeMillis());
+            }
             currentTrack.currentPosition = positionSamples;
         }
     }
@@ -1050,34 +1710,35 @@ public class AudioMixer {
             if (mainTracks.isEmpty()) {
                 return;
             }
-            long positionSamples = (positionMs * SAMPLE_RATE) / 1000;
+            long positionSamples = EngineFormat.msToFrames(positionMs);
             long accumulatedSamples = 0;
             
-            // Find which track contains this position
+            // Find which track contains this position (beyond all tracks - go to the end of the last)
+            int index = mainTracks.size() - 1;
+            long offsetInTrack = mainTracks.get(index).sampleCount;
             for (int i = 0; i < mainTracks.size(); i++) {
-                TrackData track = mainTracks.get(i);
-                long trackSamples = track.sampleCount;
-                
+                long trackSamples = mainTracks.get(i).sampleCount;
                 if (positionSamples < accumulatedSamples + trackSamples) {
-                    // Position is in this track
-                    currentTrackIndex = i;
-                    long offsetInTrack = positionSamples - accumulatedSamples;
-                    track.currentPosition = offsetInTrack;
-                    // Reset all subsequent tracks
-                    for (int j = i + 1; j < mainTracks.size(); j++) {
-                        mainTracks.get(j).currentPosition = 0;
-                    }
-                    return;
+                    index = i;
+                    offsetInTrack = positionSamples - accumulatedSamples;
+                    break;
                 }
                 accumulatedSamples += trackSamples;
             }
             
-            // Position is beyond all tracks - go to end
-            currentTrackIndex = mainTracks.size() - 1;
-            if (currentTrackIndex >= 0) {
-                TrackData lastTrack = mainTracks.get(currentTrackIndex);
-                lastTrack.currentPosition = lastTrack.sampleCount;
+            TrackData target = mainTracks.get(index);
+            if (index == currentTrackIndex && offsetInTrack == target.currentPosition) {
+                return;
+            }
+            // The track playing is logged as cut; the target starts again where playback picks up
+            long now = clock.currentTimeMillis();
+            for (TrackData track : mainTracks) {
+                logCut(track, now);
+                // No position is left behind to resume from later
+                track.currentPosition = 0;
             }
+            currentTrackIndex = index;
+            target.currentPosition = offsetInTrack;
         }
     }
 }
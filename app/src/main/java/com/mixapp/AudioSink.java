@@ -0,0 +1,27 @@
+package com.mixapp;
+
+/**
+ * Where the mixer's output goes: the device (AudioTrackSink) or a simulated device that
+ * advances virtual time as it is written to (see SimulationTest).
+ */
+public interface AudioSink {
+    
+    /**
+     * Write interleaved 16-bit samples, blocking until there is room (this paces the mixer)
+     * @return Number of shorts written, or a negative error code
+     */
+    int write(short[] data, int offset, int length);
+    
+    /**
+     * Frames played so far, as a 32-bit counter that wraps around
+     */
+    int getPlaybackHeadPosition();
+    
+    void play();
+    
+    void pause();
+    
+    void stop();
+    
+    void release();
+}
@@ -0,0 +1,95 @@
+package com.mixapp;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Random-access source of interleaved 16-bit PCM used by the mixer.
+ * Implementations may read a decoded cache from disk or decode a compressed file on the fly.
+ */
+public interface AudioStream {
+    
+    /**
+     * Read PCM samples starting from a specific position
+     * @param startSample Starting sample index (0-based, in frames)
+     * @param numSamples Number of samples to read
+     * @param outputBuffer Buffer to write samples to (must be large enough)
+     * @return Number of samples actually read
+     */
+    int readSamples(long startSample, int numSamples, short[] outputBuffer) throws IOException;
+    
+    /**
+     * Get total number of samples in the stream (may be an estimate until the end is reached)
+     */
+    long getTotalSamples();
+    
+    /**
+     * Check if the stream has no more samples at or after the given position
+     */
+    boolean isEndOfStream(long position);
+    
+    /**
+     * Get sample rate
+     */
+    int getSampleRate();
+    
+    /**
+     * Get number of channels
+     */
+    int getChannels();
+    
+    /**
+     * Close the stream
+     */
+    void close() throws IOException;
+    
+    /**
+     * Check if stream is closed
+     */
+    boolean isClosed();
+    
+    /**
+     * Open the right stream for a stored file: raw .pcm and .adpcm caches are read directly,
+     * anything else is treated as a compressed source and decoded during playback.
+     */
+    static AudioStream open(File file, int sampleRate, int channels) throws IOException {
+        if (isPCMCache(file)) {
+            return new PCMFileStream(file, sampleRate, channels);
+        }
+        if (isAdpcmCache(file)) {
+            return new AdpcmFileStream(file, sampleRate, channels);
+        }
+        return new CompressedAudioStream(file, sampleRate, channels);
+    }
+    
+    /**
+     * Channel count a decoded cache is stored with (compressed sources report stereo, the mix format)
+     */
+    static int getStoredChannels(File file) throws IOException {
+        if (isPCMCache(file)) {
+            return PCMCacheHeader.read(file).channels;
+        }
+        if (isAdpcmCache(file)) {
+            try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(file, "r")) {
+                byte[] headerBytes = new byte[AdpcmCodec.HEADER_SIZE];
+                raf.readFully(headerBytes);
+                return AdpcmCodec.parseHeader(headerBytes).channels;
+            }
+        }
+        return EngineFormat.CHANNELS;
+    }
+    
+    /**
+     * Check whether a stored file is a compact IMA-ADPCM cache
+     */
+    static boolean isAdpcmCache(File file) {
+        return file.getName().endsWith(".adpcm");
+    }
+    
+    /**
+     * Check whether a stored file is a decoded PCM cache (as opposed to a compressed source)
+     */
+    static boolean isPCMCache(File file) {
+        return file.getName().endsWith(".pcm");
+    }
+}
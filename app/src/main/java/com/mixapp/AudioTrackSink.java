@@ -0,0 +1,44 @@
+package com.mixapp;
+
+import android.media.AudioTrack;
+
+/**
+ * Plays the mix on the device through an AudioTrack
+ */
+class AudioTrackSink implements AudioSink {
+    private final AudioTrack audioTrack;
+    
+    AudioTrackSink(AudioTrack audioTrack) {
+        this.audioTrack = audioTrack;
+    }
+    
+    @Override
+    public int write(short[] data, int offset, int length) {
+        return audioTrack.write(data, offset, length);
+    }
+    
+    @Override
+    public int getPlaybackHeadPosition() {
+        return audioTrack.getPlaybackHeadPosition();
+    }
+    
+    @Override
+    public void play() {
+        audioTrack.play();
+    }
+    
+    @Override
+    public void pause() {
+        audioTrack.pause();
+    }
+    
+    @Override
+    public void stop() {
+        audioTrack.stop();
+    }
+    
+    @Override
+    public void release() {
+        audioTrack.release();
+    }
+}
@@ -0,0 +1,291 @@
+package com.mixapp;
+
+import android.content.ComponentCallbacks2;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps short clips (announcements, jingles) fully decoded in memory, so clips that replay
+ * all day are read from storage once instead of on every play.
+ * Clips are loaded in the background ahead of their turn (prefetch) and dropped least recently
+ * used first to stay within a byte budget. Stored files never change once complete, so a clip
+ * stays valid for as long as it is cached.
+ */
+public class ClipCache {
+    private static final String TAG = "ClipCache";
+    // Longest clip kept in memory
+    private static final int MAX_CLIP_SECONDS = 20;
+    // Memory for all cached clips together
+    private static final long BUDGET_BYTES = 24L * 1024 * 1024;
+    // Frames read from the stream per call while loading
+    private static final int LOAD_CHUNK_FRAMES = 8192;
+    // Longest a stream decoded on the fly may go without producing audio while loading
+    private static final long LOAD_STALL_MS = 5000;
+    
+    /**
+     * A fully decoded clip, played straight from memory
+     */
+    private static class Clip implements AudioStream {
+        final short[] samples; // Interleaved, at the engine rate
+        final long frames;
+        
+        Clip(short[] samples) {
+            this.samples = samples;
+            this.frames = samples.length / EngineFormat.CHANNELS;
+        }
+        
+        long getBytes() {
+            return (long) samples.length * 2;
+        }
+        
+        @Override
+        public int readSamples(long startSample, int numSamples, short[] outputBuffer) {
+            if (startSample >= frames) {
+                return 0;
+            }
+            int count = (int) Math.min(numSamples, frames - startSample);
+            System.arraycopy(samples, (int) startSample * EngineFormat.CHANNELS, outputBuffer, 0,
+                    count * EngineFormat.CHANNELS);
+            return count;
+        }
+        
+        @Override
+        public long getTotalSamples() {
+            return frames;
+        }
+        
+        @Override
+        public boolean isEndOfStream(long position) {
+            return position >= frames;
+        }
+        
+        @Override
+        public int getSampleRate() {
+            return EngineFormat.getSampleRate();
+        }
+        
+        @Override
+        public int getChannels() {
+            return EngineFormat.CHANNELS;
+        }
+        
+        @Override
+        public void close() {
+            // Shared and immutable - nothing to release
+        }
+        
+        @Override
+        public boolean isClosed() {
+            return false;
+        }
+    }
+    
+    private static final LinkedHashMap<String, Clip> clips = new LinkedHashMap<>(16, 0.75f, true);
+    private static final Set<String> loading = new HashSet<>();
+    // Clips that could not be loaded at the length asked for (tried again once it changes)
+    private static final Set<String> refused = new HashSet<>();
+    private static final ExecutorService loader = Executors.newSingleThreadExecutor();
+    private static long cachedBytes = 0;
+    private static long hits = 0;
+    private static long misses = 0;
+    private static int loads = 0;
+    
+    /**
+     * Check whether a clip of this length is short enough to be kept in memory
+     * @param frames Length at the engine rate
+     */
+    public static boolean isEligible(long frames) {
+        return frames > 0 && frames <= (long) MAX_CLIP_SECONDS * EngineFormat.getSampleRate();
+    }
+    
+    /**
+     * Memory all cached clips may use together
+     */
+    public static long getBudgetBytes() {
+        return BUDGET_BYTES;
+    }
+    
+    /**
+     * Memory the cached clips use now
+     */
+    static long getCachedBytes() {
+        synchronized (clips) {
+            return cachedBytes;
+        }
+    }
+    
+    /**
+     * Get a cached clip as a stream (shared, never needs closing)
+     * @return The clip, or null if it is not in memory (yet)
+     */
+    public static AudioStream get(File file) {
+        synchronized (clips) {
+            Clip clip = clips.get(file.getPath());
+            if (clip != null) {
+                hits++;
+            } else {
+                misses++;
+            }
+            return clip;
+        }
+    }
+    
+    /**
+     * Load a short clip into memory in the background, if it is not there already
+     * @param frames Its length at the engine rate
+     */
+    public static void prefetch(final File file, long frames) {
+        if (!isEligible(frames)) {
+            return;
+        }
+        final String key = file.getPath();
+        final String attempt = key + "@" + frames;
+        synchronized (clips) {
+            if (clips.containsKey(key) || refused.contains(attempt) || !loading.add(key)) {
+                return;
+            }
+        }
+        loader.execute(() -> {
+            try {
+                // A clip still being imported is read from disk until it is complete
+                if (DecodeProgress.get(file) == null && file.exists()) {
+                    put(key, load(file, frames));
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Could not load clip " + file.getName(), e);
+                synchronized (clips) {
+                    refused.add(attempt);
+                }
+            } finally {
+                synchronized (clips) {
+                    loading.remove(key);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Give memory back when the system asks: halve the cache while memory is getting low,
+     * empty it when the app is likely to be killed otherwise
+     */
+    public static void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE ||
+                level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            synchronized (clips) {
+                trimTo(cachedBytes / 2);
+            }
+            Log.d(TAG, "Trimmed clip cache (level " + level + "): " + getStats());
+        }
+    }
+    
+    /**
+     * Drop all cached clips
+     */
+    public static void clear() {
+        synchronized (clips) {
+            clips.clear();
+            refused.clear();
+            cachedBytes = 0;
+            Log.d(TAG, "Cleared clip cache (" + getStats() + ")");
+        }
+    }
+    
+    /**
+     * Size and hit rate (over the buffer reads of short clips), for logging
+     */
+    public static String getStats() {
+        synchronized (clips) {
+            long lookups = hits + misses;
+            return clips.size() + " clips, " + cachedBytes / 1024 + " KB, " + loads + " loads, hit rate " +
+                   ((lookups > 0) ? (hits * 100 / lookups) + "%" : "n/a") + " (" + hits + "/" + lookups + ")";
+        }
+    }
+    
+    private static Clip load(File file, long frames) throws IOException {
+        long startTime = System.currentTimeMillis();
+        // Checked once here, since the clip is then played from memory for as long as it is cached
+        if (AudioStream.isPCMCache(file) && !PCMCacheHeader.verify(file)) {
+            throw new IOException("Checksum mismatch in " + file.getName());
+        }
+        AudioStream stream = AudioStream.open(file, EngineFormat.getSampleRate(), EngineFormat.CHANNELS);
+        short[] samples;
+        try {
+            samples = readFully(stream, frames, LOAD_STALL_MS);
+        } catch (IOException e) {
+            throw new IOException(file.getName() + ": " + e.getMessage(), e);
+        } finally {
+            stream.close();
+        }
+        Log.d(TAG, "Loaded clip " + file.getName() + " (" + frames + " frames) in " +
+              (System.currentTimeMillis() - startTime) + " ms");
+        return new Clip(samples);
+    }
+    
+    /**
+     * Read a whole clip. A stream decoded on the fly returns nothing while its decoder catches
+     * up, so only the end of the stream ends the clip; a clip that is not exactly its stored
+     * length (its length was an estimate) is refused rather than cached short or cut off.
+     * @param frames Stored length at the engine rate
+     * @param stallMs How long the stream may go without producing audio
+     * @return Interleaved samples at the engine rate
+     * @throws IOException If the stream fails, stalls or is not frames long
+     */
+    static short[] readFully(AudioStream stream, long frames, long stallMs) throws IOException {
+        short[] samples = new short[(int) frames * EngineFormat.CHANNELS];
+        short[] chunk = new short[LOAD_CHUNK_FRAMES * EngineFormat.CHANNELS];
+        int position = 0;
+        long deadline = System.currentTimeMillis() + stallMs;
+        while (!stream.isEndOfStream(position)) {
+            if (position >= frames) {
+                throw new IOException("Longer than its stored length of " + frames + " frames");
+            }
+            int read = stream.readSamples(position, (int) Math.min(LOAD_CHUNK_FRAMES, frames - position), chunk);
+            if (read > 0) {
+                System.arraycopy(chunk, 0, samples, position * EngineFormat.CHANNELS, read * EngineFormat.CHANNELS);
+                position += read;
+                deadline = System.currentTimeMillis() + stallMs;
+            } else if (System.currentTimeMillis() > deadline) {
+                throw new IOException("No audio for " + stallMs + " ms at frame " + position);
+            }
+        }
+        if (position != frames) {
+            throw new IOException("Ended at frame " + position + " of " + frames);
+        }
+        return samples;
+    }
+    
+    private static void put(String key, Clip clip) {
+        synchronized (clips) {
+            Clip previous = clips.put(key, clip);
+            if (previous != null) {
+                cachedBytes -= previous.getBytes();
+            }
+            cachedBytes += clip.getBytes();
+            loads++;
+            trimTo(BUDGET_BYTES);
+        }
+    }
+    
+    /**
+     * Drop least recently used clips until at most maxBytes are cached (caller holds the lock).
+     * A dropped clip that is playing carries on from storage: the mixer looks its clip up again
+     * for every buffer and falls back to the stream pool when it is gone.
+     */
+    private static void trimTo(long maxBytes) {
+        Iterator<Map.Entry<String, Clip>> it = clips.entrySet().iterator();
+        while (cachedBytes > maxBytes && it.hasNext()) {
+            cachedBytes -= it.next().getValue().getBytes();
+            it.remove();
+        }
+    }
+}
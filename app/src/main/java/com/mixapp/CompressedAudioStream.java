@@ -0,0 +1,471 @@
+package com.mixapp;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Plays a compressed file (MP3, AAC, ...) without a PCM cache by driving MediaExtractor/MediaCodec
+ * incrementally during playback. A background thread keeps a small decoded look-ahead buffer
+ * filled; readSamples() only copies from that buffer.
+ * Seeking uses MediaExtractor.seekTo() to the previous sync frame, then trims decoded output
+ * so the first frame returned is exactly the requested one.
+ */
+public class CompressedAudioStream implements AudioStream {
+    private static final String TAG = "CompressedAudioStream";
+
+    private static final float LOOKAHEAD_SECONDS = 2.0f;
+    // Reads further ahead than this (in seconds) are handled as a seek instead of decoding forward
+    private static final float FORWARD_SKIP_SECONDS = 0.5f;
+    // How long a read waits for the decoder before returning what it has
+    private static final long READ_TIMEOUT_MS = 20;
+    private static final long CODEC_TIMEOUT_US = 5000;
+    // Frames decoded before a seek target to settle the resampler filter
+    private static final int RESAMPLER_PREROLL_FRAMES = 64;
+
+    private final File sourceFile;
+    private final int outputRate;
+    private final int outputChannels;
+
+    private MediaExtractor extractor;
+    private MediaCodec decoder;
+    private int sourceRate;
+    private int sourceChannels;
+    private Resampler resampler;
+    private short[] resampled = new short[0];
+    private volatile long totalSamples;
+
+    // Look-ahead ring buffer of output frames, guarded by lock
+    private final Object lock = new Object();
+    private final short[] ring;
+    private final int ringCapacity; // In frames
+    private int ringHead = 0;       // Index (in frames) of the oldest buffered frame
+    private int ringFrames = 0;
+    private long ringStartFrame = 0; // Output frame index of the oldest buffered frame
+    private long seekTarget = 0;     // Pending seek target, or -1
+    private int generation = 0;      // Bumped on every seek so stale output is discarded
+    private boolean endOfStream = false;
+    private volatile boolean closed = false;
+
+    private final Thread decodeThread;
+
+    // Decoder-thread state for trimming after a seek
+    private long trimSourceFrame = 0;   // Drop decoded source frames before this index
+    private long trimOutputFrames = 0;  // Then drop this many resampled frames
+
+    /**
+     * Open a compressed file for on-the-fly decoding
+     * @param sourceFile The compressed audio file
+     * @param outputRate Output sample rate (the engine rate)
+     * @param outputChannels Output channels (2 for stereo)
+     */
+    public CompressedAudioStream(File sourceFile, int outputRate, int outputChannels) throws IOException {
+        this.sourceFile = sourceFile;
+        this.outputRate = outputRate;
+        this.outputChannels = outputChannels;
+
+        if (!sourceFile.exists()) {
+            throw new IOException("Audio file does not exist: " + sourceFile.getAbsolutePath());
+        }
+
+        extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(sourceFile.getAbsolutePath());
+            MediaFormat format = selectAudioTrack(extractor);
+            sourceRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            sourceChannels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            totalSamples = estimateSampleCount(format, outputRate);
+
+            decoder = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            decoder.configure(format, null, null, 0);
+            decoder.start();
+        } catch (IOException | RuntimeException e) {
+            releaseCodec();
+            throw (e instanceof IOException) ? (IOException) e : new IOException("Could not open decoder", e);
+        }
+
+        ringCapacity = (int) (outputRate * LOOKAHEAD_SECONDS);
+        ring = new short[ringCapacity * outputChannels];
+
+        decodeThread = new Thread(this::decodeLoop, "Decode-" + sourceFile.getName());
+        decodeThread.setDaemon(true);
+        decodeThread.start();
+
+        Log.d(TAG, "Opened compressed stream: " + sourceFile.getName() + " (" + sourceRate + " Hz, " +
+              sourceChannels + " ch, ~" + totalSamples + " samples)");
+    }
+
+    /**
+     * Select the first audio track of an extractor
+     * @return The track's format
+     */
+    static MediaFormat selectAudioTrack(MediaExtractor extractor) throws IOException {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            MediaFormat format = extractor.getTrackFormat(i);
+            String mime = format.getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("audio/")) {
+                extractor.selectTrack(i);
+                return format;
+            }
+        }
+        throw new IOException("No audio track found in file");
+    }
+
+    /**
+     * Estimate output frame count from container duration metadata (rounded up; the player reads
+     * on to the real end either way, see AudioMixer)
+     */
+    static long estimateSampleCount(MediaFormat format, int outputRate) {
+        if (!format.containsKey(MediaFormat.KEY_DURATION)) {
+            return 0;
+        }
+        long durationUs = format.getLong(MediaFormat.KEY_DURATION);
+        return (durationUs * outputRate + 999999L) / 1000000L;
+    }
+
+    @Override
+    public int readSamples(long startSample, int numSamples, short[] outputBuffer) throws IOException {
+        if (closed) {
+            throw new IOException("File stream is closed");
+        }
+
+        synchronized (lock) {
+            long bufferedEnd = ringStartFrame + ringFrames;
+            boolean seekPending = (seekTarget >= 0);
+            long expectedStart = seekPending ? seekTarget : ringStartFrame;
+
+            if (startSample < expectedStart ||
+                    startSample > bufferedEnd + (long) (outputRate * FORWARD_SKIP_SECONDS)) {
+                requestSeekLocked(startSample);
+            } else if (!seekPending && startSample > ringStartFrame) {
+                // Sequential read - drop frames the caller has already consumed
+                int consumed = (int) Math.min(startSample - ringStartFrame, ringFrames);
+                ringHead = (ringHead + consumed) % ringCapacity;
+                ringFrames -= consumed;
+                ringStartFrame += consumed;
+                if (consumed > 0) {
+                    lock.notifyAll();
+                }
+            }
+
+            // Wait briefly for the decoder to catch up
+            long deadline = System.currentTimeMillis() + READ_TIMEOUT_MS;
+            while (!closed && !endOfStream && (seekTarget >= 0 || ringStartFrame + ringFrames <= startSample)) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                try {
+                    lock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
+            if (seekTarget >= 0 || startSample < ringStartFrame) {
+                return 0;
+            }
+
+            int offset = (int) (startSample - ringStartFrame);
+            int available = ringFrames - offset;
+            int framesToCopy = Math.max(0, Math.min(numSamples, available));
+            int index = (ringHead + offset) % ringCapacity;
+            for (int f = 0; f < framesToCopy; f++) {
+                System.arraycopy(ring, index * outputChannels, outputBuffer, f * outputChannels, outputChannels);
+                index++;
+                if (index == ringCapacity) {
+                    index = 0;
+                }
+            }
+            return framesToCopy;
+        }
+    }
+
+    private void requestSeekLocked(long frame) {
+        seekTarget = Math.max(0, frame);
+        generation++;
+        ringHead = 0;
+        ringFrames = 0;
+        ringStartFrame = seekTarget;
+        endOfStream = false;
+        lock.notifyAll();
+    }
+
+    /**
+     * Decoder thread: keeps the look-ahead buffer full and services seeks
+     */
+    private void decodeLoop() {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        boolean inputDone = false;
+        int currentGeneration = -1;
+
+        try {
+            while (!closed) {
+                long target = -1;
+                synchronized (lock) {
+                    while (!closed && seekTarget < 0 &&
+                            (endOfStream || ringFrames >= ringCapacity - maxChunkFrames())) {
+                        lock.wait();
+                    }
+                    if (closed) {
+                        break;
+                    }
+                    if (seekTarget >= 0) {
+                        target = seekTarget;
+                        currentGeneration = generation;
+                    }
+                }
+
+                if (target >= 0) {
+                    seekTo(target);
+                    inputDone = false;
+                    synchronized (lock) {
+                        if (generation == currentGeneration) {
+                            seekTarget = -1;
+                            lock.notifyAll();
+                        }
+                    }
+                    continue;
+                }
+
+                // Feed input
+                if (!inputDone) {
+                    int inputIndex = decoder.dequeueInputBuffer(CODEC_TIMEOUT_US);
+                    if (inputIndex >= 0) {
+                        ByteBuffer inputBuffer = decoder.getInputBuffer(inputIndex);
+                        int sampleSize = (inputBuffer != null) ? extractor.readSampleData(inputBuffer, 0) : -1;
+                        if (sampleSize < 0) {
+                            decoder.queueInputBuffer(inputIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            decoder.queueInputBuffer(inputIndex, 0, sampleSize, extractor.getSampleTime(), 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+
+                // Drain output
+                int outputIndex = decoder.dequeueOutputBuffer(info, CODEC_TIMEOUT_US);
+                if (outputIndex >= 0) {
+                    ByteBuffer outputBuffer = decoder.getOutputBuffer(outputIndex);
+                    if (outputBuffer != null && info.size > 0) {
+                        outputBuffer.position(info.offset);
+                        outputBuffer.limit(info.offset + info.size);
+                        handleDecodedBuffer(outputBuffer, info.presentationTimeUs, currentGeneration);
+                    }
+                    decoder.releaseOutputBuffer(outputIndex, false);
+
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        finishStream(currentGeneration);
+                    }
+                } else if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    MediaFormat outputFormat = decoder.getOutputFormat();
+                    sourceRate = outputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                    sourceChannels = outputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                    resampler = createResampler();
+                    Log.d(TAG, "Output format changed: " + outputFormat);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            Log.e(TAG, "Error decoding " + sourceFile.getName(), e);
+            synchronized (lock) {
+                endOfStream = true;
+                lock.notifyAll();
+            }
+        } finally {
+            releaseCodec();
+        }
+    }
+
+    /**
+     * Reposition the extractor so decoding resumes with output frame 'target'.
+     * The source frame we restart from is chosen so that its output position is an integer,
+     * keeping the resampler phase exact; the frames in between are trimmed.
+     */
+    private void seekTo(long target) {
+        int gcd = gcd(sourceRate, outputRate);
+        long up = outputRate / gcd;   // Output frames per resampler period
+        long down = sourceRate / gcd; // Source frames per resampler period
+
+        long prerollPeriods = (RESAMPLER_PREROLL_FRAMES + up - 1) / up;
+        long periods = Math.max(0, target / up - (sourceRate != outputRate ? prerollPeriods : 0));
+        long startSourceFrame = periods * down;
+        long startOutputFrame = periods * up;
+
+        long timeUs = (startSourceFrame * 1000000L) / sourceRate;
+        extractor.seekTo(timeUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        decoder.flush();
+        resampler = createResampler();
+
+        trimSourceFrame = startSourceFrame;
+        trimOutputFrames = target - startOutputFrame;
+    }
+
+    private Resampler createResampler() {
+        return (sourceRate != outputRate)
+                ? new Resampler(sourceRate, outputRate, outputChannels, Resampler.Quality.FAST)
+                : null;
+    }
+
+    /**
+     * Convert, trim and append one decoded codec buffer to the look-ahead ring
+     */
+    private void handleDecodedBuffer(ByteBuffer outputBuffer, long presentationTimeUs, int bufferGeneration) {
+        int frames = outputBuffer.remaining() / (2 * sourceChannels);
+        short[] samples = new short[frames * sourceChannels];
+        outputBuffer.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(samples);
+
+        // Sample-accurate trim at the source rate: drop frames decoded from before the seek point
+        long firstFrame = Math.round(presentationTimeUs * (double) sourceRate / 1000000.0);
+        int skip = (int) Math.max(0, Math.min(frames, trimSourceFrame - firstFrame));
+        if (skip > 0) {
+            frames -= skip;
+            short[] trimmed = new short[frames * sourceChannels];
+            System.arraycopy(samples, skip * sourceChannels, trimmed, 0, trimmed.length);
+            samples = trimmed;
+        }
+        if (frames == 0) {
+            return;
+        }
+
+        if (sourceChannels == 1 && outputChannels == 2) {
+            samples = MP3Decoder.monoToStereo(samples);
+        } else if (sourceChannels > 2 && outputChannels == 2) {
+            samples = MP3Decoder.extractStereo(samples, sourceChannels);
+        }
+
+        if (resampler != null) {
+            int needed = resampler.getMaxOutputFrames(frames) * outputChannels;
+            if (resampled.length < needed) {
+                resampled = new short[needed];
+            }
+            frames = resampler.process(samples, frames, resampled);
+            samples = resampled;
+        }
+
+        // Then trim at the output rate so the first frame is exactly the requested one
+        int offset = (int) Math.min(frames, trimOutputFrames);
+        trimOutputFrames -= offset;
+        appendToRing(samples, offset, frames - offset, bufferGeneration);
+    }
+
+    private void appendToRing(short[] samples, int offsetFrames, int frames, int bufferGeneration) {
+        synchronized (lock) {
+            if (bufferGeneration != generation || seekTarget >= 0) {
+                return; // A newer seek made this output stale
+            }
+            int writeIndex = (ringHead + ringFrames) % ringCapacity;
+            int toWrite = Math.min(frames, ringCapacity - ringFrames);
+            for (int f = 0; f < toWrite; f++) {
+                System.arraycopy(samples, (offsetFrames + f) * outputChannels, ring, writeIndex * outputChannels, outputChannels);
+                writeIndex++;
+                if (writeIndex == ringCapacity) {
+                    writeIndex = 0;
+                }
+            }
+            ringFrames += toWrite;
+            lock.notifyAll();
+        }
+    }
+
+    private void finishStream(int bufferGeneration) {
+        if (resampler != null) {
+            short[] tail = new short[resampler.getMaxOutputFrames(0) * outputChannels];
+            int tailFrames = resampler.flush(tail);
+            int offset = (int) Math.min(tailFrames, trimOutputFrames);
+            trimOutputFrames -= offset;
+            appendToRing(tail, offset, tailFrames - offset, bufferGeneration);
+        }
+        synchronized (lock) {
+            if (bufferGeneration == generation && seekTarget < 0) {
+                endOfStream = true;
+                // Now that the real end is known, replace the metadata estimate
+                totalSamples = ringStartFrame + ringFrames;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Largest number of output frames one codec buffer can add to the ring
+     */
+    private int maxChunkFrames() {
+        return Math.min(ringCapacity / 2, outputRate / 4);
+    }
+
+    private void releaseCodec() {
+        if (decoder != null) {
+            try {
+                decoder.stop();
+                decoder.release();
+            } catch (Exception e) {
+                Log.e(TAG, "Error releasing decoder", e);
+            }
+            decoder = null;
+        }
+        if (extractor != null) {
+            extractor.release();
+            extractor = null;
+        }
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    @Override
+    public long getTotalSamples() {
+        return totalSamples;
+    }
+
+    @Override
+    public boolean isEndOfStream(long position) {
+        synchronized (lock) {
+            return endOfStream && seekTarget < 0 && position >= ringStartFrame + ringFrames;
+        }
+    }
+
+    @Override
+    public int getSampleRate() {
+        return outputRate;
+    }
+
+    @Override
+    public int getChannels() {
+        return outputChannels;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+        try {
+            decodeThread.join(500);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+}
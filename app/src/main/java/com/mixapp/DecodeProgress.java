@@ -0,0 +1,140 @@
+package com.mixapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Watermark for a PCM cache that is still being written by the decoder.
+ * The decoder publishes "decoded up to frame N" after every write, so readers can play the
+ * part that is already on disk while the rest is decoded.
+ * In-flight decodes are registered by output file so any stream opened on that file finds them.
+ */
+public class DecodeProgress {
+    private static final Map<String, DecodeProgress> inFlight = new HashMap<>();
+    
+    private final File outputFile;
+    private final long estimatedFrames;
+    private long framesWritten = 0;
+    private boolean complete = false;
+    private boolean failed = false;
+    
+    private DecodeProgress(File outputFile, long estimatedFrames) {
+        this.outputFile = outputFile;
+        this.estimatedFrames = estimatedFrames;
+    }
+    
+    /**
+     * Register a decode into outputFile. The file is created empty so streams can open it
+     * before the decoder writes anything.
+     * @param outputFile The PCM cache being written
+     * @param estimatedFrames Expected length (from container metadata) until the real length is known
+     */
+    public static DecodeProgress begin(File outputFile, long estimatedFrames) throws IOException {
+        File parentDir = outputFile.getParentFile();
+        if (parentDir != null && !parentDir.exists()) {
+            parentDir.mkdirs();
+        }
+        if (!outputFile.exists() && !outputFile.createNewFile()) {
+            throw new IOException("Could not create " + outputFile.getAbsolutePath());
+        }
+        DecodeProgress progress = new DecodeProgress(outputFile, estimatedFrames);
+        synchronized (inFlight) {
+            inFlight.put(outputFile.getAbsolutePath(), progress);
+        }
+        return progress;
+    }
+    
+    /**
+     * Get the decode currently writing a file
+     * @return The progress, or null if the file is not being decoded
+     */
+    public static DecodeProgress get(File outputFile) {
+        synchronized (inFlight) {
+            return inFlight.get(outputFile.getAbsolutePath());
+        }
+    }
+    
+    /**
+     * Publish that frames [0, frames) are on disk
+     */
+    public synchronized void advance(long frames) {
+        if (frames > framesWritten) {
+            framesWritten = frames;
+            notifyAll();
+        }
+    }
+    
+    /**
+     * Mark the decode as finished with its exact length
+     */
+    public void finish(long totalFrames) {
+        synchronized (this) {
+            framesWritten = totalFrames;
+            complete = true;
+            notifyAll();
+        }
+        unregister();
+    }
+    
+    /**
+     * Mark the decode as failed; readers treat what was written so far as the whole file
+     */
+    public void fail() {
+        synchronized (this) {
+            failed = true;
+            complete = true;
+            notifyAll();
+        }
+        unregister();
+    }
+    
+    /**
+     * Wait until at least the given number of frames is on disk, the decode ends, or the timeout expires
+     * @return Frames on disk when the wait ended
+     */
+    public synchronized long awaitFrames(long frames, long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (framesWritten < frames && !complete) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return framesWritten;
+    }
+    
+    public synchronized long getFramesWritten() {
+        return framesWritten;
+    }
+    
+    public synchronized boolean isComplete() {
+        return complete;
+    }
+    
+    public synchronized boolean isFailed() {
+        return failed;
+    }
+    
+    /**
+     * Best known length: the estimate while decoding, the exact length once complete
+     */
+    public synchronized long getTotalFrames() {
+        return complete ? framesWritten : Math.max(estimatedFrames, framesWritten);
+    }
+    
+    private void unregister() {
+        synchronized (inFlight) {
+            if (inFlight.get(outputFile.getAbsolutePath()) == this) {
+                inFlight.remove(outputFile.getAbsolutePath());
+            }
+        }
+    }
+}
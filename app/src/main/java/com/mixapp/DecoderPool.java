@@ -0,0 +1,90 @@
+package com.mixapp;
+
+import android.media.MediaCodec;
+import android.util.Log;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps warm MediaCodec decoder instances per MIME type so a bulk import does not pay for
+ * creating and tearing down a codec for every file.
+ * Returned codecs are reset() to the uninitialized state and must be configured again by the caller.
+ */
+public class DecoderPool {
+    private static final String TAG = "DecoderPool";
+    // Idle decoders kept per MIME type (hardware decoder instances are a limited resource)
+    private static final int MAX_IDLE_PER_MIME = 2;
+    
+    private static final Map<String, ArrayDeque<MediaCodec>> idle = new HashMap<>();
+    private static int created = 0;
+    private static int reused = 0;
+    
+    /**
+     * Get an unconfigured decoder for a MIME type, reusing an idle one when available
+     */
+    public static MediaCodec acquire(String mime) throws IOException {
+        synchronized (idle) {
+            ArrayDeque<MediaCodec> codecs = idle.get(mime);
+            if (codecs != null && !codecs.isEmpty()) {
+                reused++;
+                return codecs.pop();
+            }
+            created++;
+        }
+        return MediaCodec.createDecoderByType(mime);
+    }
+    
+    /**
+     * Return a decoder after a successful decode. It is reset and kept for the next file,
+     * or released if the pool for its MIME type is full.
+     */
+    public static void recycle(String mime, MediaCodec codec) {
+        try {
+            codec.reset();
+        } catch (Exception e) {
+            Log.w(TAG, "Could not reset decoder for " + mime + ", releasing it", e);
+            discard(codec);
+            return;
+        }
+        synchronized (idle) {
+            ArrayDeque<MediaCodec> codecs = idle.get(mime);
+            if (codecs == null) {
+                codecs = new ArrayDeque<>();
+                idle.put(mime, codecs);
+            }
+            if (codecs.size() < MAX_IDLE_PER_MIME) {
+                codecs.push(codec);
+                return;
+            }
+        }
+        discard(codec);
+    }
+    
+    /**
+     * Release a decoder that failed or is no longer needed
+     */
+    public static void discard(MediaCodec codec) {
+        try {
+            codec.release();
+        } catch (Exception e) {
+            Log.e(TAG, "Error releasing decoder", e);
+        }
+    }
+    
+    /**
+     * Release all idle decoders (e.g. when the app goes to the background)
+     */
+    public static void clear() {
+        synchronized (idle) {
+            for (ArrayDeque<MediaCodec> codecs : idle.values()) {
+                for (MediaCodec codec : codecs) {
+                    discard(codec);
+                }
+            }
+            idle.clear();
+            Log.d(TAG, "Cleared decoder pool (" + created + " created, " + reused + " reused)");
+        }
+    }
+}
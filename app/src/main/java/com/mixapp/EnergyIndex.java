@@ -0,0 +1,373 @@
+package com.mixapp;
+
+import android.util.Log;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Short-term energy and onset strength of a track or announcement, stored in a small sidecar
+ * file next to its cache. For tracks it is used to start announcements (and ducking) at a
+ * quiet moment; for announcements it is the envelope the duck depth follows.
+ *
+ * Energy is measured over HOP_MS hops of the mono mix, in dB below full scale. Onset strength
+ * is the largest rise in energy between ONSET_MS sub-hops within a hop, so a drum hit counts
+ * even when the hop as a whole is not loud. Both are quantised to a byte: a four-minute track
+ * takes under 10 KB.
+ *
+ * To place an announcement, each hop gets a cost: the mean energy over the following
+ * LOOKAHEAD_MS (where the duck fade and the first words fall) plus the strongest onset in that
+ * time. prepare() then works out, for every hop, the cheapest hop within the tolerance after it
+ * (a sliding-window minimum, O(n) once), so the decision while rendering is one array read.
+ *
+ * File layout (little-endian): magic "MXEN", version, hop length in ms (shorts), sample rate,
+ * frame count, hop count (ints), then one energy byte per hop, then one onset byte per hop.
+ */
+public class EnergyIndex {
+    private static final String TAG = "EnergyIndex";
+    private static final byte[] MAGIC_BYTES = {'M', 'X', 'E', 'N'};
+    // 2: version 1 indexes of sources decoded on the fly may stop short (rebuilt on load)
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 20;
+    static final int HOP_MS = 50;
+    private static final int ONSET_MS = 10;
+    // Quantised range: 0 = FLOOR_DB or quieter, 255 = full scale
+    static final float FLOOR_DB = -96f;
+    private static final float ONSET_MAX_DB = 48f;
+    private static final long LOOKAHEAD_MS = 1000;
+    // dB of cost per dB of onset rise within the lookahead
+    private static final float ONSET_WEIGHT = 0.5f;
+    private static final String DIRECTORY = "energy";
+    // Longest a stream decoded on the fly may go without producing audio while it is measured
+    private static final long STALL_MS = 5000;
+    
+    // Builds missing sidecars off the playback and main threads
+    private static final ExecutorService builder = Executors.newSingleThreadExecutor();
+    
+    /**
+     * Told when a sidecar built in the background is ready
+     */
+    public interface Callback {
+        void onReady(EnergyIndex index);
+    }
+    
+    private final int sampleRate;
+    private final int hopFrames;
+    private final long frameCount;
+    private final byte[] energy;
+    private final byte[] onset;
+    private final int peak; // Loudest hop, quantised
+    // Placement table for the current tolerance: best[i] = cheapest hop in [i, i + toleranceHops]
+    private volatile int[] best;
+    private volatile int toleranceHops = -1;
+    
+    private EnergyIndex(int sampleRate, long frameCount, byte[] energy, byte[] onset) {
+        this.sampleRate = sampleRate;
+        this.hopFrames = sampleRate * HOP_MS / 1000;
+        this.frameCount = frameCount;
+        this.energy = energy;
+        this.onset = onset;
+        int loudest = 0;
+        for (byte e : energy) {
+            loudest = Math.max(loudest, e & 0xFF);
+        }
+        this.peak = loudest;
+    }
+    
+    /**
+     * Sidecar file of a cache (in a subdirectory, so the cache sweep never takes it for a cache)
+     */
+    static File sidecarFor(File cacheFile) {
+        return new File(new File(cacheFile.getParentFile(), DIRECTORY), cacheFile.getName() + ".energy");
+    }
+    
+    /**
+     * Delete a cache's sidecar, if it has one
+     */
+    static void delete(File cacheFile) {
+        sidecarFor(cacheFile).delete();
+    }
+    
+    /**
+     * Read a cache's sidecar
+     * @return The index, or null if there is none or it was made at another sample rate
+     */
+    static EnergyIndex load(File cacheFile) {
+        File file = sidecarFor(cacheFile);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+            for (byte b : MAGIC_BYTES) {
+                if (buffer.get() != b) {
+                    throw new IOException("Not an energy index");
+                }
+            }
+            int version = buffer.getShort();
+            int hopMs = buffer.getShort();
+            int rate = buffer.getInt();
+            long frames = buffer.getInt() & 0xFFFFFFFFL;
+            int hops = buffer.getInt();
+            if (version != VERSION || hopMs != HOP_MS || rate != EngineFormat.getSampleRate() ||
+                buffer.remaining() != 2 * hops) {
+                return null;
+            }
+            byte[] energy = new byte[hops];
+            byte[] onset = new byte[hops];
+            buffer.get(energy);
+            buffer.get(onset);
+            return new EnergyIndex(rate, frames, energy, onset);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Unreadable energy index " + file.getName(), e);
+            return null;
+        }
+    }
+    
+    /**
+     * Measure a stored track and write its sidecar (reads the whole track; call off the playback
+     * and main threads, e.g. at the end of an import). Nothing is written if the track cannot be
+     * read to its end.
+     */
+    static EnergyIndex build(File cacheFile) throws IOException {
+        AudioStream stream = AudioStream.open(cacheFile, EngineFormat.getSampleRate(), EngineFormat.CHANNELS);
+        EnergyIndex index;
+        try {
+            index = measure(stream, STALL_MS);
+        } finally {
+            stream.close();
+        }
+        index.save(sidecarFor(cacheFile));
+        return index;
+    }
+    
+    /**
+     * Measure a whole stream. A stream decoded on the fly returns nothing while its decoder starts
+     * or catches up, and its length is an estimate, so it is read until it reports its end, one
+     * full hop at a time.
+     * @param stallMs How long the stream may go without producing audio
+     * @throws IOException If the stream fails or stalls (an index that stops short would leave
+     *                     the rest of the track looking silent)
+     */
+    static EnergyIndex measure(AudioStream stream, long stallMs) throws IOException {
+        int rate = EngineFormat.getSampleRate();
+        int hopFrames = rate * HOP_MS / 1000;
+        int subFrames = rate * ONSET_MS / 1000;
+        int subsPerHop = HOP_MS / ONSET_MS;
+        int hops = (int) Math.max(1, (stream.getTotalSamples() + hopFrames - 1) / hopFrames);
+        byte[] energy = new byte[hops];
+        byte[] onset = new byte[hops];
+        short[] samples = new short[hopFrames * EngineFormat.CHANNELS];
+        short[] chunk = new short[hopFrames * EngineFormat.CHANNELS];
+        float previousSubDb = FLOOR_DB;
+        long position = 0;
+        int hop = 0;
+        long deadline = System.currentTimeMillis() + stallMs;
+        boolean ended = false;
+        while (!ended) {
+            int read = 0;
+            while (read < hopFrames) {
+                if (stream.isEndOfStream(position + read)) {
+                    ended = true;
+                    break;
+                }
+                int count = stream.readSamples(position + read, hopFrames - read, chunk);
+                if (count > 0) {
+                    System.arraycopy(chunk, 0, samples, read * EngineFormat.CHANNELS, count * EngineFormat.CHANNELS);
+                    read += count;
+                    deadline = System.currentTimeMillis() + stallMs;
+                } else if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("No audio for " + stallMs + " ms at frame " + (position + read));
+                }
+            }
+            if (read == 0) {
+                break;
+            }
+            if (hop == energy.length) {
+                // Longer than its estimated length
+                energy = Arrays.copyOf(energy, hop * 2);
+                onset = Arrays.copyOf(onset, hop * 2);
+            }
+            double hopSum = 0;
+            float rise = 0;
+            for (int sub = 0; sub < subsPerHop; sub++) {
+                int from = sub * subFrames;
+                int to = Math.min(read, from + subFrames);
+                if (from >= to) {
+                    break;
+                }
+                double subSum = 0;
+                for (int i = from; i < to; i++) {
+                    double mono = (samples[i * 2] + samples[i * 2 + 1]) * 0.5;
+                    subSum += mono * mono;
+                }
+                hopSum += subSum;
+                float subDb = toDb(subSum / (to - from));
+                rise = Math.max(rise, subDb - previousSubDb);
+                previousSubDb = subDb;
+            }
+            energy[hop] = quantise(toDb(hopSum / read) - FLOOR_DB, -FLOOR_DB);
+            onset[hop] = quantise(rise, ONSET_MAX_DB);
+            position += read;
+            hop++;
+        }
+        return new EnergyIndex(rate, position, Arrays.copyOf(energy, hop), Arrays.copyOf(onset, hop));
+    }
+    
+    /**
+     * Load a cache's sidecar on a background thread, building it first if it is missing (e.g.
+     * for tracks imported before indexes existed), and report it when ready
+     */
+    static void loadInBackground(File cacheFile, Callback callback) {
+        builder.execute(() -> {
+            EnergyIndex index = load(cacheFile);
+            try {
+                if (index == null && cacheFile.exists()) {
+                    long start = System.currentTimeMillis();
+                    index = build(cacheFile);
+                    Log.d(TAG, "Built energy index for " + cacheFile.getName() + " in " +
+                          (System.currentTimeMillis() - start) + " ms");
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Could not build energy index for " + cacheFile.getName(), e);
+            }
+            if (index != null) {
+                callback.onReady(index);
+            }
+        });
+    }
+    
+    /**
+     * Work out the placement table for a tolerance (O(n); call when loading, not while rendering)
+     */
+    synchronized void prepare(long toleranceMs) {
+        int tolerance = (int) (toleranceMs / HOP_MS);
+        if (tolerance == toleranceHops) {
+            return;
+        }
+        int hops = energy.length;
+        int lookahead = (int) (LOOKAHEAD_MS / HOP_MS);
+        
+        // Cost: mean energy over the lookahead (prefix sums) plus its strongest onset (sliding maximum)
+        long[] prefix = new long[hops + 1];
+        for (int i = 0; i < hops; i++) {
+            prefix[i + 1] = prefix[i] + (energy[i] & 0xFF);
+        }
+        float[] cost = new float[hops];
+        int[] window = new int[hops];
+        int head = 0;
+        int tail = 0;
+        for (int i = hops - 1; i >= 0; i--) {
+            while (tail > head && (onset[window[tail - 1]] & 0xFF) <= (onset[i] & 0xFF)) {
+                tail--;
+            }
+            window[tail++] = i;
+            while (window[head] >= i + lookahead) {
+                head++;
+            }
+            int end = Math.min(hops, i + lookahead);
+            float meanDb = (prefix[end] - prefix[i]) / (float) (end - i) * (-FLOOR_DB / 255f);
+            float onsetDb = (onset[window[head]] & 0xFF) * (ONSET_MAX_DB / 255f);
+            cost[i] = meanDb + ONSET_WEIGHT * onsetDb;
+        }
+        
+        // Cheapest hop in [i, i + tolerance] (sliding minimum, earliest on ties)
+        int[] table = new int[hops];
+        head = 0;
+        tail = 0;
+        for (int i = hops - 1; i >= 0; i--) {
+            while (tail > head && cost[window[tail - 1]] >= cost[i]) {
+                tail--;
+            }
+            window[tail++] = i;
+            while (window[head] > i + tolerance) {
+                head++;
+            }
+            table[i] = window[head];
+        }
+        best = table;
+        toleranceHops = tolerance;
+    }
+    
+    /**
+     * Quietest frame to start at, from a position up to the prepared tolerance later. O(1).
+     */
+    long findQuietFrame(long fromFrame) {
+        int[] table = best;
+        int hop = (int) (fromFrame / hopFrames);
+        if (table == null || hop < 0 || hop >= table.length) {
+            return fromFrame;
+        }
+        return Math.max(fromFrame, (long) table[hop] * hopFrames);
+    }
+    
+    /**
+     * Energy of the loudest hop between two frames, in dB below full scale. Costs one step per
+     * hop, so keep the span to a buffer or so.
+     */
+    float getMaxEnergyDb(long fromFrame, long toFrame) {
+        int from = (int) Math.max(0, fromFrame / hopFrames);
+        int to = (int) Math.min(energy.length - 1, toFrame / hopFrames);
+        int loudest = 0;
+        for (int hop = from; hop <= to; hop++) {
+            loudest = Math.max(loudest, energy[hop] & 0xFF);
+        }
+        return FLOOR_DB + loudest * (-FLOOR_DB / 255f);
+    }
+    
+    /**
+     * Length of the measured track, in frames at the engine rate
+     */
+    long getFrameCount() {
+        return frameCount;
+    }
+    
+    /**
+     * Energy of the loudest hop of the whole track, in dB below full scale
+     */
+    float getPeakDb() {
+        return FLOOR_DB + peak * (-FLOOR_DB / 255f);
+    }
+    
+    private void save(File file) throws IOException {
+        File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 2 * energy.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(MAGIC_BYTES);
+        buffer.putShort((short) VERSION);
+        buffer.putShort((short) HOP_MS);
+        buffer.putInt(sampleRate);
+        buffer.putInt((int) frameCount);
+        buffer.putInt(energy.length);
+        buffer.put(energy);
+        buffer.put(onset);
+        // Write to a temp file and rename so a crash never leaves a half-written index
+        File tempFile = new File(directory, file.getName() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tempFile)) {
+            fos.write(buffer.array());
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Could not replace " + file.getName());
+        }
+    }
+    
+    private static float toDb(double meanSquare) {
+        if (meanSquare <= 0) {
+            return FLOOR_DB;
+        }
+        return Math.max(FLOOR_DB, (float) (10 * Math.log10(meanSquare / (32768.0 * 32768.0))));
+    }
+    
+    private static byte quantise(float value, float max) {
+        return (byte) Math.round(Math.max(0, Math.min(max, value)) * 255 / max);
+    }
+}
@@ -0,0 +1,46 @@
+package com.mixapp;
+
+import android.os.SystemClock;
+import java.time.ZoneId;
+
+/**
+ * Time source of the mixer and scheduler. The app runs on the system clocks; a simulation
+ * (see SimulationTest) runs everything on virtual time that advances as fast as audio is rendered.
+ */
+public interface EngineClock {
+    
+    /**
+     * Wall-clock time in epoch milliseconds (may be changed by the user or network time)
+     */
+    long currentTimeMillis();
+    
+    /**
+     * Monotonic milliseconds, counting through deep sleep
+     */
+    long elapsedRealtime();
+    
+    /**
+     * Time zone schedule times are local to
+     */
+    ZoneId getZone();
+    
+    /**
+     * The device's clocks
+     */
+    EngineClock SYSTEM = new EngineClock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+        
+        @Override
+        public long elapsedRealtime() {
+            return SystemClock.elapsedRealtime();
+        }
+        
+        @Override
+        public ZoneId getZone() {
+            return ZoneId.systemDefault();
+        }
+    };
+}
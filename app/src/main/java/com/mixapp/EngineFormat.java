@@ -0,0 +1,72 @@
+package com.mixapp;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.util.Log;
+
+/**
+ * Sample format of the audio engine: 16-bit stereo at the device's native output rate.
+ * Mixing at the rate the hardware runs at keeps Android's system resampler out of the output
+ * path; sources are converted to this rate once, at import.
+ */
+public class EngineFormat {
+    private static final String TAG = "EngineFormat";
+    
+    public static final int CHANNELS = 2;
+    // Used when the device does not report a rate. Caches written before they were tagged
+    // with their rate are at this rate too.
+    public static final int DEFAULT_SAMPLE_RATE = 44100;
+    
+    private static volatile int sampleRate = DEFAULT_SAMPLE_RATE;
+    
+    /**
+     * Pick up the native output rate. Call once at startup, before anything is decoded or played.
+     */
+    public static void init(Context context) {
+        AudioManager audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        String property = (audioManager != null)
+                ? audioManager.getProperty(AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE)
+                : null;
+        int rate = DEFAULT_SAMPLE_RATE;
+        if (property != null) {
+            try {
+                rate = Integer.parseInt(property);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Unexpected output sample rate: " + property);
+            }
+        }
+        if (rate < 8000 || rate > 192000) {
+            rate = DEFAULT_SAMPLE_RATE;
+        }
+        sampleRate = rate;
+        Log.d(TAG, "Engine sample rate: " + rate + " Hz");
+    }
+    
+    /**
+     * Use a fixed rate instead of the device's (e.g. a low one to simulate quickly, see SimulationTest)
+     */
+    static void setSampleRate(int rate) {
+        sampleRate = rate;
+    }
+    
+    /**
+     * Sample rate everything is mixed and cached at
+     */
+    public static int getSampleRate() {
+        return sampleRate;
+    }
+    
+    /**
+     * Convert a frame count at the engine rate to milliseconds
+     */
+    public static long framesToMs(long frames) {
+        return frames * 1000 / sampleRate;
+    }
+    
+    /**
+     * Convert milliseconds to a frame count at the engine rate
+     */
+    public static long msToFrames(long ms) {
+        return ms * sampleRate / 1000;
+    }
+}
@@ -0,0 +1,436 @@
+package com.mixapp;
+
+import android.content.ContentResolver;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Persistent queue of decode jobs. Every job is recorded in a journal (source, target cache and
+ * frames durably written), so an import interrupted by the user leaving the app or the process
+ * being killed resumes from its last checkpoint instead of starting over.
+ * Jobs run one at a time on a background thread and can be cancelled.
+ * A job decodes either a local copy of its source or, when the provider's descriptor is seekable,
+ * the content URI itself (reopened after a restart through a persisted URI permission).
+ * A compressed source can be kept in the media store after its decode, so an evicted cache can be
+ * decoded again later.
+ */
+public class ImportQueue {
+    private static final String TAG = "ImportQueue";
+    private static final String JOURNAL_FILE = "import_journal.json";
+    
+    /**
+     * One import: decode sourceFile into cacheFile for a playlist
+     */
+    public static class Job {
+        final String id;
+        final String sourceUri;
+        final File sourceFile; // Local copy, or null to read straight from sourceUri
+        final String displayName;
+        final String playlistId;
+        final boolean isMainTrack;
+        final File cacheFile;
+        final File retainedSource; // Where to keep the source once decoded (null: discard it)
+        final long estimatedFrames;
+        volatile long framesWritten; // Last checkpoint (frames durably on disk)
+        volatile boolean cancelled = false;
+        DecodeProgress progress;
+        private Thread worker;
+        
+        Job(String id, String sourceUri, File sourceFile, String displayName, String playlistId,
+            boolean isMainTrack, File cacheFile, File retainedSource, long estimatedFrames, long framesWritten) {
+            this.id = id;
+            this.sourceUri = sourceUri;
+            this.sourceFile = sourceFile;
+            this.displayName = displayName;
+            this.playlistId = playlistId;
+            this.isMainTrack = isMainTrack;
+            this.cacheFile = cacheFile;
+            this.retainedSource = retainedSource;
+            this.estimatedFrames = estimatedFrames;
+            this.framesWritten = framesWritten;
+        }
+        
+        public String getDisplayName() {
+            return displayName;
+        }
+        
+        public String getPlaylistId() {
+            return playlistId;
+        }
+        
+        public boolean isMainTrack() {
+            return isMainTrack;
+        }
+        
+        public File getCacheFile() {
+            return cacheFile;
+        }
+        
+        /**
+         * The kept copy of the source, or null if none was requested or it could not be stored
+         */
+        public File getRetainedSource() {
+            return (retainedSource != null && retainedSource.exists()) ? retainedSource : null;
+        }
+        
+        public long getEstimatedFrames() {
+            return estimatedFrames;
+        }
+        
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+    
+    /**
+     * Import events. Called on the import thread.
+     */
+    public interface Listener {
+        void onProgress(Job job, long framesWritten);
+        void onFinished(Job job, MP3Decoder.DecodeResult result);
+        void onFailed(Job job, Exception error);
+    }
+    
+    private final ContentResolver resolver;
+    private final File directory;
+    private final List<Job> jobs = new ArrayList<>();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private volatile Listener listener;
+    
+    /**
+     * @param resolver Used to reopen jobs that read from a content URI
+     * @param directory Where the journal and source copies are kept
+     */
+    public ImportQueue(ContentResolver resolver, File directory) {
+        this.resolver = resolver;
+        this.directory = directory;
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        loadJournal();
+    }
+    
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+    
+    /**
+     * Directory for source copies that must outlive the process (until their job finishes)
+     */
+    public File getDirectory() {
+        return directory;
+    }
+    
+    /**
+     * Record a new job. sourceFile may be null to decode from sourceUri directly. The target cache is registered as in progress right away, so it can be
+     * played (up to what is decoded) before the job runs.
+     * @param retainedSource Where to keep the source after a successful decode, or null to discard it
+     */
+    public Job add(String sourceUri, File sourceFile, String displayName, String playlistId,
+                   boolean isMainTrack, File cacheFile, File retainedSource, long estimatedFrames) throws IOException {
+        Job job = new Job(UUID.randomUUID().toString(), sourceUri, sourceFile, displayName, playlistId,
+                isMainTrack, cacheFile, retainedSource, estimatedFrames, 0);
+        job.progress = DecodeProgress.begin(cacheFile, estimatedFrames);
+        synchronized (jobs) {
+            jobs.add(job);
+            saveJournal();
+        }
+        return job;
+    }
+    
+    /**
+     * Jobs recorded but not finished (after startup: imports interrupted last time)
+     */
+    public List<Job> getPendingJobs() {
+        synchronized (jobs) {
+            return new ArrayList<>(jobs);
+        }
+    }
+    
+    /**
+     * Queue a job for decoding
+     */
+    public void start(final Job job) {
+        executor.execute(() -> run(job));
+    }
+    
+    /**
+     * Cancel a job: it stops at the next chunk and its partial output is deleted
+     */
+    public void cancel(Job job) {
+        job.cancelled = true;
+        synchronized (job) {
+            if (job.worker != null) {
+                job.worker.interrupt();
+            }
+        }
+        Log.d(TAG, "Cancel requested: " + job.displayName);
+    }
+    
+    private void run(final Job job) {
+        synchronized (job) {
+            job.worker = Thread.currentThread();
+        }
+        try {
+            if (job.cancelled) {
+                throw new InterruptedIOException("Import cancelled");
+            }
+            if (job.framesWritten > 0) {
+                Log.d(TAG, "Resuming " + job.displayName + " from frame " + job.framesWritten);
+            }
+            // Compact caches are decoded to raw PCM next to the source copy, then transcoded
+            boolean compact = AudioStream.isAdpcmCache(job.cacheFile);
+            File decodeTarget = compact ? getRawFile(job) : job.cacheFile;
+            DecodeProgress progress = compact ? null : job.progress;
+            PCMCacheWriter.CheckpointListener checkpoint = framesWritten -> {
+                if (job.cancelled) {
+                    throw new InterruptedIOException("Import cancelled");
+                }
+                job.framesWritten = framesWritten;
+                synchronized (jobs) {
+                    saveJournal();
+                }
+                Listener l = listener;
+                if (l != null) {
+                    l.onProgress(job, framesWritten);
+                }
+            };
+            MP3Decoder.DecodeResult result;
+            if (job.sourceFile != null) {
+                // A job that already moved its copy to the kept place reads it from there
+                File source = (job.retainedSource != null && !job.sourceFile.exists()) ? job.retainedSource : job.sourceFile;
+                result = MP3Decoder.decodeAudioToFile(source, decodeTarget, progress, job.framesWritten, checkpoint);
+            } else {
+                result = MP3Decoder.decodeAudioToFile(() -> openSource(job), decodeTarget, progress,
+                        job.framesWritten, checkpoint);
+            }
+            if (job.cancelled) {
+                throw new InterruptedIOException("Import cancelled");
+            }
+            if (compact) {
+                result.sampleCount = AdpcmCodec.encodeFile(decodeTarget, job.cacheFile);
+                decodeTarget.delete();
+            }
+            
+            job.progress.finish(result.sampleCount);
+            // Loudness index: where announcements may start in a track, how deep to duck
+            // under an announcement. Playback works without one.
+            try {
+                EnergyIndex.build(job.cacheFile);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not index " + job.displayName, e);
+            }
+            // Kept before the job leaves the journal, so a crash in between still finds the source
+            retainSource(job);
+            remove(job);
+            releaseSource(job);
+            Listener l = listener;
+            if (l != null) {
+                l.onFinished(job, result);
+            }
+        } catch (Exception e) {
+            if (job.cancelled) {
+                Log.d(TAG, "Import cancelled: " + job.displayName);
+            } else {
+                Log.e(TAG, "Import failed: " + job.displayName, e);
+            }
+            job.progress.fail();
+            remove(job);
+            job.cacheFile.delete();
+            getRawFile(job).delete();
+            releaseSource(job);
+            Listener l = listener;
+            if (l != null) {
+                l.onFailed(job, e);
+            }
+        } finally {
+            synchronized (job) {
+                job.worker = null;
+            }
+            // Don't let a cancel interrupt the next job on this thread
+            Thread.interrupted();
+        }
+    }
+    
+    /**
+     * Open a job's content URI. After a restart this relies on the persisted permission.
+     */
+    private ParcelFileDescriptor openSource(Job job) throws IOException {
+        ParcelFileDescriptor pfd;
+        try {
+            pfd = resolver.openFileDescriptor(Uri.parse(job.sourceUri), "r");
+        } catch (SecurityException e) {
+            throw new IOException("No longer allowed to read " + job.displayName, e);
+        }
+        if (pfd == null) {
+            throw new IOException("Could not open " + job.displayName);
+        }
+        return pfd;
+    }
+    
+    /**
+     * Keep the source in the media store if the job asks for it (moving the local copy when there
+     * is one). Failing to keep it is not fatal - the cache just can't be evicted.
+     */
+    private void retainSource(Job job) {
+        if (job.retainedSource == null || job.retainedSource.exists()) {
+            return;
+        }
+        File tempFile = new File(job.retainedSource.getPath() + ".tmp");
+        try {
+            if (job.sourceFile != null && job.sourceFile.renameTo(job.retainedSource)) {
+                return;
+            }
+            try (ParcelFileDescriptor pfd = (job.sourceFile != null)
+                    ? ParcelFileDescriptor.open(job.sourceFile, ParcelFileDescriptor.MODE_READ_ONLY)
+                    : openSource(job);
+                 FileInputStream in = new FileInputStream(pfd.getFileDescriptor());
+                 FileOutputStream out = new FileOutputStream(tempFile)) {
+                FileChannel channel = in.getChannel();
+                long size = channel.size();
+                long position = 0;
+                while (position < size) {
+                    long transferred = channel.transferTo(position, size - position, out.getChannel());
+                    if (transferred <= 0) {
+                        throw new EOFException(job.displayName + " ended at byte " + position + " of " + size);
+                    }
+                    position += transferred;
+                }
+                out.getFD().sync();
+            }
+            if (!tempFile.renameTo(job.retainedSource)) {
+                throw new IOException("Could not store " + job.retainedSource.getName());
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not keep the source of " + job.displayName, e);
+            tempFile.delete();
+        }
+    }
+    
+    /**
+     * Delete a job's source copy, or give up the URI permission it held (unless another job still reads it)
+     */
+    private void releaseSource(Job job) {
+        if (job.sourceFile != null) {
+            job.sourceFile.delete();
+            return;
+        }
+        synchronized (jobs) {
+            for (Job other : jobs) {
+                if (other.sourceFile == null && other.sourceUri.equals(job.sourceUri)) {
+                    return;
+                }
+            }
+        }
+        try {
+            resolver.releasePersistableUriPermission(Uri.parse(job.sourceUri), Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        } catch (SecurityException e) {
+            // The grant was not persistable in the first place
+        }
+    }
+    
+    private File getRawFile(Job job) {
+        return new File(directory, job.id + ".pcm");
+    }
+    
+    private void remove(Job job) {
+        synchronized (jobs) {
+            jobs.remove(job);
+            saveJournal();
+        }
+    }
+    
+    private void loadJournal() {
+        File journalFile = new File(directory, JOURNAL_FILE);
+        if (!journalFile.exists()) {
+            return;
+        }
+        try {
+            FileInputStream fis = new FileInputStream(journalFile);
+            byte[] buffer = new byte[(int) journalFile.length()];
+            int offset = 0;
+            while (offset < buffer.length) {
+                int read = fis.read(buffer, offset, buffer.length - offset);
+                if (read < 0) break;
+                offset += read;
+            }
+            fis.close();
+            
+            JSONArray array = new JSONArray(new String(buffer, 0, offset));
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject json = array.getJSONObject(i);
+                Job job = new Job(json.getString("id"), json.optString("sourceUri", ""),
+                        json.has("sourceFile") ? new File(json.getString("sourceFile")) : null, json.getString("displayName"),
+                        json.getString("playlistId"), json.getBoolean("isMainTrack"),
+                        new File(json.getString("cacheFile")),
+                        json.has("retainedSource") ? new File(json.getString("retainedSource")) : null,
+                        json.getLong("estimatedFrames"),
+                        json.getLong("framesWritten"));
+                if (job.sourceFile != null && !job.sourceFile.exists() && job.getRetainedSource() == null) {
+                    // Nothing left to resume from
+                    Log.w(TAG, "Dropping import without source: " + job.displayName);
+                    job.cacheFile.delete();
+                    continue;
+                }
+                job.progress = DecodeProgress.begin(job.cacheFile, job.estimatedFrames);
+                jobs.add(job);
+            }
+            Log.d(TAG, "Loaded import journal: " + jobs.size() + " pending job(s)");
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Error loading import journal", e);
+        }
+    }
+    
+    private void saveJournal() {
+        try {
+            JSONArray array = new JSONArray();
+            for (Job job : jobs) {
+                JSONObject json = new JSONObject();
+                json.put("id", job.id);
+                json.put("sourceUri", job.sourceUri);
+                if (job.sourceFile != null) {
+                    json.put("sourceFile", job.sourceFile.getAbsolutePath());
+                }
+                json.put("displayName", job.displayName);
+                json.put("playlistId", job.playlistId);
+                json.put("isMainTrack", job.isMainTrack);
+                json.put("cacheFile", job.cacheFile.getAbsolutePath());
+                if (job.retainedSource != null) {
+                    json.put("retainedSource", job.retainedSource.getAbsolutePath());
+                }
+                json.put("estimatedFrames", job.estimatedFrames);
+                json.put("framesWritten", job.framesWritten);
+                array.put(json);
+            }
+            
+            // Write to a temp file and rename so a crash never leaves a half-written journal
+            File tempFile = new File(directory, JOURNAL_FILE + ".tmp");
+            FileOutputStream fos = new FileOutputStream(tempFile);
+            fos.write(array.toString().getBytes());
+            fos.getFD().sync();
+            fos.close();
+            if (!tempFile.renameTo(new File(directory, JOURNAL_FILE))) {
+                Log.e(TAG, "Could not replace import journal");
+            }
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Error saving import journal", e);
+        }
+    }
+}
@@ -3,8 +3,12 @@ package com.mixapp;
 import android.media.MediaCodec;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -21,8 +25,29 @@ import java.util.List;
 public class MP3Decoder {
     private static final String TAG = "MP3Decoder";
     
+    // Sample rate conversion quality (CPU cost scales with filter length)
+    private static volatile Resampler.Quality resamplerQuality = Resampler.Quality.STANDARD;
+    
+    // Frames read per step when converting an existing cache to another rate
+    private static final int CONVERT_CHUNK_FRAMES = 8192;
+    
     /**
-     * Decode an audio file (MP3, WAV, etc.) to 16-bit PCM stereo at 44.1kHz
+     * Opens the source to decode. Parallel decoding opens it once per range, so every
+     * extractor has its own descriptor and file offset.
+     */
+    public interface SourceOpener {
+        ParcelFileDescriptor open() throws IOException;
+    }
+    
+    /**
+     * Set the quality/CPU trade-off used when converting sample rates during import
+     */
+    public static void setResamplerQuality(Resampler.Quality quality) {
+        resamplerQuality = quality;
+    }
+    
+    /**
+     * Decode an audio file (MP3, WAV, etc.) to 16-bit PCM stereo at the engine rate
      * @param file The audio file to decode
      * @return Array of 16-bit PCM samples (interleaved stereo)
      * @throws IOException If decoding fails
@@ -41,7 +66,37 @@ public class MP3Decoder {
      * @throws IOException If decoding fails
      */
     public static DecodeResult decodeAudioToFile(File file, File outputFile) throws IOException {
-        return decodeMP3ToFile(file, outputFile);
+        return decodeMP3ToFile(file, outputFile, null);
+    }
+    
+    /**
+     * Decode an audio file directly to disk, publishing how much is already written
+     * so playback can start before the decode finishes
+     * @param progress Watermark to advance after every write (may be null)
+     */
+    public static DecodeResult decodeAudioToFile(File file, File outputFile, DecodeProgress progress) throws IOException {
+        return decodeMP3ToFile(file, outputFile, progress, 0, null);
+    }
+    
+    /**
+     * Decode an audio file directly to disk, continuing a partially written output
+     * @param progress Watermark to advance after every write (may be null)
+     * @param resumeFrame Frames already in outputFile from an interrupted decode (0 to start over)
+     * @param checkpoint Told which frames are durably written, for resuming later (may be null)
+     */
+    public static DecodeResult decodeAudioToFile(File file, File outputFile, DecodeProgress progress,
+                                                 long resumeFrame, PCMCacheWriter.CheckpointListener checkpoint) throws IOException {
+        return decodeMP3ToFile(file, outputFile, progress, resumeFrame, checkpoint);
+    }
+    
+    /**
+     * Decode from a seekable source opened on demand (e.g. a content URI opened with
+     * ContentResolver.openFileDescriptor), so the source never has to be copied first
+     * @see #decodeAudioToFile(File, File, DecodeProgress, long, PCMCacheWriter.CheckpointListener)
+     */
+    public static DecodeResult decodeAudioToFile(SourceOpener source, File outputFile, DecodeProgress progress,
+                                                 long resumeFrame, PCMCacheWriter.CheckpointListener checkpoint) throws IOException {
+        return decodeToFile(source, outputFile, progress, resumeFrame, checkpoint);
     }
     
     /**
@@ -51,6 +106,8 @@ public class MP3Decoder {
         public long sampleCount;
         public int sampleRate;
         public int channels;
+        public String mimeType; // Source MIME type (set by probeAudioFile)
+        public long decodeTimeMs; // Wall time spent decoding (0 if nothing was decoded)
         
         public DecodeResult(long sampleCount, int sampleRate, int channels) {
             this.sampleCount = sampleCount;
@@ -59,28 +116,102 @@ public class MP3Decoder {
         }
     }
     
+    /**
+     * Read container metadata without decoding anything
+     * @param file The audio file to inspect
+     * @return Estimated sample count at the engine rate (from the container duration) and the source MIME type
+     * @throws IOException If the file has no readable audio track
+     */
+    public static DecodeResult probeAudioFile(File file) throws IOException {
+        try (FileInputStream fis = new FileInputStream(file)) {
+            return probeAudioFile(fis.getFD());
+        }
+    }
+    
+    /**
+     * Read container metadata from an open, seekable descriptor without decoding anything.
+     * The descriptor is not closed.
+     */
+    public static DecodeResult probeAudioFile(FileDescriptor fd) throws IOException {
+        if (WavDecoder.isWavFile(fd)) {
+            // Exact length straight from the header
+            WavDecoder.Info info = WavDecoder.readInfo(fd);
+            int outputRate = EngineFormat.getSampleRate();
+            long frames = (info.totalFrames() * outputRate + info.sampleRate - 1) / info.sampleRate;
+            DecodeResult result = new DecodeResult(frames, outputRate, 2);
+            result.mimeType = "audio/raw";
+            return result;
+        }
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(fd);
+            MediaFormat format = CompressedAudioStream.selectAudioTrack(extractor);
+            int outputRate = EngineFormat.getSampleRate();
+            DecodeResult result = new DecodeResult(CompressedAudioStream.estimateSampleCount(format, outputRate), outputRate, 2);
+            result.mimeType = format.getString(MediaFormat.KEY_MIME);
+            return result;
+        } finally {
+            extractor.release();
+        }
+    }
+    
+    /**
+     * Check whether a MIME type is worth decoding on the fly (i.e. it is actually compressed)
+     */
+    public static boolean isCompressedMimeType(String mimeType) {
+        return mimeType != null && mimeType.startsWith("audio/") && !mimeType.equals("audio/raw");
+    }
+    
     /**
      * Decode an MP3 file directly to disk (streaming, low memory)
      * @param file The MP3 file to decode
-     * @param outputFile Where to write the PCM data (16-bit stereo at 44.1kHz)
+     * @param outputFile Where to write the PCM data (16-bit stereo at the engine rate)
      * @return DecodeResult with sample count and format info
      * @throws IOException If decoding fails
      */
     public static DecodeResult decodeMP3ToFile(File file, File outputFile) throws IOException {
+        return decodeMP3ToFile(file, outputFile, null);
+    }
+    
+    /**
+     * Decode an MP3 file directly to disk (streaming, low memory).
+     * Resampling and channel conversion happen on each decoded chunk as it arrives, so the output
+     * file grows from the start of the decode and never needs a second pass.
+     * @param file The MP3 file to decode
+     * @param outputFile Where to write the PCM data (16-bit stereo at the engine rate)
+     * @param progress Watermark to advance after every write (may be null)
+     * @return DecodeResult with sample count and format info
+     * @throws IOException If decoding fails
+     */
+    public static DecodeResult decodeMP3ToFile(File file, File outputFile, DecodeProgress progress) throws IOException {
+        return decodeMP3ToFile(file, outputFile, progress, 0, null);
+    }
+    
+    private static DecodeResult decodeMP3ToFile(File file, File outputFile, DecodeProgress progress,
+                                                long resumeFrame, PCMCacheWriter.CheckpointListener checkpoint) throws IOException {
+        return decodeToFile(() -> ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY),
+                outputFile, progress, resumeFrame, checkpoint);
+    }
+    
+    /**
+     * Decode to disk, optionally resuming. The resume point is rounded down to a frame where input and
+     * output sample positions coincide exactly and the output is truncated there. The extractor seeks
+     * to a pre-roll position before the matching source frame (dropping decoded samples before it by
+     * presentation time), and the converted pre-roll is discarded, so the appended audio continues
+     * the old without a seam (see PCMCacheWriter.ResumePoint). WAV sources resume the same way.
+     * Long files decoded from the start are split across several decoders (see ParallelDecoder).
+     */
+    private static DecodeResult decodeToFile(SourceOpener opener, File outputFile, DecodeProgress progress,
+                                             long resumeFrame, PCMCacheWriter.CheckpointListener checkpoint) throws IOException {
         MediaExtractor extractor = new MediaExtractor();
-        MediaCodec decoder = null;
         FileOutputStream fos = null;
-        File tempFile = null;
         
-        try {
-            // Support both file paths and content URIs
-            String dataSource = file.getAbsolutePath();
-            try {
-                extractor.setDataSource(dataSource);
-            } catch (Exception e) {
-                // Try as content URI if file path fails
-                extractor.setDataSource(file.getPath());
+        try (ParcelFileDescriptor sourceFd = opener.open()) {
+            FileDescriptor source = sourceFd.getFileDescriptor();
+            if (WavDecoder.isWavFile(source)) {
+                return decodeWavToFile(source, outputFile, progress, resumeFrame, checkpoint);
             }
+            extractor.setDataSource(source);
             
             // Find the audio track
             int trackIndex = -1;
@@ -103,110 +234,74 @@ public class MP3Decoder {
             // Get sample rate and channel count
             int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
             int channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            int outputRate = EngineFormat.getSampleRate();
+            int outputChannels = PCMCacheHeader.cacheChannels(channelCount);
             
-            Log.d(TAG, "Decoding MP3 to file: sampleRate=" + sampleRate + ", channels=" + channelCount);
+            Log.d(TAG, "Decoding MP3 to file: sampleRate=" + sampleRate + ", channels=" + channelCount +
+                  ", outputRate=" + outputRate);
             
-            // Create decoder
-            String mime = format.getString(MediaFormat.KEY_MIME);
-            decoder = MediaCodec.createDecoderByType(mime);
-            decoder.configure(format, null, null, 0);
-            decoder.start();
-            
-            // Create temp file if we need resampling/conversion
-            boolean needsProcessing = (sampleRate != 44100) || (channelCount != 2);
-            if (needsProcessing) {
-                tempFile = new File(outputFile.getParentFile(), outputFile.getName() + ".tmp");
-                fos = new FileOutputStream(tempFile);
-            } else {
-                // Write directly to output file
-                File parentDir = outputFile.getParentFile();
-                if (parentDir != null && !parentDir.exists()) {
-                    parentDir.mkdirs();
-                }
-                fos = new FileOutputStream(outputFile);
+            File parentDir = outputFile.getParentFile();
+            if (parentDir != null && !parentDir.exists()) {
+                parentDir.mkdirs();
             }
             
-            // Decode and write chunks directly to file
-            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-            long totalSamplesWritten = 0;
-            ByteBuffer writeBuffer = ByteBuffer.allocate(8192).order(ByteOrder.LITTLE_ENDIAN);
-            
-            boolean inputDone = false;
-            boolean outputDone = false;
+            int ranges = ParallelDecoder.chooseRangeCount(format);
+            if (resumeFrame <= 0 && ranges > 1) {
+                return ParallelDecoder.decodeToFile(opener, format, ranges, outputFile, outputRate, progress,
+                        checkpoint, resamplerQuality);
+            }
             
-            while (!outputDone) {
-                // Feed input
-                if (!inputDone) {
-                    int inputIndex = decoder.dequeueInputBuffer(10000);
-                    if (inputIndex >= 0) {
-                        ByteBuffer inputBuffer = decoder.getInputBuffer(inputIndex);
-                        if (inputBuffer != null) {
-                            int sampleSize = extractor.readSampleData(inputBuffer, 0);
-                            
-                            if (sampleSize < 0) {
-                                decoder.queueInputBuffer(inputIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                                inputDone = true;
-                            } else {
-                                long presentationTimeUs = extractor.getSampleTime();
-                                decoder.queueInputBuffer(inputIndex, 0, sampleSize, presentationTimeUs, 0);
-                                extractor.advance();
-                            }
-                        }
-                    }
-                }
-                
-                // Get output
-                int outputIndex = decoder.dequeueOutputBuffer(info, 10000);
-                if (outputIndex >= 0) {
-                    ByteBuffer outputBuffer = decoder.getOutputBuffer(outputIndex);
-                    
-                    if (outputBuffer != null && info.size > 0) {
-                        // Write directly to file (little-endian 16-bit samples)
-                        outputBuffer.position(info.offset);
-                        outputBuffer.limit(info.offset + info.size);
-                        
-                        // Write bytes directly (they're already in the right format)
-                        byte[] chunk = new byte[info.size];
-                        outputBuffer.get(chunk);
-                        fos.write(chunk);
-                        
-                        totalSamplesWritten += (info.size / 2); // 2 bytes per sample
-                    }
-                    
-                    decoder.releaseOutputBuffer(outputIndex, false);
-                    
-                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                        outputDone = true;
-                    }
-                } else if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    format = decoder.getOutputFormat();
-                    Log.d(TAG, "Output format changed: " + format);
+            // Pick up an interrupted decode where input and output positions line up exactly, decoding
+            // a little before that point again so the codec and resampler join without a click
+            PCMCacheWriter.ResumePoint resume = PCMCacheWriter.prepareResume(outputFile, resumeFrame,
+                    sampleRate, outputRate, outputChannels);
+            long startFrame = 0;
+            long firstSourceFrame = 0;
+            if (resume != null) {
+                startFrame = resume.outputFrame;
+                firstSourceFrame = resume.sourceFrame;
+                if (firstSourceFrame > 0) {
+                    extractor.seekTo(firstSourceFrame * 1000000L / sampleRate, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
                 }
+                Log.d(TAG, "Resuming decode at frame " + startFrame + " (pre-roll from source frame " +
+                      firstSourceFrame + ")");
+            } else if (resumeFrame > 0) {
+                Log.w(TAG, "Cannot resume " + outputFile.getName() + ", starting over");
             }
             
-            fos.close();
-            fos = null;
-            
-            // Calculate actual sample count (divide by channels)
-            long totalSamples = totalSamplesWritten / channelCount;
-            
-            // Process temp file if needed (resample/convert channels)
-            if (needsProcessing && tempFile != null) {
-                Log.d(TAG, "Processing: resample=" + (sampleRate != 44100) + ", convertChannels=" + (channelCount != 2));
-                processAudioFile(tempFile, outputFile, sampleRate, 44100, channelCount, 2, totalSamples);
-                tempFile.delete();
+            fos = new FileOutputStream(outputFile, startFrame > 0);
+            if (startFrame == 0) {
+                PCMCacheHeader.writeUnsealed(fos, outputRate, outputChannels);
             }
-            
-            // Calculate final sample count (stereo at 44.1kHz)
-            long finalSampleCount = totalSamples;
-            if (sampleRate != 44100) {
-                // Resampling changes sample count
-                finalSampleCount = (totalSamples * 44100L) / sampleRate;
+            final PCMCacheWriter writer = new PCMCacheWriter(fos, sampleRate, channelCount, outputRate, outputChannels,
+                    resamplerQuality, progress);
+            if (resume != null) {
+                writer.resumeAt(resume);
+            }
+            if (progress != null) {
+                progress.advance(startFrame);
             }
+            if (checkpoint != null) {
+                writer.setCheckpointListener(checkpoint, PCMCacheWriter.CHECKPOINT_INTERVAL_MS);
+            }
+            
+            // Decode and write chunks directly to file (on the codec's callback thread)
+            long startTime = System.currentTimeMillis();
+            runDecoder(extractor, format, new TrimmingSink(writer, firstSourceFrame, sampleRate, channelCount));
+            
+            writer.finish();
+            fos.close();
+            fos = null;
+            long finalSampleCount = PCMCacheHeader.seal(outputFile);
             
-            Log.d(TAG, "Decoded to file: " + totalSamples + " samples -> " + finalSampleCount + " samples (stereo @ 44.1kHz)");
+            long decodeTimeMs = System.currentTimeMillis() - startTime;
+            Log.d(TAG, "Decoded to file: " + writer.getInputFrames() + " samples -> " + finalSampleCount +
+                  " samples (" + outputChannels + " ch @ " + outputRate + " Hz) in " + decodeTimeMs + " ms (" +
+                  formatSpeed(finalSampleCount, outputRate, decodeTimeMs) + ")");
             
-            return new DecodeResult(finalSampleCount, 44100, 2);
+            DecodeResult result = new DecodeResult(finalSampleCount, outputRate, outputChannels);
+            result.decodeTimeMs = decodeTimeMs;
+            return result;
             
         } finally {
             if (fos != null) {
@@ -216,92 +311,270 @@ public class MP3Decoder {
                     Log.e(TAG, "Error closing file", e);
                 }
             }
-            if (decoder != null) {
-                try {
-                    decoder.stop();
-                    decoder.release();
-                } catch (Exception e) {
-                    Log.e(TAG, "Error releasing decoder", e);
+            extractor.release();
+        }
+    }
+    
+    /**
+     * Convert a WAV file without going through MediaCodec (uncompressed audio needs no codec)
+     */
+    private static DecodeResult decodeWavToFile(FileDescriptor source, File outputFile, DecodeProgress progress,
+                                                long resumeFrame, PCMCacheWriter.CheckpointListener checkpoint) throws IOException {
+        File parentDir = outputFile.getParentFile();
+        if (parentDir != null && !parentDir.exists()) {
+            parentDir.mkdirs();
+        }
+        int outputRate = EngineFormat.getSampleRate();
+        long startTime = System.currentTimeMillis();
+        long frames = WavDecoder.decodeToFile(source, outputFile, outputRate, 2, resamplerQuality, progress,
+                resumeFrame, checkpoint);
+        int channels = PCMCacheHeader.read(outputFile).channels;
+        long decodeTimeMs = System.currentTimeMillis() - startTime;
+        Log.d(TAG, "Converted WAV to file: " + frames + " samples (" + channels + " ch @ " + outputRate + " Hz) in " +
+              decodeTimeMs + " ms (" + formatSpeed(frames, outputRate, decodeTimeMs) + ")");
+        
+        DecodeResult result = new DecodeResult(frames, outputRate, channels);
+        result.decodeTimeMs = decodeTimeMs;
+        return result;
+    }
+    
+    /**
+     * Resample an existing cache (raw PCM or ADPCM, 16-bit) into a raw PCM cache at the engine rate,
+     * keeping its channel count
+     * @param cacheRate Sample rate the existing cache was written at
+     * @param progress Watermark to advance after every write (may be null)
+     * @return Number of frames written
+     */
+    public static long convertCacheToFile(File cacheFile, int cacheRate, File outputFile,
+                                          DecodeProgress progress) throws IOException {
+        int outputRate = EngineFormat.getSampleRate();
+        long startTime = System.currentTimeMillis();
+        int channels = AudioStream.getStoredChannels(cacheFile);
+        AudioStream stream = AudioStream.open(cacheFile, cacheRate, channels);
+        long position = 0;
+        try (FileOutputStream fos = new FileOutputStream(outputFile)) {
+            PCMCacheHeader.writeUnsealed(fos, outputRate, channels);
+            PCMCacheWriter writer = new PCMCacheWriter(fos, cacheRate, channels, outputRate, channels, resamplerQuality, progress);
+            short[] buffer = new short[CONVERT_CHUNK_FRAMES * channels];
+            int read;
+            while ((read = stream.readSamples(position, CONVERT_CHUNK_FRAMES, buffer)) > 0) {
+                writer.writeFrames(buffer, read);
+                position += read;
+            }
+            writer.finish();
+        } finally {
+            stream.close();
+        }
+        long frames = PCMCacheHeader.seal(outputFile);
+        Log.d(TAG, "Converted cache " + cacheFile.getName() + ": " + position + " samples @ " + cacheRate +
+              " Hz -> " + frames + " samples @ " + outputRate + " Hz in " +
+              (System.currentTimeMillis() - startTime) + " ms");
+        return frames;
+    }
+    
+    /**
+     * Receives decoded PCM chunks (little-endian 16-bit, source format) from runDecoder()
+     */
+    interface ChunkSink {
+        void onChunk(byte[] bytes, int length, long presentationTimeUs) throws IOException;
+    }
+    
+    /**
+     * Feeds decoded chunks to a PCMCacheWriter, dropping source frames before a start position.
+     * After a seek the decoder starts at a sync point before the wanted position; the first
+     * chunk's presentation time tells how far before.
+     */
+    static class TrimmingSink implements ChunkSink {
+        private final PCMCacheWriter writer;
+        private final long firstSourceFrame;
+        private final int sampleRate;
+        private final int frameBytes;
+        private long sourcePosition = -1;
+        
+        TrimmingSink(PCMCacheWriter writer, long firstSourceFrame, int sampleRate, int channels) {
+            this.writer = writer;
+            this.firstSourceFrame = firstSourceFrame;
+            this.sampleRate = sampleRate;
+            this.frameBytes = channels * 2;
+        }
+        
+        @Override
+        public void onChunk(byte[] bytes, int length, long presentationTimeUs) throws IOException {
+            int offset = 0;
+            if (firstSourceFrame > 0) {
+                if (sourcePosition < 0) {
+                    sourcePosition = Math.round(presentationTimeUs * (double) sampleRate / 1000000.0);
+                }
+                long frames = length / frameBytes;
+                long skip = Math.max(0, Math.min(frames, firstSourceFrame - sourcePosition));
+                sourcePosition += frames;
+                offset = (int) (skip * frameBytes);
+                if (offset > 0 && offset < length) {
+                    System.arraycopy(bytes, offset, bytes, 0, length - offset);
                 }
             }
-            extractor.release();
-            if (tempFile != null && tempFile.exists()) {
-                tempFile.delete();
+            if (length - offset > 0) {
+                writer.write(bytes, length - offset);
             }
         }
     }
     
     /**
-     * Process audio file: resample and/or convert channels (streaming, low memory)
+     * Decode the selected track of an extractor with an asynchronous MediaCodec.
+     * Input feeding and output draining run as codec callbacks on a dedicated handler thread,
+     * so they pipeline without polling timeouts. The decoder comes from DecoderPool and is
+     * returned to it afterwards. Blocks until end of stream.
+     */
+    static void runDecoder(MediaExtractor extractor, MediaFormat format, ChunkSink sink) throws IOException {
+        runDecoder(extractor, format, sink, Long.MAX_VALUE);
+    }
+    
+    /**
+     * Decode the selected track of an extractor, ending the stream after the last input sample
+     * at or before stopTimeUs
      */
-    private static void processAudioFile(File inputFile, File outputFile, 
-                                        int inputRate, int outputRate,
-                                        int inputChannels, int outputChannels,
-                                        long inputSampleCount) throws IOException {
-        FileInputStream fis = new FileInputStream(inputFile);
-        FileOutputStream fos = new FileOutputStream(outputFile);
+    static void runDecoder(MediaExtractor extractor, MediaFormat format, ChunkSink sink,
+                           long stopTimeUs) throws IOException {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        MediaCodec decoder = DecoderPool.acquire(mime);
+        HandlerThread callbackThread = new HandlerThread("DecoderCallbacks");
+        callbackThread.start();
+        AsyncDecode session = new AsyncDecode(extractor, sink, stopTimeUs);
+        boolean healthy = false;
         
         try {
-            // Buffer for reading (about 1 second of audio)
-            int bufferSize = (int)(inputRate * inputChannels * 2); // 1 second in bytes
-            byte[] inputBuffer = new byte[bufferSize];
-            ByteBuffer inputByteBuffer = ByteBuffer.wrap(inputBuffer).order(ByteOrder.LITTLE_ENDIAN);
-            
-            // Buffer for output
-            int outputBufferSize = (int)(outputRate * outputChannels * 2); // 1 second in bytes
-            byte[] outputBuffer = new byte[outputBufferSize];
-            ByteBuffer outputByteBuffer = ByteBuffer.wrap(outputBuffer).order(ByteOrder.LITTLE_ENDIAN);
-            
-            long samplesRead = 0;
-            
-            while (samplesRead < inputSampleCount) {
-                // Read chunk
-                int bytesRead = fis.read(inputBuffer);
-                if (bytesRead <= 0) break;
-                
-                // Convert to shorts
-                int samplesInChunk = bytesRead / (2 * inputChannels);
-                short[] inputSamples = new short[samplesInChunk * inputChannels];
-                inputByteBuffer.position(0);
-                inputByteBuffer.limit(bytesRead);
-                inputByteBuffer.asShortBuffer().get(inputSamples);
-                
-                // Process: resample and/or convert channels
-                short[] outputSamples;
-                if (inputRate != outputRate) {
-                    // Resample first
-                    outputSamples = resample(inputSamples, inputRate, outputRate, inputChannels);
+            decoder.setCallback(session, new Handler(callbackThread.getLooper()));
+            decoder.configure(format, null, null, 0);
+            decoder.start();
+            session.await();
+            decoder.stop();
+            healthy = true;
+        } catch (IllegalStateException e) {
+            throw new IOException("Decoder failed: " + e.getMessage(), e);
+        } finally {
+            callbackThread.quitSafely();
+            if (healthy) {
+                DecoderPool.recycle(mime, decoder);
+            } else {
+                DecoderPool.discard(decoder);
+            }
+        }
+    }
+    
+    /**
+     * Callback state for one asynchronous decode
+     */
+    private static class AsyncDecode extends MediaCodec.Callback {
+        private final MediaExtractor extractor;
+        private final ChunkSink sink;
+        private final long stopTimeUs;
+        private byte[] chunk = new byte[0];
+        private boolean inputDone = false;
+        private boolean outputDone = false;
+        private Exception error;
+        
+        AsyncDecode(MediaExtractor extractor, ChunkSink sink, long stopTimeUs) {
+            this.extractor = extractor;
+            this.sink = sink;
+            this.stopTimeUs = stopTimeUs;
+        }
+        
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            if (inputDone || isFinished()) {
+                return;
+            }
+            try {
+                ByteBuffer inputBuffer = codec.getInputBuffer(index);
+                int sampleSize = (inputBuffer != null) ? extractor.readSampleData(inputBuffer, 0) : -1;
+                if (sampleSize < 0 || extractor.getSampleTime() > stopTimeUs) {
+                    codec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    inputDone = true;
                 } else {
-                    outputSamples = inputSamples;
+                    codec.queueInputBuffer(index, 0, sampleSize, extractor.getSampleTime(), 0);
+                    extractor.advance();
                 }
-                
-                // Convert channels if needed
-                if (inputChannels != outputChannels) {
-                    if (inputChannels == 1 && outputChannels == 2) {
-                        outputSamples = monoToStereo(outputSamples);
-                    } else if (inputChannels > 2 && outputChannels == 2) {
-                        outputSamples = extractStereo(outputSamples, inputChannels);
+            } catch (Exception e) {
+                finish(e);
+            }
+        }
+        
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            if (isFinished()) {
+                return;
+            }
+            try {
+                ByteBuffer outputBuffer = codec.getOutputBuffer(index);
+                if (outputBuffer != null && info.size > 0) {
+                    outputBuffer.position(info.offset);
+                    outputBuffer.limit(info.offset + info.size);
+                    if (chunk.length < info.size) {
+                        chunk = new byte[info.size];
                     }
+                    outputBuffer.get(chunk, 0, info.size);
+                    sink.onChunk(chunk, info.size, info.presentationTimeUs);
                 }
-                
-                // Write to file
-                outputByteBuffer.clear();
-                for (short sample : outputSamples) {
-                    fos.write((byte)(sample & 0xFF));
-                    fos.write((byte)((sample >> 8) & 0xFF));
+                codec.releaseOutputBuffer(index, false);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    finish(null);
                 }
-                
-                samplesRead += samplesInChunk;
+            } catch (Exception e) {
+                finish(e);
             }
-            
-        } finally {
-            fis.close();
-            fos.close();
         }
+        
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            finish(e);
+        }
+        
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            Log.d(TAG, "Output format changed: " + format);
+        }
+        
+        private synchronized boolean isFinished() {
+            return outputDone;
+        }
+        
+        private synchronized void finish(Exception e) {
+            if (!outputDone) {
+                outputDone = true;
+                error = e;
+                notifyAll();
+            }
+        }
+        
+        synchronized void await() throws IOException {
+            while (!outputDone) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Decode interrupted");
+                }
+            }
+            if (error instanceof IOException) {
+                throw (IOException) error;
+            } else if (error != null) {
+                throw new IOException("Decode failed: " + error.getMessage(), error);
+            }
+        }
+    }
+    
+    /**
+     * Describe decode speed as a multiple of real time
+     */
+    static String formatSpeed(long frames, int sampleRate, long elapsedMs) {
+        if (elapsedMs <= 0) {
+            return "instant";
+        }
+        return String.format(java.util.Locale.US, "%.1fx real time", (frames * 1000.0 / sampleRate) / elapsedMs);
     }
     
     /**
-     * Decode an MP3 file to 16-bit PCM stereo at 44.1kHz (old method, loads into memory)
+     * Decode an MP3 file to 16-bit PCM stereo at the engine rate (old method, loads into memory)
      * @param file The MP3 file to decode
      * @return Array of 16-bit PCM samples (interleaved stereo)
      * @throws IOException If decoding fails
@@ -310,7 +583,6 @@ public class MP3Decoder {
     @Deprecated
     public static short[] decodeMP3(File file) throws IOException {
         MediaExtractor extractor = new MediaExtractor();
-        MediaCodec decoder = null;
         
         try {
             // Support both file paths and content URIs
@@ -346,72 +618,14 @@ public class MP3Decoder {
             
             Log.d(TAG, "Decoding MP3: sampleRate=" + sampleRate + ", channels=" + channelCount);
             
-            // Create decoder
-            String mime = format.getString(MediaFormat.KEY_MIME);
-            decoder = MediaCodec.createDecoderByType(mime);
-            decoder.configure(format, null, null, 0);
-            decoder.start();
-            
             // Decode the file
-            List<short[]> decodedChunks = new ArrayList<>();
-            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-            
-            boolean inputDone = false;
-            boolean outputDone = false;
-            
-            while (!outputDone) {
-                // Feed input
-                if (!inputDone) {
-                    int inputIndex = decoder.dequeueInputBuffer(10000);
-                    if (inputIndex >= 0) {
-                        ByteBuffer inputBuffer = decoder.getInputBuffer(inputIndex);
-                        if (inputBuffer != null) {
-                            int sampleSize = extractor.readSampleData(inputBuffer, 0);
-                            
-                            if (sampleSize < 0) {
-                                decoder.queueInputBuffer(inputIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                                inputDone = true;
-                            } else {
-                                long presentationTimeUs = extractor.getSampleTime();
-                                decoder.queueInputBuffer(inputIndex, 0, sampleSize, presentationTimeUs, 0);
-                                extractor.advance();
-                            }
-                        }
-                    }
-                }
-                
-                // Get output
-                int outputIndex = decoder.dequeueOutputBuffer(info, 10000);
-                if (outputIndex >= 0) {
-                    ByteBuffer outputBuffer = decoder.getOutputBuffer(outputIndex);
-                    
-                    if (outputBuffer != null && info.size > 0) {
-                        // Position buffer at the correct offset
-                        outputBuffer.position(info.offset);
-                        outputBuffer.limit(info.offset + info.size);
-                        
-                        // Convert to short array
-                        int outputSize = info.size;
-                        byte[] outputBytes = new byte[outputSize];
-                        outputBuffer.get(outputBytes);
-                        
-                        // Convert bytes to shorts (16-bit samples)
-                        short[] samples = new short[outputSize / 2];
-                        ByteBuffer.wrap(outputBytes).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(samples);
-                        
-                        decodedChunks.add(samples);
-                    }
-                    
-                    decoder.releaseOutputBuffer(outputIndex, false);
-                    
-                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                        outputDone = true;
-                    }
-                } else if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    format = decoder.getOutputFormat();
-                    Log.d(TAG, "Output format changed: " + format);
-                }
-            }
+            final List<short[]> decodedChunks = new ArrayList<>();
+            runDecoder(extractor, format, (bytes, length, presentationTimeUs) -> {
+                // Convert bytes to shorts (16-bit samples)
+                short[] samples = new short[length / 2];
+                ByteBuffer.wrap(bytes, 0, length).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(samples);
+                decodedChunks.add(samples);
+            });
             
             // Combine all chunks
             int totalSamples = 0;
@@ -449,10 +663,11 @@ public class MP3Decoder {
             // Clear chunks to free memory
             decodedChunks.clear();
             
-            // Resample to 44.1kHz if needed
-            if (sampleRate != 44100) {
+            // Resample to the engine rate if needed
+            int outputRate = EngineFormat.getSampleRate();
+            if (sampleRate != outputRate) {
                 try {
-                    allSamples = resample(allSamples, sampleRate, 44100, channelCount);
+                    allSamples = resample(allSamples, sampleRate, outputRate, channelCount);
                 } catch (OutOfMemoryError e) {
                     Log.e(TAG, "Out of memory during resampling", e);
                     System.gc();
@@ -484,56 +699,32 @@ public class MP3Decoder {
             return allSamples;
             
         } finally {
-            if (decoder != null) {
-                try {
-                    decoder.stop();
-                    decoder.release();
-                } catch (Exception e) {
-                    Log.e(TAG, "Error releasing decoder", e);
-                }
-            }
             extractor.release();
         }
     }
     
     /**
-     * Simple resampling (linear interpolation)
-     * For production, use a proper resampling library
+     * Resample a whole in-memory buffer with the windowed-sinc resampler
      */
     private static short[] resample(short[] input, int inputRate, int outputRate, int channels) {
         if (inputRate == outputRate) {
             return input;
         }
         
-        double ratio = (double) outputRate / inputRate;
-        int outputLength = (int) (input.length * ratio);
-        short[] output = new short[outputLength];
-        
-        for (int i = 0; i < outputLength; i += channels) {
-            double srcIndex = i / ratio;
-            int srcIndexInt = (int) srcIndex;
-            double fraction = srcIndex - srcIndexInt;
-            
-            if (srcIndexInt + channels < input.length) {
-                for (int ch = 0; ch < channels; ch++) {
-                    int idx = srcIndexInt + ch;
-                    int nextIdx = Math.min(idx + channels, input.length - channels + ch);
-                    output[i + ch] = (short) (input[idx] * (1 - fraction) + input[nextIdx] * fraction);
-                }
-            } else {
-                for (int ch = 0; ch < channels; ch++) {
-                    output[i + ch] = input[Math.min(srcIndexInt + ch, input.length - 1)];
-                }
-            }
-        }
-        
-        return output;
+        Resampler resampler = new Resampler(inputRate, outputRate, channels, resamplerQuality);
+        int inputFrames = input.length / channels;
+        short[] output = new short[(resampler.getMaxOutputFrames(inputFrames) + resampler.getMaxOutputFrames(0)) * channels];
+        int frames = resampler.process(input, inputFrames, output);
+        short[] tail = new short[resampler.getMaxOutputFrames(0) * channels];
+        int tailFrames = resampler.flush(tail);
+        System.arraycopy(tail, 0, output, frames * channels, tailFrames * channels);
+        return java.util.Arrays.copyOf(output, (frames + tailFrames) * channels);
     }
     
     /**
      * Convert mono to stereo by duplicating channels
      */
-    private static short[] monoToStereo(short[] mono) {
+    static short[] monoToStereo(short[] mono) {
         short[] stereo = new short[mono.length * 2];
         for (int i = 0; i < mono.length; i++) {
             stereo[i * 2] = mono[i];     // Left
@@ -545,7 +736,7 @@ public class MP3Decoder {
     /**
      * Extract first two channels from multi-channel audio
      */
-    private static short[] extractStereo(short[] multi, int channelCount) {
+    static short[] extractStereo(short[] multi, int channelCount) {
         int samples = multi.length / channelCount;
         short[] stereo = new short[samples * 2];
         for (int i = 0; i < samples; i++) {
@@ -554,5 +745,13 @@ public class MP3Decoder {
         }
         return stereo;
     }
+    
+    static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
 }
-
@@ -3,7 +3,9 @@ package com.mixapp;
 import android.Manifest;
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.app.DatePickerDialog;
 import android.app.ProgressDialog;
+import android.app.TimePickerDialog;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.pm.PackageManager;
@@ -12,6 +14,8 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.text.InputType;
 import android.text.SpannableString;
 import android.text.Spanned;
@@ -25,6 +29,7 @@ import android.widget.Button;
 import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.ImageButton;
+import android.widget.LinearLayout;
 import android.widget.PopupMenu;
 import android.widget.SeekBar;
 import android.widget.TextView;
@@ -37,10 +42,15 @@ import androidx.recyclerview.widget.ItemTouchHelper;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileOutputStream;
-import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.UUID;
 
 /**
  * MainActivity provides the UI and controls for the Audio Mixer app with playlist support.
@@ -50,11 +60,29 @@ public class MainActivity extends AppCompatActivity {
     private static final String TAG = "MainActivity";
     private static final int REQUEST_CODE_PICK_AUDIO = 1001;
     private static final int REQUEST_CODE_PICK_ANNOUNCEMENT = 1002;
+    private static final int REQUEST_CODE_EXPORT_BUNDLE = 1003;
+    private static final int REQUEST_CODE_IMPORT_BUNDLE = 1004;
+    private static final int REQUEST_CODE_EXPORT_PLAY_REPORT = 1005;
+    private static final String BUNDLE_EXTENSION = ".mixbundle";
     private static final int PERMISSION_REQUEST_CODE = 2001;
+    private static final String PREFS_SETTINGS = "settings";
+    private static final String KEY_DECODE_ON_THE_FLY = "decode_on_the_fly";
+    private static final String KEY_COMPACT_ANNOUNCEMENTS = "compact_announcements";
+    private static final String KEY_STORAGE_BUDGET_MB = "storage_budget_mb";
+    private static final String KEY_PLACEMENT_TOLERANCE_S = "placement_tolerance_s";
+    // Choices for the playlist storage limit, in MB (0: no limit)
+    private static final int[] STORAGE_BUDGETS_MB = {0, 2048, 4096, 8192, 16384};
+    // Choices for the window an interval announcement may move in to find a quiet moment, in seconds (0: off)
+    private static final int[] PLACEMENT_TOLERANCES_S = {0, 5, 10, 20, 30};
+    // Bytes per transferFrom() call when a source has to be copied
+    private static final long COPY_TRANSFER_BYTES = 8 * 1024 * 1024;
+    // Most library search results listed at once
+    private static final int LIBRARY_RESULT_LIMIT = 200;
     
     private AudioMixer audioMixer;
     private PlaylistManager playlistManager;
     private Playlist currentPlaylist;
+    private String exportingPlaylistId; // Playlist whose bundle destination is being picked
     
     // UI Components
     private ImageButton btnMenu;
@@ -85,27 +113,65 @@ public class MainActivity extends AppCompatActivity {
     private PlaylistAdapter playlistAdapter;
     private boolean isAddingTrack = false;
     private boolean isHomeScreen = true;
+    private String selectingPlaylistId; // Playlist being read in the background to be opened
     private View homeView;
     private RecyclerView recyclerPlaylists;
     private TextView tvEmptyState;
     private ProgressDialog loadingProgressDialog;
+    private ImportQueue importQueue;
+    private ImportQueue.Job importDialogJob; // Job shown in loadingProgressDialog, if any
+    private boolean decodeOnTheFly = true; // Keep compressed imports as-is and decode during playback
+    private boolean compactAnnouncements = true; // Store decoded announcements as IMA-ADPCM
+    private Schedule schedule;
+    private Scheduler scheduler;
+    private Playlist preparedPlaylist; // Loaded ahead of the next daypart
+    private PlayLog playLog; // Proof of play (null if it could not be opened)
+    private LocalDate reportingDay; // Day whose play report destination is being picked
     
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        long startTime = SystemClock.uptimeMillis();
         
         mainHandler = new Handler(Looper.getMainLooper());
-        
-        // Initialize managers
+        decodeOnTheFly = getSharedPreferences(PREFS_SETTINGS, MODE_PRIVATE)
+                .getBoolean(KEY_DECODE_ON_THE_FLY, true);
+        compactAnnouncements = getSharedPreferences(PREFS_SETTINGS, MODE_PRIVATE)
+                .getBoolean(KEY_COMPACT_ANNOUNCEMENTS, true);
+        
+        // Mix, decode and cache at the device's native output rate
+        EngineFormat.init(this);
+        
+        // Initialize managers (the import queue first, so caches still being decoded are
+        // registered before the cache sweep runs)
+        importQueue = new ImportQueue(getContentResolver(), new File(getFilesDir(), "imports"));
+        importQueue.setListener(importListener);
         playlistManager = new PlaylistManager(this);
+        playlistManager.setStorageBudget(getSharedPreferences(PREFS_SETTINGS, MODE_PRIVATE)
+                .getInt(KEY_STORAGE_BUDGET_MB, 0) * 1024L * 1024L);
         audioMixer = new AudioMixer();
         audioMixer.initialize();
+        audioMixer.setPlacementTolerance(getSharedPreferences(PREFS_SETTINGS, MODE_PRIVATE)
+                .getInt(KEY_PLACEMENT_TOLERANCE_S, 0));
+        audioMixer.setListener(mixerListener);
+        try {
+            playLog = PlayLog.open(new File(getFilesDir(), "playlog"));
+            audioMixer.setPlayLog(playLog);
+        } catch (java.io.IOException e) {
+            Log.e(TAG, "Proof-of-play log unavailable", e);
+        }
         
-        // Load all playlists on startup
-        loadAllPlaylists();
+        resumePendingImports();
         
-        // Show home screen first
+        // Dayparts and timed announcements
+        schedule = Schedule.load(new File(getFilesDir(), "schedule.json"));
+        scheduler = new Scheduler(schedule, scheduleListener);
+        scheduler.start();
+        
+        // Show home screen first (drawn from the playlist index; playlists are read when opened)
         showHomeScreen();
+        Log.d(TAG, "Startup: home screen ready in " + (SystemClock.uptimeMillis() - startTime) + " ms (" +
+              playlistManager.getPlaylistSummaries().size() + " playlists)");
         
         // Request permissions
         requestPermissions();
@@ -127,10 +193,10 @@ public class MainActivity extends AppCompatActivity {
         
         // Setup playlist RecyclerView
         playlistAdapter = new PlaylistAdapter(
-            playlistManager.getAllPlaylists(),
+            playlistManager.getPlaylistSummaries(),
             playlist -> {
                 // Open playlist detail screen
-                showPlaylistDetail(playlist);
+                showPlaylistDetail(playlist.getId());
             },
             playlist -> {
                 // Delete playlist from home screen
@@ -149,7 +215,17 @@ public class MainActivity extends AppCompatActivity {
     /**
      * Show playlist detail screen
      */
-    private void showPlaylistDetail(Playlist playlist) {
+    private void showPlaylistDetail(String playlistId) {
+        showDetailScreen();
+        
+        // Select the playlist
+        selectPlaylist(playlistId);
+    }
+    
+    /**
+     * Switch to the playlist detail layout
+     */
+    private void showDetailScreen() {
         isHomeScreen = false;
         setContentView(R.layout.activity_main);
         
@@ -157,9 +233,6 @@ public class MainActivity extends AppCompatActivity {
         initializeViews();
         setupListeners();
         setupRecyclerView();
-        
-        // Select the playlist
-        selectPlaylist(playlist);
     }
     
     /**
@@ -169,6 +242,9 @@ public class MainActivity extends AppCompatActivity {
         PopupMenu popup = new PopupMenu(this, findViewById(R.id.btnMenu));
         popup.getMenu().add("Create New Playlist");
         popup.getMenu().add("Lists");
+        popup.getMenu().add("Import Playlist");
+        popup.getMenu().add("Schedule");
+        popup.getMenu().add("Proof of Play");
         
         popup.setOnMenuItemClickListener(item -> {
             String title = item.getTitle().toString();
@@ -176,6 +252,12 @@ public class MainActivity extends AppCompatActivity {
                 showCreatePlaylistDialog();
             } else if (title.equals("Lists")) {
                 // Already on lists screen
+            } else if (title.equals("Import Playlist")) {
+                pickBundleToImport();
+            } else if (title.equals("Schedule")) {
+                showScheduleDialog();
+            } else if (title.equals("Proof of Play")) {
+                pickPlayReportDay();
             }
             return true;
         });
@@ -186,25 +268,16 @@ public class MainActivity extends AppCompatActivity {
      * Update home screen display
      */
     private void updateHomeScreen() {
-        List<Playlist> playlists = playlistManager.getAllPlaylists();
-        // Reload all playlists to ensure accurate track/announcement counts
-        List<Playlist> reloadedPlaylists = new ArrayList<>();
-        for (Playlist playlist : playlists) {
-            Playlist loaded = playlistManager.loadPlaylist(playlist.getId());
-            if (loaded != null) {
-                reloadedPlaylists.add(loaded);
-            } else {
-                reloadedPlaylists.add(playlist);
-            }
-        }
+        // The index is updated on every save, so its counts are current
+        List<PlaylistSummary> playlists = playlistManager.getPlaylistSummaries();
         
-        if (reloadedPlaylists.isEmpty()) {
+        if (playlists.isEmpty()) {
             recyclerPlaylists.setVisibility(View.GONE);
             tvEmptyState.setVisibility(View.VISIBLE);
         } else {
             recyclerPlaylists.setVisibility(View.VISIBLE);
             tvEmptyState.setVisibility(View.GONE);
-            playlistAdapter.updateList(reloadedPlaylists);
+            playlistAdapter.updateList(playlists);
         }
     }
     
@@ -371,6 +444,7 @@ public class MainActivity extends AppCompatActivity {
             }
         );
         
+        announcementAdapter.setOnItemClickListener(this::showRotationRulesDialog);
         recyclerAnnouncements.setLayoutManager(new LinearLayoutManager(this));
         recyclerAnnouncements.setAdapter(announcementAdapter);
         
@@ -411,6 +485,7 @@ public class MainActivity extends AppCompatActivity {
         btnPlay.setOnClickListener(v -> {
             if (currentPlaylist != null && !currentPlaylist.isEmpty()) {
                 audioMixer.play();
+                playlistManager.setPlaylistInUse(currentPlaylist);
                 updateStatus("Playing");
             }
         });
@@ -639,10 +714,30 @@ public class MainActivity extends AppCompatActivity {
         popup.getMenu().add("Create New Playlist");
         popup.getMenu().add("Select Playlist");
         popup.getMenu().add("Manage Playlists");
+        popup.getMenu().add("Add from Library");
+        popup.getMenu().add("Export Playlist");
+        popup.getMenu().add("Import Playlist");
+        popup.getMenu().add("Decode on the fly").setCheckable(true).setChecked(decodeOnTheFly);
+        popup.getMenu().add("Compact announcements").setCheckable(true).setChecked(compactAnnouncements);
+        popup.getMenu().add("Storage limit");
+        popup.getMenu().add("Announcement placement");
+        popup.getMenu().add("Schedule");
+        popup.getMenu().add("Proof of Play");
         
         popup.setOnMenuItemClickListener(item -> {
             String title = item.getTitle().toString();
-            if (title.equals("Home")) {
+            if (title.equals("Decode on the fly")) {
+                decodeOnTheFly = !decodeOnTheFly;
+                getSharedPreferences(PREFS_SETTINGS, MODE_PRIVATE).edit()
+                        .putBoolean(KEY_DECODE_ON_THE_FLY, decodeOnTheFly).apply();
+                Toast.makeText(this, decodeOnTheFly ?
+                        "New imports will be decoded during playback" :
+                        "New imports will be decoded to PCM", Toast.LENGTH_SHORT).show();
+            } else if (title.equals("Compact announcements")) {
+                compactAnnouncements = !compactAnnouncements;
+                getSharedPreferences(PREFS_SETTINGS, MODE_PRIVATE).edit()
+                        .putBoolean(KEY_COMPACT_ANNOUNCEMENTS, compactAnnouncements).apply();
+            } else if (title.equals("Home")) {
                 showHomeScreen();
             } else if (title.equals("Create New Playlist")) {
                 showCreatePlaylistDialog();
@@ -650,12 +745,404 @@ public class MainActivity extends AppCompatActivity {
                 showPlaylistSelectionDialog(true);
             } else if (title.equals("Manage Playlists")) {
                 showManagePlaylistsDialog();
+            } else if (title.equals("Add from Library")) {
+                showLibrarySearchDialog();
+            } else if (title.equals("Storage limit")) {
+                showStorageBudgetDialog();
+            } else if (title.equals("Announcement placement")) {
+                showPlacementToleranceDialog();
+            } else if (title.equals("Schedule")) {
+                showScheduleDialog();
+            } else if (title.equals("Proof of Play")) {
+                pickPlayReportDay();
+            } else if (title.equals("Export Playlist")) {
+                pickBundleToExport();
+            } else if (title.equals("Import Playlist")) {
+                pickBundleToImport();
             }
             return true;
         });
         popup.show();
     }
     
+    /**
+     * Choose how much storage decoded audio may use. Over the limit, caches of playlists not in
+     * use are evicted and decoded again from their kept source when next needed.
+     */
+    private void showStorageBudgetDialog() {
+        int current = getSharedPreferences(PREFS_SETTINGS, MODE_PRIVATE).getInt(KEY_STORAGE_BUDGET_MB, 0);
+        String[] labels = new String[STORAGE_BUDGETS_MB.length];
+        int checked = 0;
+        for (int i = 0; i < STORAGE_BUDGETS_MB.length; i++) {
+            labels[i] = (STORAGE_BUDGETS_MB[i] == 0) ? "No limit" : (STORAGE_BUDGETS_MB[i] / 1024) + " GB";
+            if (STORAGE_BUDGETS_MB[i] == current) {
+                checked = i;
+            }
+        }
+        long usedMb = playlistManager.getMediaCache().getStorageBytes() / (1024 * 1024);
+        new AlertDialog.Builder(this)
+                .setTitle("Storage limit (" + usedMb + " MB used)")
+                .setSingleChoiceItems(labels, checked, (dialog, which) -> {
+                    getSharedPreferences(PREFS_SETTINGS, MODE_PRIVATE).edit()
+                            .putInt(KEY_STORAGE_BUDGET_MB, STORAGE_BUDGETS_MB[which]).apply();
+                    playlistManager.setStorageBudget(STORAGE_BUDGETS_MB[which] * 1024L * 1024L);
+                    dialog.dismiss();
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+    
+    /**
+     * Choose how far an interval announcement may move from its due time to start at a quiet
+     * moment of the track instead of over a loud one
+     */
+    private void showPlacementToleranceDialog() {
+        int current = getSharedPreferences(PREFS_SETTINGS, MODE_PRIVATE).getInt(KEY_PLACEMENT_TOLERANCE_S, 0);
+        String[] labels = new String[PLACEMENT_TOLERANCES_S.length];
+        int checked = 0;
+        for (int i = 0; i < PLACEMENT_TOLERANCES_S.length; i++) {
+            labels[i] = (PLACEMENT_TOLERANCES_S[i] == 0) ? "Exactly on time" :
+                    "Within " + PLACEMENT_TOLERANCES_S[i] + " seconds";
+            if (PLACEMENT_TOLERANCES_S[i] == current) {
+                checked = i;
+            }
+        }
+        new AlertDialog.Builder(this)
+                .setTitle("Announcement placement")
+                .setSingleChoiceItems(labels, checked, (dialog, which) -> {
+                    getSharedPreferences(PREFS_SETTINGS, MODE_PRIVATE).edit()
+                            .putInt(KEY_PLACEMENT_TOLERANCE_S, PLACEMENT_TOLERANCES_S[which]).apply();
+                    audioMixer.setPlacementTolerance(PLACEMENT_TOLERANCES_S[which]);
+                    dialog.dismiss();
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+    
+    /**
+     * Ask for a name to search the library for
+     */
+    private void showLibrarySearchDialog() {
+        if (currentPlaylist == null) {
+            Toast.makeText(this, "Select a playlist first", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle("Add from Library");
+        
+        final EditText input = new EditText(this);
+        input.setInputType(InputType.TYPE_CLASS_TEXT);
+        input.setHint("Name starts with (empty for all)");
+        builder.setView(input);
+        
+        builder.setPositiveButton("Search", (dialog, which) -> searchLibrary(input.getText().toString().trim()));
+        builder.setNegativeButton("Cancel", null);
+        builder.show();
+    }
+    
+    /**
+     * Look up library assets in the background and offer the playable ones
+     */
+    private void searchLibrary(String prefix) {
+        final Playlist playlist = currentPlaylist;
+        new Thread(() -> {
+            List<MediaLibrary.Asset> playable = findPlayableAssets(prefix);
+            mainHandler.post(() -> showLibraryResults(playlist, playable));
+        }).start();
+    }
+    
+    /**
+     * Library assets that can be played right away. Blocks - call it off the main thread.
+     */
+    private List<MediaLibrary.Asset> findPlayableAssets(String prefix) {
+        List<MediaLibrary.Asset> playable = new ArrayList<>();
+        for (MediaLibrary.Asset asset : playlistManager.getLibrary().search(prefix, LIBRARY_RESULT_LIMIT)) {
+            // Skip caches still being written and decoded caches not at the engine rate yet
+            // (evicted ones are fine - they are restored when added)
+            boolean decoded = AudioStream.isPCMCache(asset.cacheFile) || AudioStream.isAdpcmCache(asset.cacheFile);
+            boolean available = asset.cacheFile.exists() || playlistManager.getMediaCache().isEvicted(asset.cacheFile);
+            if (available && DecodeProgress.get(asset.cacheFile) == null &&
+                    (!decoded || MediaCache.getSampleRate(asset.cacheFile) == EngineFormat.getSampleRate())) {
+                playable.add(asset);
+            }
+        }
+        return playable;
+    }
+    
+    /**
+     * List library search results; picking one adds it to the playlist without decoding anything
+     */
+    private void showLibraryResults(Playlist playlist, List<MediaLibrary.Asset> assets) {
+        if (playlist != currentPlaylist) {
+            return;
+        }
+        if (assets.isEmpty()) {
+            Toast.makeText(this, "No matching library items", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        String[] names = new String[assets.size()];
+        for (int i = 0; i < assets.size(); i++) {
+            names[i] = assets.get(i).name + " (" + formatTime(assets.get(i).durationMs) + ")";
+        }
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle("Library");
+        builder.setItems(names, (dialog, which) -> {
+            MediaLibrary.Asset asset = assets.get(which);
+            String[] kinds = {"Add as Track", "Add as Announcement"};
+            new AlertDialog.Builder(this)
+                    .setTitle(asset.name)
+                    .setItems(kinds, (d, kind) -> addLibraryAsset(asset, kind == 0))
+                    .show();
+        });
+        builder.show();
+    }
+    
+    /**
+     * Add a cataloged asset to the current playlist (it is already stored, so this is instant)
+     */
+    private void addLibraryAsset(MediaLibrary.Asset asset, boolean isMainTrack) {
+        if (currentPlaylist == null) {
+            return;
+        }
+        long sampleCount = asset.getEngineSampleCount();
+        File file = playlistManager.ensureAvailable(asset.cacheFile);
+        if (isMainTrack) {
+            currentPlaylist.addTrack(new AudioMixer.TrackData(asset.name, file, sampleCount));
+        } else {
+            currentPlaylist.addAnnouncement(new AudioMixer.AnnouncementData(asset.name, file, sampleCount));
+        }
+        playlistManager.savePlaylist(currentPlaylist);
+        audioMixer.loadPlaylist(currentPlaylist);
+        updateUI();
+        updateStatus((isMainTrack ? "Track added: " : "Announcement added: ") + asset.name);
+    }
+    
+    /**
+     * List the schedule; tapping an entry offers to remove it
+     */
+    private void showScheduleDialog() {
+        final List<Schedule.Entry> entries = schedule.getEntries();
+        String[] labels = new String[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            Schedule.Entry entry = entries.get(i);
+            if (entry instanceof Schedule.Daypart) {
+                PlaylistSummary summary = playlistManager.getSummaryById(((Schedule.Daypart) entry).playlistId);
+                labels[i] = entry.describeWhen() + " - " + ((summary != null) ? summary.getName() : "(deleted playlist)");
+            } else {
+                labels[i] = entry.describeWhen() + " - Announce " + ((Schedule.Cue) entry).name;
+            }
+        }
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle("Schedule");
+        if (entries.isEmpty()) {
+            builder.setMessage("Nothing scheduled. Add a playlist to start at a time of day, or an announcement to play at a set time.");
+        } else {
+            builder.setItems(labels, (dialog, which) -> new AlertDialog.Builder(this)
+                    .setTitle("Remove from schedule?")
+                    .setMessage(labels[which])
+                    .setPositiveButton("Remove", (d, w) -> {
+                        schedule.remove(entries.get(which).id);
+                        saveSchedule();
+                    })
+                    .setNegativeButton("Cancel", null)
+                    .show());
+        }
+        builder.setPositiveButton("Add Playlist", (dialog, which) -> pickScheduledPlaylist());
+        builder.setNeutralButton("Add Announcement", (dialog, which) -> pickScheduledAnnouncement());
+        builder.setNegativeButton("Close", null);
+        builder.show();
+    }
+    
+    /**
+     * Pick the playlist for a new daypart, then when it starts
+     */
+    private void pickScheduledPlaylist() {
+        final List<PlaylistSummary> playlists = playlistManager.getPlaylistSummaries();
+        if (playlists.isEmpty()) {
+            Toast.makeText(this, "Create a playlist first", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        String[] names = new String[playlists.size()];
+        for (int i = 0; i < playlists.size(); i++) {
+            names[i] = playlists.get(i).getName();
+        }
+        new AlertDialog.Builder(this)
+                .setTitle("Playlist to start")
+                .setItems(names, (dialog, which) -> pickScheduleTime((days, date, secondOfDay) -> {
+                    schedule.add(new Schedule.Daypart(UUID.randomUUID().toString(), days, date, secondOfDay,
+                            playlists.get(which).getId()));
+                    saveSchedule();
+                }))
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+    
+    /**
+     * Pick a library clip for a new timed announcement, then when it plays
+     */
+    private void pickScheduledAnnouncement() {
+        new Thread(() -> {
+            List<MediaLibrary.Asset> playable = findPlayableAssets("");
+            mainHandler.post(() -> {
+                if (playable.isEmpty()) {
+                    Toast.makeText(this, "Import an announcement first", Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                String[] names = new String[playable.size()];
+                for (int i = 0; i < playable.size(); i++) {
+                    names[i] = playable.get(i).name + " (" + formatTime(playable.get(i).durationMs) + ")";
+                }
+                new AlertDialog.Builder(this)
+                        .setTitle("Announcement to play")
+                        .setItems(names, (dialog, which) -> {
+                            MediaLibrary.Asset asset = playable.get(which);
+                            pickScheduleTime((days, date, secondOfDay) -> {
+                                schedule.add(new Schedule.Cue(UUID.randomUUID().toString(), days, date, secondOfDay,
+                                        asset.name, asset.cacheFile.getName()));
+                                saveSchedule();
+                            });
+                        })
+                        .setNegativeButton("Cancel", null)
+                        .show();
+            });
+        }).start();
+    }
+    
+    /**
+     * Called with the time picked for a schedule entry
+     */
+    private interface ScheduleTimeCallback {
+        void onPicked(int days, LocalDate date, int secondOfDay);
+    }
+    
+    /**
+     * Ask when a schedule entry happens: weekly on chosen days, or once on a date; then the time
+     */
+    private void pickScheduleTime(ScheduleTimeCallback callback) {
+        String[] kinds = {"Weekly", "On one date"};
+        new AlertDialog.Builder(this)
+                .setTitle("Repeat")
+                .setItems(kinds, (dialog, which) -> {
+                    if (which == 0) {
+                        String[] dayNames = new String[7];
+                        final boolean[] checked = new boolean[7];
+                        for (int i = 0; i < 7; i++) {
+                            dayNames[i] = Schedule.describeDays(1 << i);
+                            checked[i] = true;
+                        }
+                        new AlertDialog.Builder(this)
+                                .setTitle("Days")
+                                .setMultiChoiceItems(dayNames, checked, (d, day, isChecked) -> checked[day] = isChecked)
+                                .setPositiveButton("Next", (d, w) -> {
+                                    int days = 0;
+                                    for (int i = 0; i < 7; i++) {
+                                        if (checked[i]) {
+                                            days |= 1 << i;
+                                        }
+                                    }
+                                    if (days != 0) {
+                                        pickScheduleClockTime(days, null, callback);
+                                    }
+                                })
+                                .setNegativeButton("Cancel", null)
+                                .show();
+                    } else {
+                        LocalDate today = LocalDate.now();
+                        new DatePickerDialog(this, (view, year, month, dayOfMonth) ->
+                                pickScheduleClockTime(0, LocalDate.of(year, month + 1, dayOfMonth), callback),
+                                today.getYear(), today.getMonthValue() - 1, today.getDayOfMonth()).show();
+                    }
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+    
+    private void pickScheduleClockTime(int days, LocalDate date, ScheduleTimeCallback callback) {
+        new TimePickerDialog(this, (view, hourOfDay, minute) ->
+                callback.onPicked(days, date, hourOfDay * 3600 + minute * 60), 9, 0, true).show();
+    }
+    
+    /**
+     * Save an edited schedule and plan its timers again
+     */
+    private void saveSchedule() {
+        schedule.save();
+        scheduler.reschedule();
+    }
+    
+    /**
+     * Mixer events arrive on the playback thread; saves are made on the main thread
+     */
+    private final AudioMixer.Listener mixerListener = new AudioMixer.Listener() {
+        @Override
+        public void onTimedAnnouncementStart(AudioMixer.AnnouncementData ann, long dueMs, long heardAtMs) {
+        }
+        
+        @Override
+        public void onLengthKnown(Playlist playlist, File file, long sampleCount) {
+            mainHandler.post(() -> playlistManager.updateLength(playlist, file, sampleCount));
+        }
+    };
+    
+    /**
+     * Schedule events arrive on the scheduler thread; playlist changes are made on the main thread
+     */
+    private final Scheduler.Listener scheduleListener = new Scheduler.Listener() {
+        @Override
+        public void onPrepareDaypart(Schedule.Daypart daypart, long startMs) {
+            Playlist playlist = playlistManager.prefetch(daypart.playlistId);
+            if (playlist != null) {
+                audioMixer.prewarm(playlist);
+                mainHandler.post(() -> preparedPlaylist = playlist);
+            }
+        }
+        
+        @Override
+        public void onDaypartStart(Schedule.Daypart daypart) {
+            mainHandler.post(() -> {
+                Playlist prepared = preparedPlaylist;
+                preparedPlaylist = null;
+                if (prepared != null && prepared.getId().equals(daypart.playlistId)) {
+                    switchToScheduledPlaylist(prepared);
+                } else {
+                    playlistManager.loadPlaylistAsync(daypart.playlistId, MainActivity.this::switchToScheduledPlaylist);
+                }
+            });
+        }
+        
+        @Override
+        public void onPrepareCue(Schedule.Cue cue, long startMs) {
+            MediaLibrary.Asset asset = playlistManager.getLibrary().getAsset(cue.dataFile);
+            if (asset == null) {
+                Log.w(TAG, "Scheduled announcement " + cue.name + " is no longer in the library");
+                return;
+            }
+            File file = playlistManager.ensureAvailable(asset.cacheFile);
+            audioMixer.scheduleAnnouncement(new AudioMixer.AnnouncementData(cue.name, file,
+                    asset.getEngineSampleCount()), startMs);
+        }
+    };
+    
+    /**
+     * Make a daypart's playlist the current one; playback carries on (or stays stopped) as it was
+     */
+    private void switchToScheduledPlaylist(Playlist playlist) {
+        if (isDestroyed() || playlist == null) {
+            return;
+        }
+        if (currentPlaylist != null && currentPlaylist.getId().equals(playlist.getId())) {
+            return;
+        }
+        Log.d(TAG, "Daypart: switching to " + playlist.getName());
+        if (isHomeScreen) {
+            currentPlaylist = playlist;
+            audioMixer.loadPlaylist(playlist);
+            playlistManager.setPlaylistInUse(playlist);
+        } else {
+            showPlaylist(playlist);
+        }
+    }
+    
     /**
      * Show dialog to create a new playlist
      */
@@ -663,6 +1150,80 @@ public class MainActivity extends AppCompatActivity {
         showCreatePlaylistDialog(false);
     }
     
+    /**
+     * Edit an announcement's rotation rules: sponsor, competitor group and separation, quota and spacing
+     */
+    private void showRotationRulesDialog(int position) {
+        if (currentPlaylist == null || position < 0 || position >= currentPlaylist.getAnnouncements().size()) {
+            return;
+        }
+        AudioMixer.AnnouncementData announcement = currentPlaylist.getAnnouncements().get(position);
+        
+        LinearLayout layout = new LinearLayout(this);
+        layout.setOrientation(LinearLayout.VERTICAL);
+        final EditText sponsorInput = new EditText(this);
+        sponsorInput.setInputType(InputType.TYPE_CLASS_TEXT);
+        sponsorInput.setHint("Sponsor (empty for none)");
+        sponsorInput.setText(announcement.sponsor);
+        layout.addView(sponsorInput);
+        final EditText groupInput = new EditText(this);
+        groupInput.setInputType(InputType.TYPE_CLASS_TEXT);
+        groupInput.setHint("Competitor group, e.g. cars (empty for none)");
+        groupInput.setText(announcement.competitorGroup);
+        layout.addView(groupInput);
+        final EditText separationInput = new EditText(this);
+        separationInput.setInputType(InputType.TYPE_CLASS_NUMBER);
+        separationInput.setHint("Minutes after a competitor's play");
+        separationInput.setText(announcement.competitorSeparationSeconds > 0 ?
+                String.valueOf(announcement.competitorSeparationSeconds / 60) : "");
+        layout.addView(separationInput);
+        final EditText quotaInput = new EditText(this);
+        quotaInput.setInputType(InputType.TYPE_CLASS_NUMBER);
+        quotaInput.setHint("Plays per hour (empty for no quota)");
+        quotaInput.setText(announcement.playsPerHour > 0 ? String.valueOf(announcement.playsPerHour) : "");
+        layout.addView(quotaInput);
+        final EditText spacingInput = new EditText(this);
+        spacingInput.setInputType(InputType.TYPE_CLASS_NUMBER);
+        spacingInput.setHint("Minutes between this sponsor's plays");
+        spacingInput.setText(announcement.minSpacingSeconds > 0 ? String.valueOf(announcement.minSpacingSeconds / 60) : "");
+        layout.addView(spacingInput);
+        
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle("Rotation: " + announcement.name);
+        builder.setView(layout);
+        builder.setPositiveButton("Save", (dialog, which) -> {
+            String sponsor = sponsorInput.getText().toString().trim();
+            String group = groupInput.getText().toString().trim();
+            String quota = quotaInput.getText().toString().trim();
+            String spacing = spacingInput.getText().toString().trim();
+            String separation = separationInput.getText().toString().trim();
+            try {
+                announcement.playsPerHour = quota.isEmpty() ? 0 : Integer.parseInt(quota);
+                announcement.minSpacingSeconds = spacing.isEmpty() ? 0 : Integer.parseInt(spacing) * 60;
+                announcement.competitorSeparationSeconds = separation.isEmpty() ? 0 : Integer.parseInt(separation) * 60;
+            } catch (NumberFormatException e) {
+                Toast.makeText(this, "Numbers out of range", Toast.LENGTH_SHORT).show();
+                return;
+            }
+            announcement.sponsor = sponsor.isEmpty() ? null : sponsor;
+            announcement.competitorGroup = group.isEmpty() ? null : group;
+            playlistManager.savePlaylist(currentPlaylist);
+            updateAnnouncementList();
+            
+            // The mixer works on its own copies - reload them with the new rules
+            boolean wasPlaying = audioMixer.isPlaying();
+            if (wasPlaying) {
+                audioMixer.stop();
+            }
+            audioMixer.loadPlaylist(currentPlaylist);
+            if (wasPlaying) {
+                audioMixer.play();
+            }
+        });
+        builder.setNegativeButton("Cancel", null);
+        builder.show();
+    }
+    
     /**
      * Show dialog to create a new playlist, optionally pick file after
      */
@@ -683,10 +1244,11 @@ public class MainActivity extends AppCompatActivity {
                     // If on home screen, update it
                     updateHomeScreen();
                     // Then show playlist detail
-                    showPlaylistDetail(playlist);
-                } else {
-                    selectPlaylist(playlist);
+                    showDetailScreen();
                 }
+                // Nothing to read for a new playlist - open it directly
+                selectingPlaylistId = null;
+                showPlaylist(playlist);
                 Toast.makeText(this, "Playlist created: " + name, Toast.LENGTH_SHORT).show();
                 if (pickFileAfter) {
                     // Pick file after creating playlist
@@ -702,7 +1264,7 @@ public class MainActivity extends AppCompatActivity {
      * Show dialog to select a playlist for adding tracks/announcements
      */
     private void showPlaylistSelectionForAdd(boolean isTrack) {
-        List<Playlist> playlists = playlistManager.getAllPlaylists();
+        List<PlaylistSummary> playlists = playlistManager.getPlaylistSummaries();
         
         if (playlists.isEmpty()) {
             // Create new playlist first
@@ -730,10 +1292,10 @@ public class MainActivity extends AppCompatActivity {
                 // Create new playlist, then add file
                 showCreatePlaylistDialog(true);
             } else {
-                Playlist playlist = playlists.get(which - 1);
-                selectPlaylist(playlist);
+                PlaylistSummary playlist = playlists.get(which - 1);
                 // After selecting, pick the file
-                pickAudioFile(isTrack ? REQUEST_CODE_PICK_AUDIO : REQUEST_CODE_PICK_ANNOUNCEMENT);
+                selectPlaylist(playlist.getId(),
+                        () -> pickAudioFile(isTrack ? REQUEST_CODE_PICK_AUDIO : REQUEST_CODE_PICK_ANNOUNCEMENT));
             }
         });
         builder.show();
@@ -743,7 +1305,7 @@ public class MainActivity extends AppCompatActivity {
      * Show dialog to select a playlist
      */
     private void showPlaylistSelectionDialog(boolean forAdding) {
-        List<Playlist> playlists = playlistManager.getAllPlaylists();
+        List<PlaylistSummary> playlists = playlistManager.getPlaylistSummaries();
         
         if (playlists.isEmpty()) {
             showCreatePlaylistDialog();
@@ -762,8 +1324,8 @@ public class MainActivity extends AppCompatActivity {
             if (which == 0) {
                 showCreatePlaylistDialog();
             } else {
-                Playlist playlist = playlists.get(which - 1);
-                selectPlaylist(playlist);
+                PlaylistSummary playlist = playlists.get(which - 1);
+                selectPlaylist(playlist.getId());
             }
         });
         builder.show();
@@ -773,7 +1335,7 @@ public class MainActivity extends AppCompatActivity {
      * Show dialog to manage playlists (rename, delete)
      */
     private void showManagePlaylistsDialog() {
-        List<Playlist> playlists = playlistManager.getAllPlaylists();
+        List<PlaylistSummary> playlists = playlistManager.getPlaylistSummaries();
         
         if (playlists.isEmpty()) {
             Toast.makeText(this, "No playlists to manage", Toast.LENGTH_SHORT).show();
@@ -788,7 +1350,7 @@ public class MainActivity extends AppCompatActivity {
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         builder.setTitle("Manage Playlists");
         builder.setItems(names, (dialog, which) -> {
-            Playlist playlist = playlists.get(which);
+            PlaylistSummary playlist = playlists.get(which);
             showPlaylistActionsDialog(playlist);
         });
         builder.show();
@@ -797,14 +1359,14 @@ public class MainActivity extends AppCompatActivity {
     /**
      * Show actions for a specific playlist
      */
-    private void showPlaylistActionsDialog(Playlist playlist) {
+    private void showPlaylistActionsDialog(PlaylistSummary playlist) {
         String[] actions = {"Select", "Rename", "Delete"};
         
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         builder.setTitle("Playlist: " + playlist.getName());
         builder.setItems(actions, (dialog, which) -> {
             if (which == 0) {
-                selectPlaylist(playlist);
+                selectPlaylist(playlist.getId());
             } else if (which == 1) {
                 showRenamePlaylistDialog(playlist);
             } else if (which == 2) {
@@ -817,7 +1379,7 @@ public class MainActivity extends AppCompatActivity {
     /**
      * Show dialog to rename a playlist
      */
-    private void showRenamePlaylistDialog(Playlist playlist) {
+    private void showRenamePlaylistDialog(PlaylistSummary playlist) {
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         builder.setTitle("Rename Playlist");
         
@@ -830,7 +1392,10 @@ public class MainActivity extends AppCompatActivity {
             String name = input.getText().toString().trim();
             if (!name.isEmpty()) {
                 playlistManager.updatePlaylistName(playlist.getId(), name);
-                playlist.setName(name);
+                if (currentPlaylist != null && currentPlaylist.getId().equals(playlist.getId())) {
+                    // Keep the open copy in step, or its next save would restore the old name
+                    currentPlaylist.setName(name);
+                }
                 if (isHomeScreen) {
                     updateHomeScreen();
                 } else {
@@ -846,7 +1411,7 @@ public class MainActivity extends AppCompatActivity {
     /**
      * Show dialog to delete a playlist with confirmation
      */
-    private void showDeletePlaylistDialog(Playlist playlist) {
+    private void showDeletePlaylistDialog(PlaylistSummary playlist) {
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         builder.setTitle("Delete Playlist");
         builder.setMessage("Are you sure you want to delete \"" + playlist.getName() + "\"?\n\n" +
@@ -870,30 +1435,43 @@ public class MainActivity extends AppCompatActivity {
     }
     
     /**
-     * Load all playlists from storage
+     * Select a playlist: read it from storage in the background, then load it into the mixer
      */
-    private void loadAllPlaylists() {
-        List<Playlist> savedPlaylists = playlistManager.getAllPlaylists();
-        for (Playlist playlist : savedPlaylists) {
-            // Playlists are already loaded by PlaylistManager
-            Log.d(TAG, "Loaded playlist: " + playlist.getName() + 
-                  " (" + playlist.getTracks().size() + " tracks, " + 
-                  playlist.getAnnouncements().size() + " announcements)");
-        }
+    private void selectPlaylist(String playlistId) {
+        selectPlaylist(playlistId, null);
     }
     
     /**
-     * Select a playlist and load it into the mixer
+     * Select a playlist, running onSelected once it is loaded
      */
-    private void selectPlaylist(Playlist playlist) {
-        // Reload playlist from storage to ensure we have latest data
-        Playlist loadedPlaylist = playlistManager.loadPlaylist(playlist.getId());
-        if (loadedPlaylist != null) {
-            currentPlaylist = loadedPlaylist;
-        } else {
-            currentPlaylist = playlist;
-        }
+    private void selectPlaylist(final String playlistId, final Runnable onSelected) {
+        selectingPlaylistId = playlistId;
+        updateStatus("Loading playlist...");
+        playlistManager.loadPlaylistAsync(playlistId, loaded -> {
+            if (isDestroyed() || isHomeScreen || !playlistId.equals(selectingPlaylistId)) {
+                // Left the detail screen or picked another playlist meanwhile
+                return;
+            }
+            selectingPlaylistId = null;
+            if (loaded == null) {
+                updateStatus("Error loading playlist");
+                Toast.makeText(this, "Could not open playlist", Toast.LENGTH_SHORT).show();
+                return;
+            }
+            showPlaylist(loaded);
+            if (onSelected != null) {
+                onSelected.run();
+            }
+        });
+    }
+    
+    /**
+     * Make a loaded playlist the current one and load it into the mixer
+     */
+    private void showPlaylist(Playlist playlist) {
+        currentPlaylist = playlist;
         audioMixer.loadPlaylist(currentPlaylist);
+        playlistManager.setPlaylistInUse(currentPlaylist);
         
         // Set default interval to 0
         seekAnnouncementInterval.setProgress(0);
@@ -943,19 +1521,154 @@ public class MainActivity extends AppCompatActivity {
      * Open file picker to select an audio file (supports multiple selection)
      */
     private void pickAudioFile(int requestCode) {
-        Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+        // OPEN_DOCUMENT (not GET_CONTENT) grants persistable access, so imports that read the
+        // document in place can resume after a restart
+        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
         intent.setType("audio/*");
         intent.addCategory(Intent.CATEGORY_OPENABLE);
         intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
-        
-        Intent chooser = Intent.createChooser(intent, getString(R.string.select_audio_file));
-        startActivityForResult(chooser, requestCode);
+        startActivityForResult(intent, requestCode);
+    }
+    
+    /**
+     * Ask where to save the current playlist as a bundle
+     */
+    private void pickBundleToExport() {
+        if (currentPlaylist == null) {
+            Toast.makeText(this, "Select a playlist first", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        exportingPlaylistId = currentPlaylist.getId();
+        Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+        intent.setType("application/octet-stream");
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.putExtra(Intent.EXTRA_TITLE, currentPlaylist.getName() + BUNDLE_EXTENSION);
+        startActivityForResult(intent, REQUEST_CODE_EXPORT_BUNDLE);
+    }
+    
+    /**
+     * Choose a day, then where to save its proof-of-play report
+     */
+    private void pickPlayReportDay() {
+        if (playLog == null) {
+            Toast.makeText(this, "Proof-of-play log unavailable", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        LocalDate today = LocalDate.now();
+        new DatePickerDialog(this, (view, year, month, dayOfMonth) -> {
+            reportingDay = LocalDate.of(year, month + 1, dayOfMonth);
+            Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+            intent.setType("text/csv");
+            intent.addCategory(Intent.CATEGORY_OPENABLE);
+            intent.putExtra(Intent.EXTRA_TITLE, "proof-of-play-" + reportingDay + ".csv");
+            startActivityForResult(intent, REQUEST_CODE_EXPORT_PLAY_REPORT);
+        }, today.getYear(), today.getMonthValue() - 1, today.getDayOfMonth()).show();
+    }
+    
+    /**
+     * Write a day's proof-of-play report in the background
+     */
+    private void exportPlayReport(LocalDate day, Uri uri) {
+        new Thread(() -> {
+            String message;
+            try (ParcelFileDescriptor fd = getContentResolver().openFileDescriptor(uri, "rwt");
+                 java.io.Writer out = new java.io.BufferedWriter(new java.io.OutputStreamWriter(
+                         new FileOutputStream(fd.getFileDescriptor()), java.nio.charset.StandardCharsets.UTF_8))) {
+                int events = playLog.exportDay(day, java.time.ZoneId.systemDefault(), out);
+                message = "Proof of play for " + day + " saved (" + events + " events)";
+            } catch (Exception e) {
+                Log.e(TAG, "Error exporting proof of play", e);
+                message = "Export failed: " + e.getMessage();
+            }
+            final String result = message;
+            mainHandler.post(() -> Toast.makeText(this, result, Toast.LENGTH_LONG).show());
+        }).start();
+    }
+    
+    /**
+     * Open file picker to select a playlist bundle
+     */
+    private void pickBundleToImport() {
+        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+        intent.setType("*/*");
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        startActivityForResult(intent, REQUEST_CODE_IMPORT_BUNDLE);
+    }
+    
+    /**
+     * Write a playlist bundle in the background. Media files are copied as stored, so this runs
+     * at disk speed.
+     */
+    private void exportBundle(String playlistId, Uri uri) {
+        Toast.makeText(this, "Exporting playlist...", Toast.LENGTH_SHORT).show();
+        new Thread(() -> {
+            String message;
+            try (ParcelFileDescriptor fd = getContentResolver().openFileDescriptor(uri, "rwt");
+                 FileOutputStream out = new FileOutputStream(fd.getFileDescriptor())) {
+                long bytes = playlistManager.exportPlaylist(playlistId, out.getChannel());
+                message = "Playlist exported (" + bytes / (1024 * 1024) + " MB)";
+            } catch (Exception e) {
+                Log.e(TAG, "Error exporting playlist", e);
+                message = "Export failed: " + e.getMessage();
+            }
+            final String result = message;
+            mainHandler.post(() -> Toast.makeText(this, result, Toast.LENGTH_LONG).show());
+        }).start();
+    }
+    
+    /**
+     * Add the playlist in a bundle in the background. Its media is verified and stored as-is,
+     * without decoding.
+     */
+    private void importBundle(Uri uri) {
+        Toast.makeText(this, "Importing playlist...", Toast.LENGTH_SHORT).show();
+        new Thread(() -> {
+            String message;
+            try (ParcelFileDescriptor fd = getContentResolver().openFileDescriptor(uri, "r")) {
+                if (fd == null || fd.getStatSize() < 0) {
+                    // Payloads are read by position, which a pipe can't do
+                    throw new java.io.IOException("Bundle must be on local storage");
+                }
+                try (java.io.FileInputStream in = new java.io.FileInputStream(fd.getFileDescriptor())) {
+                    PlaylistSummary summary = playlistManager.importPlaylist(in.getChannel());
+                    message = "Playlist imported: " + summary.getName();
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Error importing playlist", e);
+                message = "Import failed: " + e.getMessage();
+            }
+            final String result = message;
+            mainHandler.post(() -> {
+                Toast.makeText(this, result, Toast.LENGTH_LONG).show();
+                if (isHomeScreen && !isDestroyed()) {
+                    updateHomeScreen();
+                }
+            });
+        }).start();
     }
     
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
         
+        if (requestCode == REQUEST_CODE_EXPORT_PLAY_REPORT) {
+            if (resultCode == Activity.RESULT_OK && data != null && data.getData() != null && reportingDay != null) {
+                exportPlayReport(reportingDay, data.getData());
+            }
+            return;
+        }
+        
+        if (requestCode == REQUEST_CODE_EXPORT_BUNDLE || requestCode == REQUEST_CODE_IMPORT_BUNDLE) {
+            if (resultCode == Activity.RESULT_OK && data != null && data.getData() != null) {
+                if (requestCode == REQUEST_CODE_EXPORT_BUNDLE) {
+                    exportBundle(exportingPlaylistId, data.getData());
+                } else {
+                    importBundle(data.getData());
+                }
+            }
+            return;
+        }
+        
         if (resultCode == Activity.RESULT_OK && data != null) {
             if (currentPlaylist == null) {
                 Toast.makeText(this, "Please select a playlist first", Toast.LENGTH_SHORT).show();
@@ -1085,6 +1798,8 @@ public class MainActivity extends AppCompatActivity {
         
         new Thread(() -> {
             File tempFile = null;
+            ParcelFileDescriptor sourceFd = null;
+            ImportQueue.Job queuedJob = null;
             try {
                 // Extract original filename from URI
                 String fileName = getFileNameFromUri(uri);
@@ -1099,26 +1814,20 @@ public class MainActivity extends AppCompatActivity {
                     extension = fileName.substring(lastDot);
                 }
                 
-                // Create temp file with original extension
-                tempFile = File.createTempFile("audio_", extension, getCacheDir());
-                tempFile.deleteOnExit();
-                
-                InputStream inputStream = getContentResolver().openInputStream(uri);
-                if (inputStream == null) {
-                    throw new Exception("Could not open file stream");
+                // Hash, probe and decode straight from the provider's descriptor - no copy, no extra storage
+                sourceFd = getContentResolver().openFileDescriptor(uri, "r");
+                if (sourceFd == null) {
+                    throw new Exception("Could not open file");
                 }
-                
-                // Copy file and check size
-                FileOutputStream outputStream = new FileOutputStream(tempFile);
-                byte[] buffer = new byte[8192];
-                int bytesRead;
-                long fileSize = 0;
-                while ((bytesRead = inputStream.read(buffer)) != -1) {
-                    outputStream.write(buffer, 0, bytesRead);
-                    fileSize += bytesRead;
+                long fileSize = sourceFd.getStatSize();
+                if (fileSize < 0) {
+                    // Pipe or socket (e.g. a provider streaming from the network): the extractor needs to
+                    // seek, so copy it next to the import journal (where an interrupted decode can resume)
+                    tempFile = File.createTempFile("audio_", extension, importQueue.getDirectory());
+                    fileSize = copyToFile(sourceFd, tempFile);
+                    sourceFd = ParcelFileDescriptor.open(tempFile, ParcelFileDescriptor.MODE_READ_ONLY);
                 }
-                outputStream.close();
-                inputStream.close();
+                FileDescriptor source = sourceFd.getFileDescriptor();
                 
                 // Check file size - warn if very large (over 100MB), but allow up to 200MB
                 long fileSizeMB = fileSize / (1024 * 1024);
@@ -1143,30 +1852,73 @@ public class MainActivity extends AppCompatActivity {
                     }
                 });
                 
-                // Create PCM output file path
+                // Make sure the cache directory exists
                 File playlistDir = new File(getFilesDir(), "playlists");
                 if (!playlistDir.exists()) {
                     playlistDir.mkdirs();
                 }
                 
-                // Generate unique filename for PCM data
-                String pcmFileName;
-                if (isMainTrack) {
-                    int trackIndex = currentPlaylist.getTracks().size();
-                    pcmFileName = currentPlaylist.getId() + "_track_" + trackIndex + ".pcm";
-                } else {
-                    int annIndex = currentPlaylist.getAnnouncements().size();
-                    pcmFileName = currentPlaylist.getId() + "_ann_" + annIndex + ".pcm";
-                }
-                File pcmOutputFile = new File(playlistDir, pcmFileName);
+                // Caches are named after the source contents, so a file imported into several
+                // playlists is decoded and stored only once
+                MediaCache mediaCache = playlistManager.getMediaCache();
+                String contentHash = MediaCache.hashFile(source);
+                MP3Decoder.DecodeResult probe = MP3Decoder.probeAudioFile(source);
+                // Announcements can use the compact ADPCM cache (about 4x smaller than raw PCM)
+                String cacheExtension = (!isMainTrack && compactAnnouncements) ? ".adpcm" : ".pcm";
+                boolean playCompressed = decodeOnTheFly && MP3Decoder.isCompressedMimeType(probe.mimeType);
+                // Compressed sources played on the fly are stored as-is under their own extension;
+                // decoded caches are tagged with the rate they are written at
+                File cacheFile = playCompressed
+                        ? mediaCache.getCacheFile(contentHash, extension)
+                        : mediaCache.getCacheFile(contentHash, cacheExtension, EngineFormat.getSampleRate());
                 
-                // Decode audio file and save PCM to disk
                 AudioMixer.TrackData track;
-                try {
-                    track = audioMixer.loadAudioFile(tempFile, pcmOutputFile, fileName);
-                } catch (OutOfMemoryError e) {
-                    Log.e(TAG, "Out of memory while decoding file", e);
-                    throw new Exception("File is too large to load. Please use a smaller file or split it into smaller parts.");
+                long cachedSampleCount = mediaCache.getSampleCount(cacheFile);
+                if (cachedSampleCount >= 0) {
+                    // Already imported (by this or another playlist) - reuse it without decoding
+                    Log.d(TAG, "Reusing cached media for " + fileName + ": " + cacheFile.getName());
+                    track = new AudioMixer.TrackData(fileName, cacheFile, cachedSampleCount);
+                } else if (DecodeProgress.get(cacheFile) != null) {
+                    // Same file is being imported right now - share its cache instead of decoding twice
+                    track = new AudioMixer.TrackData(fileName, cacheFile, DecodeProgress.get(cacheFile).getTotalFrames());
+                } else if (playCompressed) {
+                    // Keep the compressed file and decode it during playback (no PCM cache)
+                    if (tempFile != null) {
+                        moveFile(tempFile, cacheFile);
+                    } else {
+                        copyToFile(getContentResolver().openFileDescriptor(uri, "r"), cacheFile);
+                    }
+                    track = audioMixer.loadCompressedFile(cacheFile, fileName);
+                    mediaCache.register(cacheFile, track.sampleCount);
+                } else {
+                    // Decode through the import queue: journaled, cancellable and resumable
+                    long estimatedSamples = probe.sampleCount;
+                    if (tempFile == null) {
+                        // The job reads the URI itself; keep access so it can resume after a restart
+                        try {
+                            getContentResolver().takePersistableUriPermission(uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+                        } catch (SecurityException e) {
+                            Log.w(TAG, "No persistable permission for " + fileName + ", an interrupted import cannot resume");
+                        }
+                    }
+                    // Keep a compressed source next to its PCM cache, so the cache can be evicted
+                    // under the storage limit and decoded again later
+                    File retainedSource = (MP3Decoder.isCompressedMimeType(probe.mimeType) && AudioStream.isPCMCache(cacheFile))
+                            ? mediaCache.getCacheFile(contentHash, extension)
+                            : null;
+                    queuedJob = importQueue.add(uri.toString(), tempFile, fileName, currentPlaylist.getId(),
+                            isMainTrack, cacheFile, retainedSource, estimatedSamples);
+                    tempFile = null; // Owned by the job now (if there is a copy)
+                    
+                    if (!isMainTrack || !AudioStream.isPCMCache(cacheFile)) {
+                        // Announcements are added once decoded
+                        showImportProgress(queuedJob);
+                        importQueue.start(queuedJob);
+                        return;
+                    }
+                    // Progressive import: add the track now with the length from container metadata;
+                    // playback reads up to the decoder's watermark
+                    track = new AudioMixer.TrackData(fileName, cacheFile, estimatedSamples);
                 }
                 
                 // Add to playlist
@@ -1207,12 +1959,14 @@ public class MainActivity extends AppCompatActivity {
                     });
                 }
                 
-                // Save playlist after adding track/announcement
-                playlistManager.savePlaylist(currentPlaylist);
-                
                 // Reload playlist to mixer
                 audioMixer.loadPlaylist(currentPlaylist);
                 
+                if (queuedJob != null) {
+                    showImportProgress(queuedJob);
+                    importQueue.start(queuedJob);
+                }
+                
             } catch (OutOfMemoryError e) {
                 Log.e(TAG, "Out of memory error", e);
                 mainHandler.post(() -> {
@@ -1250,6 +2004,13 @@ public class MainActivity extends AppCompatActivity {
                             Toast.LENGTH_LONG).show();
                 });
             } finally {
+                if (sourceFd != null) {
+                    try {
+                        sourceFd.close();
+                    } catch (Exception e) {
+                        Log.w(TAG, "Could not close source", e);
+                    }
+                }
                 // Clean up temp file
                 if (tempFile != null && tempFile.exists()) {
                     try {
@@ -1258,16 +2019,211 @@ public class MainActivity extends AppCompatActivity {
                         Log.w(TAG, "Could not delete temp file", e);
                     }
                 }
-                // Ensure progress dialog is dismissed
-                mainHandler.post(() -> {
-                    if (loadingProgressDialog != null && loadingProgressDialog.isShowing()) {
-                        loadingProgressDialog.dismiss();
-                    }
-                });
+                // Ensure progress dialog is dismissed (unless it now shows the queued decode)
+                if (queuedJob == null) {
+                    mainHandler.post(() -> {
+                        if (loadingProgressDialog != null && loadingProgressDialog.isShowing()) {
+                            loadingProgressDialog.dismiss();
+                        }
+                    });
+                }
             }
         }).start();
     }
     
+    /**
+     * Show determinate progress for a queued decode, with Cancel (and Hide for tracks that are
+     * already in the playlist and keep decoding in the background)
+     */
+    private void showImportProgress(ImportQueue.Job job) {
+        mainHandler.post(() -> {
+            if (loadingProgressDialog != null && loadingProgressDialog.isShowing()) {
+                loadingProgressDialog.dismiss();
+            }
+            loadingProgressDialog = new ProgressDialog(this);
+            loadingProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+            loadingProgressDialog.setMessage("Decoding " + job.getDisplayName() + "...");
+            loadingProgressDialog.setIndeterminate(false);
+            loadingProgressDialog.setMax((int) Math.max(1, EngineFormat.framesToMs(job.getEstimatedFrames()) / 1000));
+            loadingProgressDialog.setProgressNumberFormat("%1d / %2d s");
+            loadingProgressDialog.setCancelable(false);
+            loadingProgressDialog.setButton(DialogInterface.BUTTON_NEGATIVE, "Cancel",
+                    (dialog, which) -> importQueue.cancel(job));
+            if (job.isMainTrack()) {
+                loadingProgressDialog.setButton(DialogInterface.BUTTON_POSITIVE, "Hide",
+                        (dialog, which) -> dialog.dismiss());
+            }
+            loadingProgressDialog.show();
+            importDialogJob = job;
+        });
+    }
+    
+    /**
+     * Restart imports that were interrupted last time the app ran
+     */
+    private void resumePendingImports() {
+        List<ImportQueue.Job> pending = importQueue.getPendingJobs();
+        for (ImportQueue.Job job : pending) {
+            importQueue.start(job);
+        }
+        if (!pending.isEmpty()) {
+            updateStatus("Resuming " + pending.size() + " interrupted import(s)...");
+        }
+    }
+    
+    /**
+     * Find the playlist an import belongs to (it may not be the one currently open)
+     */
+    private Playlist findPlaylistForImport(ImportQueue.Job job) {
+        Playlist playlist = currentPlaylist;
+        if (playlist != null && playlist.getId().equals(job.getPlaylistId())) {
+            return playlist;
+        }
+        return playlistManager.loadPlaylist(job.getPlaylistId());
+    }
+    
+    /**
+     * Handles progress and completion of queued decodes (called on the import thread)
+     */
+    private final ImportQueue.Listener importListener = new ImportQueue.Listener() {
+        @Override
+        public void onProgress(ImportQueue.Job job, long framesWritten) {
+            mainHandler.post(() -> {
+                if (job == importDialogJob && loadingProgressDialog != null && loadingProgressDialog.isShowing()) {
+                    loadingProgressDialog.setProgress((int) (EngineFormat.framesToMs(framesWritten) / 1000));
+                } else {
+                    long percent = framesWritten * 100 / Math.max(1, job.getEstimatedFrames());
+                    updateStatus("Decoding " + job.getDisplayName() + ": " + Math.min(percent, 99) + "%");
+                }
+            });
+        }
+        
+        @Override
+        public void onFinished(ImportQueue.Job job, MP3Decoder.DecodeResult result) {
+            Playlist playlist = findPlaylistForImport(job);
+            if (playlist == null) {
+                // Playlist was deleted meanwhile; the unreferenced cache is swept later
+                Log.w(TAG, "Import finished for a deleted playlist: " + job.getDisplayName());
+                return;
+            }
+            playlistManager.getMediaCache().register(job.getCacheFile(), result.sampleCount, job.getRetainedSource());
+            
+            // A progressive track is already in the playlist - replace its estimated length
+            boolean found = false;
+            if (job.isMainTrack()) {
+                for (AudioMixer.TrackData track : playlist.getTracks()) {
+                    if (track.pcmFile.equals(job.getCacheFile())) {
+                        track.sampleCount = result.sampleCount;
+                        found = true;
+                    }
+                }
+            }
+            if (!found) {
+                if (job.isMainTrack()) {
+                    playlist.addTrack(new AudioMixer.TrackData(job.getDisplayName(), job.getCacheFile(), result.sampleCount));
+                } else {
+                    playlist.addAnnouncement(new AudioMixer.AnnouncementData(job.getDisplayName(), job.getCacheFile(), result.sampleCount));
+                }
+            }
+            playlistManager.savePlaylist(playlist);
+            if (!found && playlist == currentPlaylist) {
+                audioMixer.loadPlaylist(playlist);
+            }
+            Log.d(TAG, "Import finished: " + job.getDisplayName() + " (" + result.sampleCount + " samples)");
+            playlistManager.trimStorage();
+            
+            mainHandler.post(() -> {
+                if (job == importDialogJob && loadingProgressDialog != null && loadingProgressDialog.isShowing()) {
+                    loadingProgressDialog.dismiss();
+                }
+                updateStatus((job.isMainTrack() ? "Track ready: " : "Announcement added: ") + job.getDisplayName());
+                updateUI();
+                if (isHomeScreen) {
+                    updateHomeScreen();
+                }
+            });
+        }
+        
+        @Override
+        public void onFailed(ImportQueue.Job job, Exception error) {
+            // Take a half-written progressive track back out of its playlist
+            Playlist playlist = findPlaylistForImport(job);
+            if (playlist != null && job.isMainTrack()) {
+                boolean removed = false;
+                for (AudioMixer.TrackData track : new ArrayList<>(playlist.getTracks())) {
+                    if (track.pcmFile.equals(job.getCacheFile())) {
+                        playlist.removeTrack(track);
+                        removed = true;
+                    }
+                }
+                if (removed) {
+                    playlistManager.savePlaylist(playlist);
+                    if (playlist == currentPlaylist) {
+                        audioMixer.loadPlaylist(playlist);
+                    }
+                }
+            }
+            
+            mainHandler.post(() -> {
+                if (job == importDialogJob && loadingProgressDialog != null && loadingProgressDialog.isShowing()) {
+                    loadingProgressDialog.dismiss();
+                }
+                updateUI();
+                if (job.isCancelled()) {
+                    updateStatus("Import cancelled: " + job.getDisplayName());
+                } else {
+                    updateStatus("Error loading file");
+                    Toast.makeText(MainActivity.this, "Error loading " + job.getDisplayName() + ": " +
+                            error.getMessage(), Toast.LENGTH_LONG).show();
+                }
+            });
+        }
+    };
+    
+    /**
+     * Copy everything readable from a descriptor into a file, for sources that cannot be read in
+     * place. Uses large channel transfers rather than a small buffer loop. Closes the descriptor.
+     * @return Bytes copied
+     */
+    private static long copyToFile(ParcelFileDescriptor source, File target) throws java.io.IOException {
+        if (source == null) {
+            throw new java.io.IOException("Could not open source");
+        }
+        // A generic channel, not a FileChannel: the source may be a pipe, which has no size or position
+        try (ReadableByteChannel in = Channels.newChannel(new ParcelFileDescriptor.AutoCloseInputStream(source));
+             FileOutputStream out = new FileOutputStream(target)) {
+            FileChannel channel = out.getChannel();
+            long position = 0;
+            long transferred;
+            while ((transferred = channel.transferFrom(in, position, COPY_TRANSFER_BYTES)) > 0) {
+                position += transferred;
+            }
+            return position;
+        }
+    }
+    
+    /**
+     * Move a file into app storage, falling back to a copy when rename is not possible
+     */
+    private void moveFile(File from, File to) throws java.io.IOException {
+        if (from.renameTo(to)) {
+            return;
+        }
+        java.io.FileInputStream in = new java.io.FileInputStream(from);
+        FileOutputStream out = new FileOutputStream(to);
+        try {
+            byte[] buffer = new byte[65536];
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                out.write(buffer, 0, bytesRead);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+        from.delete();
+    }
+    
     /**
      * Extract filename from URI
      */
@@ -1415,11 +2371,36 @@ public class MainActivity extends AppCompatActivity {
         // Toast.makeText(this, status, Toast.LENGTH_SHORT).show();
     }
     
+    @Override
+    protected void onStop() {
+        super.onStop();
+        // Saves are written in the background; make sure none is lost if the process is killed
+        if (playlistManager != null) {
+            playlistManager.flush();
+        }
+    }
+    
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // In-memory announcement clips are the largest thing we can give back
+        ClipCache.onTrimMemory(level);
+    }
+    
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (scheduler != null) {
+            scheduler.stop();
+        }
         if (audioMixer != null) {
             audioMixer.release();
         }
+        // After the mixer, so the items it cut off are logged
+        if (playLog != null) {
+            playLog.close();
+        }
+        // Release warm decoders kept for bulk imports
+        DecoderPool.clear();
     }
 }
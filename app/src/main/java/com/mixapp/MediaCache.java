@@ -0,0 +1,571 @@
+package com.mixapp;
+
+import android.util.Log;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Content-addressed store for decoded caches (and compressed sources played on the fly).
+ * Files are named after a hash of the imported source, so importing the same file into many
+ * playlists decodes and stores it once. Each cache file records which playlists reference it;
+ * a file is deleted when its last playlist lets go of it.
+ * A decoded cache may keep its compressed source in the store; such caches can be evicted under
+ * a storage budget (least recently used first) and decoded again from the source when needed.
+ * The index is read on first use (or by load() in the background), never by the constructor:
+ * it lists every playlist of every cache, and startup must not wait for it.
+ */
+public class MediaCache {
+    private static final String TAG = "MediaCache";
+    static final String FILE_PREFIX = "media_";
+    private static final String INDEX_FILE = "media_index.json";
+    // Hex characters in a SHA-256 content hash
+    private static final int HASH_LENGTH = 64;
+    // Unreferenced files younger than this may belong to an import that is still running
+    private static final long ORPHAN_GRACE_MS = 10 * 60 * 1000;
+    
+    /**
+     * Bookkeeping for one cache file
+     */
+    private static class Entry {
+        long sampleCount;
+        long registeredAt;
+        long lastUsedAt;
+        String source; // Kept compressed source this cache can be decoded again from (or null)
+        Set<String> playlistIds = new HashSet<>();
+    }
+    
+    private final File directory;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private boolean indexLoaded = false;
+    private boolean usageUnsaved = false; // Use times changed since the index was last written
+    private MediaLibrary library;
+    
+    public MediaCache(File directory) {
+        this.directory = directory;
+    }
+    
+    /**
+     * Read the index now, so the first lookup does not have to. Blocks - call it off the main thread.
+     */
+    public synchronized void load() {
+        ensureLoaded();
+    }
+    
+    /**
+     * Keep a library catalog in step with deleted files
+     */
+    public void setLibrary(MediaLibrary library) {
+        this.library = library;
+    }
+    
+    /**
+     * Hash a file's contents (SHA-256, hex)
+     */
+    public static String hashFile(File file) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            return hash(fis.getChannel());
+        } finally {
+            fis.close();
+        }
+    }
+    
+    /**
+     * Hash the contents behind an open descriptor (SHA-256, hex). Uses positional reads,
+     * so the descriptor's offset is untouched and it can be handed to a decoder afterwards.
+     * The descriptor is not closed.
+     */
+    public static String hashFile(FileDescriptor fd) throws IOException {
+        return hash(new FileInputStream(fd).getChannel());
+    }
+    
+    private static String hash(FileChannel channel) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 not available", e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+        long position = 0;
+        int bytesRead;
+        while ((bytesRead = channel.read(buffer, position)) != -1) {
+            position += bytesRead;
+            buffer.flip();
+            digest.update(buffer);
+            buffer.clear();
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b & 0xFF));
+        }
+        return hex.toString();
+    }
+    
+    /**
+     * Get the cache file for a content hash and storage format (".pcm", ".adpcm" or a source extension)
+     */
+    public File getCacheFile(String contentHash, String extension) {
+        return new File(directory, FILE_PREFIX + contentHash + extension);
+    }
+    
+    /**
+     * Get the cache file for a content hash decoded at a given sample rate. The rate is part of
+     * the name, so a cache is never played at a rate it was not written for.
+     */
+    public File getCacheFile(String contentHash, String extension, int sampleRate) {
+        return new File(directory, FILE_PREFIX + contentHash + "_" + sampleRate + extension);
+    }
+    
+    /**
+     * The same decoded cache at another sample rate
+     */
+    public File getRateVariant(File cacheFile, int sampleRate) {
+        String name = cacheFile.getName();
+        return getCacheFile(getContentHash(name), name.substring(name.lastIndexOf('.')), sampleRate);
+    }
+    
+    /**
+     * Content hash a cache file is named after
+     */
+    public static String getContentHash(String cacheFileName) {
+        return cacheFileName.substring(FILE_PREFIX.length(), FILE_PREFIX.length() + HASH_LENGTH);
+    }
+    
+    /**
+     * Sample rate a decoded cache was written at, from its name. Caches named before rates
+     * were tagged are at the old fixed rate.
+     */
+    public static int getSampleRate(File cacheFile) {
+        String name = cacheFile.getName();
+        int dot = name.lastIndexOf('.');
+        int start = FILE_PREFIX.length() + HASH_LENGTH;
+        if (name.startsWith(FILE_PREFIX) && dot > start + 1 && name.charAt(start) == '_') {
+            try {
+                return Integer.parseInt(name.substring(start + 1, dot));
+            } catch (NumberFormatException e) {
+                // Not a rate tag
+            }
+        }
+        return EngineFormat.DEFAULT_SAMPLE_RATE;
+    }
+    
+    /**
+     * Check whether a file name belongs to the content-addressed store
+     */
+    public static boolean isCacheFileName(String fileName) {
+        return fileName.startsWith(FILE_PREFIX) && !fileName.startsWith(INDEX_FILE);
+    }
+    
+    /**
+     * Get the sample count recorded for a complete cache file
+     * @return The sample count, or -1 if the file is not a complete, registered cache
+     */
+    public synchronized long getSampleCount(File cacheFile) {
+        ensureLoaded();
+        Entry entry = entries.get(cacheFile.getName());
+        if (entry == null || !cacheFile.exists()) {
+            return -1;
+        }
+        return entry.sampleCount;
+    }
+    
+    /**
+     * Record that a cache file is complete. Until a playlist references it, the orphan sweep
+     * leaves it alone for a grace period.
+     */
+    public synchronized void register(File cacheFile, long sampleCount) {
+        register(cacheFile, sampleCount, null);
+    }
+    
+    /**
+     * Record that a cache file is complete, together with the kept source it was decoded from
+     * @param source Compressed source in this store, or null if there is none
+     */
+    public synchronized void register(File cacheFile, long sampleCount, File source) {
+        ensureLoaded();
+        Entry entry = entries.get(cacheFile.getName());
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(cacheFile.getName(), entry);
+        }
+        entry.sampleCount = sampleCount;
+        entry.registeredAt = System.currentTimeMillis();
+        if (source != null) {
+            entry.source = source.getName();
+        }
+        saveIndex();
+    }
+    
+    /**
+     * Get the recorded length of a cache, whether or not its file is currently on disk
+     * @return The sample count, or -1 if the cache is not registered
+     */
+    public synchronized long getRecordedSampleCount(File cacheFile) {
+        ensureLoaded();
+        Entry entry = entries.get(cacheFile.getName());
+        return (entry != null) ? entry.sampleCount : -1;
+    }
+    
+    /**
+     * Get the kept source a cache can be decoded again from
+     * @return The source file, or null if there is none on disk
+     */
+    public synchronized File getSource(File cacheFile) {
+        ensureLoaded();
+        Entry entry = entries.get(cacheFile.getName());
+        if (entry == null || entry.source == null) {
+            return null;
+        }
+        File source = new File(directory, entry.source);
+        return source.exists() ? source : null;
+    }
+    
+    /**
+     * Check whether a cache was evicted and can be restored from its source
+     */
+    public synchronized boolean isEvicted(File cacheFile) {
+        ensureLoaded();
+        return entries.containsKey(cacheFile.getName()) && !cacheFile.exists() && getSource(cacheFile) != null;
+    }
+    
+    /**
+     * Mark caches as just used (eviction takes the least recently used first). The times are
+     * written with the next change to the index or by saveUsage(), not on every play: losing
+     * the last few in a crash only makes eviction a little less exact.
+     */
+    public synchronized void touch(Set<String> fileNames) {
+        ensureLoaded();
+        long now = System.currentTimeMillis();
+        for (String fileName : fileNames) {
+            Entry entry = entries.get(fileName);
+            if (entry != null) {
+                entry.lastUsedAt = now;
+                usageUnsaved = true;
+            }
+        }
+    }
+    
+    /**
+     * Write use times not saved yet (e.g. when the app goes to the background). Blocks on I/O.
+     */
+    public synchronized void saveUsage() {
+        if (usageUnsaved) {
+            saveIndex();
+        }
+    }
+    
+    /**
+     * Total size of everything in the store directory
+     */
+    public long getStorageBytes() {
+        File[] files = directory.listFiles();
+        long total = 0;
+        if (files != null) {
+            for (File file : files) {
+                total += file.length();
+            }
+        }
+        return total;
+    }
+    
+    /**
+     * Delete decoded caches that have a kept source, least recently used first, until the store
+     * fits the budget. Entries stay registered so the caches can be restored later.
+     * @param keepPlaylistIds Playlists whose caches must stay (playing or about to play)
+     * @return Number of caches evicted
+     */
+    public int evict(long budgetBytes, Set<String> keepPlaylistIds) {
+        long total = getStorageBytes();
+        if (total <= budgetBytes) {
+            return 0;
+        }
+        int evicted = 0;
+        synchronized (this) {
+            ensureLoaded();
+            List<Map.Entry<String, Entry>> candidates = new ArrayList<>();
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                File file = new File(directory, e.getKey());
+                if (AudioStream.isPCMCache(file) && file.exists() && getSource(file) != null &&
+                        DecodeProgress.get(file) == null && Collections.disjoint(e.getValue().playlistIds, keepPlaylistIds)) {
+                    candidates.add(e);
+                }
+            }
+            Collections.sort(candidates, (a, b) -> Long.compare(lastUsed(a.getValue()), lastUsed(b.getValue())));
+            for (Map.Entry<String, Entry> e : candidates) {
+                if (total <= budgetBytes) {
+                    break;
+                }
+                File file = new File(directory, e.getKey());
+                long length = file.length();
+                if (file.delete()) {
+                    total -= length;
+                    evicted++;
+                    Log.d(TAG, "Evicted " + e.getKey() + " (" + length / (1024 * 1024) + " MB)");
+                }
+            }
+        }
+        if (total > budgetBytes) {
+            Log.w(TAG, "Storage still over budget after eviction: " + total / (1024 * 1024) + " MB");
+        }
+        return evicted;
+    }
+    
+    private static long lastUsed(Entry entry) {
+        return Math.max(entry.lastUsedAt, entry.registeredAt);
+    }
+    
+    /**
+     * Check whether a file is needed: referenced by a playlist, or the kept source of a cache that is
+     */
+    private boolean isInUse(String fileName) {
+        Entry entry = entries.get(fileName);
+        if (entry != null && !entry.playlistIds.isEmpty()) {
+            return true;
+        }
+        for (Entry other : entries.values()) {
+            if (fileName.equals(other.source) && !other.playlistIds.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Replace the set of cache files a playlist references. Files no playlist references any more
+     * are deleted.
+     */
+    public synchronized void updateReferences(String playlistId, Set<String> fileNames) {
+        ensureLoaded();
+        boolean changed = false;
+        List<String> unreferenced = new ArrayList<>();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Set<String> ids = e.getValue().playlistIds;
+            boolean shouldReference = fileNames.contains(e.getKey());
+            if (shouldReference && ids.add(playlistId)) {
+                changed = true;
+            } else if (!shouldReference && ids.remove(playlistId)) {
+                changed = true;
+                if (ids.isEmpty()) {
+                    unreferenced.add(e.getKey());
+                }
+            }
+        }
+        for (String fileName : unreferenced) {
+            deleteCacheFile(fileName);
+        }
+        if (changed) {
+            saveIndex();
+        }
+    }
+    
+    /**
+     * Drop all references held by a playlist (when the playlist is deleted)
+     */
+    public void releasePlaylist(String playlistId) {
+        updateReferences(playlistId, new HashSet<String>());
+    }
+    
+    /**
+     * Delete cache files that no playlist references: unregistered leftovers of interrupted
+     * imports and registered files past their grace period. Safe to run on a background thread.
+     */
+    public void sweepOrphans() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        int deleted = 0;
+        synchronized (this) {
+            ensureLoaded();
+            // What isInUse() checks, for all files at once (it scans every entry per file)
+            Set<String> needed = new HashSet<>();
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                if (!e.getValue().playlistIds.isEmpty()) {
+                    needed.add(e.getKey());
+                    if (e.getValue().source != null) {
+                        needed.add(e.getValue().source);
+                    }
+                }
+            }
+            for (File file : files) {
+                String name = file.getName();
+                if (!isCacheFileName(name) || DecodeProgress.get(file) != null) {
+                    // Not ours, or still being written by an import
+                    continue;
+                }
+                Entry entry = entries.get(name);
+                long age = now - ((entry != null) ? entry.registeredAt : file.lastModified());
+                if (!needed.contains(name) && age > ORPHAN_GRACE_MS) {
+                    deleteCacheFile(name);
+                    deleted++;
+                }
+            }
+            // Forget entries whose files are gone (unless evicted and restorable)
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Entry> e = it.next();
+                String source = e.getValue().source;
+                if (!new File(directory, e.getKey()).exists() &&
+                        (source == null || !new File(directory, source).exists())) {
+                    it.remove();
+                }
+            }
+            saveIndex();
+        }
+        Log.d(TAG, "Orphan sweep removed " + deleted + " file(s)");
+    }
+    
+    /**
+     * Move a legacy per-playlist cache into the store, keyed by the hash of its contents.
+     * The legacy file is hard-linked rather than renamed, so streams or track objects that still
+     * use the old name keep working; the old name is removed by a later startup sweep once no
+     * playlist file mentions it.
+     * @return The cache file now holding the data, or null if migration was not possible
+     */
+    public File migrateLegacyFile(File legacyFile, long sampleCount) {
+        try {
+            String name = legacyFile.getName();
+            int dot = name.lastIndexOf('.');
+            String extension = (dot >= 0) ? name.substring(dot) : "";
+            File cacheFile = getCacheFile(hashFile(legacyFile), extension);
+            synchronized (this) {
+                ensureLoaded();
+                if (!cacheFile.exists()) {
+                    java.nio.file.Files.createLink(cacheFile.toPath(), legacyFile.toPath());
+                }
+                if (!entries.containsKey(cacheFile.getName())) {
+                    register(cacheFile, sampleCount);
+                }
+            }
+            return cacheFile;
+        } catch (IOException | UnsupportedOperationException e) {
+            Log.w(TAG, "Could not migrate " + legacyFile.getName(), e);
+            return null;
+        }
+    }
+    
+    private void deleteCacheFile(String fileName) {
+        File file = new File(directory, fileName);
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Could not delete " + fileName);
+        }
+        EnergyIndex.delete(file);
+        Entry entry = entries.remove(fileName);
+        if (library != null) {
+            library.removeAsset(fileName);
+        }
+        Log.d(TAG, "Deleted unreferenced cache: " + fileName);
+        // Its kept source goes too, unless something else still needs it
+        if (entry != null && entry.source != null && !isInUse(entry.source)) {
+            deleteCacheFile(entry.source);
+        }
+    }
+    
+    /**
+     * Read the index if it has not been read yet (caller holds the lock). Everything that reads
+     * or changes entries calls this first, so a save never replaces an index not yet read.
+     */
+    private void ensureLoaded() {
+        if (!indexLoaded) {
+            indexLoaded = true;
+            long startTime = System.nanoTime();
+            loadIndex();
+            Log.d(TAG, "Loaded media index of " + entries.size() + " files in " +
+                  (System.nanoTime() - startTime) / 1000000 + " ms");
+        }
+    }
+    
+    private void loadIndex() {
+        File indexFile = new File(directory, INDEX_FILE);
+        if (!indexFile.exists()) {
+            return;
+        }
+        try {
+            FileInputStream fis = new FileInputStream(indexFile);
+            byte[] buffer = new byte[(int) indexFile.length()];
+            int offset = 0;
+            while (offset < buffer.length) {
+                int read = fis.read(buffer, offset, buffer.length - offset);
+                if (read < 0) break;
+                offset += read;
+            }
+            fis.close();
+            
+            JSONObject json = new JSONObject(new String(buffer, 0, offset));
+            Iterator<String> keys = json.keys();
+            while (keys.hasNext()) {
+                String fileName = keys.next();
+                JSONObject entryJson = json.getJSONObject(fileName);
+                Entry entry = new Entry();
+                entry.sampleCount = entryJson.getLong("sampleCount");
+                entry.registeredAt = entryJson.optLong("registeredAt", 0);
+                entry.lastUsedAt = entryJson.optLong("lastUsed", 0);
+                entry.source = entryJson.has("source") ? entryJson.getString("source") : null;
+                JSONArray ids = entryJson.getJSONArray("playlists");
+                for (int i = 0; i < ids.length(); i++) {
+                    entry.playlistIds.add(ids.getString(i));
+                }
+                entries.put(fileName, entry);
+            }
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Error loading media index", e);
+        }
+    }
+    
+    private void saveIndex() {
+        usageUnsaved = false;
+        try {
+            JSONObject json = new JSONObject();
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                JSONObject entryJson = new JSONObject();
+                entryJson.put("sampleCount", e.getValue().sampleCount);
+                entryJson.put("registeredAt", e.getValue().registeredAt);
+                entryJson.put("lastUsed", e.getValue().lastUsedAt);
+                if (e.getValue().source != null) {
+                    entryJson.put("source", e.getValue().source);
+                }
+                JSONArray ids = new JSONArray();
+                for (String id : e.getValue().playlistIds) {
+                    ids.put(id);
+                }
+                entryJson.put("playlists", ids);
+                json.put(e.getKey(), entryJson);
+            }
+            
+            if (!directory.exists()) {
+                directory.mkdirs();
+            }
+            // Write to a temp file and rename so a crash never leaves a half-written index
+            File tempFile = new File(directory, INDEX_FILE + ".tmp");
+            FileOutputStream fos = new FileOutputStream(tempFile);
+            fos.write(json.toString().getBytes());
+            fos.getFD().sync();
+            fos.close();
+            if (!tempFile.renameTo(new File(directory, INDEX_FILE))) {
+                Log.e(TAG, "Could not replace media index");
+            }
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Error saving media index", e);
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package com.mixapp;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Catalog of every asset in the media store (one row per cache file) and of which playlists use
+ * it, in SQLite. Playlist files stay the source of truth for playlist contents; their items are
+ * mirrored here as ordered references whenever a playlist is written, so "which playlists use
+ * this jingle" and name search are index lookups instead of scans over every playlist file.
+ */
+public class MediaLibrary extends SQLiteOpenHelper {
+    private static final String TAG = "MediaLibrary";
+    private static final String DATABASE_NAME = "library.db";
+    private static final int DATABASE_VERSION = 1;
+    
+    public static final int KIND_TRACK = 0;
+    public static final int KIND_ANNOUNCEMENT = 1;
+    
+    /**
+     * One cataloged asset
+     */
+    public static class Asset {
+        public final long id;
+        public final String contentHash;
+        public final String name;
+        public final File cacheFile;
+        public final String format;      // "pcm", "adpcm" or the compressed source's extension
+        public final long sampleCount;   // At sampleRate
+        public final int sampleRate;
+        public final long durationMs;
+        public final double loudness;    // Integrated loudness in LUFS, NaN until analyzed
+        public final long cueInMs;       // -1 if not set
+        public final long cueOutMs;      // -1 if not set
+        
+        Asset(long id, String contentHash, String name, File cacheFile, String format, long sampleCount,
+              int sampleRate, long durationMs, double loudness, long cueInMs, long cueOutMs) {
+            this.id = id;
+            this.contentHash = contentHash;
+            this.name = name;
+            this.cacheFile = cacheFile;
+            this.format = format;
+            this.sampleCount = sampleCount;
+            this.sampleRate = sampleRate;
+            this.durationMs = durationMs;
+            this.loudness = loudness;
+            this.cueInMs = cueInMs;
+            this.cueOutMs = cueOutMs;
+        }
+        
+        /**
+         * Length in frames at the engine rate
+         */
+        public long getEngineSampleCount() {
+            return sampleCount * EngineFormat.getSampleRate() / sampleRate;
+        }
+    }
+    
+    private static final String ASSET_COLUMNS =
+            "id, content_hash, name, cache_file, format, sample_count, sample_rate, duration_ms, " +
+            "loudness, cue_in_ms, cue_out_ms";
+    // The lookups, each backed by an index (checked in MediaLibraryTest)
+    static final String SEARCH_SQL = "SELECT " + ASSET_COLUMNS + " FROM assets WHERE name LIKE ? ESCAPE '\\' " +
+            "ORDER BY name COLLATE NOCASE LIMIT ";
+    static final String ASSET_SQL = "SELECT " + ASSET_COLUMNS + " FROM assets WHERE cache_file = ?";
+    static final String HASH_SQL = "SELECT " + ASSET_COLUMNS + " FROM assets WHERE content_hash = ?";
+    static final String PLAYLISTS_USING_SQL = "SELECT DISTINCT i.playlist_id FROM playlist_items i " +
+            "JOIN assets a ON a.id = i.asset_id WHERE a.cache_file = ?";
+    
+    private final File directory;
+    
+    /**
+     * @param directory Where the cache files named in the catalog live
+     */
+    public MediaLibrary(Context context, File directory) {
+        this(context, directory, DATABASE_NAME);
+    }
+    
+    /**
+     * A catalog in another database (tests use their own, never the app's)
+     */
+    MediaLibrary(Context context, File directory, String databaseName) {
+        super(context, databaseName, null, DATABASE_VERSION);
+        this.directory = directory;
+        setWriteAheadLoggingEnabled(true);
+    }
+    
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        db.setForeignKeyConstraintsEnabled(true);
+    }
+    
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE assets (" +
+                "id INTEGER PRIMARY KEY, " +
+                "content_hash TEXT NOT NULL, " +
+                "name TEXT NOT NULL, " +
+                "cache_file TEXT NOT NULL UNIQUE, " +
+                "format TEXT NOT NULL, " +
+                "sample_count INTEGER NOT NULL, " +
+                "sample_rate INTEGER NOT NULL, " +
+                "duration_ms INTEGER NOT NULL, " +
+                "loudness REAL, " +
+                "cue_in_ms INTEGER, " +
+                "cue_out_ms INTEGER, " +
+                "added_at INTEGER NOT NULL)");
+        db.execSQL("CREATE TABLE playlist_items (" +
+                "playlist_id TEXT NOT NULL, " +
+                "kind INTEGER NOT NULL, " +
+                "position INTEGER NOT NULL, " +
+                "asset_id INTEGER NOT NULL REFERENCES assets(id) ON DELETE CASCADE, " +
+                "PRIMARY KEY (playlist_id, kind, position))");
+        // Prefix search on names (LIKE is case-insensitive, so the index must be too)
+        db.execSQL("CREATE INDEX assets_name ON assets (name COLLATE NOCASE)");
+        db.execSQL("CREATE INDEX assets_hash ON assets (content_hash)");
+        // Reverse lookup: playlists using an asset
+        db.execSQL("CREATE INDEX playlist_items_asset ON playlist_items (asset_id)");
+    }
+    
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Only version 1 so far
+    }
+    
+    /**
+     * Check whether nothing has been cataloged yet (first run with the library)
+     */
+    public boolean isEmpty() {
+        return DatabaseUtils.queryNumEntries(getReadableDatabase(), "assets") == 0;
+    }
+    
+    /**
+     * Catalog a cache file, or update its length if it is already known (the first name it was
+     * imported under is kept)
+     * @param sampleCount Length in frames at sampleRate
+     * @return The asset's row id
+     */
+    public long addAsset(String name, File cacheFile, long sampleCount, int sampleRate) {
+        return addAsset(getWritableDatabase(), name, cacheFile.getName(), sampleCount, sampleRate);
+    }
+    
+    private static long addAsset(SQLiteDatabase db, String name, String cacheName, long sampleCount, int sampleRate) {
+        ContentValues values = new ContentValues();
+        values.put("sample_count", sampleCount);
+        values.put("sample_rate", sampleRate);
+        values.put("duration_ms", sampleCount * 1000 / sampleRate);
+        if (db.update("assets", values, "cache_file = ?", new String[]{cacheName}) == 0) {
+            values.put("content_hash", MediaCache.getContentHash(cacheName));
+            values.put("name", name);
+            values.put("cache_file", cacheName);
+            values.put("format", cacheName.substring(cacheName.lastIndexOf('.') + 1));
+            values.put("added_at", System.currentTimeMillis());
+            return db.insert("assets", null, values);
+        }
+        try (Cursor cursor = db.rawQuery("SELECT id FROM assets WHERE cache_file = ?", new String[]{cacheName})) {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        }
+    }
+    
+    /**
+     * Drop an asset whose cache file was deleted (and its places in playlists)
+     */
+    public void removeAsset(String cacheName) {
+        getWritableDatabase().delete("assets", "cache_file = ?", new String[]{cacheName});
+    }
+    
+    /**
+     * Mirror a playlist file's items: replaces the playlist's references with the file's, in order,
+     * cataloging any asset not seen before
+     */
+    public void setPlaylistItems(String playlistId, JSONObject playlistJson) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete("playlist_items", "playlist_id = ?", new String[]{playlistId});
+            insertItems(db, playlistId, KIND_TRACK, playlistJson.getJSONArray("tracks"));
+            insertItems(db, playlistId, KIND_ANNOUNCEMENT, playlistJson.getJSONArray("announcements"));
+            db.setTransactionSuccessful();
+        } catch (JSONException e) {
+            Log.e(TAG, "Could not catalog playlist " + playlistId, e);
+        } finally {
+            db.endTransaction();
+        }
+    }
+    
+    private static void insertItems(SQLiteDatabase db, String playlistId, int kind, JSONArray items) throws JSONException {
+        for (int i = 0; i < items.length(); i++) {
+            JSONObject item = items.getJSONObject(i);
+            String dataFile = item.getString("dataFile");
+            if (!MediaCache.isCacheFileName(dataFile)) {
+                // Legacy per-playlist file, cataloged once migrated
+                continue;
+            }
+            long assetId = addAsset(db, item.getString("name"), dataFile, item.optLong("sampleCount", 0),
+                    item.optInt("sampleRate", EngineFormat.DEFAULT_SAMPLE_RATE));
+            ContentValues values = new ContentValues();
+            values.put("playlist_id", playlistId);
+            values.put("kind", kind);
+            values.put("position", i);
+            values.put("asset_id", assetId);
+            db.insert("playlist_items", null, values);
+        }
+    }
+    
+    /**
+     * Forget a deleted playlist's references
+     */
+    public void removePlaylist(String playlistId) {
+        getWritableDatabase().delete("playlist_items", "playlist_id = ?", new String[]{playlistId});
+    }
+    
+    /**
+     * Assets whose name starts with a prefix (case-insensitive), by name
+     * @param prefix Empty for all assets
+     */
+    public List<Asset> search(String prefix, int limit) {
+        String pattern = prefix.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+        return queryAssets(SEARCH_SQL + limit, new String[]{pattern});
+    }
+    
+    /**
+     * Look up the asset stored in a cache file
+     */
+    public Asset getAsset(String cacheName) {
+        List<Asset> assets = queryAssets(ASSET_SQL, new String[]{cacheName});
+        return assets.isEmpty() ? null : assets.get(0);
+    }
+    
+    /**
+     * All stored forms (rates, formats) of the same source
+     */
+    public List<Asset> getAssetsByHash(String contentHash) {
+        return queryAssets(HASH_SQL, new String[]{contentHash});
+    }
+    
+    /**
+     * IDs of the playlists that use a cache file
+     */
+    public List<String> getPlaylistsUsing(String cacheName) {
+        List<String> ids = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().rawQuery(PLAYLISTS_USING_SQL, new String[]{cacheName})) {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getString(0));
+            }
+        }
+        return ids;
+    }
+    
+    private List<Asset> queryAssets(String sql, String[] args) {
+        List<Asset> assets = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().rawQuery(sql, args)) {
+            while (cursor.moveToNext()) {
+                assets.add(new Asset(cursor.getLong(0), cursor.getString(1), cursor.getString(2),
+                        new File(directory, cursor.getString(3)), cursor.getString(4), cursor.getLong(5),
+                        cursor.getInt(6), cursor.getLong(7),
+                        cursor.isNull(8) ? Double.NaN : cursor.getDouble(8),
+                        cursor.isNull(9) ? -1 : cursor.getLong(9),
+                        cursor.isNull(10) ? -1 : cursor.getLong(10)));
+            }
+        }
+        return assets;
+    }
+}
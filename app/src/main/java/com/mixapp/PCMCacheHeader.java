@@ -0,0 +1,248 @@
+package com.mixapp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Header of a raw PCM cache file, so the file describes itself instead of relying on its name
+ * and length.
+ *
+ * File layout (little-endian):
+ *   Header (HEADER_SIZE bytes): magic "MXPC", version, channels, sampleRate, sampleFormat,
+ *   totalFrames, crcBlockFrames, crcCount, then crcCount CRC-32 values, one per crcBlockFrames
+ *   frames of data (the last block may be shorter). The rest of the header is zero.
+ *   Data: interleaved 16-bit samples in the file's own channel count (mono stays mono).
+ *
+ * A decode writes the header with totalFrames = -1 first and seals it (frame count and CRC table)
+ * once the data is complete. Headerless files from before this format (16-bit stereo at the rate
+ * in their name) are still read.
+ */
+public class PCMCacheHeader {
+    static final byte[] MAGIC_BYTES = {'M', 'X', 'P', 'C'};
+    static final int VERSION = 1;
+    // Page-sized, so the data starts page-aligned
+    static final int HEADER_SIZE = 4096;
+    static final int FORMAT_S16LE = 1;
+    private static final int FIXED_BYTES = 32;
+    // CRC entries that fit in the header; longer files use longer blocks
+    static final int MAX_CRC_BLOCKS = (HEADER_SIZE - FIXED_BYTES) / 4;
+    private static final int MIN_CRC_BLOCK_FRAMES = 4096;
+    // Direct buffer for checksumming (outside the Java heap)
+    private static final int CRC_BUFFER_BYTES = 256 * 1024;
+    
+    int channels;
+    int sampleRate;
+    int sampleFormat = FORMAT_S16LE;
+    long totalFrames = -1; // -1 until sealed
+    int crcBlockFrames;
+    int[] crcs = new int[0];
+    long dataOffset = HEADER_SIZE;
+    boolean legacy;        // Headerless file from before this format
+    
+    int frameBytes() {
+        return channels * 2;
+    }
+    
+    /**
+     * Check whether the data is complete and the frame count and checksums are recorded
+     */
+    boolean isSealed() {
+        return totalFrames >= 0;
+    }
+    
+    /**
+     * Whole frames in the data area, from the file length
+     */
+    long framesOnDisk(File file) {
+        return Math.max(0, (file.length() - dataOffset) / frameBytes());
+    }
+    
+    /**
+     * Channel count to store a source with: mono stays mono, everything else becomes stereo
+     */
+    static int cacheChannels(int sourceChannels) {
+        return (sourceChannels == 1) ? 1 : 2;
+    }
+    
+    /**
+     * Start a cache file: write an unsealed header at the stream's position (the file start)
+     */
+    static void writeUnsealed(FileOutputStream fos, int sampleRate, int channels) throws IOException {
+        PCMCacheHeader header = new PCMCacheHeader();
+        header.sampleRate = sampleRate;
+        header.channels = channels;
+        fos.write(header.toBytes());
+    }
+    
+    /**
+     * Read a cache file's header (or describe a headerless legacy file)
+     */
+    static PCMCacheHeader read(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            byte[] bytes = new byte[(int) Math.min(HEADER_SIZE, raf.length())];
+            raf.readFully(bytes);
+            if (bytes.length < HEADER_SIZE && DecodeProgress.get(file) != null) {
+                // Files being written always have a header; this one has not got it yet
+                throw new IOException("PCM cache header not written yet: " + file.getName());
+            }
+            if (!hasMagic(bytes)) {
+                PCMCacheHeader header = new PCMCacheHeader();
+                header.legacy = true;
+                header.channels = 2;
+                header.sampleRate = MediaCache.getSampleRate(file);
+                header.dataOffset = 0;
+                header.totalFrames = raf.length() / header.frameBytes();
+                return header;
+            }
+            if (bytes.length < HEADER_SIZE) {
+                throw new IOException("Truncated PCM cache header: " + file.getName());
+            }
+            return parse(bytes);
+        }
+    }
+    
+    /**
+     * Validated length of a cache in frames: the sealed count if the data is all there, otherwise
+     * what is on disk
+     */
+    static long getFrameCount(File file) throws IOException {
+        PCMCacheHeader header = read(file);
+        long onDisk = header.framesOnDisk(file);
+        if (header.isSealed() && onDisk != header.totalFrames) {
+            throw new IOException(file.getName() + " holds " + onDisk + " frames, header says " + header.totalFrames);
+        }
+        return header.isSealed() ? header.totalFrames : onDisk;
+    }
+    
+    /**
+     * Complete a cache file: drop any partial frame, checksum the data and record the frame count
+     * @return Number of frames in the file
+     */
+    static long seal(File file) throws IOException {
+        PCMCacheHeader header = read(file);
+        if (header.legacy) {
+            return header.totalFrames;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long frames = Math.max(0, (raf.length() - header.dataOffset) / header.frameBytes());
+            raf.setLength(header.dataOffset + frames * header.frameBytes());
+            header.totalFrames = frames;
+            header.crcBlockFrames = (int) Math.max(MIN_CRC_BLOCK_FRAMES, (frames + MAX_CRC_BLOCKS - 1) / MAX_CRC_BLOCKS);
+            header.crcs = computeCrcs(raf.getChannel(), header);
+            raf.seek(0);
+            raf.write(header.toBytes());
+            raf.getFD().sync();
+            return frames;
+        }
+    }
+    
+    /**
+     * Check a sealed cache's data against its checksums (legacy and unsealed files have none)
+     */
+    static boolean verify(File file) throws IOException {
+        PCMCacheHeader header = read(file);
+        if (header.legacy || !header.isSealed()) {
+            return true;
+        }
+        if (header.framesOnDisk(file) != header.totalFrames) {
+            return false;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            int[] actual = computeCrcs(raf.getChannel(), header);
+            for (int i = 0; i < actual.length; i++) {
+                if (actual[i] != header.crcs[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+    
+    private static int[] computeCrcs(FileChannel channel, PCMCacheHeader header) throws IOException {
+        long blockBytes = (long) header.crcBlockFrames * header.frameBytes();
+        long dataBytes = header.totalFrames * header.frameBytes();
+        int count = (int) ((dataBytes + blockBytes - 1) / blockBytes);
+        int[] crcs = new int[count];
+        ByteBuffer buffer = ByteBuffer.allocateDirect(CRC_BUFFER_BYTES);
+        CRC32 crc = new CRC32();
+        for (int block = 0; block < count; block++) {
+            crc.reset();
+            long position = header.dataOffset + block * blockBytes;
+            long end = Math.min(position + blockBytes, header.dataOffset + dataBytes);
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("PCM cache ended early");
+                }
+                buffer.flip();
+                crc.update(buffer);
+                position += read;
+            }
+            crcs[block] = (int) crc.getValue();
+        }
+        return crcs;
+    }
+    
+    private static boolean hasMagic(byte[] bytes) {
+        if (bytes.length < MAGIC_BYTES.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC_BYTES.length; i++) {
+            if (bytes[i] != MAGIC_BYTES[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static PCMCacheHeader parse(byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(MAGIC_BYTES.length);
+        int version = buffer.getShort();
+        if (version != VERSION) {
+            throw new IOException("Unsupported PCM cache version: " + version);
+        }
+        PCMCacheHeader header = new PCMCacheHeader();
+        header.channels = buffer.getShort();
+        header.sampleRate = buffer.getInt();
+        header.sampleFormat = buffer.getShort();
+        buffer.getShort(); // Reserved
+        header.totalFrames = buffer.getLong();
+        header.crcBlockFrames = buffer.getInt();
+        int crcCount = buffer.getInt();
+        if (header.channels <= 0 || header.sampleRate <= 0 || header.sampleFormat != FORMAT_S16LE ||
+            crcCount < 0 || crcCount > MAX_CRC_BLOCKS) {
+            throw new IOException("Corrupt PCM cache header");
+        }
+        header.crcs = new int[crcCount];
+        for (int i = 0; i < crcCount; i++) {
+            header.crcs[i] = buffer.getInt();
+        }
+        return header;
+    }
+    
+    private byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(MAGIC_BYTES);
+        buffer.putShort((short) VERSION);
+        buffer.putShort((short) channels);
+        buffer.putInt(sampleRate);
+        buffer.putShort((short) sampleFormat);
+        buffer.putShort((short) 0);
+        buffer.putLong(totalFrames);
+        buffer.putInt(crcBlockFrames);
+        buffer.putInt(crcs.length);
+        for (int crc : crcs) {
+            buffer.putInt(crc);
+        }
+        return buffer.array();
+    }
+}
@@ -0,0 +1,331 @@
+package com.mixapp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Converts decoded audio (resample and/or channel conversion) and appends it to a raw PCM cache.
+ * A single Resampler is carried across chunks so there are no phase resets at chunk boundaries,
+ * and partial frames split across input buffers are carried to the next chunk.
+ * Has no Android dependencies, so it is shared by the MediaCodec and the pure-Java WAV paths.
+ */
+public class PCMCacheWriter {
+    // How often a resumable decode syncs its output and records a checkpoint
+    static final long CHECKPOINT_INTERVAL_MS = 1000;
+    // Source audio decoded again before a resume point and discarded, so the codec (bit reservoir,
+    // MDCT overlap) and the resampler filter are running on real audio by the time output is kept
+    static final long RESUME_PRE_ROLL_US = 500000;
+    
+    /**
+     * Told how many frames are durably on disk, so an interrupted decode can resume from there
+     */
+    public interface CheckpointListener {
+        void onCheckpoint(long framesWritten) throws IOException;
+    }
+    
+    /**
+     * Where an interrupted conversion picks up. The cache is cut back to outputFrame, a frame where
+     * input and output sample positions coincide; decoding restarts at sourceFrame, some way before
+     * the matching source frame, and the first skipOutputFrames converted frames are dropped. The
+     * appended audio then matches an uninterrupted conversion instead of restarting the resampler
+     * from silence (a click at the join).
+     */
+    public static class ResumePoint {
+        public final long outputFrame;
+        public final long sourceFrame;
+        public final long skipOutputFrames;
+        
+        ResumePoint(long outputFrame, long sourceFrame, long skipOutputFrames) {
+            this.outputFrame = outputFrame;
+            this.sourceFrame = sourceFrame;
+            this.skipOutputFrames = skipOutputFrames;
+        }
+        
+        /**
+         * Work out a resume point
+         * @param availableFrames Output frames known to be written
+         * @param preRollFrames Source frames to decode again before the join (at least)
+         */
+        static ResumePoint plan(long availableFrames, int inputRate, int outputRate, long preRollFrames) {
+            int gcd = gcd(inputRate, outputRate);
+            long inputPeriod = inputRate / gcd;
+            long outputPeriod = outputRate / gcd;
+            long periods = availableFrames / outputPeriod;
+            long preRollPeriods = (preRollFrames + inputPeriod - 1) / inputPeriod;
+            long firstPeriod = Math.max(0, periods - preRollPeriods);
+            return new ResumePoint(periods * outputPeriod, firstPeriod * inputPeriod,
+                    (periods - firstPeriod) * outputPeriod);
+        }
+    }
+    
+    private final FileOutputStream fos;
+    private final int inputChannels;
+    private final int outputChannels;
+    private final DecodeProgress progress;
+    private final Resampler resampler;
+    private short[] inputSamples = new short[0];
+    private short[] converted = new short[0];
+    private short[] resampled = new short[0];
+    private byte[] outputBytes = new byte[0];
+    private final byte[] carry;
+    private int carryBytes = 0;
+    private long inputFrames = 0;
+    private long framesWritten = 0;
+    private long skipFrames = 0;
+    private long frameLimit = -1;
+    private CheckpointListener checkpointListener;
+    private long checkpointIntervalMs;
+    private long lastCheckpointTime;
+    
+    /**
+     * @param fos Output file, positioned where the PCM data starts
+     * @param progress Watermark to advance after every write (may be null)
+     */
+    public PCMCacheWriter(FileOutputStream fos, int inputRate, int inputChannels,
+                          int outputRate, int outputChannels, Resampler.Quality quality,
+                          DecodeProgress progress) {
+        this.fos = fos;
+        this.inputChannels = inputChannels;
+        this.outputChannels = outputChannels;
+        this.progress = progress;
+        this.carry = new byte[inputChannels * 2];
+        // Channel conversion happens before resampling so the filter runs on outputChannels only
+        this.resampler = (inputRate != outputRate)
+                ? new Resampler(inputRate, outputRate, outputChannels, quality)
+                : null;
+    }
+    
+    /**
+     * Continue a cache that already holds the given number of frames (fos must append)
+     */
+    public void setStartFrame(long frames) {
+        framesWritten = frames;
+    }
+    
+    /**
+     * Continue a cache cut back to a resume point (fos must append): count the frames already
+     * there and drop the pre-roll
+     */
+    public void resumeAt(ResumePoint point) {
+        setStartFrame(point.outputFrame);
+        setOutputWindow(point.skipOutputFrames, -1);
+    }
+    
+    /**
+     * Keep only part of the output: drop the first skipFrames converted frames and stop writing
+     * once frameLimit frames are written (-1 for no limit). Used to cut a range out of a decode
+     * that started early and ran long so the codec and resampler had settled at both ends.
+     */
+    public void setOutputWindow(long skipFrames, long frameLimit) {
+        this.skipFrames = skipFrames;
+        this.frameLimit = frameLimit;
+    }
+    
+    /**
+     * Sync the file and report progress to the listener at most once per interval
+     */
+    public void setCheckpointListener(CheckpointListener listener, long intervalMs) {
+        this.checkpointListener = listener;
+        this.checkpointIntervalMs = intervalMs;
+        this.lastCheckpointTime = System.currentTimeMillis();
+    }
+    
+    /**
+     * Convert and append a chunk of little-endian 16-bit interleaved input
+     */
+    public void write(byte[] bytes, int length) throws IOException {
+        int frameBytes = inputChannels * 2;
+        int offset = 0;
+        
+        // Complete a frame left over from the previous chunk
+        if (carryBytes > 0) {
+            int needed = Math.min(frameBytes - carryBytes, length);
+            System.arraycopy(bytes, 0, carry, carryBytes, needed);
+            carryBytes += needed;
+            offset = needed;
+            if (carryBytes == frameBytes) {
+                carryBytes = 0;
+                writeFrames(toSamples(carry, 0, 1), 1);
+            }
+        }
+        
+        int frames = (length - offset) / frameBytes;
+        if (frames > 0) {
+            writeFrames(toSamples(bytes, offset, frames), frames);
+        }
+        int rest = length - offset - frames * frameBytes;
+        if (rest > 0) {
+            System.arraycopy(bytes, offset + frames * frameBytes, carry, 0, rest);
+            carryBytes = rest;
+        }
+    }
+    
+    /**
+     * Convert and append whole frames of interleaved input samples
+     */
+    public void writeFrames(short[] samples, int frames) throws IOException {
+        inputFrames += frames;
+        short[] channelsOut = convertChannels(samples, frames);
+        
+        // Resample with state carried over from the previous chunk
+        if (resampler != null) {
+            ensureResampledCapacity(frames);
+            int outputFrames = resampler.process(channelsOut, frames, resampled);
+            emit(resampled, outputFrames);
+        } else {
+            emit(channelsOut, frames);
+        }
+    }
+    
+    /**
+     * Drain the resampler tail
+     * @return Total number of output frames written
+     */
+    public long finish() throws IOException {
+        if (resampler != null) {
+            ensureResampledCapacity(0);
+            int tailFrames = resampler.flush(resampled);
+            emit(resampled, tailFrames);
+        }
+        return framesWritten;
+    }
+    
+    /**
+     * Total input frames converted so far
+     */
+    public long getInputFrames() {
+        return inputFrames;
+    }
+    
+    /**
+     * Prepare a partly written cache for resuming: check it can be continued, plan the resume
+     * point and cut the file back to it
+     * @param resumeFrame Frames the caller recorded as written
+     * @return The resume point, or null if the file cannot be continued (e.g. a headerless file
+     *         or another format) and the conversion has to start over
+     */
+    static ResumePoint prepareResume(File outputFile, long resumeFrame, int inputRate, int outputRate,
+                                     int outputChannels) throws IOException {
+        if (resumeFrame <= 0 || !outputFile.exists()) {
+            return null;
+        }
+        PCMCacheHeader header;
+        try {
+            header = PCMCacheHeader.read(outputFile);
+        } catch (IOException e) {
+            return null;
+        }
+        if (header.legacy || header.channels != outputChannels || header.sampleRate != outputRate) {
+            return null;
+        }
+        long available = Math.min(resumeFrame, header.framesOnDisk(outputFile));
+        ResumePoint point = ResumePoint.plan(available, inputRate, outputRate,
+                RESUME_PRE_ROLL_US * inputRate / 1000000L);
+        if (point.outputFrame == 0) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(outputFile, "rw")) {
+            raf.setLength(header.dataOffset + point.outputFrame * header.frameBytes());
+        }
+        return point;
+    }
+    
+    private short[] toSamples(byte[] bytes, int offset, int frames) {
+        int count = frames * inputChannels;
+        if (inputSamples.length < count) {
+            inputSamples = new short[count];
+        }
+        ByteBuffer.wrap(bytes, offset, count * 2).order(ByteOrder.LITTLE_ENDIAN)
+                .asShortBuffer().get(inputSamples, 0, count);
+        return inputSamples;
+    }
+    
+    /**
+     * Mono is copied to every output channel, extra input channels are dropped,
+     * and multi-channel to mono averages the first two channels
+     */
+    private short[] convertChannels(short[] samples, int frames) {
+        if (inputChannels == outputChannels) {
+            return samples;
+        }
+        int count = frames * outputChannels;
+        if (converted.length < count) {
+            converted = new short[count];
+        }
+        int in = 0;
+        int out = 0;
+        for (int f = 0; f < frames; f++) {
+            if (inputChannels == 1) {
+                for (int ch = 0; ch < outputChannels; ch++) {
+                    converted[out++] = samples[in];
+                }
+            } else if (outputChannels == 1) {
+                converted[out++] = (short) ((samples[in] + samples[in + 1]) >> 1);
+            } else {
+                for (int ch = 0; ch < outputChannels; ch++) {
+                    converted[out++] = (ch < inputChannels) ? samples[in + ch] : 0;
+                }
+            }
+            in += inputChannels;
+        }
+        return converted;
+    }
+    
+    private void ensureResampledCapacity(int frames) {
+        int needed = resampler.getMaxOutputFrames(frames) * outputChannels;
+        if (resampled.length < needed) {
+            resampled = new short[needed];
+        }
+    }
+    
+    /**
+     * Write samples as little-endian 16-bit in one bulk write and publish the new length
+     */
+    private void emit(short[] samples, int frames) throws IOException {
+        int first = 0;
+        if (skipFrames > 0) {
+            first = (int) Math.min(skipFrames, Math.max(frames, 0));
+            skipFrames -= first;
+            frames -= first;
+        }
+        if (frameLimit >= 0) {
+            frames = (int) Math.min(frames, frameLimit - framesWritten);
+        }
+        if (frames <= 0) {
+            return;
+        }
+        int count = frames * outputChannels;
+        if (outputBytes.length < count * 2) {
+            outputBytes = new byte[count * 2];
+        }
+        ByteBuffer.wrap(outputBytes).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer()
+                .put(samples, first * outputChannels, count);
+        fos.write(outputBytes, 0, count * 2);
+        framesWritten += frames;
+        if (progress != null) {
+            progress.advance(framesWritten);
+        }
+        if (checkpointListener != null) {
+            long now = System.currentTimeMillis();
+            if (now - lastCheckpointTime >= checkpointIntervalMs) {
+                lastCheckpointTime = now;
+                // Only report frames that would survive a crash
+                fos.getFD().sync();
+                checkpointListener.onCheckpoint(framesWritten);
+            }
+        }
+    }
+    
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
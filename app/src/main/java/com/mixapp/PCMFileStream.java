@@ -5,12 +5,15 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.util.Arrays;
 
 /**
  * Streams PCM audio data from disk in chunks instead of loading entire file into memory.
  * This dramatically reduces memory usage for large audio files.
+ * The file's layout comes from its header (see PCMCacheHeader); a mono cache is upmixed as it is read.
+ * If the file is still being decoded, reads stop at the decoder's watermark (see DecodeProgress).
  */
-public class PCMFileStream {
+public class PCMFileStream implements AudioStream {
     private static final String TAG = "PCMFileStream";
     
     private File pcmFile;
@@ -18,18 +21,19 @@ public class PCMFileStream {
     private long fileSizeBytes;
     private long totalSamples;
     private int sampleRate;
-    private int channels;
+    private int channels;     // Channels returned to the caller
+    private int fileChannels; // Channels stored in the file
+    private long dataOffset;
     private static final int BYTES_PER_SAMPLE = 2; // 16-bit = 2 bytes
-    
-    // Buffer for reading chunks (about 1 second of audio at 44.1kHz stereo)
-    private static final int BUFFER_SIZE_SAMPLES = 44100 * 2; // 1 second stereo
-    private short[] readBuffer;
+    // How long a read may block waiting for an in-progress decode before playing silence
+    private static final long WATERMARK_WAIT_MS = 20;
+    private DecodeProgress progress; // Non-null while the file is still being decoded
     
     /**
      * Create a PCM file stream from a file
      * @param pcmFile The PCM file to stream from
-     * @param sampleRate Sample rate (e.g., 44100)
-     * @param channels Number of channels (2 for stereo)
+     * @param sampleRate Sample rate (the engine rate)
+     * @param channels Number of channels to return (2 for stereo; mono files are upmixed)
      */
     public PCMFileStream(File pcmFile, int sampleRate, int channels) throws IOException {
         this.pcmFile = pcmFile;
@@ -40,15 +44,24 @@ public class PCMFileStream {
             throw new IOException("PCM file does not exist: " + pcmFile.getAbsolutePath());
         }
         
+        PCMCacheHeader header = PCMCacheHeader.read(pcmFile);
+        if (header.sampleRate != sampleRate) {
+            Log.w(TAG, "Rate mismatch in " + pcmFile.getName() + ": " + header.sampleRate + " Hz (expected " + sampleRate + " Hz)");
+        }
+        fileChannels = header.channels;
+        dataOffset = header.dataOffset;
         fileSizeBytes = pcmFile.length();
-        totalSamples = fileSizeBytes / (BYTES_PER_SAMPLE * channels);
+        totalSamples = header.isSealed() ? header.totalFrames : header.framesOnDisk(pcmFile);
+        progress = DecodeProgress.get(pcmFile);
+        if (progress != null) {
+            totalSamples = progress.getTotalFrames();
+        }
         
         // Open file for random access
         fileHandle = new RandomAccessFile(pcmFile, "r");
-        readBuffer = new short[BUFFER_SIZE_SAMPLES * channels];
         
         Log.d(TAG, "Opened PCM stream: " + pcmFile.getName() + 
-              " (" + totalSamples + " samples, " + (fileSizeBytes / (1024 * 1024)) + " MB)");
+              " (" + totalSamples + " samples, " + fileChannels + " ch, " + (fileSizeBytes / (1024 * 1024)) + " MB)");
     }
     
     /**
@@ -58,29 +71,49 @@ public class PCMFileStream {
      * @param outputBuffer Buffer to write samples to (must be large enough)
      * @return Number of samples actually read
      */
+    @Override
     public int readSamples(long startSample, int numSamples, short[] outputBuffer) throws IOException {
         if (fileHandle == null) {
             throw new IOException("File stream is closed");
         }
         
+        // Limit reads to what the decoder has written so far
+        long availableSamples = totalSamples;
+        if (progress != null) {
+            availableSamples = progress.getFramesWritten();
+            if (startSample >= availableSamples && !progress.isComplete()) {
+                availableSamples = progress.awaitFrames(startSample + 1, WATERMARK_WAIT_MS);
+            }
+            totalSamples = progress.getTotalFrames();
+            if (progress.isComplete()) {
+                progress = null;
+            } else if (startSample >= availableSamples) {
+                // Decoder has not caught up yet - play silence rather than stalling the mix
+                int silentSamples = (int) Math.min(numSamples, Math.max(0, totalSamples - startSample));
+                Arrays.fill(outputBuffer, 0, silentSamples * channels, (short) 0);
+                return silentSamples;
+            }
+        }
+        
         // Clamp to file bounds
-        if (startSample >= totalSamples) {
+        if (startSample >= availableSamples) {
             return 0; // End of file
         }
         
-        long samplesToRead = Math.min(numSamples, totalSamples - startSample);
+        long samplesToRead = Math.min(numSamples, availableSamples - startSample);
         if (samplesToRead <= 0) {
             return 0;
         }
         
         // Calculate byte position
-        long bytePosition = startSample * BYTES_PER_SAMPLE * channels;
+        int frameBytes = BYTES_PER_SAMPLE * fileChannels;
+        long bytePosition = dataOffset + startSample * frameBytes;
         
         // Seek to position
         fileHandle.seek(bytePosition);
         
         // Read bytes
-        int bytesToRead = (int) (samplesToRead * BYTES_PER_SAMPLE * channels);
+        int bytesToRead = (int) (samplesToRead * frameBytes);
         byte[] byteBuffer = new byte[bytesToRead];
         int bytesRead = fileHandle.read(byteBuffer);
         
@@ -88,13 +121,17 @@ public class PCMFileStream {
             return 0;
         }
         
-        // Convert bytes to short array (little-endian)
-        int samplesRead = bytesRead / (BYTES_PER_SAMPLE * channels);
-        for (int i = 0; i < samplesRead * channels; i++) {
-            int byteIndex = i * BYTES_PER_SAMPLE;
-            int low = byteBuffer[byteIndex] & 0xFF;
-            int high = byteBuffer[byteIndex + 1] & 0xFF;
-            outputBuffer[i] = (short) ((high << 8) | low);
+        // Convert bytes to short array (little-endian), copying each stored channel to as many
+        // output channels as it covers (mono to both sides of stereo)
+        int samplesRead = bytesRead / frameBytes;
+        int out = 0;
+        for (int f = 0; f < samplesRead; f++) {
+            for (int ch = 0; ch < channels; ch++) {
+                int byteIndex = f * frameBytes + Math.min(ch, fileChannels - 1) * BYTES_PER_SAMPLE;
+                int low = byteBuffer[byteIndex] & 0xFF;
+                int high = byteBuffer[byteIndex + 1] & 0xFF;
+                outputBuffer[out++] = (short) ((high << 8) | low);
+            }
         }
         
         return samplesRead;
@@ -103,13 +140,23 @@ public class PCMFileStream {
     /**
      * Get total number of samples in the file
      */
+    @Override
     public long getTotalSamples() {
         return totalSamples;
     }
     
+    @Override
+    public boolean isEndOfStream(long position) {
+        if (progress != null && !progress.isComplete()) {
+            return false;
+        }
+        return position >= ((progress != null) ? progress.getTotalFrames() : totalSamples);
+    }
+    
     /**
      * Get sample rate
      */
+    @Override
     public int getSampleRate() {
         return sampleRate;
     }
@@ -117,6 +164,7 @@ public class PCMFileStream {
     /**
      * Get number of channels
      */
+    @Override
     public int getChannels() {
         return channels;
     }
@@ -124,6 +172,7 @@ public class PCMFileStream {
     /**
      * Close the file stream
      */
+    @Override
     public void close() throws IOException {
         if (fileHandle != null) {
             fileHandle.close();
@@ -134,17 +183,9 @@ public class PCMFileStream {
     /**
      * Check if stream is closed
      */
+    @Override
     public boolean isClosed() {
         return fileHandle == null;
     }
-    
-    @Override
-    protected void finalize() throws Throwable {
-        try {
-            close();
-        } finally {
-            super.finalize();
-        }
-    }
 }
 
@@ -0,0 +1,261 @@
+package com.mixapp;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Decodes one long compressed file on several MediaCodec instances at once.
+ * The source is split into ranges; every range has its own extractor (seeked to the sync point
+ * before it) and decoder, and is stitched onto the cache in order when all are done.
+ *
+ * Each range is decoded with some overlap on both sides that is then cut away: the codec state
+ * (MP3 bit reservoir, MDCT overlap) and the resampler filter have settled by the boundary, so the
+ * stitched output matches a serial decode. Range boundaries sit on frames where input and output
+ * sample positions coincide exactly, so the resampler phase lines up too.
+ */
+class ParallelDecoder {
+    private static final String TAG = "ParallelDecoder";
+    // Shorter files decode serially (decoder setup and the overlap would eat the gain)
+    private static final long MIN_DURATION_US = 20L * 60 * 1000000;
+    // Each range covers at least this much audio
+    private static final long MIN_RANGE_US = 5L * 60 * 1000000;
+    // Codec instances are a shared resource - don't take more than this for one import
+    private static final int MAX_RANGES = 4;
+    // Decoded before and after every range boundary and discarded
+    private static final long OVERLAP_US = 500000;
+    
+    /**
+     * Decodes part of the source: from the sync point at or before a source frame to the last
+     * input sample at or before a stop time, passing the decoded chunks on with their
+     * presentation times. Called on several threads at once, one range each.
+     */
+    interface RangeSource {
+        void decode(long startSourceFrame, long stopTimeUs, MP3Decoder.ChunkSink sink) throws IOException;
+    }
+    
+    /**
+     * One slice of the source. All positions are frames; output frames are at the cache rate.
+     */
+    private static class Range {
+        long startSourceFrame;  // Where decoding starts (overlap included)
+        long skipOutputFrames;  // Converted frames to drop before the range proper
+        long outputFrames = -1; // Frames the range contributes (-1: up to end of stream)
+        long stopTimeUs = Long.MAX_VALUE; // Last input sample to feed (overlap included)
+    }
+    
+    /**
+     * How many ranges to split a file into (1 means decode serially)
+     */
+    static int chooseRangeCount(MediaFormat format) {
+        if (!format.containsKey(MediaFormat.KEY_DURATION)) {
+            return 1;
+        }
+        long durationUs = format.getLong(MediaFormat.KEY_DURATION);
+        if (durationUs < MIN_DURATION_US) {
+            return 1;
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        return (int) Math.max(1, Math.min(Math.min(cores, MAX_RANGES), durationUs / MIN_RANGE_US));
+    }
+    
+    /**
+     * Decode a file in parallel ranges into a 16-bit cache at outputRate (mono sources stay mono).
+     * The first range runs on the calling thread and writes the cache directly, so progress and
+     * checkpoints describe a contiguous prefix (an interrupted decode resumes serially from it);
+     * the other ranges go to part files next to the cache and are appended at the end.
+     * @param opener Opens an independent descriptor on the source for every range
+     * @param ranges Number of ranges (from chooseRangeCount)
+     * @param progress Watermark to advance as the cache grows (may be null)
+     * @param checkpoint Told which frames are durably written (may be null)
+     */
+    static MP3Decoder.DecodeResult decodeToFile(MP3Decoder.SourceOpener opener, MediaFormat format, int ranges,
+                                                File outputFile, int outputRate, DecodeProgress progress,
+                                                PCMCacheWriter.CheckpointListener checkpoint,
+                                                Resampler.Quality quality) throws IOException {
+        RangeSource source = (startSourceFrame, stopTimeUs, sink) ->
+                decodeFromSource(opener, format, startSourceFrame, stopTimeUs, sink);
+        return decodeToFile(source, format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                format.getInteger(MediaFormat.KEY_CHANNEL_COUNT), format.getLong(MediaFormat.KEY_DURATION),
+                ranges, outputFile, outputRate, progress, checkpoint, quality);
+    }
+    
+    /**
+     * Decode a source in parallel ranges (1 range decodes serially on the calling thread)
+     * @param durationUs Source duration, used to place the range boundaries (the last range
+     *                   runs to the end of the stream, so an estimate will do)
+     * @see #decodeToFile(MP3Decoder.SourceOpener, MediaFormat, int, File, int, DecodeProgress, PCMCacheWriter.CheckpointListener, Resampler.Quality)
+     */
+    static MP3Decoder.DecodeResult decodeToFile(RangeSource source, int sampleRate, int channelCount, long durationUs,
+                                                int ranges, File outputFile, int outputRate, DecodeProgress progress,
+                                                PCMCacheWriter.CheckpointListener checkpoint,
+                                                Resampler.Quality quality) throws IOException {
+        int outputChannels = PCMCacheHeader.cacheChannels(channelCount);
+        List<Range> plan = planRanges(durationUs, sampleRate, outputRate, ranges);
+        Log.d(TAG, "Decoding in " + plan.size() + " ranges: sampleRate=" + sampleRate +
+              ", channels=" + channelCount);
+        
+        long startTime = System.currentTimeMillis();
+        List<File> parts = new ArrayList<>();
+        List<Future<Long>> futures = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, plan.size() - 1));
+        try {
+            for (int i = 1; i < plan.size(); i++) {
+                final Range range = plan.get(i);
+                final File part = new File(outputFile.getPath() + ".part" + i);
+                parts.add(part);
+                futures.add(executor.submit(() -> decodeRange(source, sampleRate, channelCount, range, part, false,
+                        outputRate, null, null, quality)));
+            }
+            
+            long totalFrames = decodeRange(source, sampleRate, channelCount, plan.get(0), outputFile, true,
+                    outputRate, progress, checkpoint, quality);
+            
+            // Stitch the other ranges on in order as they complete
+            try (FileOutputStream out = new FileOutputStream(outputFile, true)) {
+                FileChannel target = out.getChannel();
+                for (int i = 0; i < futures.size(); i++) {
+                    long frames = await(futures.get(i));
+                    appendFile(parts.get(i), target);
+                    parts.get(i).delete();
+                    totalFrames += frames;
+                    if (progress != null) {
+                        progress.advance(totalFrames);
+                    }
+                }
+                out.getFD().sync();
+            }
+            totalFrames = PCMCacheHeader.seal(outputFile);
+            
+            long decodeTimeMs = System.currentTimeMillis() - startTime;
+            Log.d(TAG, "Decoded to file: " + totalFrames + " samples (" + outputChannels + " ch @ " + outputRate + " Hz) in " +
+                  decodeTimeMs + " ms (" + MP3Decoder.formatSpeed(totalFrames, outputRate, decodeTimeMs) + ", " +
+                  plan.size() + " decoders)");
+            MP3Decoder.DecodeResult result = new MP3Decoder.DecodeResult(totalFrames, outputRate, outputChannels);
+            result.decodeTimeMs = decodeTimeMs;
+            return result;
+        } finally {
+            // On failure or cancel the remaining ranges are interrupted and their output dropped
+            executor.shutdownNow();
+            for (Future<Long> future : futures) {
+                future.cancel(true);
+            }
+            for (File part : parts) {
+                part.delete();
+            }
+        }
+    }
+    
+    /**
+     * Split the source at frames where input and output positions coincide
+     */
+    private static List<Range> planRanges(long durationUs, int sampleRate, int outputRate, int ranges) {
+        int gcd = MP3Decoder.gcd(sampleRate, outputRate);
+        long inputPeriod = sampleRate / gcd;
+        long outputPeriod = outputRate / gcd;
+        long totalSourceFrames = durationUs * sampleRate / 1000000L;
+        long overlapFrames = ((OVERLAP_US * sampleRate / 1000000L) / inputPeriod + 1) * inputPeriod;
+        
+        long[] boundaries = new long[ranges];
+        for (int i = 0; i < ranges; i++) {
+            boundaries[i] = (totalSourceFrames * i / ranges) / inputPeriod * inputPeriod;
+        }
+        
+        List<Range> plan = new ArrayList<>();
+        for (int i = 0; i < ranges; i++) {
+            Range range = new Range();
+            long start = boundaries[i];
+            range.startSourceFrame = Math.max(0, start - overlapFrames);
+            range.skipOutputFrames = (start - range.startSourceFrame) / inputPeriod * outputPeriod;
+            if (i < ranges - 1) {
+                long end = boundaries[i + 1];
+                range.outputFrames = (end - start) / inputPeriod * outputPeriod;
+                range.stopTimeUs = (end + overlapFrames) * 1000000L / sampleRate;
+            }
+            plan.add(range);
+        }
+        return plan;
+    }
+    
+    /**
+     * Decode one range into a file
+     * @param withHeader Start the file with a cache header (the first range; the others are raw parts)
+     * @return Frames written
+     */
+    private static long decodeRange(RangeSource source, int sampleRate, int channelCount, Range range, File target,
+                                    boolean withHeader, int outputRate, DecodeProgress progress,
+                                    PCMCacheWriter.CheckpointListener checkpoint, Resampler.Quality quality) throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(target)) {
+            int outputChannels = PCMCacheHeader.cacheChannels(channelCount);
+            if (withHeader) {
+                PCMCacheHeader.writeUnsealed(fos, outputRate, outputChannels);
+            }
+            PCMCacheWriter writer = new PCMCacheWriter(fos, sampleRate, channelCount, outputRate, outputChannels, quality, progress);
+            writer.setOutputWindow(range.skipOutputFrames, range.outputFrames);
+            if (checkpoint != null) {
+                writer.setCheckpointListener(checkpoint, PCMCacheWriter.CHECKPOINT_INTERVAL_MS);
+            }
+            source.decode(range.startSourceFrame, range.stopTimeUs,
+                    new MP3Decoder.TrimmingSink(writer, range.startSourceFrame, sampleRate, channelCount));
+            return writer.finish();
+        }
+    }
+    
+    /**
+     * Decode part of a file with its own extractor and codec
+     */
+    private static void decodeFromSource(MP3Decoder.SourceOpener opener, MediaFormat format, long startSourceFrame,
+                                         long stopTimeUs, MP3Decoder.ChunkSink sink) throws IOException {
+        int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        MediaExtractor extractor = new MediaExtractor();
+        try (ParcelFileDescriptor source = opener.open()) {
+            extractor.setDataSource(source.getFileDescriptor());
+            CompressedAudioStream.selectAudioTrack(extractor);
+            if (startSourceFrame > 0) {
+                extractor.seekTo(startSourceFrame * 1000000L / sampleRate, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            }
+            MP3Decoder.runDecoder(extractor, format, sink, stopTimeUs);
+        } finally {
+            extractor.release();
+        }
+    }
+    
+    private static long await(Future<Long> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Decode interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Range decode failed: " + cause, cause);
+        }
+    }
+    
+    private static void appendFile(File part, FileChannel target) throws IOException {
+        try (FileInputStream in = new FileInputStream(part)) {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                position += channel.transferTo(position, size - position, target);
+            }
+        }
+    }
+}
@@ -0,0 +1,736 @@
+package com.mixapp;
+
+import android.util.Log;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Proof-of-play log: an append-only record of every item that started, finished or was cut off,
+ * to show advertisers that their announcements aired.
+ *
+ * The playback thread only copies an entry into a preallocated ring (no allocation, no locks,
+ * no I/O; when the ring is full the entry is dropped and counted). A writer thread drains the
+ * ring every FLUSH_INTERVAL_MS into the current segment, a file of fixed-size records, and
+ * starts a new segment past SEGMENT_BYTES and at every open. The index keeps each closed
+ * segment's time range, so a query only reads the segments that overlap it (memory-mapped);
+ * a segment left out by a crash is scanned and indexed at the next open.
+ *
+ * Item names are stored once each in a names file and referred to by number.
+ *
+ * File layout (little-endian):
+ *   Segment (NNNNNNNN.seg): magic "MXPL", version, record size, engine sample rate, padding to
+ *   RECORD_BYTES, then
+ *   records of timeMs (8), engine frame (8), item (4), kind (1), event (1), reserved (2),
+ *   played frames (8)
+ *   Index (index.bin): magic "MXPI", version, count, then per segment its number, earliest and
+ *   latest time and record count (8 bytes each)
+ *   Names (names.bin): per item its number (int) and UTF name and file
+ */
+public class PlayLog {
+    private static final String TAG = "PlayLog";
+    private static final byte[] SEGMENT_MAGIC = {'M', 'X', 'P', 'L'};
+    private static final byte[] INDEX_MAGIC = {'M', 'X', 'P', 'I'};
+    private static final int VERSION = 1;
+    static final int RECORD_BYTES = 32;
+    // Entries the ring holds between writer passes (a power of two)
+    private static final int RING_CAPACITY = 4096;
+    private static final long SEGMENT_BYTES = 4L * 1024 * 1024;
+    private static final long FLUSH_INTERVAL_MS = 500;
+    // Segments whose entries are all older than this are deleted
+    private static final long RETENTION_MS = 400L * 24 * 3600 * 1000;
+    private static final String INDEX_FILE = "index.bin";
+    private static final String NAMES_FILE = "names.bin";
+    
+    public static final int KIND_TRACK = 0;
+    public static final int KIND_ANNOUNCEMENT = 1;
+    public static final int KIND_TIMED_ANNOUNCEMENT = 2;
+    public static final int EVENT_START = 0;
+    public static final int EVENT_FINISH = 1;
+    public static final int EVENT_CUT = 2;
+    private static final String[] KIND_NAMES = {"track", "announcement", "timed announcement"};
+    private static final String[] EVENT_NAMES = {"start", "finish", "cut"};
+    
+    /**
+     * A logged event
+     */
+    public static class Entry {
+        public final long timeMs;
+        public final long frame;       // Engine frame (frames rendered since the mixer was created)
+        public final int item;
+        public final int kind;
+        public final int event;
+        // Of the item, when it finished or was cut; for a start, where playback entered it (0 = the top)
+        public final long playedFrames;
+        public final int sampleRate;    // Of the engine when this was logged
+        
+        Entry(long timeMs, long frame, int item, int kind, int event, long playedFrames, int sampleRate) {
+            this.timeMs = timeMs;
+            this.frame = frame;
+            this.item = item;
+            this.kind = kind;
+            this.event = event;
+            this.playedFrames = playedFrames;
+            this.sampleRate = sampleRate;
+        }
+        
+        public long getPlayedMs() {
+            return playedFrames * 1000 / sampleRate;
+        }
+    }
+    
+    /**
+     * Result of checking that every start is ended by one finish or cut
+     */
+    public static class Pairing {
+        // Ends without a start, and starts followed by another start of the same item
+        public final List<Entry> unpaired = new ArrayList<>();
+        // Starts not ended within the entries (on air at the end, or the app was killed)
+        public final List<Entry> open = new ArrayList<>();
+        
+        public boolean isClean() {
+            return unpaired.isEmpty() && open.isEmpty();
+        }
+    }
+    
+    /**
+     * A closed segment's entry in the index
+     */
+    private static class Segment {
+        final long number;
+        long minTimeMs = Long.MAX_VALUE;
+        long maxTimeMs = Long.MIN_VALUE;
+        long records;
+        
+        Segment(long number) {
+            this.number = number;
+        }
+        
+        void add(long timeMs) {
+            minTimeMs = Math.min(minTimeMs, timeMs);
+            maxTimeMs = Math.max(maxTimeMs, timeMs);
+            records++;
+        }
+        
+        boolean overlaps(long fromMs, long toMs) {
+            return records > 0 && minTimeMs < toMs && maxTimeMs >= fromMs;
+        }
+    }
+    
+    private final File directory;
+    private final EngineClock clock;
+    
+    // Ring: four longs per entry, published by sequence number so the writer never reads a half-written entry
+    private final long[] ring = new long[RING_CAPACITY * 4];
+    private final AtomicLongArray published = new AtomicLongArray(RING_CAPACITY);
+    private final AtomicLong head = new AtomicLong(); // Next sequence to claim
+    private volatile long tail = 0;                    // Next sequence to write out (writer only)
+    private final AtomicLong dropped = new AtomicLong();
+    
+    // Item names (interned off the playback thread)
+    private final Map<String, Integer> itemIds = new HashMap<>();
+    private final List<String[]> items = new ArrayList<>(); // {name, file}
+    private int namesWritten = 0;
+    
+    // Segments, guarded by this
+    private final List<Segment> segments = new ArrayList<>();
+    private long nextSegmentNumber = 0;
+    private Segment current;
+    private FileChannel channel;
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(RING_CAPACITY * RECORD_BYTES)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    private Thread writer;
+    private volatile boolean running;
+    
+    private PlayLog(File directory, EngineClock clock) {
+        this.directory = directory;
+        this.clock = clock;
+    }
+    
+    /**
+     * Open the log in a directory (created if needed) and start its writer thread
+     */
+    public static PlayLog open(File directory) throws IOException {
+        return open(directory, EngineClock.SYSTEM);
+    }
+    
+    static PlayLog open(File directory, EngineClock clock) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create play log directory " + directory);
+        }
+        PlayLog log = new PlayLog(directory, clock);
+        log.loadNames();
+        log.loadIndex();
+        log.startSegment();
+        log.running = true;
+        log.writer = new Thread(log::runWriter, "PlayLog");
+        log.writer.setDaemon(true);
+        log.writer.start();
+        return log;
+    }
+    
+    /**
+     * Number for an item, to log it by (call when the item is loaded, not while rendering)
+     */
+    public synchronized int intern(String name, String file) {
+        String key = file + "\n" + name;
+        Integer id = itemIds.get(key);
+        if (id == null) {
+            id = items.size();
+            items.add(new String[]{name, file});
+            itemIds.put(key, id);
+        }
+        return id;
+    }
+    
+    /**
+     * Log an event. Safe on the playback thread: copies into the ring and returns.
+     */
+    public void append(long timeMs, long frame, int item, int kind, int event, long playedFrames) {
+        long sequence;
+        do {
+            sequence = head.get();
+            if (sequence - tail >= RING_CAPACITY) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!head.compareAndSet(sequence, sequence + 1));
+        int slot = (int) (sequence & (RING_CAPACITY - 1));
+        int base = slot * 4;
+        ring[base] = timeMs;
+        ring[base + 1] = frame;
+        ring[base + 2] = ((long) item << 32) | (kind << 8) | event;
+        ring[base + 3] = playedFrames;
+        published.set(slot, sequence + 1);
+    }
+    
+    /**
+     * Entries lost because the ring was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+    
+    /**
+     * Write out what is in the ring, stop the writer and close the current segment
+     */
+    public void close() {
+        running = false;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+            try {
+                writer.join(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writer = null;
+        }
+        synchronized (this) {
+            drain();
+            closeSegment();
+        }
+    }
+    
+    /**
+     * Entries with a time in [fromMs, toMs), in the order they were logged (includes what the
+     * writer has stored so far)
+     */
+    public List<Entry> query(long fromMs, long toMs) throws IOException {
+        List<Entry> result = new ArrayList<>();
+        List<Segment> overlapping = new ArrayList<>();
+        synchronized (this) {
+            drain();
+            for (Segment segment : segments) {
+                if (segment.overlaps(fromMs, toMs)) {
+                    overlapping.add(segment);
+                }
+            }
+            if (current != null && current.overlaps(fromMs, toMs)) {
+                overlapping.add(current);
+            }
+        }
+        for (Segment segment : overlapping) {
+            try (FileChannel in = new RandomAccessFile(segmentFile(segment.number), "r").getChannel()) {
+                long records = (in.size() - RECORD_BYTES) / RECORD_BYTES;
+                if (records <= 0) {
+                    continue;
+                }
+                ByteBuffer header = ByteBuffer.allocate(RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                in.read(header, 0);
+                int sampleRate = header.getInt(12);
+                if (sampleRate <= 0) {
+                    sampleRate = EngineFormat.getSampleRate();
+                }
+                MappedByteBuffer map = in.map(FileChannel.MapMode.READ_ONLY, RECORD_BYTES, records * RECORD_BYTES);
+                map.order(ByteOrder.LITTLE_ENDIAN);
+                for (int i = 0; i < records; i++) {
+                    int base = i * RECORD_BYTES;
+                    long timeMs = map.getLong(base);
+                    if (timeMs >= fromMs && timeMs < toMs) {
+                        result.add(new Entry(timeMs, map.getLong(base + 8), map.getInt(base + 16),
+                                map.get(base + 20), map.get(base + 21), map.getLong(base + 24), sampleRate));
+                    }
+                }
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Check the start/finish pairing of some entries (in logged order): every item and kind must
+     * alternate between a start and a finish or cut
+     * @param fromMs Where the entries begin: an end whose start lies before it is not unpaired
+     */
+    public static Pairing checkPairing(List<Entry> entries, long fromMs) {
+        Pairing pairing = new Pairing();
+        Map<Long, Entry> started = new HashMap<>();
+        for (Entry entry : entries) {
+            long key = ((long) entry.item << 8) | entry.kind;
+            if (entry.event == EVENT_START) {
+                Entry previous = started.put(key, entry);
+                if (previous != null) {
+                    pairing.unpaired.add(previous);
+                }
+            } else if (started.remove(key) == null && entry.timeMs - entry.getPlayedMs() >= fromMs) {
+                pairing.unpaired.add(entry);
+            }
+        }
+        pairing.open.addAll(started.values());
+        pairing.open.sort((a, b) -> Long.compare(a.timeMs, b.timeMs));
+        return pairing;
+    }
+    
+    /**
+     * Write a day's proof-of-play report as CSV: every event, then per item the plays started,
+     * completed and cut and the time on air, then the events that break the start/finish pairing
+     * @return Number of events in the report
+     */
+    public int exportDay(LocalDate day, ZoneId zone, Writer out) throws IOException {
+        long fromMs = day.atStartOfDay(zone).toInstant().toEpochMilli();
+        long toMs = day.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+        List<Entry> entries = query(fromMs, toMs);
+        String[][] names;
+        synchronized (this) {
+            names = items.toArray(new String[0][]);
+        }
+        // Quoted once per item; times are formatted by hand (the day has at most one offset change)
+        String[] itemColumns = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            itemColumns[i] = csv(names[i][0]) + "," + csv(names[i][1]);
+        }
+        ZoneRules rules = zone.getRules();
+        long offsetMs = rules.getOffset(Instant.ofEpochMilli(fromMs)).getTotalSeconds() * 1000L;
+        ZoneOffsetTransition transition = rules.nextTransition(Instant.ofEpochMilli(fromMs));
+        long transitionMs = (transition != null) ? transition.toEpochSecond() * 1000 : Long.MAX_VALUE;
+        long offsetAfterMs = (transition != null) ? transition.getOffsetAfter().getTotalSeconds() * 1000L : offsetMs;
+        
+        StringBuilder line = new StringBuilder(128);
+        out.write("# Proof of play " + day + " (" + zone + ")\n");
+        if (dropped.get() > 0) {
+            out.write("# " + dropped.get() + " events lost since the app started (log buffer full)\n");
+        }
+        out.write("time,event,kind,item,file,frame,played_s\n");
+        int[][] counts = new int[names.length][3];
+        long[] airedMs = new long[names.length];
+        int[] kinds = new int[names.length];
+        for (Entry entry : entries) {
+            line.setLength(0);
+            appendEvent(line, entry, itemColumns, offsetMs, transitionMs, offsetAfterMs);
+            line.append(',');
+            if (entry.event != EVENT_START) {
+                appendSeconds(line, entry.getPlayedMs());
+            }
+            out.append(line).append('\n');
+            if (entry.item < names.length) {
+                counts[entry.item][entry.event]++;
+                if (entry.event != EVENT_START) {
+                    airedMs[entry.item] += entry.getPlayedMs();
+                }
+                kinds[entry.item] = entry.kind;
+            }
+        }
+        
+        out.write("\n# Summary\nitem,file,kind,started,completed,cut,aired_s\n");
+        for (int i = 0; i < names.length; i++) {
+            if (counts[i][EVENT_START] + counts[i][EVENT_FINISH] + counts[i][EVENT_CUT] == 0) {
+                continue;
+            }
+            line.setLength(0);
+            line.append(itemColumns[i]).append(',').append(KIND_NAMES[kinds[i]]).append(',')
+                .append(counts[i][EVENT_START]).append(',').append(counts[i][EVENT_FINISH]).append(',')
+                .append(counts[i][EVENT_CUT]).append(',');
+            appendSeconds(line, airedMs[i]);
+            out.append(line).append('\n');
+        }
+        
+        Pairing pairing = checkPairing(entries, fromMs);
+        out.write("\n# Pairing: " + pairing.unpaired.size() + " unpaired, " + pairing.open.size() +
+                  " not ended by midnight\ntime,event,kind,item,file,frame,problem\n");
+        for (Entry entry : pairing.unpaired) {
+            line.setLength(0);
+            appendEvent(line, entry, itemColumns, offsetMs, transitionMs, offsetAfterMs);
+            line.append(entry.event == EVENT_START ? ",started again before it ended" : ",ended without a start");
+            out.append(line).append('\n');
+        }
+        for (Entry entry : pairing.open) {
+            line.setLength(0);
+            appendEvent(line, entry, itemColumns, offsetMs, transitionMs, offsetAfterMs);
+            line.append(",not ended");
+            out.append(line).append('\n');
+        }
+        out.flush();
+        return entries.size();
+    }
+    
+    /**
+     * Append an event's time, event, kind, item, file and frame columns
+     */
+    private static void appendEvent(StringBuilder line, Entry entry, String[] itemColumns, long offsetMs,
+                                    long transitionMs, long offsetAfterMs) {
+        long localMs = entry.timeMs + (entry.timeMs < transitionMs ? offsetMs : offsetAfterMs);
+        appendTime(line, Math.floorMod(localMs, 24 * 3600 * 1000L));
+        line.append(',').append(EVENT_NAMES[entry.event]).append(',').append(KIND_NAMES[entry.kind]).append(',');
+        line.append((entry.item < itemColumns.length) ? itemColumns[entry.item] : "#" + entry.item + ",");
+        line.append(',').append(entry.frame);
+    }
+    
+    private void runWriter() {
+        while (running) {
+            LockSupport.parkNanos(FLUSH_INTERVAL_MS * 1000000L);
+            synchronized (this) {
+                drain();
+            }
+        }
+    }
+    
+    /**
+     * Move the published entries from the ring to the current segment (and new names to the
+     * names file). Called with the lock held.
+     */
+    private void drain() {
+        writeNames();
+        if (channel == null) {
+            return;
+        }
+        writeBuffer.clear();
+        long sequence = tail;
+        while (published.get((int) (sequence & (RING_CAPACITY - 1))) == sequence + 1) {
+            int base = (int) (sequence & (RING_CAPACITY - 1)) * 4;
+            long meta = ring[base + 2];
+            writeBuffer.putLong(ring[base]);
+            writeBuffer.putLong(ring[base + 1]);
+            writeBuffer.putInt((int) (meta >>> 32));
+            writeBuffer.put((byte) (meta >> 8));
+            writeBuffer.put((byte) meta);
+            writeBuffer.putShort((short) 0);
+            writeBuffer.putLong(ring[base + 3]);
+            current.add(ring[base]);
+            sequence++;
+        }
+        // Free the slots only after copying them out
+        tail = sequence;
+        if (writeBuffer.position() == 0) {
+            return;
+        }
+        writeBuffer.flip();
+        try {
+            while (writeBuffer.hasRemaining()) {
+                channel.write(writeBuffer);
+            }
+            channel.force(false);
+            if (channel.size() >= SEGMENT_BYTES) {
+                closeSegment();
+                startSegment();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing play log", e);
+        }
+    }
+    
+    private void startSegment() {
+        long number = nextSegmentNumber++;
+        try {
+            FileChannel out = new RandomAccessFile(segmentFile(number), "rw").getChannel();
+            ByteBuffer header = ByteBuffer.allocate(RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.put(SEGMENT_MAGIC);
+            header.putInt(VERSION);
+            header.putInt(RECORD_BYTES);
+            header.putInt(EngineFormat.getSampleRate());
+            header.position(RECORD_BYTES);
+            header.flip();
+            out.truncate(0);
+            out.write(header);
+            channel = out;
+            current = new Segment(number);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not start play log segment " + number, e);
+            channel = null;
+            current = null;
+        }
+    }
+    
+    /**
+     * Close the current segment and record it in the index
+     */
+    private void closeSegment() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing play log segment", e);
+        }
+        channel = null;
+        if (current.records > 0) {
+            segments.add(current);
+        } else {
+            segmentFile(current.number).delete();
+        }
+        current = null;
+        
+        // Drop segments past retention
+        long cutoffMs = clock.currentTimeMillis() - RETENTION_MS;
+        while (!segments.isEmpty() && segments.get(0).maxTimeMs < cutoffMs) {
+            segmentFile(segments.remove(0).number).delete();
+        }
+        saveIndex();
+    }
+    
+    private void loadIndex() {
+        File file = new File(directory, INDEX_FILE);
+        if (file.exists()) {
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+                byte[] magic = new byte[INDEX_MAGIC.length];
+                buffer.get(magic);
+                if (!Arrays.equals(magic, INDEX_MAGIC) || buffer.getInt() != VERSION) {
+                    throw new IOException("Unknown play log index format");
+                }
+                int count = buffer.getInt();
+                for (int i = 0; i < count; i++) {
+                    Segment segment = new Segment(buffer.getLong());
+                    segment.minTimeMs = buffer.getLong();
+                    segment.maxTimeMs = buffer.getLong();
+                    segment.records = buffer.getLong();
+                    if (segmentFile(segment.number).exists()) {
+                        segments.add(segment);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "Rebuilding play log index", e);
+                segments.clear();
+            }
+        }
+        
+        // Segments the index does not know (the one open when the app was killed) are scanned
+        String[] names = directory.list();
+        List<Long> missing = new ArrayList<>();
+        if (names != null) {
+            for (String name : names) {
+                if (name.endsWith(".seg")) {
+                    try {
+                        long number = Long.parseLong(name.substring(0, name.length() - 4));
+                        nextSegmentNumber = Math.max(nextSegmentNumber, number + 1);
+                        if (!isIndexed(number)) {
+                            missing.add(number);
+                        }
+                    } catch (NumberFormatException e) {
+                        // Not a segment
+                    }
+                }
+            }
+        }
+        for (long number : missing) {
+            Segment segment = scanSegment(number);
+            if (segment != null && segment.records > 0) {
+                segments.add(segment);
+            } else if (segment != null) {
+                segmentFile(number).delete();
+            }
+        }
+        segments.sort((a, b) -> Long.compare(a.number, b.number));
+        if (!missing.isEmpty()) {
+            Log.d(TAG, "Indexed " + missing.size() + " play log segment(s) left open");
+            saveIndex();
+        }
+    }
+    
+    private boolean isIndexed(long number) {
+        for (Segment segment : segments) {
+            if (segment.number == number) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Rebuild a segment's index entry from its records, dropping a partly written last one
+     */
+    private Segment scanSegment(long number) {
+        File file = segmentFile(number);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long records = Math.max(0, (raf.length() - RECORD_BYTES) / RECORD_BYTES);
+            raf.setLength(RECORD_BYTES + records * RECORD_BYTES);
+            Segment segment = new Segment(number);
+            if (records > 0) {
+                MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, RECORD_BYTES,
+                        records * RECORD_BYTES);
+                map.order(ByteOrder.LITTLE_ENDIAN);
+                for (int i = 0; i < records; i++) {
+                    segment.add(map.getLong(i * RECORD_BYTES));
+                }
+            }
+            return segment;
+        } catch (IOException e) {
+            Log.w(TAG, "Unreadable play log segment " + file.getName(), e);
+            return null;
+        }
+    }
+    
+    private void saveIndex() {
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(12 + segments.size() * 32).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put(INDEX_MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(segments.size());
+            for (Segment segment : segments) {
+                buffer.putLong(segment.number);
+                buffer.putLong(segment.minTimeMs);
+                buffer.putLong(segment.maxTimeMs);
+                buffer.putLong(segment.records);
+            }
+            // Write to a temp file and rename so a crash never leaves a half-written index
+            File tempFile = new File(directory, INDEX_FILE + ".tmp");
+            FileOutputStream fos = new FileOutputStream(tempFile);
+            fos.write(buffer.array());
+            fos.getFD().sync();
+            fos.close();
+            if (!tempFile.renameTo(new File(directory, INDEX_FILE))) {
+                Log.e(TAG, "Could not replace play log index");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving play log index", e);
+        }
+    }
+    
+    private void loadNames() {
+        File file = new File(directory, NAMES_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        try (RandomAccessFile in = new RandomAccessFile(file, "rw")) {
+            long good = 0;
+            try {
+                while (in.getFilePointer() < in.length()) {
+                    int id = in.readInt();
+                    String name = in.readUTF();
+                    String source = in.readUTF();
+                    if (id != items.size()) {
+                        throw new IOException("Play log names out of order");
+                    }
+                    items.add(new String[]{name, source});
+                    itemIds.put(source + "\n" + name, id);
+                    good = in.getFilePointer();
+                }
+            } catch (EOFException e) {
+                // A name cut short by a crash: keep the ones before it
+                Log.w(TAG, "Play log names end early after " + items.size());
+                in.setLength(good);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading play log names", e);
+        }
+        namesWritten = items.size();
+    }
+    
+    /**
+     * Append names interned since the last call. Called with the lock held.
+     */
+    private void writeNames() {
+        if (namesWritten == items.size()) {
+            return;
+        }
+        File file = new File(directory, NAMES_FILE);
+        try (FileOutputStream fos = new FileOutputStream(file, true);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            for (int i = namesWritten; i < items.size(); i++) {
+                out.writeInt(i);
+                out.writeUTF(items.get(i)[0]);
+                out.writeUTF(items.get(i)[1]);
+            }
+            out.flush();
+            fos.getFD().sync();
+            namesWritten = items.size();
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing play log names", e);
+        }
+    }
+    
+    private File segmentFile(long number) {
+        return new File(directory, String.format(Locale.ROOT, "%08d.seg", number));
+    }
+    
+    /**
+     * Append a time of day as HH:mm:ss.SSS
+     */
+    private static void appendTime(StringBuilder line, long msOfDay) {
+        long seconds = msOfDay / 1000;
+        appendDigits(line, seconds / 3600, 2);
+        line.append(':');
+        appendDigits(line, seconds / 60 % 60, 2);
+        line.append(':');
+        appendDigits(line, seconds % 60, 2);
+        line.append('.');
+        appendDigits(line, msOfDay % 1000, 3);
+    }
+    
+    /**
+     * Append a duration as seconds with one decimal
+     */
+    private static void appendSeconds(StringBuilder line, long ms) {
+        long tenths = ms / 100;
+        line.append(tenths / 10).append('.').append(tenths % 10);
+    }
+    
+    private static void appendDigits(StringBuilder line, long value, int width) {
+        for (long limit = 10; width > 1; width--, limit *= 10) {
+            if (value < limit) {
+                line.append('0');
+            }
+        }
+        line.append(value);
+    }
+    
+    private static String csv(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+}
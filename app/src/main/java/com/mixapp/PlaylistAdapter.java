@@ -14,19 +14,19 @@ import java.util.List;
  * Adapter for displaying playlists in a RecyclerView
  */
 public class PlaylistAdapter extends RecyclerView.Adapter<PlaylistAdapter.PlaylistViewHolder> {
-    private List<Playlist> playlists;
+    private List<PlaylistSummary> playlists;
     private OnPlaylistClickListener listener;
     private OnPlaylistDeleteListener deleteListener;
     
     public interface OnPlaylistClickListener {
-        void onPlaylistClick(Playlist playlist);
+        void onPlaylistClick(PlaylistSummary playlist);
     }
     
     public interface OnPlaylistDeleteListener {
-        void onPlaylistDelete(Playlist playlist);
+        void onPlaylistDelete(PlaylistSummary playlist);
     }
     
-    public PlaylistAdapter(List<Playlist> playlists, OnPlaylistClickListener listener, OnPlaylistDeleteListener deleteListener) {
+    public PlaylistAdapter(List<PlaylistSummary> playlists, OnPlaylistClickListener listener, OnPlaylistDeleteListener deleteListener) {
         this.playlists = playlists != null ? new ArrayList<>(playlists) : new ArrayList<>();
         this.listener = listener;
         this.deleteListener = deleteListener;
@@ -42,10 +42,11 @@ public class PlaylistAdapter extends RecyclerView.Adapter<PlaylistAdapter.Playli
     
     @Override
     public void onBindViewHolder(@NonNull PlaylistViewHolder holder, int position) {
-        Playlist playlist = playlists.get(position);
+        PlaylistSummary playlist = playlists.get(position);
         holder.tvName.setText(playlist.getName());
-        holder.tvInfo.setText(playlist.getTracks().size() + " tracks, " + 
-                             playlist.getAnnouncements().size() + " announcements");
+        holder.tvInfo.setText(playlist.getTrackCount() + " tracks, " + 
+                             playlist.getAnnouncementCount() + " announcements, " +
+                             formatDuration(playlist.getDurationMs()));
         
         holder.itemView.setOnClickListener(v -> {
             if (listener != null) {
@@ -65,11 +66,22 @@ public class PlaylistAdapter extends RecyclerView.Adapter<PlaylistAdapter.Playli
         return playlists.size();
     }
     
-    public void updateList(List<Playlist> newPlaylists) {
+    public void updateList(List<PlaylistSummary> newPlaylists) {
         this.playlists = newPlaylists != null ? new ArrayList<>(newPlaylists) : new ArrayList<>();
         notifyDataSetChanged();
     }
     
+    /**
+     * Format milliseconds to H:MM:SS (or M:SS under an hour)
+     */
+    private static String formatDuration(long milliseconds) {
+        long seconds = milliseconds / 1000;
+        if (seconds >= 3600) {
+            return String.format("%d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+        }
+        return String.format("%d:%02d", seconds / 60, seconds % 60);
+    }
+    
     static class PlaylistViewHolder extends RecyclerView.ViewHolder {
         TextView tvName;
         TextView tvInfo;
@@ -0,0 +1,314 @@
+package com.mixapp;
+
+import android.util.Log;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Single-file playlist bundle: a playlist file plus the stored media it uses, for moving a
+ * configured playlist to another device without decoding anything again.
+ *
+ * Layout: magic, manifest length (int), manifest JSON (UTF-8), then the bytes of every file in
+ * manifest order. The manifest holds the playlist JSON, each file's name, size and CRC-32, and
+ * what to register for each cache (length, kept source). Payloads are copied channel to channel
+ * with transferTo, so they never pass through the Java heap.
+ */
+class PlaylistBundle {
+    private static final String TAG = "PlaylistBundle";
+    private static final byte[] MAGIC = {'M', 'I', 'X', 'B', 'N', 'D', 'L', '1'};
+    private static final int VERSION = 1;
+    // Sanity limit for the manifest length read from a bundle
+    private static final int MAX_MANIFEST_BYTES = 16 * 1024 * 1024;
+    // Direct buffer for checksumming (outside the Java heap)
+    private static final int CRC_BUFFER_BYTES = 256 * 1024;
+    
+    /**
+     * One file stored in a bundle
+     */
+    private static class FileEntry {
+        final String name;
+        final long size;
+        final long crc;
+        
+        FileEntry(String name, long size, long crc) {
+            this.name = name;
+            this.size = size;
+            this.crc = crc;
+        }
+    }
+    
+    private PlaylistBundle() {
+    }
+    
+    /**
+     * Write a playlist and the caches it uses to a bundle. A cache that was evicted is stored as
+     * its kept source only and is decoded again on the receiving side when played.
+     * @param playlistJson The playlist file contents
+     * @param directory Where the cache files live
+     * @param out Bundle to write, at its current position
+     * @return Bytes written
+     */
+    static long write(JSONObject playlistJson, MediaCache mediaCache, File directory, FileChannel out)
+            throws IOException, JSONException {
+        long startTime = System.currentTimeMillis();
+        JSONArray caches = new JSONArray();
+        Set<String> fileNames = new LinkedHashSet<>();
+        for (String name : getDataFileNames(playlistJson)) {
+            File cacheFile = new File(directory, name);
+            if (!MediaCache.isCacheFileName(name)) {
+                throw new IOException(name + " has not been moved to the media store yet, try again shortly");
+            }
+            if (DecodeProgress.get(cacheFile) != null) {
+                throw new IOException(name + " is still importing");
+            }
+            File source = mediaCache.getSource(cacheFile);
+            if (!cacheFile.exists() && source == null) {
+                throw new IOException(name + " is missing");
+            }
+            JSONObject cache = new JSONObject();
+            cache.put("name", name);
+            cache.put("sampleCount", mediaCache.getRecordedSampleCount(cacheFile));
+            if (cacheFile.exists()) {
+                fileNames.add(name);
+            }
+            if (source != null) {
+                // Lets the receiving side evict the cache too
+                cache.put("source", source.getName());
+                fileNames.add(source.getName());
+            }
+            caches.put(cache);
+        }
+        
+        // Checksums go in the manifest, ahead of the payloads
+        List<FileEntry> files = new ArrayList<>();
+        JSONArray filesJson = new JSONArray();
+        for (String name : fileNames) {
+            File file = new File(directory, name);
+            FileEntry entry;
+            try (FileInputStream in = new FileInputStream(file)) {
+                FileChannel channel = in.getChannel();
+                entry = new FileEntry(name, channel.size(), crc32(channel, 0, channel.size()));
+            }
+            files.add(entry);
+            JSONObject fileJson = new JSONObject();
+            fileJson.put("name", entry.name);
+            fileJson.put("size", entry.size);
+            fileJson.put("crc32", entry.crc);
+            filesJson.put(fileJson);
+        }
+        
+        JSONObject manifest = new JSONObject();
+        manifest.put("version", VERSION);
+        manifest.put("playlist", playlistJson);
+        manifest.put("caches", caches);
+        manifest.put("files", filesJson);
+        byte[] manifestBytes = manifest.toString().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 4 + manifestBytes.length);
+        header.put(MAGIC).putInt(manifestBytes.length).put(manifestBytes);
+        header.flip();
+        while (header.hasRemaining()) {
+            out.write(header);
+        }
+        long total = header.limit();
+        
+        for (FileEntry entry : files) {
+            try (FileInputStream in = new FileInputStream(new File(directory, entry.name))) {
+                FileChannel channel = in.getChannel();
+                long position = 0;
+                while (position < entry.size) {
+                    long transferred = channel.transferTo(position, entry.size - position, out);
+                    if (transferred <= 0) {
+                        throw new IOException(entry.name + " changed during export");
+                    }
+                    position += transferred;
+                }
+            }
+            total += entry.size;
+        }
+        out.force(false);
+        Log.d(TAG, "Exported " + files.size() + " file(s), " + total + " bytes in " +
+              (System.currentTimeMillis() - startTime) + " ms");
+        return total;
+    }
+    
+    /**
+     * Read a bundle into the store: every file is copied next to the caches, checked against its
+     * checksum and registered. Caches the store already holds are skipped.
+     * @param in Bundle to read, from position 0
+     * @param directory Where the cache files live
+     * @return The playlist file contents (the caller assigns an ID and saves it)
+     */
+    static JSONObject read(FileChannel in, MediaCache mediaCache, File directory) throws IOException, JSONException {
+        long startTime = System.currentTimeMillis();
+        ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 4);
+        readFully(in, header, 0);
+        byte[] magic = new byte[MAGIC.length];
+        header.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a playlist bundle");
+        }
+        int manifestLength = header.getInt();
+        if (manifestLength <= 0 || manifestLength > MAX_MANIFEST_BYTES) {
+            throw new IOException("Corrupt bundle manifest");
+        }
+        ByteBuffer manifestBuffer = ByteBuffer.allocate(manifestLength);
+        readFully(in, manifestBuffer, header.limit());
+        JSONObject manifest = new JSONObject(new String(manifestBuffer.array(), StandardCharsets.UTF_8));
+        if (manifest.getInt("version") > VERSION) {
+            throw new IOException("Bundle was written by a newer version of the app");
+        }
+        
+        JSONArray filesJson = manifest.getJSONArray("files");
+        List<FileEntry> files = new ArrayList<>();
+        long needed = 0;
+        for (int i = 0; i < filesJson.length(); i++) {
+            JSONObject fileJson = filesJson.getJSONObject(i);
+            FileEntry entry = new FileEntry(fileJson.getString("name"), fileJson.getLong("size"),
+                    fileJson.getLong("crc32"));
+            checkName(entry.name);
+            files.add(entry);
+            if (!new File(directory, entry.name).exists()) {
+                needed += entry.size;
+            }
+        }
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        if (directory.getUsableSpace() < needed) {
+            throw new IOException("Not enough storage: " + needed / (1024 * 1024) + " MB needed");
+        }
+        
+        long position = header.limit() + manifestLength;
+        int copied = 0;
+        for (FileEntry entry : files) {
+            File target = new File(directory, entry.name);
+            // Stored files are immutable and named after their contents - one on disk is the same file
+            if (!target.exists() && DecodeProgress.get(target) == null) {
+                copyChecked(in, position, entry, target);
+                copied++;
+            }
+            position += entry.size;
+        }
+        
+        JSONArray caches = manifest.getJSONArray("caches");
+        for (int i = 0; i < caches.length(); i++) {
+            JSONObject cache = caches.getJSONObject(i);
+            String name = cache.getString("name");
+            checkName(name);
+            File cacheFile = new File(directory, name);
+            File source = cache.has("source") ? new File(directory, cache.getString("source")) : null;
+            if (source != null) {
+                checkName(source.getName());
+            }
+            if (cacheFile.exists() || (source != null && source.exists())) {
+                mediaCache.register(cacheFile, cache.getLong("sampleCount"), source);
+            }
+        }
+        Log.d(TAG, "Imported " + copied + " of " + files.size() + " file(s) in " +
+              (System.currentTimeMillis() - startTime) + " ms");
+        return manifest.getJSONObject("playlist");
+    }
+    
+    /**
+     * Copy one payload to a temp file, verify it and rename it into place
+     */
+    private static void copyChecked(FileChannel in, long position, FileEntry entry, File target) throws IOException {
+        File tempFile = new File(target.getPath() + ".tmp");
+        try {
+            try (FileOutputStream out = new FileOutputStream(tempFile)) {
+                FileChannel channel = out.getChannel();
+                long done = 0;
+                while (done < entry.size) {
+                    long transferred = in.transferTo(position + done, entry.size - done, channel);
+                    if (transferred <= 0) {
+                        throw new EOFException("Bundle is truncated at " + entry.name);
+                    }
+                    done += transferred;
+                }
+                out.getFD().sync();
+            }
+            long crc;
+            try (FileInputStream check = new FileInputStream(tempFile)) {
+                crc = crc32(check.getChannel(), 0, entry.size);
+            }
+            if (crc != entry.crc) {
+                throw new IOException("Checksum mismatch for " + entry.name);
+            }
+            if (!tempFile.renameTo(target)) {
+                throw new IOException("Could not store " + entry.name);
+            }
+        } finally {
+            tempFile.delete();
+        }
+    }
+    
+    /**
+     * CRC-32 of a range of a file, read through a direct buffer
+     */
+    private static long crc32(FileChannel channel, long position, long size) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(CRC_BUFFER_BYTES);
+        long end = position + size;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            buffer.flip();
+            crc.update(buffer);
+            position += read;
+        }
+        return crc.getValue();
+    }
+    
+    private static void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = in.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Bundle is truncated");
+            }
+            position += read;
+        }
+        buffer.flip();
+    }
+    
+    /**
+     * Only plain store names are accepted from a bundle (no paths, nothing outside the store)
+     */
+    static void checkName(String name) throws IOException {
+        if (!MediaCache.isCacheFileName(name) || name.contains("/") || name.contains("..")) {
+            throw new IOException("Bad file name in bundle: " + name);
+        }
+    }
+    
+    /**
+     * Data file names of a playlist's items, in order, without duplicates
+     */
+    private static Set<String> getDataFileNames(JSONObject playlistJson) throws JSONException {
+        Set<String> names = new LinkedHashSet<>();
+        for (String key : new String[]{"tracks", "announcements"}) {
+            JSONArray items = playlistJson.getJSONArray(key);
+            for (int i = 0; i < items.length(); i++) {
+                names.add(items.getJSONObject(i).getString("dataFile"));
+            }
+        }
+        return names;
+    }
+}
@@ -2,6 +2,8 @@ package com.mixapp;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -12,27 +14,86 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
- * Manages playlists - creation, storage, and retrieval
+ * Manages playlists - creation, storage, and retrieval.
+ * Only the summary index is read at startup; a playlist's items are read when it is opened.
+ * Saves never touch the disk on the calling thread - they are handed to a PlaylistWriter.
  */
 public class PlaylistManager {
     private static final String TAG = "PlaylistManager";
     private static final String PREFS_NAME = "PlaylistManager";
     private static final String KEY_PLAYLISTS = "playlists";
+    private static final String INDEX_FILE = "playlist_index.json";
+    
+    /**
+     * Receives a playlist loaded in the background (on the main thread; null if it could not be read)
+     */
+    public interface LoadCallback {
+        void onLoaded(Playlist playlist);
+    }
     
     private Context context;
-    private List<Playlist> playlists;
+    private final List<PlaylistSummary> summaries = new ArrayList<>();
     private SharedPreferences prefs;
+    private MediaCache mediaCache;
+    private final MediaLibrary library;
+    private final PlaylistWriter writer;
+    private final ExecutorService backgroundExecutor = Executors.newSingleThreadExecutor();
+    // Separate from backgroundExecutor so opening a playlist never waits behind a sweep or migration
+    private final ExecutorService loadExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Set<String> migrationScheduled = new HashSet<>();
+    private final Set<String> conversionScheduled = new HashSet<>();
+    // Re-decodes of evicted caches; separate so a restore never waits behind a conversion
+    private final ExecutorService restoreExecutor = Executors.newSingleThreadExecutor();
+    private final Set<String> restoreScheduled = new HashSet<>();
+    private volatile long storageBudgetBytes = 0; // 0: no limit
+    private volatile String playlistInUse;        // Open in the mixer
+    private volatile String upcomingPlaylist;     // Scheduled to play next
     
     public PlaylistManager(Context context) {
+        this(context, new MediaLibrary(context, getPlaylistDirectory(context)));
+    }
+    
+    /**
+     * @param library Catalog of the playlists' assets (tests pass one that needs no database)
+     */
+    PlaylistManager(Context context, MediaLibrary library) {
         this.context = context;
         this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-        this.playlists = new ArrayList<>();
-        loadPlaylists();
+        long startTime = System.nanoTime();
+        this.mediaCache = new MediaCache(getPlaylistDirectory());
+        this.library = library;
+        mediaCache.setLibrary(library);
+        this.writer = new PlaylistWriter(getPlaylistDirectory(), INDEX_FILE, mediaCache, library);
+        
+        // Remove legacy cache names left behind by earlier migrations before anything can
+        // pick them up again (queued first, so it runs before any migration a load schedules)
+        backgroundExecutor.execute(this::deleteStaleLegacyFiles);
+        // The media index is large (every playlist of every cache) - read it off the main thread
+        backgroundExecutor.execute(mediaCache::load);
+        loadIndex();
+        backgroundExecutor.execute(this::catalogIfNeeded);
+        backgroundExecutor.execute(mediaCache::sweepOrphans);
+        Log.d(TAG, "Startup: index of " + summaries.size() + " playlists read in " +
+              (System.nanoTime() - startTime) / 1000000 + " ms");
+    }
+    
+    /**
+     * Get the shared content-addressed cache store
+     */
+    public MediaCache getMediaCache() {
+        return mediaCache;
     }
     
     /**
@@ -41,70 +102,278 @@ public class PlaylistManager {
     public Playlist createPlaylist(String name) {
         String id = UUID.randomUUID().toString();
         Playlist playlist = new Playlist(name, id);
-        playlists.add(playlist);
         savePlaylist(playlist);
         Log.d(TAG, "Created playlist: " + name);
         return playlist;
     }
     
     /**
-     * Get all playlists
+     * Get the library catalog of all stored assets
+     */
+    public MediaLibrary getLibrary() {
+        return library;
+    }
+    
+    /**
+     * Limit the size of the playlist store. Decoded caches with a kept source are evicted,
+     * least recently used first, to stay under it.
+     * @param bytes The budget, or 0 for no limit
+     */
+    public void setStorageBudget(long bytes) {
+        storageBudgetBytes = bytes;
+        trimStorage();
+    }
+    
+    /**
+     * Evict caches in the background if the store is over budget. Caches of the playlist in use
+     * and the upcoming one are never evicted.
+     */
+    public void trimStorage() {
+        final long budget = storageBudgetBytes;
+        if (budget <= 0) {
+            return;
+        }
+        final Set<String> keep = new HashSet<>();
+        if (playlistInUse != null) {
+            keep.add(playlistInUse);
+        }
+        if (upcomingPlaylist != null) {
+            keep.add(upcomingPlaylist);
+        }
+        backgroundExecutor.execute(() -> {
+            int evicted = mediaCache.evict(budget, keep);
+            if (evicted > 0) {
+                Log.d(TAG, "Evicted " + evicted + " cache(s) to stay within " + budget / (1024 * 1024) + " MB");
+            }
+        });
+    }
+    
+    /**
+     * Note that a playlist was loaded for playback: its caches count as just used and are kept
+     * out of eviction. Called from the UI - the media cache is only touched in the background,
+     * where a sweep or eviction holding its lock delays nothing the user waits for.
+     */
+    public void setPlaylistInUse(Playlist playlist) {
+        playlistInUse = playlist.getId();
+        if (playlist.getId().equals(upcomingPlaylist)) {
+            upcomingPlaylist = null;
+        }
+        final Set<String> cacheNames = getReferencedCacheNames(playlist);
+        backgroundExecutor.execute(() -> mediaCache.touch(cacheNames));
+        trimStorage();
+    }
+    
+    /**
+     * Get a playlist ready ahead of its scheduled playback: keep its caches and start restoring
+     * any that were evicted. Blocks - call it off the main thread.
+     * @return The loaded playlist, or null if it could not be read
+     */
+    public Playlist prefetch(String playlistId) {
+        upcomingPlaylist = playlistId;
+        // Loading restores evicted items as a side effect
+        return loadPlaylist(playlistId);
+    }
+    
+    /**
+     * The file to play for a playlist item: an evicted cache starts decoding again from its kept
+     * source (and plays as it is written), an old-rate cache is converted to the engine rate
+     */
+    public File ensureAvailable(File cacheFile) {
+        if (mediaCache.isEvicted(cacheFile)) {
+            return restoreEvicted(cacheFile);
+        }
+        return useEngineRate(cacheFile);
+    }
+    
+    /**
+     * Decode an evicted cache again from its kept source, at the engine rate
+     * @return The file to play now (being written)
+     */
+    private File restoreEvicted(final File cacheFile) {
+        int engineRate = EngineFormat.getSampleRate();
+        final File target = mediaCache.getRateVariant(cacheFile, engineRate);
+        if (DecodeProgress.get(target) != null) {
+            return target;
+        }
+        synchronized (restoreScheduled) {
+            if (!restoreScheduled.add(target.getName())) {
+                return target;
+            }
+        }
+        final File source = mediaCache.getSource(cacheFile);
+        long estimatedFrames = mediaCache.getRecordedSampleCount(cacheFile) * engineRate / MediaCache.getSampleRate(cacheFile);
+        final DecodeProgress progress;
+        try {
+            progress = DecodeProgress.begin(target, estimatedFrames);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not start restoring " + cacheFile.getName(), e);
+            synchronized (restoreScheduled) {
+                restoreScheduled.remove(target.getName());
+            }
+            return cacheFile;
+        }
+        restoreExecutor.execute(() -> {
+            try {
+                MP3Decoder.DecodeResult result = MP3Decoder.decodeAudioToFile(source, target, progress);
+                mediaCache.register(target, result.sampleCount, source);
+                progress.finish(result.sampleCount);
+                if (!target.equals(cacheFile)) {
+                    replaceDataFile(cacheFile.getName(), target.getName(), result.sampleCount);
+                }
+                Log.d(TAG, "Restored evicted cache " + target.getName());
+            } catch (Exception e) {
+                Log.e(TAG, "Error restoring " + cacheFile.getName(), e);
+                progress.fail();
+                target.delete();
+            } finally {
+                synchronized (restoreScheduled) {
+                    restoreScheduled.remove(target.getName());
+                }
+            }
+        });
+        return target;
+    }
+    
+    /**
+     * Write all queued playlist saves now (e.g. when the app goes to the background).
+     * Blocks until they are on disk, for at most a couple of seconds. Cache use times are
+     * written in the background.
+     */
+    public void flush() {
+        writer.flush();
+        backgroundExecutor.execute(mediaCache::saveUsage);
+    }
+    
+    /**
+     * Write a playlist and the media it uses to a single-file bundle. Blocks - call it off the
+     * main thread.
+     * @param out Bundle file to write
+     * @return Bytes written
+     */
+    public long exportPlaylist(String playlistId, FileChannel out) throws IOException {
+        try {
+            JSONObject json = readPlaylistJson(playlistId);
+            if (json == null) {
+                throw new IOException("No such playlist: " + playlistId);
+            }
+            return PlaylistBundle.write(json, mediaCache, getPlaylistDirectory(), out);
+        } catch (JSONException e) {
+            throw new IOException("Could not read playlist " + playlistId, e);
+        }
+    }
+    
+    /**
+     * Add the playlist in a bundle, storing its media as-is (no decoding). A playlist that already
+     * exists here is imported as a copy. Blocks - call it off the main thread.
+     * @param in Bundle file to read
+     * @return The new playlist's summary
+     */
+    public PlaylistSummary importPlaylist(FileChannel in) throws IOException {
+        try {
+            JSONObject json = PlaylistBundle.read(in, mediaCache, getPlaylistDirectory());
+            String id = json.getString("id");
+            if (getSummaryById(id) != null) {
+                id = UUID.randomUUID().toString();
+                json.put("id", id);
+            }
+            writer.write(id, json, getCacheNames(json));
+            PlaylistSummary summary = summarize(json, System.currentTimeMillis());
+            updateSummary(summary);
+            Log.d(TAG, "Imported playlist: " + summary.getName());
+            trimStorage();
+            return summary;
+        } catch (JSONException e) {
+            throw new IOException("Corrupt bundle manifest", e);
+        }
+    }
+    
+    /**
+     * Get the summaries of all playlists, in creation order
      */
-    public List<Playlist> getAllPlaylists() {
-        return new ArrayList<>(playlists);
+    public List<PlaylistSummary> getPlaylistSummaries() {
+        synchronized (summaries) {
+            return new ArrayList<>(summaries);
+        }
     }
     
     /**
-     * Get playlist by ID
+     * Get a playlist's summary by ID
      */
-    public Playlist getPlaylistById(String id) {
-        for (Playlist playlist : playlists) {
-            if (playlist.getId().equals(id)) {
-                return playlist;
+    public PlaylistSummary getSummaryById(String id) {
+        synchronized (summaries) {
+            for (PlaylistSummary summary : summaries) {
+                if (summary.getId().equals(id)) {
+                    return summary;
+                }
             }
         }
         return null;
     }
     
+    /**
+     * Read a playlist's items on a background thread and hand it to the callback on the main thread
+     */
+    public void loadPlaylistAsync(final String playlistId, final LoadCallback callback) {
+        loadExecutor.execute(() -> {
+            long startTime = System.nanoTime();
+            final Playlist playlist = loadPlaylist(playlistId);
+            Log.d(TAG, "Opened playlist " + playlistId + " in " + (System.nanoTime() - startTime) / 1000000 + " ms");
+            mainHandler.post(() -> callback.onLoaded(playlist));
+        });
+    }
+    
     /**
      * Delete a playlist
      */
     public boolean deletePlaylist(String id) {
-        Playlist playlist = getPlaylistById(id);
-        if (playlist != null) {
-            playlists.remove(playlist);
-            deletePlaylistFiles(id);
-            savePlaylistList();
-            Log.d(TAG, "Deleted playlist: " + playlist.getName());
-            return true;
+        PlaylistSummary summary;
+        synchronized (summaries) {
+            summary = getSummaryById(id);
+            if (summary == null) {
+                return false;
+            }
+            summaries.remove(summary);
+            saveIndex();
         }
-        return false;
+        // After any write of this playlist already under way, so it can't recreate the file
+        writer.discard(id, () -> deletePlaylistFiles(id));
+        Log.d(TAG, "Deleted playlist: " + summary.getName());
+        return true;
     }
     
     /**
-     * Update playlist name
+     * Update playlist name (rewrites only the name, so the playlist need not be loaded)
      */
     public boolean updatePlaylistName(String id, String newName) {
-        Playlist playlist = getPlaylistById(id);
-        if (playlist != null) {
-            playlist.setName(newName);
-            savePlaylist(playlist);
-            return true;
+        PlaylistSummary summary = getSummaryById(id);
+        if (summary == null) {
+            return false;
         }
-        return false;
+        try {
+            JSONObject json = readPlaylistJson(id);
+            if (json == null) {
+                return false;
+            }
+            json.put("name", newName);
+            writer.write(id, json, getCacheNames(json));
+        } catch (Exception e) {
+            Log.e(TAG, "Error renaming playlist", e);
+            return false;
+        }
+        synchronized (summaries) {
+            summary.setName(newName);
+            summary.setModifiedTime(System.currentTimeMillis());
+            saveIndex();
+        }
+        return true;
     }
     
     /**
-     * Save a playlist with all its data
+     * Save a playlist with all its data. Takes a snapshot and returns; the file is written
+     * in the background, together with any further saves that follow shortly.
      */
     public void savePlaylist(Playlist playlist) {
         try {
-            File playlistDir = getPlaylistDirectory();
-            if (!playlistDir.exists()) {
-                playlistDir.mkdirs();
-            }
-            
-            File playlistFile = new File(playlistDir, playlist.getId() + ".json");
             JSONObject json = new JSONObject();
             json.put("id", playlist.getId());
             json.put("name", playlist.getName());
@@ -119,6 +388,8 @@ public class PlaylistManager {
                 // Get filename from the PCM file path
                 String trackFileName = track.pcmFile.getName();
                 trackJson.put("dataFile", trackFileName);
+                trackJson.put("sampleCount", track.sampleCount);
+                trackJson.put("sampleRate", EngineFormat.getSampleRate());
                 tracksArray.put(trackJson);
             }
             json.put("tracks", tracksArray);
@@ -133,17 +404,33 @@ public class PlaylistManager {
                 // Get filename from the PCM file path
                 String annFileName = ann.pcmFile.getName();
                 annJson.put("dataFile", annFileName);
+                annJson.put("sampleCount", ann.sampleCount);
+                annJson.put("sampleRate", EngineFormat.getSampleRate());
+                // Rotation rules (only stored when set)
+                if (ann.sponsor != null) {
+                    annJson.put("sponsor", ann.sponsor);
+                }
+                if (ann.competitorGroup != null) {
+                    annJson.put("competitorGroup", ann.competitorGroup);
+                }
+                if (ann.playsPerHour > 0) {
+                    annJson.put("playsPerHour", ann.playsPerHour);
+                }
+                if (ann.minSpacingSeconds > 0) {
+                    annJson.put("minSpacingSeconds", ann.minSpacingSeconds);
+                }
+                if (ann.competitorSeparationSeconds > 0) {
+                    annJson.put("competitorSeparationSeconds", ann.competitorSeparationSeconds);
+                }
                 announcementsArray.put(annJson);
             }
             json.put("announcements", announcementsArray);
             
-            // Write JSON file
-            FileOutputStream fos = new FileOutputStream(playlistFile);
-            fos.write(json.toString().getBytes());
-            fos.close();
+            // Queue the write (cache references are updated once the file is on disk)
+            writer.write(playlist.getId(), json, getReferencedCacheNames(playlist));
             
-            // Update playlist list
-            savePlaylistList();
+            // Keep the summary index in step
+            updateSummary(PlaylistSummary.of(playlist, System.currentTimeMillis()));
             
             Log.d(TAG, "Saved playlist: " + playlist.getName());
         } catch (Exception e) {
@@ -151,25 +438,40 @@ public class PlaylistManager {
         }
     }
     
+    /**
+     * Record the real length of a file decoded on the fly (see AudioMixer.Listener) in the
+     * playlist's items that use it, and save the playlist if any does
+     */
+    public void updateLength(Playlist playlist, File file, long sampleCount) {
+        boolean used = false;
+        for (AudioMixer.TrackData track : playlist.getTracks()) {
+            if (track.pcmFile.equals(file)) {
+                track.sampleCount = sampleCount;
+                track.lengthExact = true;
+                used = true;
+            }
+        }
+        for (AudioMixer.AnnouncementData ann : playlist.getAnnouncements()) {
+            if (ann.pcmFile.equals(file)) {
+                ann.sampleCount = sampleCount;
+                ann.lengthExact = true;
+                used = true;
+            }
+        }
+        if (used) {
+            savePlaylist(playlist);
+        }
+    }
+    
     /**
      * Load a playlist with all its data
      */
     public Playlist loadPlaylist(String playlistId) {
         try {
-            File playlistDir = getPlaylistDirectory();
-            File playlistFile = new File(playlistDir, playlistId + ".json");
-            
-            if (!playlistFile.exists()) {
+            JSONObject json = readPlaylistJson(playlistId);
+            if (json == null) {
                 return null;
             }
-            
-            // Read JSON file
-            FileInputStream fis = new FileInputStream(playlistFile);
-            byte[] buffer = new byte[(int) playlistFile.length()];
-            fis.read(buffer);
-            fis.close();
-            
-            JSONObject json = new JSONObject(new String(buffer));
             String id = json.getString("id");
             String name = json.getString("name");
             Playlist playlist = new Playlist(name, id);
@@ -180,11 +482,8 @@ public class PlaylistManager {
                 JSONObject trackJson = tracksArray.getJSONObject(i);
                 String trackName = trackJson.getString("name");
                 String dataFile = trackJson.getString("dataFile");
-                File pcmFile = new File(getPlaylistDirectory(), dataFile);
-                
-                // Calculate sample count from file size (16-bit stereo = 4 bytes per sample)
-                long fileSizeBytes = pcmFile.exists() ? pcmFile.length() : 0;
-                long sampleCount = fileSizeBytes / (2 * 2); // 2 bytes per sample * 2 channels
+                File pcmFile = ensureAvailable(new File(getPlaylistDirectory(), dataFile));
+                long sampleCount = getItemSampleCount(pcmFile, trackJson);
                 
                 AudioMixer.TrackData track = new AudioMixer.TrackData(trackName, pcmFile, sampleCount);
                 playlist.addTrack(track);
@@ -196,18 +495,21 @@ public class PlaylistManager {
                 JSONObject annJson = announcementsArray.getJSONObject(i);
                 String annName = annJson.getString("name");
                 String dataFile = annJson.getString("dataFile");
-                File pcmFile = new File(getPlaylistDirectory(), dataFile);
-                
-                // Calculate sample count from file size (16-bit stereo = 4 bytes per sample)
-                long fileSizeBytes = pcmFile.exists() ? pcmFile.length() : 0;
-                long sampleCount = fileSizeBytes / (2 * 2); // 2 bytes per sample * 2 channels
+                File pcmFile = ensureAvailable(new File(getPlaylistDirectory(), dataFile));
+                long sampleCount = getItemSampleCount(pcmFile, annJson);
                 
                 AudioMixer.AnnouncementData ann = new AudioMixer.AnnouncementData(annName, pcmFile, sampleCount);
+                ann.sponsor = annJson.has("sponsor") ? annJson.getString("sponsor") : null;
+                ann.competitorGroup = annJson.has("competitorGroup") ? annJson.getString("competitorGroup") : null;
+                ann.playsPerHour = annJson.optInt("playsPerHour", 0);
+                ann.minSpacingSeconds = annJson.optInt("minSpacingSeconds", 0);
+                ann.competitorSeparationSeconds = annJson.optInt("competitorSeparationSeconds", 0);
                 playlist.addAnnouncement(ann);
             }
             
             Log.d(TAG, "Loaded playlist: " + name + " (" + playlist.getTracks().size() + " tracks, " + 
                   playlist.getAnnouncements().size() + " announcements)");
+            scheduleMigrationIfNeeded(playlist);
             return playlist;
         } catch (Exception e) {
             Log.e(TAG, "Error loading playlist", e);
@@ -215,6 +517,145 @@ public class PlaylistManager {
         }
     }
     
+    /**
+     * Length of a playlist item in frames at the engine rate
+     */
+    private static long getItemSampleCount(File dataFile, JSONObject itemJson) {
+        DecodeProgress decoding = DecodeProgress.get(dataFile);
+        if (decoding != null) {
+            // Still being imported or converted - the file is only as long as what is written so far
+            return decoding.getTotalFrames();
+        }
+        if (!dataFile.exists()) {
+            return 0;
+        }
+        if (AudioStream.isPCMCache(dataFile)) {
+            try {
+                return PCMCacheHeader.getFrameCount(dataFile);
+            } catch (IOException e) {
+                Log.w(TAG, "Bad PCM cache " + dataFile.getName() + ", using the stored length", e);
+                return getStoredSampleCount(itemJson);
+            }
+        }
+        // Compressed sources and ADPCM caches use the count stored at import, at the rate saved with it
+        return getStoredSampleCount(itemJson);
+    }
+    
+    /**
+     * Map a decoded cache written at another sample rate (e.g. before the engine followed the
+     * device's output rate) to its variant at the engine rate, converting it once in the background.
+     * Raw PCM variants play while they are being written; ADPCM ones are used once complete.
+     * @return The file to play now
+     */
+    private File useEngineRate(File cacheFile) {
+        int engineRate = EngineFormat.getSampleRate();
+        boolean raw = AudioStream.isPCMCache(cacheFile);
+        if (!(raw || AudioStream.isAdpcmCache(cacheFile)) || !MediaCache.isCacheFileName(cacheFile.getName()) ||
+            MediaCache.getSampleRate(cacheFile) == engineRate) {
+            return cacheFile;
+        }
+        File target = mediaCache.getRateVariant(cacheFile, engineRate);
+        if (mediaCache.getSampleCount(target) >= 0 || DecodeProgress.get(target) != null) {
+            return target;
+        }
+        if (!cacheFile.exists()) {
+            return cacheFile;
+        }
+        synchronized (conversionScheduled) {
+            if (!conversionScheduled.add(target.getName())) {
+                return cacheFile;
+            }
+        }
+        
+        DecodeProgress progress = null;
+        if (raw) {
+            int sourceRate = MediaCache.getSampleRate(cacheFile);
+            try {
+                long estimatedFrames = PCMCacheHeader.getFrameCount(cacheFile) * engineRate / sourceRate;
+                progress = DecodeProgress.begin(target, estimatedFrames);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not start converting " + cacheFile.getName(), e);
+                return cacheFile;
+            }
+        }
+        final DecodeProgress conversion = progress;
+        backgroundExecutor.execute(() -> convertCache(cacheFile, target, conversion));
+        return (conversion != null) ? target : cacheFile;
+    }
+    
+    /**
+     * Resample a cache to the engine rate and point every playlist at the new file
+     * @param progress Watermark for raw PCM targets (null for ADPCM)
+     */
+    private void convertCache(File source, File target, DecodeProgress progress) {
+        try {
+            int sourceRate = MediaCache.getSampleRate(source);
+            long frames;
+            if (progress == null) {
+                // ADPCM: resample to raw PCM, then re-encode
+                File rawFile = new File(target.getPath() + ".raw");
+                try {
+                    MP3Decoder.convertCacheToFile(source, sourceRate, rawFile, null);
+                    frames = AdpcmCodec.encodeFile(rawFile, target);
+                } finally {
+                    rawFile.delete();
+                }
+            } else {
+                frames = MP3Decoder.convertCacheToFile(source, sourceRate, target, progress);
+            }
+            mediaCache.register(target, frames);
+            if (progress != null) {
+                progress.finish(frames);
+            }
+            replaceDataFile(source.getName(), target.getName(), frames);
+            Log.d(TAG, "Converted " + source.getName() + " from " + sourceRate + " Hz to " +
+                  EngineFormat.getSampleRate() + " Hz");
+        } catch (Exception e) {
+            Log.e(TAG, "Error converting " + source.getName(), e);
+            if (progress != null) {
+                progress.fail();
+            }
+            target.delete();
+        }
+    }
+    
+    /**
+     * Rewrite every saved playlist that uses a data file to use another one instead. The library
+     * says which ones do; snapshots it has not seen yet are checked as well.
+     */
+    private void replaceDataFile(String oldName, String newName, long sampleCount) {
+        Set<String> playlistIds = new LinkedHashSet<>(library.getPlaylistsUsing(oldName));
+        playlistIds.addAll(writer.getPendingIds());
+        for (String playlistId : playlistIds) {
+            try {
+                JSONObject json = readPlaylistJson(playlistId);
+                if (json == null) {
+                    continue;
+                }
+                
+                boolean changed = false;
+                for (String key : new String[]{"tracks", "announcements"}) {
+                    JSONArray items = json.getJSONArray(key);
+                    for (int i = 0; i < items.length(); i++) {
+                        JSONObject item = items.getJSONObject(i);
+                        if (item.getString("dataFile").equals(oldName)) {
+                            item.put("dataFile", newName);
+                            item.put("sampleCount", sampleCount);
+                            item.put("sampleRate", EngineFormat.getSampleRate());
+                            changed = true;
+                        }
+                    }
+                }
+                
+                if (changed) {
+                    writer.write(playlistId, json, getCacheNames(json));
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "Could not update playlist " + playlistId, e);
+            }
+        }
+    }
+    
     /**
      * Save PCM data to file
      */
@@ -246,54 +687,360 @@ public class PlaylistManager {
      * Get playlist storage directory
      */
     private File getPlaylistDirectory() {
+        return getPlaylistDirectory(context);
+    }
+    
+    private static File getPlaylistDirectory(Context context) {
         File appDir = context.getFilesDir();
         return new File(appDir, "playlists");
     }
     
     /**
-     * Save playlist list (metadata only)
+     * Replace (or add) a playlist's entry in the index
      */
-    private void savePlaylistList() {
+    private void updateSummary(PlaylistSummary summary) {
+        synchronized (summaries) {
+            boolean replaced = false;
+            for (int i = 0; i < summaries.size(); i++) {
+                if (summaries.get(i).getId().equals(summary.getId())) {
+                    summaries.set(i, summary);
+                    replaced = true;
+                    break;
+                }
+            }
+            if (!replaced) {
+                summaries.add(summary);
+            }
+            saveIndex();
+        }
+    }
+    
+    /**
+     * Queue a write of the summary index (caller holds the summaries lock)
+     */
+    private void saveIndex() {
         try {
             JSONArray jsonArray = new JSONArray();
-            for (Playlist playlist : playlists) {
-                JSONObject json = new JSONObject();
-                json.put("id", playlist.getId());
-                json.put("name", playlist.getName());
-                jsonArray.put(json);
+            for (PlaylistSummary summary : summaries) {
+                jsonArray.put(summary.toJson());
             }
-            prefs.edit().putString(KEY_PLAYLISTS, jsonArray.toString()).apply();
+            writer.writeIndex(jsonArray);
         } catch (JSONException e) {
-            Log.e(TAG, "Error saving playlist list", e);
+            Log.e(TAG, "Error saving playlist index", e);
         }
     }
     
     /**
-     * Load playlists from SharedPreferences (metadata only, actual data loaded on demand)
+     * Read the summary index. The first run after an update builds it from the old playlist list
+     * in SharedPreferences, reading each playlist file once.
      */
-    private void loadPlaylists() {
+    private void loadIndex() {
+        File indexFile = new File(getPlaylistDirectory(), INDEX_FILE);
+        synchronized (summaries) {
+            summaries.clear();
+            if (indexFile.exists()) {
+                try {
+                    summaries.addAll(readIndex(indexFile));
+                    Log.d(TAG, "Loaded index of " + summaries.size() + " playlists");
+                    return;
+                } catch (IOException | JSONException e) {
+                    Log.e(TAG, "Error loading playlist index, rebuilding", e);
+                    summaries.clear();
+                }
+            }
+            rebuildIndex();
+        }
+    }
+    
+    /**
+     * Parse the summary index: all the playlist list needs at startup
+     */
+    static List<PlaylistSummary> readIndex(File indexFile) throws IOException, JSONException {
+        JSONArray jsonArray = new JSONArray(new String(readFile(indexFile)));
+        List<PlaylistSummary> result = new ArrayList<>(jsonArray.length());
+        for (int i = 0; i < jsonArray.length(); i++) {
+            result.add(PlaylistSummary.fromJson(jsonArray.getJSONObject(i)));
+        }
+        return result;
+    }
+    
+    /**
+     * Summarize every playlist in the old list from its file (item counts and stored lengths only,
+     * no cache files are opened). Used once, when no index exists yet.
+     */
+    private void rebuildIndex() {
         try {
-            String jsonString = prefs.getString(KEY_PLAYLISTS, "[]");
-            JSONArray jsonArray = new JSONArray(jsonString);
-            playlists.clear();
-            
+            JSONArray jsonArray = new JSONArray(prefs.getString(KEY_PLAYLISTS, "[]"));
             for (int i = 0; i < jsonArray.length(); i++) {
                 JSONObject json = jsonArray.getJSONObject(i);
                 String id = json.getString("id");
-                String name = json.getString("name");
-                // Load full playlist data
-                Playlist playlist = loadPlaylist(id);
-                if (playlist == null) {
-                    // If loading fails, create empty playlist
-                    playlist = new Playlist(name, id);
+                File playlistFile = new File(getPlaylistDirectory(), id + ".json");
+                PlaylistSummary summary = null;
+                if (playlistFile.exists()) {
+                    try {
+                        summary = summarize(readJson(playlistFile), playlistFile.lastModified());
+                    } catch (IOException | JSONException e) {
+                        Log.w(TAG, "Could not read " + playlistFile.getName(), e);
+                    }
+                }
+                if (summary == null) {
+                    // Unreadable or missing file - list it empty, as before
+                    summary = new PlaylistSummary(id, json.getString("name"), 0, 0, 0, 0);
                 }
-                playlists.add(playlist);
+                summaries.add(summary);
             }
-            
-            Log.d(TAG, "Loaded " + playlists.size() + " playlists");
         } catch (JSONException e) {
             Log.e(TAG, "Error loading playlists", e);
-            playlists.clear();
+        }
+        saveIndex();
+        Log.d(TAG, "Built index of " + summaries.size() + " playlists");
+    }
+    
+    /**
+     * Summary of a playlist file, from the lengths stored with each item
+     */
+    static PlaylistSummary summarize(JSONObject json, long modifiedTime) throws JSONException {
+        JSONArray tracksArray = json.getJSONArray("tracks");
+        JSONArray announcementsArray = json.getJSONArray("announcements");
+        long frames = 0;
+        for (int i = 0; i < tracksArray.length(); i++) {
+            frames += getStoredSampleCount(tracksArray.getJSONObject(i));
+        }
+        for (int i = 0; i < announcementsArray.length(); i++) {
+            frames += getStoredSampleCount(announcementsArray.getJSONObject(i));
+        }
+        return new PlaylistSummary(json.getString("id"), json.getString("name"), tracksArray.length(),
+                announcementsArray.length(), EngineFormat.framesToMs(frames), modifiedTime);
+    }
+    
+    /**
+     * Item length recorded in a playlist file, scaled to the engine rate
+     */
+    private static long getStoredSampleCount(JSONObject itemJson) {
+        long count = itemJson.optLong("sampleCount", 0);
+        int rate = itemJson.optInt("sampleRate", EngineFormat.DEFAULT_SAMPLE_RATE);
+        return count * EngineFormat.getSampleRate() / rate;
+    }
+    
+    private static byte[] readFile(File file) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < buffer.length) {
+                int read = fis.read(buffer, offset, buffer.length - offset);
+                if (read < 0) break;
+                offset += read;
+            }
+            return buffer;
+        } finally {
+            fis.close();
+        }
+    }
+    
+    private static JSONObject readJson(File file) throws IOException, JSONException {
+        return new JSONObject(new String(readFile(file)));
+    }
+    
+    /**
+     * A playlist's file contents as last saved (including saves not yet written), as a copy the
+     * caller may modify
+     * @return The JSON, or null if there is no such playlist
+     */
+    private JSONObject readPlaylistJson(String playlistId) throws IOException, JSONException {
+        JSONObject pending = writer.getPending(playlistId);
+        if (pending != null) {
+            return new JSONObject(pending.toString());
+        }
+        File playlistFile = new File(getPlaylistDirectory(), playlistId + ".json");
+        return playlistFile.exists() ? readJson(playlistFile) : null;
+    }
+    
+    /**
+     * Names of the shared cache files a playlist file refers to
+     */
+    private static Set<String> getCacheNames(JSONObject json) throws JSONException {
+        Set<String> names = new HashSet<>();
+        for (String key : new String[]{"tracks", "announcements"}) {
+            JSONArray items = json.getJSONArray(key);
+            for (int i = 0; i < items.length(); i++) {
+                String dataFile = items.getJSONObject(i).getString("dataFile");
+                if (MediaCache.isCacheFileName(dataFile)) {
+                    names.add(dataFile);
+                }
+            }
+        }
+        return names;
+    }
+    
+    /**
+     * Names of the shared cache files a playlist uses
+     */
+    private Set<String> getReferencedCacheNames(Playlist playlist) {
+        Set<String> names = new HashSet<>();
+        for (AudioMixer.TrackData track : playlist.getTracks()) {
+            if (MediaCache.isCacheFileName(track.pcmFile.getName())) {
+                names.add(track.pcmFile.getName());
+            }
+        }
+        for (AudioMixer.AnnouncementData ann : playlist.getAnnouncements()) {
+            if (MediaCache.isCacheFileName(ann.pcmFile.getName())) {
+                names.add(ann.pcmFile.getName());
+            }
+        }
+        return names;
+    }
+    
+    /**
+     * Check whether a data file uses the old per-playlist naming (<playlistId>_track_<n>.pcm)
+     */
+    private static boolean isLegacyDataFile(String fileName) {
+        return !MediaCache.isCacheFileName(fileName) &&
+               (fileName.contains("_track_") || fileName.contains("_ann_"));
+    }
+    
+    /**
+     * Queue a background move of a playlist's legacy caches into the shared store (once per run)
+     */
+    private void scheduleMigrationIfNeeded(Playlist playlist) {
+        boolean hasLegacy = false;
+        for (AudioMixer.TrackData track : playlist.getTracks()) {
+            hasLegacy |= isLegacyDataFile(track.pcmFile.getName());
+        }
+        for (AudioMixer.AnnouncementData ann : playlist.getAnnouncements()) {
+            hasLegacy |= isLegacyDataFile(ann.pcmFile.getName());
+        }
+        if (!hasLegacy) {
+            return;
+        }
+        synchronized (migrationScheduled) {
+            if (!migrationScheduled.add(playlist.getId())) {
+                return;
+            }
+        }
+        final String playlistId = playlist.getId();
+        backgroundExecutor.execute(() -> migratePlaylist(playlistId));
+    }
+    
+    /**
+     * Rewrite a playlist file so its items point at shared caches instead of legacy files
+     */
+    private void migratePlaylist(String playlistId) {
+        try {
+            JSONObject json = readPlaylistJson(playlistId);
+            if (json == null) {
+                return;
+            }
+            
+            int migrated = 0;
+            for (String key : new String[]{"tracks", "announcements"}) {
+                JSONArray items = json.getJSONArray(key);
+                for (int i = 0; i < items.length(); i++) {
+                    JSONObject item = items.getJSONObject(i);
+                    String dataFile = item.getString("dataFile");
+                    File legacyFile = new File(getPlaylistDirectory(), dataFile);
+                    if (isLegacyDataFile(dataFile) && legacyFile.exists()) {
+                        // Files from before the media store have no header (16-bit stereo)
+                        long sampleCount = AudioStream.isPCMCache(legacyFile)
+                                ? legacyFile.length() / (2 * 2)
+                                : item.optLong("sampleCount", 0);
+                        File cacheFile = mediaCache.migrateLegacyFile(legacyFile, sampleCount);
+                        if (cacheFile != null) {
+                            item.put("dataFile", cacheFile.getName());
+                            migrated++;
+                        }
+                    }
+                }
+            }
+            
+            if (migrated > 0) {
+                // The legacy files are gone now - get the new names on disk right away
+                writer.write(playlistId, json, getCacheNames(json));
+                writer.flush();
+                Log.d(TAG, "Migrated " + migrated + " legacy cache(s) for playlist " + playlistId);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error migrating playlist caches", e);
+        }
+    }
+    
+    /**
+     * Fill the library from the playlist files the first time it is opened (it is kept up to date
+     * by every playlist write after that)
+     */
+    private void catalogIfNeeded() {
+        if (!library.isEmpty()) {
+            return;
+        }
+        int cataloged = 0;
+        for (PlaylistSummary summary : getPlaylistSummaries()) {
+            try {
+                JSONObject json = readPlaylistJson(summary.getId());
+                if (json != null) {
+                    library.setPlaylistItems(summary.getId(), json);
+                    cataloged++;
+                }
+            } catch (IOException | JSONException e) {
+                Log.w(TAG, "Could not catalog playlist " + summary.getId(), e);
+            }
+        }
+        Log.d(TAG, "Cataloged " + cataloged + " playlists in the library");
+    }
+    
+    /**
+     * Data file names referenced by any saved playlist
+     * @param files The playlist directory's contents
+     */
+    private static Set<String> collectReferencedFiles(File[] files) {
+        Set<String> names = new HashSet<>();
+        for (File file : files) {
+            if (!file.getName().endsWith(".json") || MediaCache.isCacheFileName(file.getName()) ||
+                file.getName().equals(INDEX_FILE)) {
+                continue;
+            }
+            try {
+                FileInputStream fis = new FileInputStream(file);
+                byte[] buffer = new byte[(int) file.length()];
+                fis.read(buffer);
+                fis.close();
+                JSONObject json = new JSONObject(new String(buffer));
+                for (String key : new String[]{"tracks", "announcements"}) {
+                    JSONArray items = json.getJSONArray(key);
+                    for (int i = 0; i < items.length(); i++) {
+                        names.add(items.getJSONObject(i).getString("dataFile"));
+                    }
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "Could not read " + file.getName(), e);
+            }
+        }
+        return names;
+    }
+    
+    /**
+     * Delete legacy per-playlist caches that no playlist file mentions any more (already migrated).
+     * The playlist files are only read if there are legacy caches at all, which after the first
+     * migrations is never.
+     */
+    private void deleteStaleLegacyFiles() {
+        File[] files = getPlaylistDirectory().listFiles();
+        if (files == null) {
+            return;
+        }
+        List<File> legacy = new ArrayList<>();
+        for (File file : files) {
+            if (isLegacyDataFile(file.getName())) {
+                legacy.add(file);
+            }
+        }
+        if (legacy.isEmpty()) {
+            return;
+        }
+        Set<String> referenced = collectReferencedFiles(files);
+        for (File file : legacy) {
+            if (!referenced.contains(file.getName()) && file.delete()) {
+                Log.d(TAG, "Deleted migrated legacy cache: " + file.getName());
+            }
         }
     }
     
@@ -301,6 +1048,8 @@ public class PlaylistManager {
      * Delete playlist files
      */
     public void deletePlaylistFiles(String playlistId) {
+        library.removePlaylist(playlistId);
+        mediaCache.releasePlaylist(playlistId);
         try {
             File playlistDir = getPlaylistDirectory();
             File[] files = playlistDir.listFiles();
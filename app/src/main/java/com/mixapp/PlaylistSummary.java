@@ -0,0 +1,94 @@
+package com.mixapp;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * What the playlist list shows about a playlist, kept in a small index so the list can be drawn
+ * without opening every playlist file
+ */
+public class PlaylistSummary {
+    private final String id;
+    private String name;
+    private int trackCount;
+    private int announcementCount;
+    private long durationMs;
+    private long modifiedTime;
+    
+    PlaylistSummary(String id, String name, int trackCount, int announcementCount,
+                    long durationMs, long modifiedTime) {
+        this.id = id;
+        this.name = name;
+        this.trackCount = trackCount;
+        this.announcementCount = announcementCount;
+        this.durationMs = durationMs;
+        this.modifiedTime = modifiedTime;
+    }
+    
+    /**
+     * Summarize a loaded playlist (item lengths are frames at the engine rate)
+     */
+    public static PlaylistSummary of(Playlist playlist, long modifiedTime) {
+        long frames = 0;
+        for (AudioMixer.TrackData track : playlist.getTracks()) {
+            frames += track.sampleCount;
+        }
+        for (AudioMixer.AnnouncementData ann : playlist.getAnnouncements()) {
+            frames += ann.sampleCount;
+        }
+        return new PlaylistSummary(playlist.getId(), playlist.getName(), playlist.getTracks().size(),
+                playlist.getAnnouncements().size(), EngineFormat.framesToMs(frames), modifiedTime);
+    }
+    
+    public String getId() {
+        return id;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    public void setName(String name) {
+        this.name = name;
+    }
+    
+    public int getTrackCount() {
+        return trackCount;
+    }
+    
+    public int getAnnouncementCount() {
+        return announcementCount;
+    }
+    
+    /**
+     * Combined length of all tracks and announcements
+     */
+    public long getDurationMs() {
+        return durationMs;
+    }
+    
+    public long getModifiedTime() {
+        return modifiedTime;
+    }
+    
+    public void setModifiedTime(long modifiedTime) {
+        this.modifiedTime = modifiedTime;
+    }
+    
+    JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("id", id);
+        json.put("name", name);
+        json.put("tracks", trackCount);
+        json.put("announcements", announcementCount);
+        json.put("durationMs", durationMs);
+        json.put("modified", modifiedTime);
+        return json;
+    }
+    
+    static PlaylistSummary fromJson(JSONObject json) throws JSONException {
+        return new PlaylistSummary(json.getString("id"), json.getString("name"),
+                json.optInt("tracks", 0), json.optInt("announcements", 0),
+                json.optLong("durationMs", 0), json.optLong("modified", 0));
+    }
+}
@@ -0,0 +1,202 @@
+package com.mixapp;
+
+import android.util.Log;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Writes playlist files and the playlist index on one background thread.
+ * Saves are snapshots taken by the caller; a burst of saves of the same playlist (e.g. while
+ * dragging items) is coalesced into one write of the latest snapshot. Every file is written to a
+ * temp file, synced and renamed over the old one, so a crash leaves either the old or the new
+ * version, never a torn one.
+ */
+class PlaylistWriter {
+    private static final String TAG = "PlaylistWriter";
+    // How long a save waits for further edits of the same playlist before it is written
+    private static final long COALESCE_DELAY_MS = 500;
+    // Upper bound for flush() so a stuck disk can't hold up the UI thread indefinitely
+    private static final long FLUSH_TIMEOUT_MS = 2000;
+    
+    /**
+     * A playlist snapshot waiting to be written
+     */
+    private static class PendingWrite {
+        final JSONObject json;
+        final Set<String> cacheNames; // Shared caches to reference once the file is written
+        
+        PendingWrite(JSONObject json, Set<String> cacheNames) {
+            this.json = json;
+            this.cacheNames = cacheNames;
+        }
+    }
+    
+    private final File directory;
+    private final String indexFileName;
+    private final MediaCache mediaCache;
+    private final MediaLibrary library;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final Map<String, PendingWrite> pending = new LinkedHashMap<>();
+    // Taken out of pending and being written; still served to readers until on disk
+    private final Map<String, PendingWrite> writing = new LinkedHashMap<>();
+    private JSONArray pendingIndex;
+    private boolean drainScheduled = false;
+    
+    /**
+     * @param directory Where playlist files (<id>.json) and the index live
+     * @param indexFileName Name of the index file in that directory
+     * @param mediaCache Told which caches a playlist uses after its file is written
+     * @param library Catalog mirroring each playlist's items once its file is written
+     */
+    PlaylistWriter(File directory, String indexFileName, MediaCache mediaCache, MediaLibrary library) {
+        this.directory = directory;
+        this.indexFileName = indexFileName;
+        this.mediaCache = mediaCache;
+        this.library = library;
+    }
+    
+    /**
+     * Queue a playlist file write. The snapshot must not be modified afterwards.
+     */
+    void write(String playlistId, JSONObject json, Set<String> cacheNames) {
+        synchronized (pending) {
+            pending.put(playlistId, new PendingWrite(json, cacheNames));
+            scheduleDrain();
+        }
+    }
+    
+    /**
+     * Queue an index write (replaces any index snapshot not written yet)
+     */
+    void writeIndex(JSONArray index) {
+        synchronized (pending) {
+            pendingIndex = index;
+            scheduleDrain();
+        }
+    }
+    
+    /**
+     * Latest snapshot of a playlist that is not on disk yet, or null. Must not be modified.
+     */
+    JSONObject getPending(String playlistId) {
+        synchronized (pending) {
+            PendingWrite write = pending.get(playlistId);
+            if (write == null) {
+                write = writing.get(playlistId);
+            }
+            return (write != null) ? write.json : null;
+        }
+    }
+    
+    /**
+     * IDs of the playlists with a snapshot not on disk yet (and so maybe not in the library)
+     */
+    Set<String> getPendingIds() {
+        synchronized (pending) {
+            Set<String> ids = new HashSet<>(pending.keySet());
+            ids.addAll(writing.keySet());
+            return ids;
+        }
+    }
+    
+    /**
+     * Drop a playlist's unwritten snapshot and run a task (e.g. deleting its files) after
+     * any write already in progress
+     */
+    void discard(String playlistId, Runnable then) {
+        synchronized (pending) {
+            pending.remove(playlistId);
+        }
+        executor.execute(then);
+    }
+    
+    /**
+     * Write everything queued now and wait (bounded) until it is on disk
+     */
+    void flush() {
+        try {
+            executor.submit(this::drain).get(FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            Log.w(TAG, "Playlist flush did not complete", e);
+        }
+    }
+    
+    private void scheduleDrain() {
+        if (!drainScheduled) {
+            drainScheduled = true;
+            executor.schedule(this::drain, COALESCE_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    private void drain() {
+        Map<String, PendingWrite> writes;
+        JSONArray index;
+        synchronized (pending) {
+            writes = new LinkedHashMap<>(pending);
+            writing.putAll(pending);
+            pending.clear();
+            index = pendingIndex;
+            pendingIndex = null;
+            drainScheduled = false;
+        }
+        for (Map.Entry<String, PendingWrite> write : writes.entrySet()) {
+            try {
+                writeAtomically(new File(directory, write.getKey() + ".json"), write.getValue().json.toString());
+                // Shared caches are kept alive only by the playlists that reference them
+                mediaCache.updateReferences(write.getKey(), write.getValue().cacheNames);
+                library.setPlaylistItems(write.getKey(), write.getValue().json);
+            } catch (IOException e) {
+                Log.e(TAG, "Error saving playlist " + write.getKey(), e);
+            }
+            synchronized (pending) {
+                writing.remove(write.getKey());
+            }
+        }
+        if (index != null) {
+            try {
+                writeAtomically(new File(directory, indexFileName), index.toString());
+            } catch (IOException e) {
+                Log.e(TAG, "Error saving playlist index", e);
+            }
+        }
+        if (!writes.isEmpty()) {
+            Log.d(TAG, "Wrote " + writes.size() + " playlist(s)" + (index != null ? " and the index" : ""));
+        }
+    }
+    
+    /**
+     * Write to a temp file and rename it over the target
+     */
+    private static void writeAtomically(File file, String content) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tempFile);
+        try {
+            fos.write(content.getBytes());
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Could not replace " + file.getName());
+        }
+    }
+}
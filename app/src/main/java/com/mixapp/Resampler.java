@@ -0,0 +1,271 @@
+package com.mixapp;
+
+/**
+ * Streaming polyphase windowed-sinc sample rate converter for interleaved 16-bit PCM.
+ * Filter history and the fractional read position are carried across calls to
+ * {@link #process}, so a file converted in chunks is identical to one converted in one go.
+ * The input/output position is tracked as an exact rational (no floating point drift),
+ * and {@link #flush} emits exactly ceil(inputFrames * outputRate / inputRate) frames in total.
+ */
+public class Resampler {
+
+    /**
+     * Quality/CPU trade-off. Cost per output frame is 2 * zeroCrossings multiply-adds per channel.
+     */
+    public enum Quality {
+        FAST(8, 6.0, 0.90),
+        STANDARD(16, 8.0, 0.94),
+        HIGH(32, 10.0, 0.96);
+
+        final int zeroCrossings;
+        final double kaiserBeta;
+        final double rolloff;
+
+        Quality(int zeroCrossings, double kaiserBeta, double rolloff) {
+            this.zeroCrossings = zeroCrossings;
+            this.kaiserBeta = kaiserBeta;
+            this.rolloff = rolloff;
+        }
+    }
+
+    // Upper bound on coefficient table rows; odd rate pairs share the nearest row
+    private static final int MAX_PHASES = 1024;
+
+    private final int inputRate;
+    private final int outputRate;
+    private final int channels;
+    private final int upFactor;   // L: output rate / gcd
+    private final int downFactor; // M: input rate / gcd
+    private final int halfTaps;   // N: taps on each side of the read position
+    private final int taps;       // 2N
+    private final int tablePhases;
+    private final float[] coefficients; // tablePhases rows of 'taps' coefficients
+
+    // Pending input frames (interleaved), starting N - 1 frames before the current read position
+    private float[] history;
+    private int historyFrames;
+    private int readIndex;  // integer part of the read position, in frames into 'history'
+    private int phase;      // fractional part of the read position, in units of 1/L
+
+    private long inputFramesConsumed = 0;
+    private long outputFramesProduced = 0;
+    private boolean flushed = false;
+
+    public Resampler(int inputRate, int outputRate, int channels, Quality quality) {
+        if (inputRate <= 0 || outputRate <= 0 || channels <= 0) {
+            throw new IllegalArgumentException("Invalid resampler format: " + inputRate + " -> " +
+                    outputRate + " Hz, " + channels + " channels");
+        }
+        this.inputRate = inputRate;
+        this.outputRate = outputRate;
+        this.channels = channels;
+
+        int gcd = gcd(inputRate, outputRate);
+        this.upFactor = outputRate / gcd;
+        this.downFactor = inputRate / gcd;
+        this.halfTaps = quality.zeroCrossings;
+        this.taps = halfTaps * 2;
+        this.tablePhases = Math.min(upFactor, MAX_PHASES);
+        this.coefficients = buildCoefficients(quality);
+
+        // Prime with N - 1 frames of silence so output frame 0 lines up with input frame 0
+        this.history = new float[(taps + 4096) * channels];
+        this.historyFrames = halfTaps - 1;
+        this.readIndex = halfTaps - 1;
+        this.phase = 0;
+    }
+
+    /**
+     * Build one windowed-sinc row per table phase. Each row is normalized to unity DC gain.
+     */
+    private float[] buildCoefficients(Quality quality) {
+        float[] table = new float[tablePhases * taps];
+        // Cut off below the lower of the two Nyquist frequencies
+        double cutoff = Math.min(1.0, (double) upFactor / downFactor) * quality.rolloff;
+        double i0Beta = besselI0(quality.kaiserBeta);
+
+        for (int p = 0; p < tablePhases; p++) {
+            double frac = (double) p / tablePhases;
+            double sum = 0;
+            for (int j = 0; j < taps; j++) {
+                // Distance from tap j to the read position (integer part at tap N - 1)
+                double d = j - (halfTaps - 1) - frac;
+                double x = d / halfTaps;
+                double window = (Math.abs(x) >= 1.0) ? 0.0
+                        : besselI0(quality.kaiserBeta * Math.sqrt(1.0 - x * x)) / i0Beta;
+                double h = cutoff * sinc(cutoff * d) * window;
+                table[p * taps + j] = (float) h;
+                sum += h;
+            }
+            if (sum != 0) {
+                for (int j = 0; j < taps; j++) {
+                    table[p * taps + j] = (float) (table[p * taps + j] / sum);
+                }
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Upper bound on the number of frames the next {@link #process} or {@link #flush} call
+     * can produce for the given number of input frames.
+     */
+    public int getMaxOutputFrames(int inputFrames) {
+        long pending = (long) historyFrames + inputFrames + halfTaps;
+        return (int) (pending * upFactor / downFactor) + 2;
+    }
+
+    /**
+     * Resample a chunk of interleaved input.
+     * @param input Interleaved samples
+     * @param inputFrames Number of frames in input to consume
+     * @param output Destination for interleaved samples, at least getMaxOutputFrames(inputFrames) frames
+     * @return Number of frames written to output
+     */
+    public int process(short[] input, int inputFrames, short[] output) {
+        if (flushed) {
+            throw new IllegalStateException("Resampler already flushed");
+        }
+        appendFrames(input, inputFrames);
+        inputFramesConsumed += inputFrames;
+        return drain(output, Long.MAX_VALUE);
+    }
+
+    /**
+     * Drain the filter tail at end of stream. After this call the total output is exactly
+     * ceil(inputFramesConsumed * outputRate / inputRate) frames.
+     * @param output Destination, at least getMaxOutputFrames(0) frames
+     * @return Number of frames written to output
+     */
+    public int flush(short[] output) {
+        if (flushed) {
+            return 0;
+        }
+        flushed = true;
+        // Pad with silence so the last real input frames pass through the whole filter
+        appendFrames(new short[halfTaps * channels], halfTaps);
+        long expectedTotal = (inputFramesConsumed * upFactor + downFactor - 1) / downFactor;
+        return drain(output, expectedTotal);
+    }
+
+    /**
+     * Total input frames passed to process()
+     */
+    public long getInputFramesConsumed() {
+        return inputFramesConsumed;
+    }
+
+    /**
+     * Total output frames produced so far
+     */
+    public long getOutputFramesProduced() {
+        return outputFramesProduced;
+    }
+
+    public int getInputRate() {
+        return inputRate;
+    }
+
+    public int getOutputRate() {
+        return outputRate;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    private void appendFrames(short[] input, int frames) {
+        int needed = (historyFrames + frames) * channels;
+        if (needed > history.length) {
+            float[] grown = new float[Math.max(needed, history.length * 2)];
+            System.arraycopy(history, 0, grown, 0, historyFrames * channels);
+            history = grown;
+        }
+        int base = historyFrames * channels;
+        int count = frames * channels;
+        for (int i = 0; i < count; i++) {
+            history[base + i] = input[i];
+        }
+        historyFrames += frames;
+    }
+
+    private int drain(short[] output, long outputLimit) {
+        int produced = 0;
+        float[] hist = history;
+        float[] coef = coefficients;
+
+        // Need input frames readIndex - N + 1 .. readIndex + N for each output frame
+        while (readIndex + halfTaps < historyFrames && outputFramesProduced < outputLimit) {
+            int row = (tablePhases == upFactor) ? phase : (int) ((long) phase * tablePhases / upFactor);
+            int coefBase = row * taps;
+            int histBase = (readIndex - halfTaps + 1) * channels;
+            int outBase = produced * channels;
+
+            for (int ch = 0; ch < channels; ch++) {
+                float acc = 0;
+                int h = histBase + ch;
+                for (int j = 0; j < taps; j++) {
+                    acc += hist[h] * coef[coefBase + j];
+                    h += channels;
+                }
+                int s = Math.round(acc);
+                output[outBase + ch] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, s));
+            }
+            produced++;
+            outputFramesProduced++;
+
+            // Advance the read position by M/L input frames
+            phase += downFactor;
+            while (phase >= upFactor) {
+                phase -= upFactor;
+                readIndex++;
+            }
+        }
+
+        // Drop input that no future output frame can reach
+        int discard = Math.min(readIndex - (halfTaps - 1), historyFrames);
+        if (discard > 0) {
+            int keep = historyFrames - discard;
+            if (keep > 0) {
+                System.arraycopy(hist, discard * channels, hist, 0, keep * channels);
+            }
+            historyFrames = keep;
+            readIndex -= discard;
+        }
+        return produced;
+    }
+
+    private static double sinc(double x) {
+        if (Math.abs(x) < 1e-9) {
+            return 1.0;
+        }
+        double px = Math.PI * x;
+        return Math.sin(px) / px;
+    }
+
+    /**
+     * Zeroth-order modified Bessel function of the first kind (power series)
+     */
+    private static double besselI0(double x) {
+        double sum = 1.0;
+        double term = 1.0;
+        double halfX = x / 2.0;
+        for (int k = 1; k < 50; k++) {
+            term *= (halfX / k) * (halfX / k);
+            sum += term;
+            if (term < sum * 1e-12) {
+                break;
+            }
+        }
+        return sum;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
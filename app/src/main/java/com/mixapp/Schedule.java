@@ -0,0 +1,387 @@
+package com.mixapp;
+
+import android.util.Log;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.TextStyle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Dayparting schedule: which playlist plays from which time of day, and announcements played at
+ * fixed clock times (e.g. "closing in 15 minutes").
+ *
+ * Every entry is either weekly (a set of weekdays) or for one date. A daypart runs until the
+ * next one starts. On a date that has one-off entries of a kind, only those apply that day
+ * (a holiday replaces the usual plan instead of adding to it).
+ * Times are local wall-clock times, resolved in the device's time zone on the day itself, so
+ * daylight saving changes move nothing.
+ */
+public class Schedule {
+    private static final String TAG = "Schedule";
+    public static final int ALL_DAYS = 0x7f;
+    // How far ahead to look for the next occurrence (a one-off date can be up to a year away)
+    private static final int MAX_LOOKAHEAD_DAYS = 400;
+    
+    /**
+     * When an entry happens: weekly on some days, or once on a date
+     */
+    public static abstract class Entry {
+        public final String id;
+        public final int days;          // Bit per weekday, Monday = bit 0 (weekly entries)
+        public final LocalDate date;    // One-off date, or null for weekly entries
+        public final int secondOfDay;   // Local time
+        
+        Entry(String id, int days, LocalDate date, int secondOfDay) {
+            this.id = id;
+            this.days = days;
+            this.date = date;
+            this.secondOfDay = secondOfDay;
+        }
+        
+        boolean isOneOff() {
+            return date != null;
+        }
+        
+        boolean isWeeklyOn(LocalDate day) {
+            return date == null && (days & (1 << (day.getDayOfWeek().getValue() - 1))) != 0;
+        }
+        
+        /**
+         * Start of this entry on a day, in epoch milliseconds
+         */
+        long startOn(LocalDate day, ZoneId zone) {
+            // A time skipped by a daylight saving change moves forward by the gap
+            return LocalDateTime.of(day, LocalTime.ofSecondOfDay(secondOfDay)).atZone(zone)
+                    .toInstant().toEpochMilli();
+        }
+        
+        /**
+         * "Mon, Wed 08:30", "Every day 09:00" or "2026-12-24 15:00", for lists
+         */
+        public String describeWhen() {
+            String time = String.format(Locale.US, "%02d:%02d", secondOfDay / 3600, (secondOfDay / 60) % 60);
+            if (date != null) {
+                return date + " " + time;
+            }
+            return describeDays(days) + " " + time;
+        }
+        
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("id", id);
+            if (date != null) {
+                json.put("date", date.toString());
+            } else {
+                json.put("days", days);
+            }
+            json.put("second", secondOfDay);
+            return json;
+        }
+    }
+    
+    /**
+     * A playlist that plays from a time of day until the next daypart starts
+     */
+    public static class Daypart extends Entry {
+        public final String playlistId;
+        
+        public Daypart(String id, int days, LocalDate date, int secondOfDay, String playlistId) {
+            super(id, days, date, secondOfDay);
+            this.playlistId = playlistId;
+        }
+        
+        @Override
+        JSONObject toJson() throws JSONException {
+            return super.toJson().put("playlist", playlistId);
+        }
+    }
+    
+    /**
+     * An announcement played at a clock time over whatever is playing
+     */
+    public static class Cue extends Entry {
+        public final String name;
+        public final String dataFile;   // Media store file name (see MediaLibrary)
+        
+        public Cue(String id, int days, LocalDate date, int secondOfDay, String name, String dataFile) {
+            super(id, days, date, secondOfDay);
+            this.name = name;
+            this.dataFile = dataFile;
+        }
+        
+        @Override
+        JSONObject toJson() throws JSONException {
+            return super.toJson().put("name", name).put("dataFile", dataFile);
+        }
+    }
+    
+    /**
+     * An entry's start on a particular day
+     */
+    public static class Occurrence {
+        public final Entry entry;
+        public final long startMs;
+        
+        Occurrence(Entry entry, long startMs) {
+            this.entry = entry;
+            this.startMs = startMs;
+        }
+    }
+    
+    private final File file;
+    private final List<Daypart> dayparts = new ArrayList<>();
+    private final List<Cue> cues = new ArrayList<>();
+    
+    private Schedule(File file) {
+        this.file = file;
+    }
+    
+    /**
+     * Read the schedule saved in a file (empty if there is none)
+     */
+    public static Schedule load(File file) {
+        Schedule schedule = new Schedule(file);
+        if (!file.exists()) {
+            return schedule;
+        }
+        try {
+            FileInputStream fis = new FileInputStream(file);
+            byte[] buffer = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < buffer.length) {
+                int read = fis.read(buffer, offset, buffer.length - offset);
+                if (read < 0) break;
+                offset += read;
+            }
+            fis.close();
+            
+            JSONObject json = new JSONObject(new String(buffer, 0, offset));
+            JSONArray daypartsJson = json.getJSONArray("dayparts");
+            for (int i = 0; i < daypartsJson.length(); i++) {
+                JSONObject entry = daypartsJson.getJSONObject(i);
+                schedule.dayparts.add(new Daypart(entry.getString("id"), entry.optInt("days", 0), readDate(entry),
+                        entry.getInt("second"), entry.getString("playlist")));
+            }
+            JSONArray cuesJson = json.getJSONArray("cues");
+            for (int i = 0; i < cuesJson.length(); i++) {
+                JSONObject entry = cuesJson.getJSONObject(i);
+                schedule.cues.add(new Cue(entry.getString("id"), entry.optInt("days", 0), readDate(entry),
+                        entry.getInt("second"), entry.getString("name"), entry.getString("dataFile")));
+            }
+        } catch (IOException | JSONException | RuntimeException e) {
+            Log.e(TAG, "Error loading schedule", e);
+        }
+        return schedule;
+    }
+    
+    private static LocalDate readDate(JSONObject entry) throws JSONException {
+        return entry.has("date") ? LocalDate.parse(entry.getString("date")) : null;
+    }
+    
+    /**
+     * Write the schedule back to its file
+     */
+    public synchronized void save() {
+        try {
+            JSONArray daypartsJson = new JSONArray();
+            for (Daypart daypart : dayparts) {
+                daypartsJson.put(daypart.toJson());
+            }
+            JSONArray cuesJson = new JSONArray();
+            for (Cue cue : cues) {
+                cuesJson.put(cue.toJson());
+            }
+            JSONObject json = new JSONObject();
+            json.put("dayparts", daypartsJson);
+            json.put("cues", cuesJson);
+            
+            // Write to a temp file and rename so a crash never leaves a half-written schedule
+            File tempFile = new File(file.getPath() + ".tmp");
+            FileOutputStream fos = new FileOutputStream(tempFile);
+            fos.write(json.toString().getBytes());
+            fos.getFD().sync();
+            fos.close();
+            if (!tempFile.renameTo(file)) {
+                Log.e(TAG, "Could not replace schedule");
+            }
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Error saving schedule", e);
+        }
+    }
+    
+    public synchronized void add(Entry entry) {
+        if (entry instanceof Daypart) {
+            dayparts.add((Daypart) entry);
+        } else {
+            cues.add((Cue) entry);
+        }
+    }
+    
+    public synchronized void remove(String id) {
+        for (int i = dayparts.size() - 1; i >= 0; i--) {
+            if (dayparts.get(i).id.equals(id)) {
+                dayparts.remove(i);
+            }
+        }
+        for (int i = cues.size() - 1; i >= 0; i--) {
+            if (cues.get(i).id.equals(id)) {
+                cues.remove(i);
+            }
+        }
+    }
+    
+    /**
+     * All entries, dayparts first, each kind in time order (for display)
+     */
+    public synchronized List<Entry> getEntries() {
+        List<Entry> entries = new ArrayList<>(dayparts);
+        entries.addAll(cues);
+        Collections.sort(entries, (a, b) -> {
+            if ((a instanceof Daypart) != (b instanceof Daypart)) {
+                return (a instanceof Daypart) ? -1 : 1;
+            }
+            if (a.isOneOff() != b.isOneOff()) {
+                return a.isOneOff() ? 1 : -1;
+            }
+            if (a.isOneOff() && !a.date.equals(b.date)) {
+                return a.date.compareTo(b.date);
+            }
+            return Integer.compare(a.secondOfDay, b.secondOfDay);
+        });
+        return entries;
+    }
+    
+    public synchronized List<Cue> getCues() {
+        return new ArrayList<>(cues);
+    }
+    
+    public synchronized boolean isEmpty() {
+        return dayparts.isEmpty() && cues.isEmpty();
+    }
+    
+    /**
+     * The daypart in effect at a time: the one that started last at or before it
+     * @return The daypart, or null if none has started in the last week
+     */
+    public synchronized Daypart getActiveDaypart(long timeMs, ZoneId zone) {
+        LocalDate today = LocalDate.from(Instant.ofEpochMilli(timeMs).atZone(zone));
+        for (int back = 0; back <= 7; back++) {
+            LocalDate day = today.minusDays(back);
+            Daypart latest = null;
+            long latestStart = Long.MIN_VALUE;
+            for (Entry entry : entriesOn(dayparts, day)) {
+                long start = entry.startOn(day, zone);
+                if (start <= timeMs && start > latestStart) {
+                    latest = (Daypart) entry;
+                    latestStart = start;
+                }
+            }
+            if (latest != null) {
+                return latest;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * The first daypart to start after a time
+     * @return The daypart and its start, or null if nothing is scheduled
+     */
+    public synchronized Occurrence getNextDaypart(long afterMs, ZoneId zone) {
+        return findNext(dayparts, afterMs, zone);
+    }
+    
+    /**
+     * A cue's first start after a time
+     * @return The start, or null if it does not happen again
+     */
+    public synchronized Occurrence getNextCue(Cue cue, long afterMs, ZoneId zone) {
+        return findNext(cues, afterMs, zone, cue);
+    }
+    
+    private <T extends Entry> Occurrence findNext(List<T> entries, long afterMs, ZoneId zone) {
+        return findNext(entries, afterMs, zone, null);
+    }
+    
+    /**
+     * Earliest start after afterMs among the entries (or of only one of them)
+     */
+    private <T extends Entry> Occurrence findNext(List<T> entries, long afterMs, ZoneId zone, Entry only) {
+        if (entries.isEmpty()) {
+            return null;
+        }
+        LocalDate today = LocalDate.from(Instant.ofEpochMilli(afterMs).atZone(zone));
+        // From the day before: an early-morning time can still be ahead after a clock change
+        for (int ahead = -1; ahead <= MAX_LOOKAHEAD_DAYS; ahead++) {
+            LocalDate day = today.plusDays(ahead);
+            Occurrence best = null;
+            for (Entry entry : entriesOn(entries, day)) {
+                if (only != null && entry != only) {
+                    continue;
+                }
+                long start = entry.startOn(day, zone);
+                if (start > afterMs && (best == null || start < best.startMs)) {
+                    best = new Occurrence(entry, start);
+                }
+            }
+            if (best != null) {
+                return best;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * The entries that apply on a day: its one-off entries if it has any, otherwise the weekly ones
+     */
+    private static <T extends Entry> List<T> entriesOn(List<T> entries, LocalDate day) {
+        List<T> oneOff = new ArrayList<>();
+        List<T> weekly = new ArrayList<>();
+        for (T entry : entries) {
+            if (entry.isOneOff()) {
+                if (entry.date.equals(day)) {
+                    oneOff.add(entry);
+                }
+            } else if (entry.isWeeklyOn(day)) {
+                weekly.add(entry);
+            }
+        }
+        return oneOff.isEmpty() ? weekly : oneOff;
+    }
+    
+    /**
+     * "Every day", "Mon-Fri", "Sat, Sun", ...
+     */
+    public static String describeDays(int days) {
+        if ((days & ALL_DAYS) == ALL_DAYS) {
+            return "Every day";
+        }
+        if ((days & ALL_DAYS) == 0x1f) {
+            return "Mon-Fri";
+        }
+        StringBuilder text = new StringBuilder();
+        for (DayOfWeek day : DayOfWeek.values()) {
+            if ((days & (1 << (day.getValue() - 1))) != 0) {
+                if (text.length() > 0) {
+                    text.append(", ");
+                }
+                text.append(day.getDisplayName(TextStyle.SHORT, Locale.getDefault()));
+            }
+        }
+        return text.toString();
+    }
+}
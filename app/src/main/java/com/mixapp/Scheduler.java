@@ -0,0 +1,285 @@
+package com.mixapp;
+
+import android.util.Log;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Runs a Schedule: switches dayparts and hands timed announcements to the mixer on time.
+ *
+ * Upcoming events sit in a min-heap keyed on their wall-clock due time, one per schedule entry
+ * (an entry's next occurrence is computed from the calendar when its previous one fires, never
+ * by adding a fixed period, so nothing accumulates error). A single thread sleeps until the
+ * earliest one is due, but never longer than MAX_WAIT_MS, and compares the wall clock with the
+ * monotonic clock on every wake: when the time or time zone is changed, or the device slept
+ * through events, the plan is rebuilt from the calendar. Playlists and clips are prepared a
+ * lead time ahead, so the switch itself only has to start playback.
+ * Time comes from an EngineClock; a simulation skips the thread and calls poll() itself on
+ * virtual time.
+ */
+public class Scheduler {
+    private static final String TAG = "Scheduler";
+    // How far ahead of a daypart its playlist is loaded and its first track opened
+    private static final long DAYPART_LEAD_MS = 60 * 1000;
+    // How far ahead of a timed announcement it is handed to the mixer (which loads it then)
+    private static final long CUE_LEAD_MS = 30 * 1000;
+    // Longest sleep between clock checks
+    private static final long MAX_WAIT_MS = 30 * 1000;
+    // Wall clock moving this much more or less than the monotonic clock counts as a time change
+    private static final long CLOCK_JUMP_MS = 2000;
+    
+    private static final int PREPARE_DAYPART = 0;
+    private static final int START_DAYPART = 1;
+    private static final int PREPARE_CUE = 2;
+    
+    /**
+     * Told about schedule events, on the scheduler thread (it may block briefly, e.g. to load
+     * a playlist, but holds up later events while it does)
+     */
+    public interface Listener {
+        /**
+         * A daypart starts in about DAYPART_LEAD_MS: load its playlist and warm it up
+         */
+        void onPrepareDaypart(Schedule.Daypart daypart, long startMs);
+        
+        /**
+         * A daypart is now in effect (on time, or at startup / after a clock change)
+         */
+        void onDaypartStart(Schedule.Daypart daypart);
+        
+        /**
+         * A timed announcement starts at startMs (about CUE_LEAD_MS from now)
+         */
+        void onPrepareCue(Schedule.Cue cue, long startMs);
+    }
+    
+    /**
+     * An event in the timer heap
+     */
+    private static class Timer implements Comparable<Timer> {
+        final long dueMs;
+        final int kind;
+        final Schedule.Occurrence occurrence;
+        
+        Timer(long dueMs, int kind, Schedule.Occurrence occurrence) {
+            this.dueMs = dueMs;
+            this.kind = kind;
+            this.occurrence = occurrence;
+        }
+        
+        @Override
+        public int compareTo(Timer other) {
+            // A daypart is prepared before it starts, even when both are due at once
+            return (dueMs != other.dueMs) ? Long.compare(dueMs, other.dueMs) : Integer.compare(kind, other.kind);
+        }
+    }
+    
+    private final Schedule schedule;
+    private final Listener listener;
+    private final EngineClock clock;
+    private final Object lock = new Object();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+    private Thread thread;
+    private boolean running = false;
+    private boolean replanRequested = false;
+    private ZoneId zone;
+    private Schedule.Daypart currentDaypart;
+    // Clock readings at the last poll, to notice wall clock changes
+    private long lastWallMs;
+    private long lastElapsedMs;
+    
+    public Scheduler(Schedule schedule, Listener listener) {
+        this(schedule, listener, EngineClock.SYSTEM);
+    }
+    
+    public Scheduler(Schedule schedule, Listener listener, EngineClock clock) {
+        this.schedule = schedule;
+        this.listener = listener;
+        this.clock = clock;
+        this.lastWallMs = clock.currentTimeMillis();
+        this.lastElapsedMs = clock.elapsedRealtime();
+    }
+    
+    /**
+     * Start running the schedule on its own thread. The daypart in effect now is reported right away.
+     */
+    public void start() {
+        synchronized (lock) {
+            if (running) {
+                return;
+            }
+            running = true;
+        }
+        thread = new Thread(this::run, "Scheduler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Stop the scheduler thread
+     */
+    public void stop() {
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+        if (thread != null) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+    }
+    
+    /**
+     * Plan again after the schedule was edited
+     */
+    public void reschedule() {
+        synchronized (lock) {
+            replanRequested = true;
+            lock.notifyAll();
+        }
+    }
+    
+    private void run() {
+        while (true) {
+            long next = poll();
+            synchronized (lock) {
+                if (!running) {
+                    break;
+                }
+                long wait = Math.min(next - clock.currentTimeMillis(), MAX_WAIT_MS);
+                if (wait > 0 && !replanRequested) {
+                    try {
+                        lock.wait(wait);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            }
+        }
+        Log.d(TAG, "Scheduler stopped");
+    }
+    
+    /**
+     * Handle what is due now: plan again if asked to, if the clock or time zone changed or if an
+     * event is more than MAX_WAIT_MS overdue, otherwise fire the events that are due. Listener
+     * calls happen outside the lock, so edits and stop() never wait on them.
+     * @return Wall-clock time of the next event, or Long.MAX_VALUE if nothing is planned
+     */
+    long poll() {
+        boolean replan;
+        List<Timer> due = new ArrayList<>();
+        synchronized (lock) {
+            long now = clock.currentTimeMillis();
+            long elapsed = clock.elapsedRealtime();
+            long skew = (now - lastWallMs) - (elapsed - lastElapsedMs);
+            lastWallMs = now;
+            lastElapsedMs = elapsed;
+            if (Math.abs(skew) > CLOCK_JUMP_MS) {
+                Log.w(TAG, "Wall clock moved by " + skew + " ms, replanning");
+                replanRequested = true;
+            }
+            if (!clock.getZone().equals(zone)) {
+                replanRequested = true;
+            }
+            if (!timers.isEmpty() && now - timers.peek().dueMs > MAX_WAIT_MS) {
+                // Slept through events: the monotonic clock runs on in deep sleep, so there is no
+                // skew to see, and firing everything missed would play it all back to back
+                Log.w(TAG, "Woke " + (now - timers.peek().dueMs) + " ms after an event was due, replanning");
+                replanRequested = true;
+            }
+            replan = replanRequested;
+            replanRequested = false;
+            if (!replan) {
+                while (!timers.isEmpty() && timers.peek().dueMs <= now) {
+                    due.add(timers.poll());
+                }
+            }
+        }
+        if (replan) {
+            replan();
+        }
+        for (Timer timer : due) {
+            fire(timer);
+        }
+        synchronized (lock) {
+            return timers.isEmpty() ? Long.MAX_VALUE : timers.peek().dueMs;
+        }
+    }
+    
+    /**
+     * Rebuild the heap from the calendar, and report the daypart in effect if it changed
+     */
+    private void replan() {
+        long now = clock.currentTimeMillis();
+        ZoneId planZone = clock.getZone();
+        List<Timer> planned = new ArrayList<>();
+        Schedule.Occurrence nextDaypart = schedule.getNextDaypart(now, planZone);
+        if (nextDaypart != null) {
+            addDaypartTimers(planned, nextDaypart, now);
+        }
+        for (Schedule.Cue cue : schedule.getCues()) {
+            Schedule.Occurrence next = schedule.getNextCue(cue, now, planZone);
+            if (next != null) {
+                planned.add(new Timer(Math.max(now, next.startMs - CUE_LEAD_MS), PREPARE_CUE, next));
+            }
+        }
+        synchronized (lock) {
+            zone = planZone;
+            timers.clear();
+            timers.addAll(planned);
+        }
+        Log.d(TAG, "Planned " + planned.size() + " event(s) in " + planZone);
+        
+        Schedule.Daypart active = schedule.getActiveDaypart(now, planZone);
+        if (active != null && (currentDaypart == null || !active.id.equals(currentDaypart.id))) {
+            currentDaypart = active;
+            listener.onDaypartStart(active);
+        }
+    }
+    
+    private void fire(Timer timer) {
+        Schedule.Occurrence occurrence = timer.occurrence;
+        long lateMs = clock.currentTimeMillis() - timer.dueMs;
+        switch (timer.kind) {
+            case PREPARE_DAYPART:
+                listener.onPrepareDaypart((Schedule.Daypart) occurrence.entry, occurrence.startMs);
+                break;
+            case START_DAYPART: {
+                currentDaypart = (Schedule.Daypart) occurrence.entry;
+                Log.d(TAG, "Daypart " + currentDaypart.describeWhen() + " starts (" + lateMs + " ms late)");
+                listener.onDaypartStart(currentDaypart);
+                Schedule.Occurrence next = schedule.getNextDaypart(occurrence.startMs, zone);
+                if (next != null) {
+                    List<Timer> planned = new ArrayList<>();
+                    addDaypartTimers(planned, next, clock.currentTimeMillis());
+                    synchronized (lock) {
+                        timers.addAll(planned);
+                    }
+                }
+                break;
+            }
+            case PREPARE_CUE: {
+                Schedule.Cue cue = (Schedule.Cue) occurrence.entry;
+                listener.onPrepareCue(cue, occurrence.startMs);
+                Schedule.Occurrence next = schedule.getNextCue(cue, occurrence.startMs, zone);
+                if (next != null) {
+                    synchronized (lock) {
+                        timers.add(new Timer(next.startMs - CUE_LEAD_MS, PREPARE_CUE, next));
+                    }
+                }
+                break;
+            }
+        }
+    }
+    
+    private static void addDaypartTimers(List<Timer> timers, Schedule.Occurrence occurrence, long now) {
+        timers.add(new Timer(Math.max(now, occurrence.startMs - DAYPART_LEAD_MS), PREPARE_DAYPART, occurrence));
+        timers.add(new Timer(occurrence.startMs, START_DAYPART, occurrence));
+    }
+}
@@ -0,0 +1,192 @@
+package com.mixapp;
+
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Shared, bounded pool of open playback streams, one per playlist item.
+ * A stream is opened on first use and stays open for the next buffer; when more than
+ * MAX_OPEN are open, the least recently used one that is not pinned is closed (and opened
+ * again if its item plays later). Voices pin their stream while they render, so a stream is
+ * never closed under a read. Descriptor use stays flat however long the playlist is.
+ *
+ * Streams are closed on a thread of the pool's own, never under its lock: closing a compressed
+ * stream waits for its decoder thread, and releases and closes come from the render thread.
+ */
+public class StreamPool {
+    private static final String TAG = "StreamPool";
+    // Open streams kept at most (pinned streams may briefly exceed it)
+    static final int MAX_OPEN = 16;
+    
+    /**
+     * An open stream and how many voices are rendering from it
+     */
+    private static class Slot {
+        final AudioStream stream;
+        int pins;
+        
+        Slot(AudioStream stream) {
+            this.stream = stream;
+        }
+    }
+    
+    // Keyed by the owning item (not the file): decoding streams keep a read position, so two
+    // items playing the same file each need their own
+    private static final LinkedHashMap<Object, Slot> open = new LinkedHashMap<>(MAX_OPEN * 2, 0.75f, true);
+    private static final ExecutorService closer = Executors.newSingleThreadExecutor();
+    private static int opened = 0;
+    private static int hits = 0;
+    private static int misses = 0;
+    private static int evicted = 0;
+    
+    /**
+     * Get an item's stream, opening it if needed, and pin it until release()
+     * @param owner The playlist item the stream belongs to
+     * @param file The item's stored file
+     */
+    public static AudioStream acquire(Object owner, File file) throws IOException {
+        synchronized (open) {
+            Slot slot = open.get(owner);
+            if (slot != null && !slot.stream.isClosed()) {
+                hits++;
+                slot.pins++;
+                return slot.stream;
+            }
+            misses++;
+        }
+        // Opened outside the lock - a compressed stream sets up a decoder
+        AudioStream stream = AudioStream.open(file, EngineFormat.getSampleRate(), EngineFormat.CHANNELS);
+        List<AudioStream> evictedStreams;
+        synchronized (open) {
+            Slot slot = new Slot(stream);
+            slot.pins = 1;
+            Slot previous = open.put(owner, slot);
+            opened++;
+            evictedStreams = trim();
+            if (previous != null) {
+                if (evictedStreams == null) {
+                    evictedStreams = new ArrayList<>();
+                }
+                evictedStreams.add(previous.stream);
+            }
+        }
+        closeLater(evictedStreams);
+        return stream;
+    }
+    
+    /**
+     * Unpin a stream taken with acquire(). It stays open for the next buffer unless the pool
+     * needs the room.
+     */
+    public static void release(Object owner) {
+        List<AudioStream> evictedStreams;
+        synchronized (open) {
+            Slot slot = open.get(owner);
+            if (slot != null && slot.pins > 0) {
+                slot.pins--;
+            }
+            evictedStreams = trim();
+        }
+        closeLater(evictedStreams);
+    }
+    
+    /**
+     * Close an item's stream now (e.g. when it has finished playing)
+     */
+    public static void close(Object owner) {
+        Slot slot;
+        synchronized (open) {
+            slot = open.remove(owner);
+        }
+        if (slot != null) {
+            List<AudioStream> streams = new ArrayList<>();
+            streams.add(slot.stream);
+            closeLater(streams);
+        }
+    }
+    
+    /**
+     * Close all streams (e.g. when the mixer is released)
+     */
+    public static void clear() {
+        List<AudioStream> streams = new ArrayList<>();
+        synchronized (open) {
+            for (Slot slot : open.values()) {
+                streams.add(slot.stream);
+            }
+            open.clear();
+            Log.d(TAG, "Cleared stream pool (" + getStats() + ")");
+        }
+        closeLater(streams);
+    }
+    
+    /**
+     * Number of streams open now
+     */
+    static int getOpenCount() {
+        synchronized (open) {
+            return open.size();
+        }
+    }
+    
+    /**
+     * Open/hit/miss/eviction counters, for logging
+     */
+    public static String getStats() {
+        synchronized (open) {
+            return opened + " opened, " + hits + " hits, " + misses + " misses, " +
+                   evicted + " evicted, " + open.size() + " open";
+        }
+    }
+    
+    /**
+     * Take least recently used, unpinned streams out of the pool until it is within bounds
+     * (caller holds the lock)
+     * @return The streams taken out, for closeLater() (null if none, so a release allocates nothing)
+     */
+    private static List<AudioStream> trim() {
+        if (open.size() <= MAX_OPEN) {
+            return null;
+        }
+        List<AudioStream> streams = null;
+        Iterator<Map.Entry<Object, Slot>> it = open.entrySet().iterator();
+        while (open.size() > MAX_OPEN && it.hasNext()) {
+            Slot slot = it.next().getValue();
+            if (slot.pins == 0) {
+                it.remove();
+                if (streams == null) {
+                    streams = new ArrayList<>();
+                }
+                streams.add(slot.stream);
+                evicted++;
+            }
+        }
+        return streams;
+    }
+    
+    /**
+     * Close streams taken out of the pool on the closing thread (caller must not hold the lock)
+     */
+    private static void closeLater(final List<AudioStream> streams) {
+        if (streams == null || streams.isEmpty()) {
+            return;
+        }
+        closer.execute(() -> {
+            for (AudioStream stream : streams) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error closing stream", e);
+                }
+            }
+        });
+    }
+}
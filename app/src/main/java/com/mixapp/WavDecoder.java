@@ -0,0 +1,330 @@
+package com.mixapp;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Pure-Java reader for RIFF/WAVE files (8/16/24/32-bit integer and 32/64-bit float PCM,
+ * including WAVE_FORMAT_EXTENSIBLE, any rate and channel count).
+ * Uncompressed audio needs no codec, so WAV imports skip MediaExtractor/MediaCodec and are
+ * converted straight into the cache format with bulk buffer operations.
+ * Sources can be given as a File or as an open FileDescriptor (e.g. from a content URI);
+ * descriptors are read with positional reads and are not closed.
+ * Has no Android dependencies.
+ */
+public class WavDecoder {
+    private static final int FORMAT_PCM = 1;
+    private static final int FORMAT_IEEE_FLOAT = 3;
+    private static final int FORMAT_EXTENSIBLE = 0xFFFE;
+    // Source frames converted per read (about 85 ms at 48kHz)
+    private static final int CHUNK_FRAMES = 4096;
+    
+    /**
+     * Format of a WAV file's sample data
+     */
+    public static class Info {
+        public int channels;
+        public int sampleRate;
+        public int bitsPerSample;
+        public boolean isFloat;
+        public long dataOffset; // Byte offset of the first sample
+        public long dataBytes;  // Length of the sample data (clamped to the file size)
+        
+        public int frameBytes() {
+            return channels * (bitsPerSample / 8);
+        }
+        
+        public long totalFrames() {
+            return dataBytes / frameBytes();
+        }
+    }
+    
+    /**
+     * Check for a RIFF/WAVE header
+     */
+    public static boolean isWavFile(File file) {
+        try (FileInputStream fis = new FileInputStream(file)) {
+            return isWav(fis.getChannel());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Check for a RIFF/WAVE header
+     */
+    public static boolean isWavFile(FileDescriptor fd) {
+        try {
+            return isWav(channelOf(fd));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    
+    private static boolean isWav(FileChannel channel) throws IOException {
+        if (channel.size() < 12) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, header, 0);
+        return header.getInt(0) == 0x46464952 && header.getInt(8) == 0x45564157; // "RIFF", "WAVE"
+    }
+    
+    /**
+     * Parse the fmt and data chunks of a WAV file
+     * @throws IOException If the file is not a WAV file or uses an unsupported encoding
+     */
+    public static Info readInfo(File file) throws IOException {
+        try (FileInputStream fis = new FileInputStream(file)) {
+            return readInfo(fis.getChannel());
+        }
+    }
+    
+    /**
+     * Parse the fmt and data chunks of a WAV file
+     * @throws IOException If the file is not a WAV file or uses an unsupported encoding
+     */
+    public static Info readInfo(FileDescriptor fd) throws IOException {
+        return readInfo(channelOf(fd));
+    }
+    
+    private static Info readInfo(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, header, 0);
+        header.flip();
+        if (header.getInt(0) != 0x46464952 || header.getInt(8) != 0x45564157) { // "RIFF", "WAVE"
+            throw new IOException("Not a RIFF/WAVE file");
+        }
+        
+        Info info = null;
+        long position = 12;
+        ByteBuffer chunkHeader = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        while (position + 8 <= fileSize) {
+            chunkHeader.clear();
+            readFully(channel, chunkHeader, position);
+            int chunkId = chunkHeader.getInt(0);
+            long chunkSize = chunkHeader.getInt(4) & 0xFFFFFFFFL;
+            long body = position + 8;
+            
+            if (chunkId == 0x20746D66) { // "fmt "
+                ByteBuffer fmt = ByteBuffer.allocate((int) Math.min(chunkSize, 64)).order(ByteOrder.LITTLE_ENDIAN);
+                readFully(channel, fmt, body);
+                info = parseFormat(fmt);
+            } else if (chunkId == 0x61746164) { // "data"
+                if (info == null) {
+                    throw new IOException("WAV data chunk before fmt chunk");
+                }
+                info.dataOffset = body;
+                // Streaming writers leave the size at 0 or 0xFFFFFFFF - take everything to end of file
+                long available = fileSize - body;
+                info.dataBytes = (chunkSize == 0 || chunkSize > available) ? available : chunkSize;
+                info.dataBytes -= info.dataBytes % info.frameBytes();
+                return info;
+            }
+            // Chunks are padded to an even length
+            position = body + chunkSize + (chunkSize & 1);
+        }
+        throw new IOException("WAV file has no data chunk");
+    }
+    
+    private static Info parseFormat(ByteBuffer fmt) throws IOException {
+        if (fmt.limit() < 16) {
+            throw new IOException("WAV fmt chunk too short");
+        }
+        int formatTag = fmt.getShort(0) & 0xFFFF;
+        Info info = new Info();
+        info.channels = fmt.getShort(2) & 0xFFFF;
+        info.sampleRate = fmt.getInt(4);
+        info.bitsPerSample = fmt.getShort(14) & 0xFFFF;
+        
+        if (formatTag == FORMAT_EXTENSIBLE && fmt.limit() >= 26) {
+            // The real format is the first two bytes of the SubFormat GUID
+            formatTag = fmt.getShort(24) & 0xFFFF;
+        }
+        if (formatTag == FORMAT_IEEE_FLOAT) {
+            info.isFloat = true;
+            if (info.bitsPerSample != 32 && info.bitsPerSample != 64) {
+                throw new IOException("Unsupported float WAV: " + info.bitsPerSample + " bits");
+            }
+        } else if (formatTag == FORMAT_PCM) {
+            int bits = info.bitsPerSample;
+            if (bits != 8 && bits != 16 && bits != 24 && bits != 32) {
+                throw new IOException("Unsupported PCM WAV: " + bits + " bits");
+            }
+        } else {
+            throw new IOException("Unsupported WAV encoding: 0x" + Integer.toHexString(formatTag));
+        }
+        if (info.channels <= 0 || info.sampleRate <= 0) {
+            throw new IOException("Corrupt WAV fmt chunk");
+        }
+        return info;
+    }
+    
+    /**
+     * Convert a WAV file into a raw 16-bit PCM cache (with a PCMCacheHeader)
+     * @param wavFile Source WAV file
+     * @param outputFile Where to write the cache
+     * @param outputRate Sample rate of the cache
+     * @param outputChannels Most channels to store (a mono source stays mono)
+     * @param quality Resampler quality if the rates differ
+     * @param progress Watermark to advance after every write (may be null)
+     * @return Number of frames written
+     */
+    public static long decodeToFile(File wavFile, File outputFile, int outputRate, int outputChannels,
+                                    Resampler.Quality quality, DecodeProgress progress) throws IOException {
+        try (FileInputStream fis = new FileInputStream(wavFile)) {
+            return decodeToFile(fis.getChannel(), outputFile, outputRate, outputChannels, quality, progress, 0, null);
+        }
+    }
+    
+    /**
+     * Convert a WAV file, continuing a partially written cache
+     * @param resumeFrame Frames already in outputFile from an interrupted conversion (0 to start over)
+     * @param checkpoint Told which frames are durably written, for resuming later (may be null)
+     * @see #decodeToFile(File, File, int, int, Resampler.Quality, DecodeProgress)
+     */
+    public static long decodeToFile(File wavFile, File outputFile, int outputRate, int outputChannels,
+                                    Resampler.Quality quality, DecodeProgress progress, long resumeFrame,
+                                    PCMCacheWriter.CheckpointListener checkpoint) throws IOException {
+        try (FileInputStream fis = new FileInputStream(wavFile)) {
+            return decodeToFile(fis.getChannel(), outputFile, outputRate, outputChannels, quality, progress,
+                    resumeFrame, checkpoint);
+        }
+    }
+    
+    /**
+     * Convert a WAV file open as a descriptor into a raw 16-bit PCM cache
+     * @see #decodeToFile(File, File, int, int, Resampler.Quality, DecodeProgress)
+     */
+    public static long decodeToFile(FileDescriptor fd, File outputFile, int outputRate, int outputChannels,
+                                    Resampler.Quality quality, DecodeProgress progress) throws IOException {
+        return decodeToFile(channelOf(fd), outputFile, outputRate, outputChannels, quality, progress, 0, null);
+    }
+    
+    /**
+     * Convert a WAV file open as a descriptor, continuing a partially written cache
+     * @see #decodeToFile(File, File, int, int, Resampler.Quality, DecodeProgress, long, PCMCacheWriter.CheckpointListener)
+     */
+    public static long decodeToFile(FileDescriptor fd, File outputFile, int outputRate, int outputChannels,
+                                    Resampler.Quality quality, DecodeProgress progress, long resumeFrame,
+                                    PCMCacheWriter.CheckpointListener checkpoint) throws IOException {
+        return decodeToFile(channelOf(fd), outputFile, outputRate, outputChannels, quality, progress,
+                resumeFrame, checkpoint);
+    }
+    
+    /**
+     * Resuming cuts the cache back to a frame where input and output positions coincide and
+     * converts again from a little before it, discarding that pre-roll, so the resampler joins
+     * the old output seamlessly (see PCMCacheWriter.ResumePoint)
+     */
+    private static long decodeToFile(FileChannel channel, File outputFile, int outputRate, int outputChannels,
+                                     Resampler.Quality quality, DecodeProgress progress, long resumeFrame,
+                                     PCMCacheWriter.CheckpointListener checkpoint) throws IOException {
+        Info info = readInfo(channel);
+        int cacheChannels = Math.min(outputChannels, PCMCacheHeader.cacheChannels(info.channels));
+        PCMCacheWriter.ResumePoint resume = PCMCacheWriter.prepareResume(outputFile, resumeFrame,
+                info.sampleRate, outputRate, cacheChannels);
+        try (FileOutputStream fos = new FileOutputStream(outputFile, resume != null)) {
+            if (resume == null) {
+                PCMCacheHeader.writeUnsealed(fos, outputRate, cacheChannels);
+            }
+            PCMCacheWriter writer = new PCMCacheWriter(fos, info.sampleRate, info.channels,
+                    outputRate, cacheChannels, quality, progress);
+            if (resume != null) {
+                writer.resumeAt(resume);
+                if (progress != null) {
+                    progress.advance(resume.outputFrame);
+                }
+            }
+            if (checkpoint != null) {
+                writer.setCheckpointListener(checkpoint, PCMCacheWriter.CHECKPOINT_INTERVAL_MS);
+            }
+            
+            int frameBytes = info.frameBytes();
+            ByteBuffer buffer = ByteBuffer.allocate(CHUNK_FRAMES * frameBytes).order(ByteOrder.LITTLE_ENDIAN);
+            short[] samples = new short[CHUNK_FRAMES * info.channels];
+            float[] floats = info.isFloat && info.bitsPerSample == 32 ? new float[samples.length] : null;
+            double[] doubles = info.isFloat && info.bitsPerSample == 64 ? new double[samples.length] : null;
+            int[] ints = !info.isFloat && info.bitsPerSample == 32 ? new int[samples.length] : null;
+            
+            long skipBytes = resume != null ? Math.min(info.dataBytes, resume.sourceFrame * frameBytes) : 0;
+            long position = info.dataOffset + skipBytes;
+            long remaining = info.dataBytes - skipBytes;
+            while (remaining > 0) {
+                int bytes = (int) Math.min(buffer.capacity(), remaining);
+                buffer.clear();
+                buffer.limit(bytes);
+                readFully(channel, buffer, position);
+                buffer.flip();
+                position += bytes;
+                remaining -= bytes;
+                
+                int frames = bytes / frameBytes;
+                int count = frames * info.channels;
+                if (info.isFloat && floats != null) {
+                    buffer.asFloatBuffer().get(floats, 0, count);
+                    for (int i = 0; i < count; i++) {
+                        samples[i] = floatToShort(floats[i]);
+                    }
+                } else if (info.isFloat) {
+                    buffer.asDoubleBuffer().get(doubles, 0, count);
+                    for (int i = 0; i < count; i++) {
+                        samples[i] = floatToShort((float) doubles[i]);
+                    }
+                } else if (info.bitsPerSample == 16) {
+                    buffer.asShortBuffer().get(samples, 0, count);
+                } else if (info.bitsPerSample == 32) {
+                    buffer.asIntBuffer().get(ints, 0, count);
+                    for (int i = 0; i < count; i++) {
+                        samples[i] = (short) (ints[i] >> 16);
+                    }
+                } else if (info.bitsPerSample == 24) {
+                    byte[] raw = buffer.array();
+                    for (int i = 0, b = 0; i < count; i++, b += 3) {
+                        // Keep the top 16 of the 24 bits (little-endian: low, mid, high)
+                        samples[i] = (short) ((raw[b + 1] & 0xFF) | (raw[b + 2] << 8));
+                    }
+                } else {
+                    byte[] raw = buffer.array();
+                    for (int i = 0; i < count; i++) {
+                        // 8-bit WAV is unsigned with silence at 128
+                        samples[i] = (short) (((raw[i] & 0xFF) - 128) << 8);
+                    }
+                }
+                writer.writeFrames(samples, frames);
+            }
+            writer.finish();
+        }
+        return PCMCacheHeader.seal(outputFile);
+    }
+    
+    private static short floatToShort(float value) {
+        int s = Math.round(value * 32767f);
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, s));
+    }
+    
+    /**
+     * Channel over a descriptor owned by the caller. The stream is deliberately not closed:
+     * that would close the caller's descriptor.
+     */
+    private static FileChannel channelOf(FileDescriptor fd) {
+        return new FileInputStream(fd).getChannel();
+    }
+    
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of WAV file");
+            }
+            position += read;
+        }
+    }
+}
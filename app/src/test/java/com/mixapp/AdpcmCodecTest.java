@@ -0,0 +1,166 @@
+package com.mixapp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Round trip, block layout and random access of the compact ADPCM cache, and its decode speed
+ */
+public class AdpcmCodecTest {
+    private static final int RATE = 44100;
+    private static final int FRAMES_PER_BLOCK = AdpcmCodec.DEFAULT_FRAMES_PER_BLOCK;
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    @Test
+    public void roundTripKeepsTheSignal() throws IOException {
+        short[] original = TestAudio.sine(5 * RATE, RATE, 440, 12000, 2);
+        short[] decoded = roundTrip(original, 2, 2);
+        assertEquals(original.length, decoded.length);
+        double snr = TestAudio.snrDb(original, decoded);
+        assertTrue("SNR " + snr + " dB", snr > 30);
+    }
+    
+    @Test
+    public void blocksStartOnTheExactSample() throws IOException {
+        short[] original = TestAudio.noise(10 * FRAMES_PER_BLOCK, 2, 3);
+        short[] decoded = roundTrip(original, 2, 2);
+        for (int block = 0; block < 10; block++) {
+            int i = block * FRAMES_PER_BLOCK * 2;
+            assertEquals("Left, block " + block, original[i], decoded[i]);
+            assertEquals("Right, block " + block, original[i + 1], decoded[i + 1]);
+        }
+    }
+    
+    @Test
+    public void partialLastBlockKeepsItsLength() throws IOException {
+        int frames = 3 * FRAMES_PER_BLOCK + 10;
+        short[] original = TestAudio.sine(frames, RATE, 1000, 8000, 2);
+        File adpcm = encode(original, 2);
+        AdpcmCodec.Header header = readHeader(adpcm);
+        assertEquals(frames, header.totalFrames);
+        // Padded to whole blocks of equal size
+        assertEquals(AdpcmCodec.HEADER_SIZE + 4L * header.blockBytes(), adpcm.length());
+        
+        AdpcmFileStream stream = new AdpcmFileStream(adpcm, RATE, 2);
+        try {
+            short[] tail = new short[100 * 2];
+            assertEquals(10, stream.readSamples(3 * FRAMES_PER_BLOCK, 100, tail));
+            assertEquals(0, stream.readSamples(frames, 100, tail));
+            assertTrue(stream.isEndOfStream(frames));
+        } finally {
+            stream.close();
+        }
+        assertTrue(TestAudio.snrDb(original, roundTrip(original, 2, 2)) > 30);
+    }
+    
+    @Test
+    public void shortFilesAndSingleFrames() throws IOException {
+        for (int frames : new int[] {1, 2, FRAMES_PER_BLOCK - 1, FRAMES_PER_BLOCK, FRAMES_PER_BLOCK + 1}) {
+            short[] original = TestAudio.sine(frames, RATE, 300, 5000, 2);
+            short[] decoded = roundTrip(original, 2, 2);
+            assertEquals(frames + " frames", original.length, decoded.length);
+            assertEquals(original[0], decoded[0]);
+        }
+    }
+    
+    @Test
+    public void randomAccessMatchesSequentialDecode() throws IOException {
+        int frames = 20 * FRAMES_PER_BLOCK + 77;
+        File adpcm = encode(TestAudio.noise(frames, 2, 4), 2);
+        short[] sequential = decode(adpcm, 2, 4096);
+        Random random = new Random(5);
+        AdpcmFileStream stream = new AdpcmFileStream(adpcm, RATE, 2);
+        try {
+            short[] buffer = new short[3000 * 2];
+            for (int i = 0; i < 200; i++) {
+                int start = random.nextInt(frames);
+                int count = 1 + random.nextInt(3000);
+                int read = stream.readSamples(start, count, buffer);
+                assertEquals(Math.min(count, frames - start), read);
+                for (int s = 0; s < read * 2; s++) {
+                    assertEquals("Frame " + (start + s / 2), sequential[start * 2 + s], buffer[s]);
+                }
+            }
+        } finally {
+            stream.close();
+        }
+    }
+    
+    @Test
+    public void monoIsUpmixedToBothSides() throws IOException {
+        short[] mono = TestAudio.sine(2 * FRAMES_PER_BLOCK, RATE, 500, 9000, 1);
+        short[] decodedMono = roundTrip(mono, 1, 1);
+        short[] decodedStereo = roundTrip(mono, 1, 2);
+        assertEquals(mono.length * 2, decodedStereo.length);
+        for (int i = 0; i < mono.length; i++) {
+            assertEquals(decodedMono[i], decodedStereo[i * 2]);
+            assertEquals(decodedMono[i], decodedStereo[i * 2 + 1]);
+        }
+    }
+    
+    @Test
+    public void encoderIsDeterministic() throws IOException {
+        short[] original = TestAudio.noise(5 * FRAMES_PER_BLOCK, 2, 6);
+        assertArrayEquals(Files.readAllBytes(encode(original, 2).toPath()),
+                Files.readAllBytes(encode(original, 2).toPath()));
+    }
+    
+    /**
+     * Decode throughput through the stream the mixer uses, in buffer-sized reads. One core must
+     * decode far faster than real time (the render path reads one buffer per ~23 ms).
+     */
+    @Test
+    public void benchmarkDecodeThroughput() throws IOException {
+        int seconds = 60;
+        File adpcm = encode(TestAudio.noise(seconds * RATE, 2, 7), 2);
+        decode(adpcm, 2, 1024); // Warm up the JIT
+        long start = System.nanoTime();
+        decode(adpcm, 2, 1024);
+        long elapsed = System.nanoTime() - start;
+        double realTime = seconds / (elapsed / 1e9);
+        System.out.printf("ADPCM decode: %d s of stereo in %.1f ms (%.0fx real time), %d KB vs %d KB PCM%n",
+                seconds, elapsed / 1e6, realTime, adpcm.length() / 1024, seconds * RATE * 4 / 1024);
+        assertTrue("Only " + realTime + "x real time", realTime > 50);
+    }
+    
+    private short[] roundTrip(short[] samples, int channels, int outputChannels) throws IOException {
+        return decode(encode(samples, channels), outputChannels, 1000);
+    }
+    
+    private File encode(short[] samples, int channels) throws IOException {
+        File pcm = TestAudio.writeCache(folder.newFile(), samples, RATE, channels);
+        File adpcm = folder.newFile();
+        AdpcmCodec.encodeFile(pcm, adpcm);
+        pcm.delete();
+        return adpcm;
+    }
+    
+    private static short[] decode(File adpcm, int outputChannels, int chunkFrames) throws IOException {
+        AdpcmFileStream stream = new AdpcmFileStream(adpcm, RATE, outputChannels);
+        try {
+            return TestAudio.readAll(stream, chunkFrames);
+        } finally {
+            stream.close();
+        }
+    }
+    
+    private static AdpcmCodec.Header readHeader(File adpcm) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(adpcm, "r")) {
+            byte[] bytes = new byte[AdpcmCodec.HEADER_SIZE];
+            raf.readFully(bytes);
+            return AdpcmCodec.parseHeader(bytes);
+        }
+    }
+}
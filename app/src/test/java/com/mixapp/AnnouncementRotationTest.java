@@ -0,0 +1,243 @@
+package com.mixapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Shares, quotas, spacing and competitor separation of the announcement rotation, replaying it
+ * from its seed, and the history it carries over when the playlist is reloaded
+ */
+public class AnnouncementRotationTest {
+    private static final long MINUTE_MS = 60 * 1000;
+    // Ten seconds at the engine rate
+    private static final long CLIP_FRAMES = 10 * EngineFormat.DEFAULT_SAMPLE_RATE;
+    
+    @Test
+    public void withoutRulesClipsPlayInListOrder() {
+        List<AudioMixer.AnnouncementData> clips = Arrays.asList(clip("a"), clip("b"), clip("c"));
+        AnnouncementRotation rotation = new AnnouncementRotation(clips, 1);
+        for (int i = 0; i < 9; i++) {
+            assertEquals(i % 3, rotation.next(i * MINUTE_MS));
+        }
+    }
+    
+    @Test
+    public void quotaHoldsAcrossAReorder() {
+        AudioMixer.AnnouncementData sponsored = clip("sponsored");
+        sponsored.playsPerHour = 1;
+        List<AudioMixer.AnnouncementData> clips = Arrays.asList(sponsored, clip("b"), clip("c"));
+        AnnouncementRotation rotation = new AnnouncementRotation(clips, 2);
+        long now = 0;
+        while (clips.get(rotation.next(now)) != sponsored) {
+            now += MINUTE_MS;
+        }
+        long playedAt = now;
+        
+        // Same clips in a new order (new objects, as loadPlaylist makes them)
+        List<AudioMixer.AnnouncementData> reordered = reload(clips);
+        Collections.reverse(reordered);
+        rotation = new AnnouncementRotation(reordered, 3, rotation);
+        assertFalse(rotation.haveRulesChanged());
+        for (now += MINUTE_MS; now < playedAt + AnnouncementRotation.WINDOW_MS; now += MINUTE_MS) {
+            assertNotEquals("Quota spent, played again at minute " + (now - playedAt) / MINUTE_MS,
+                    "sponsored", reordered.get(rotation.next(now)).name);
+        }
+        assertEquals(0, rotation.getDeficit(reordered.size() - 1, now - MINUTE_MS));
+    }
+    
+    @Test
+    public void sponsorSpacingHoldsAcrossAReload() {
+        AudioMixer.AnnouncementData spaced = clip("spaced");
+        spaced.sponsor = "x";
+        spaced.minSpacingSeconds = 600;
+        List<AudioMixer.AnnouncementData> clips = Arrays.asList(spaced, clip("b"));
+        AnnouncementRotation rotation = new AnnouncementRotation(clips, 4);
+        assertEquals(0, rotation.next(0));
+        
+        rotation = new AnnouncementRotation(reload(clips), 5, rotation);
+        long endMs = EngineFormat.framesToMs(CLIP_FRAMES);
+        for (long now = MINUTE_MS; now < endMs + 600 * 1000; now += MINUTE_MS) {
+            assertEquals("Spacing ignored at minute " + now / MINUTE_MS, 1, rotation.next(now));
+        }
+        assertEquals(0, rotation.next(endMs + 600 * 1000));
+    }
+    
+    @Test
+    public void addedClipJoinsTheCurrentRound() {
+        List<AudioMixer.AnnouncementData> clips = Arrays.asList(clip("a"), clip("b"));
+        AnnouncementRotation rotation = new AnnouncementRotation(clips, 6);
+        long now = 0;
+        for (int i = 0; i < 20; i++, now += MINUTE_MS) {
+            rotation.next(now);
+        }
+        
+        List<AudioMixer.AnnouncementData> grown = reload(clips);
+        grown.add(0, clip("new"));
+        rotation = new AnnouncementRotation(grown, 7, rotation);
+        assertFalse(rotation.haveRulesChanged());
+        // Neither starved behind the others' 20 plays nor played 20 times to catch up
+        int newPlays = 0;
+        for (int i = 0; i < 9; i++, now += MINUTE_MS) {
+            if (rotation.next(now) == 0) {
+                newPlays++;
+            }
+        }
+        assertEquals(3, newPlays);
+    }
+    
+    @Test
+    public void repeatsOfOneFileKeepTheirOwnHistory() {
+        AudioMixer.AnnouncementData first = clip("same");
+        first.playsPerHour = 1;
+        AudioMixer.AnnouncementData second = clip("same");
+        second.playsPerHour = 1;
+        List<AudioMixer.AnnouncementData> clips = Arrays.asList(first, second);
+        AnnouncementRotation rotation = new AnnouncementRotation(clips, 8);
+        int played = rotation.next(0);
+        
+        rotation = new AnnouncementRotation(reload(clips), 9, rotation);
+        // The other copy still has its play this hour; then both are spent
+        assertEquals(1 - played, rotation.next(MINUTE_MS));
+        assertEquals(-1, rotation.next(2 * MINUTE_MS));
+    }
+    
+    @Test
+    public void editedRulesAreReported() {
+        List<AudioMixer.AnnouncementData> clips = Arrays.asList(clip("a"), clip("b"));
+        AnnouncementRotation rotation = new AnnouncementRotation(clips, 10);
+        
+        List<AudioMixer.AnnouncementData> shrunk = reload(clips);
+        shrunk.remove(1);
+        assertFalse(new AnnouncementRotation(shrunk, 11, rotation).haveRulesChanged());
+        
+        List<AudioMixer.AnnouncementData> edited = reload(clips);
+        edited.get(1).playsPerHour = 4;
+        assertTrue(new AnnouncementRotation(edited, 12, rotation).haveRulesChanged());
+    }
+    
+    @Test
+    public void slotsAreSharedByPlaysPerHour() {
+        AudioMixer.AnnouncementData four = clip("four");
+        four.playsPerHour = 4;
+        AudioMixer.AnnouncementData two = clip("two");
+        two.playsPerHour = 2;
+        List<AudioMixer.AnnouncementData> clips = Arrays.asList(four, two, clip("house"));
+        AnnouncementRotation rotation = new AnnouncementRotation(clips, 13);
+        // Seven slots an hour for ten hours: weights 4, 2 and 1 share them out exactly
+        int[] plays = new int[clips.size()];
+        for (int slot = 0; slot < 70; slot++) {
+            int index = rotation.next(slot * (60 * MINUTE_MS) / 7);
+            assertTrue("No clip for slot " + slot, index >= 0);
+            plays[index]++;
+        }
+        assertEquals(40, plays[0], 1);
+        assertEquals(20, plays[1], 1);
+        assertEquals(10, plays[2], 1);
+    }
+    
+    @Test
+    public void competitorsAreKeptApart() {
+        AudioMixer.AnnouncementData cars = clip("cars");
+        cars.sponsor = "dealer";
+        cars.competitorGroup = "cars";
+        cars.competitorSeparationSeconds = 300;
+        AudioMixer.AnnouncementData otherCars = clip("other cars");
+        otherCars.sponsor = "rival";
+        otherCars.competitorGroup = "cars";
+        otherCars.competitorSeparationSeconds = 300;
+        List<AudioMixer.AnnouncementData> clips = Arrays.asList(cars, otherCars, clip("house a"), clip("house b"));
+        AnnouncementRotation rotation = new AnnouncementRotation(clips, 14);
+        
+        // As the mixer calls it at the default interval: 30 s after each clip ends
+        long clipMs = EngineFormat.framesToMs(CLIP_FRAMES);
+        long lastCarsEndMs = Long.MIN_VALUE;
+        String lastCarsSponsor = null;
+        int carsPlays = 0;
+        long now = 0;
+        for (int i = 0; i < 120; i++) {
+            int index = rotation.next(now);
+            assertTrue(index >= 0);
+            AudioMixer.AnnouncementData played = clips.get(index);
+            if ("cars".equals(played.competitorGroup)) {
+                if (lastCarsSponsor != null && !lastCarsSponsor.equals(played.sponsor)) {
+                    assertTrue(played.name + " " + (now - lastCarsEndMs) / 1000 + " s after its competitor",
+                            now - lastCarsEndMs >= 300 * 1000);
+                }
+                lastCarsEndMs = now + clipMs;
+                lastCarsSponsor = played.sponsor;
+                carsPlays++;
+            }
+            now += clipMs + 30 * 1000;
+        }
+        // Held back, not shut out
+        assertTrue(carsPlays + " plays of the car clips", carsPlays >= 20);
+        
+        // Without a separation the group alone holds nothing back
+        cars.competitorSeparationSeconds = 0;
+        otherCars.competitorSeparationSeconds = 0;
+        rotation = new AnnouncementRotation(Arrays.asList(cars, otherCars), 15);
+        assertEquals(0, rotation.next(0));
+        assertEquals(1, rotation.next(clipMs + 30 * 1000));
+    }
+    
+    @Test
+    public void sameSeedReplaysTheSamePicks() {
+        AudioMixer.AnnouncementData first = clip("first");
+        first.playsPerHour = 3;
+        AudioMixer.AnnouncementData second = clip("second");
+        second.playsPerHour = 3;
+        second.sponsor = "x";
+        second.minSpacingSeconds = 600;
+        AudioMixer.AnnouncementData third = clip("third");
+        third.playsPerHour = 5;
+        List<AudioMixer.AnnouncementData> clips = Arrays.asList(first, second, third, clip("house"));
+        
+        List<Integer> picks = picks(new AnnouncementRotation(clips, 42));
+        assertEquals(picks, picks(new AnnouncementRotation(reload(clips), 42)));
+        // The seed does change the order
+        boolean differs = false;
+        for (long seed = 43; seed < 63 && !differs; seed++) {
+            differs = !picks.equals(picks(new AnnouncementRotation(reload(clips), seed)));
+        }
+        assertTrue("Every seed gave the same picks", differs);
+    }
+    
+    /**
+     * A day of picks at uneven times
+     */
+    private static List<Integer> picks(AnnouncementRotation rotation) {
+        List<Integer> picks = new ArrayList<>();
+        long now = 0;
+        for (int i = 0; i < 24 * 20; i++) {
+            picks.add(rotation.next(now));
+            now += 2 * MINUTE_MS + (i % 5) * 17 * 1000;
+        }
+        return picks;
+    }
+    
+    private static AudioMixer.AnnouncementData clip(String name) {
+        return new AudioMixer.AnnouncementData(name, new File("/cache/" + name + ".pcm"), CLIP_FRAMES);
+    }
+    
+    /**
+     * Copies of the clips with their rules, as a playlist reload makes them
+     */
+    private static List<AudioMixer.AnnouncementData> reload(List<AudioMixer.AnnouncementData> clips) {
+        List<AudioMixer.AnnouncementData> copies = new ArrayList<>();
+        for (AudioMixer.AnnouncementData clip : clips) {
+            AudioMixer.AnnouncementData copy = new AudioMixer.AnnouncementData(clip.name, clip.pcmFile, clip.sampleCount);
+            copy.copyRulesFrom(clip);
+            copies.add(copy);
+        }
+        return copies;
+    }
+}
@@ -0,0 +1,55 @@
+package com.mixapp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import org.junit.Test;
+
+/**
+ * Loading clips from a stream that stalls the way one decoded on the fly does
+ */
+public class ClipCacheTest {
+    private static final int FRAMES = 3 * 8192 + 1000;
+    private static final long STALL_MS = 2000;
+    
+    @Test
+    public void slowStreamIsReadToTheEnd() throws IOException {
+        short[] source = TestAudio.noise(FRAMES, EngineFormat.CHANNELS, 1);
+        // The codec starting up, then a stall every third read
+        SlowStream stream = new SlowStream(source, 4, 3);
+        assertArrayEquals(source, ClipCache.readFully(stream, FRAMES, STALL_MS));
+        assertTrue(stream.stalls > 4);
+    }
+    
+    @Test
+    public void shortStreamIsRefused() throws IOException {
+        short[] source = TestAudio.noise(FRAMES - 500, EngineFormat.CHANNELS, 2);
+        assertRefused(new SlowStream(source, 1, 2), FRAMES, STALL_MS, "Ended at frame");
+    }
+    
+    @Test
+    public void longStreamIsRefused() throws IOException {
+        short[] source = TestAudio.noise(FRAMES + 500, EngineFormat.CHANNELS, 3);
+        assertRefused(new SlowStream(source, 1, 2), FRAMES, STALL_MS, "Longer than");
+    }
+    
+    @Test
+    public void stalledStreamIsRefused() throws IOException {
+        short[] source = TestAudio.noise(FRAMES, EngineFormat.CHANNELS, 4);
+        // Produces the first chunk, then nothing
+        SlowStream stream = new SlowStream(source, 0, 0);
+        stream.stallAfter = 8192;
+        assertRefused(stream, FRAMES, 50, "No audio for 50 ms at frame 8192");
+    }
+    
+    private static void assertRefused(AudioStream stream, long frames, long stallMs, String message) {
+        try {
+            ClipCache.readFully(stream, frames, stallMs);
+            fail("Loaded a clip that is not " + frames + " frames");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith(message));
+        }
+    }
+}
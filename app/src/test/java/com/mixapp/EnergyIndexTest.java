@@ -0,0 +1,126 @@
+package com.mixapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Measuring, storing and placing with the energy index, on a synthetic track: loud noise with a
+ * quiet stretch from QUIET_FROM_MS to QUIET_TO_MS
+ */
+public class EnergyIndexTest {
+    private static final int SECONDS = 8;
+    private static final long QUIET_FROM_MS = 3000;
+    private static final long QUIET_TO_MS = 4500;
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private int rate;
+    private int hopFrames;
+    private short[] samples;
+    
+    @Before
+    public void setUp() {
+        rate = EngineFormat.getSampleRate();
+        hopFrames = rate * EnergyIndex.HOP_MS / 1000;
+        samples = TestAudio.noise(SECONDS * rate, EngineFormat.CHANNELS, 1);
+        short[] quiet = TestAudio.sine(SECONDS * rate, rate, 441, 30, EngineFormat.CHANNELS);
+        int from = (int) (QUIET_FROM_MS * rate / 1000) * EngineFormat.CHANNELS;
+        int to = (int) (QUIET_TO_MS * rate / 1000) * EngineFormat.CHANNELS;
+        System.arraycopy(quiet, from, samples, from, to - from);
+    }
+    
+    @Test
+    public void buildMeasuresTheWholeTrackAndSavesIt() throws IOException {
+        File cache = cache();
+        EnergyIndex index = EnergyIndex.build(cache);
+        assertEquals(SECONDS * rate, index.getFrameCount());
+        // Noise at 4000 RMS per channel is about -21 dBFS in the mono mix, the 30-peak tone about -64
+        assertEquals(-21.3, index.getPeakDb(), 1.0);
+        assertEquals(-21.3, index.getMaxEnergyDb(0, frame(QUIET_FROM_MS) - 1), 1.0);
+        assertEquals(-63.8, index.getMaxEnergyDb(frame(QUIET_FROM_MS), frame(QUIET_TO_MS) - 1), 1.0);
+        assertEquals(-21.3, index.getMaxEnergyDb(frame(SECONDS * 1000L) - 1, frame(SECONDS * 1000L) - 1), 1.0);
+        
+        EnergyIndex loaded = EnergyIndex.load(cache);
+        assertNotNull(loaded);
+        assertSameIndex(index, loaded);
+    }
+    
+    @Test
+    public void slowStreamIsMeasuredToItsEnd() throws IOException {
+        EnergyIndex expected = EnergyIndex.build(cache());
+        // Starting up, stalling every few reads, and longer than its estimated length
+        SlowStream stream = new SlowStream(samples, 5, 4);
+        stream.estimatedFrames = samples.length / EngineFormat.CHANNELS / 3;
+        assertSameIndex(expected, EnergyIndex.measure(stream, 2000));
+        assertTrue(stream.stalls > 5);
+    }
+    
+    @Test
+    public void stalledStreamIsRefused() {
+        SlowStream stream = new SlowStream(samples, 0, 0);
+        stream.stallAfter = frame(2000);
+        try {
+            EnergyIndex.measure(stream, 50);
+            fail("Measured a stream that stopped producing audio");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("No audio for 50 ms"));
+        }
+    }
+    
+    @Test
+    public void quietFrameIsFoundWithinTheTolerance() throws IOException {
+        EnergyIndex index = EnergyIndex.build(cache());
+        long from = frame(2000);
+        // Not prepared yet: start when due
+        assertEquals(from, index.findQuietFrame(from));
+        
+        // Where the following second is quiet throughout
+        index.prepare(2000);
+        long quiet = index.findQuietFrame(from);
+        assertTrue("Placed at " + quiet, quiet >= frame(QUIET_FROM_MS) && quiet <= frame(QUIET_TO_MS - 1000));
+        // Already quiet: no wait
+        long inside = frame(QUIET_FROM_MS + 200);
+        assertTrue(index.findQuietFrame(inside) - inside < hopFrames);
+        
+        // Never later than the tolerance
+        index.prepare(500);
+        long near = index.findQuietFrame(from);
+        assertTrue("Placed at " + near, near >= from && near <= from + frame(500));
+        // Past the end of the index: start when due
+        assertEquals(frame(9000), index.findQuietFrame(frame(9000)));
+    }
+    
+    private File cache() throws IOException {
+        File file = new File(folder.getRoot(), "media_test.pcm");
+        if (!file.exists()) {
+            TestAudio.writeCache(file, samples, rate, EngineFormat.CHANNELS);
+        }
+        return file;
+    }
+    
+    private long frame(long ms) {
+        return ms * rate / 1000;
+    }
+    
+    private void assertSameIndex(EnergyIndex expected, EnergyIndex actual) {
+        assertEquals(expected.getFrameCount(), actual.getFrameCount());
+        for (long f = 0; f < expected.getFrameCount(); f += hopFrames) {
+            assertEquals("Hop at frame " + f, expected.getMaxEnergyDb(f, f), actual.getMaxEnergyDb(f, f), 0);
+        }
+        expected.prepare(1500);
+        actual.prepare(1500);
+        for (long f = 0; f < expected.getFrameCount(); f += hopFrames) {
+            assertEquals("Placement from frame " + f, expected.findQuietFrame(f), actual.findQuietFrame(f));
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.mixapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Locale;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Orphan sweep and use times of the shared cache store
+ */
+public class MediaCacheTest {
+    private static final long HOUR_MS = 3600 * 1000L;
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private File directory;
+    private MediaCache cache;
+    
+    @Before
+    public void setUp() {
+        directory = folder.getRoot();
+        cache = new MediaCache(directory);
+    }
+    
+    @Test
+    public void sweepKeepsReferencedCachesAndTheirSources() throws IOException {
+        File used = file(1, ".pcm");
+        File source = file(1, ".mp3");
+        File orphan = file(2, ".pcm");
+        File young = file(3, ".pcm");
+        cache.register(used, 100, source);
+        cache.updateReferences("playlist", Collections.singleton(used.getName()));
+        // Left by an interrupted import long ago, and by one that may still be running
+        assertTrue(source.setLastModified(System.currentTimeMillis() - HOUR_MS));
+        assertTrue(orphan.setLastModified(System.currentTimeMillis() - HOUR_MS));
+        
+        cache.sweepOrphans();
+        assertTrue(used.exists());
+        assertTrue(source.exists());
+        assertFalse(orphan.exists());
+        assertTrue(young.exists());
+        
+        // Once the playlist lets go, the cache and its source go together
+        cache.releasePlaylist("playlist");
+        assertFalse(used.exists());
+        assertFalse(source.exists());
+    }
+    
+    @Test
+    public void useTimesAreWrittenInBatches() throws IOException {
+        File used = file(1, ".pcm");
+        cache.register(used, 100);
+        File index = new File(directory, "media_index.json");
+        long written = index.lastModified();
+        assertTrue(index.setLastModified(written - HOUR_MS));
+        
+        cache.touch(Collections.singleton(used.getName()));
+        assertEquals(written - HOUR_MS, index.lastModified());
+        cache.saveUsage();
+        assertTrue(index.lastModified() > written - HOUR_MS);
+        
+        // And read back lazily by the next instance
+        assertEquals(100, new MediaCache(directory).getRecordedSampleCount(used));
+    }
+    
+    private File file(int hash, String extension) throws IOException {
+        File file = new File(directory, MediaCache.FILE_PREFIX + String.format(Locale.ROOT, "%064x", hash) + extension);
+        assertTrue(file.createNewFile());
+        return file;
+    }
+}
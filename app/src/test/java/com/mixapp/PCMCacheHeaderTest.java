@@ -0,0 +1,199 @@
+package com.mixapp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Sealing, checksum verification and legacy headerless files of the PCM cache format
+ */
+public class PCMCacheHeaderTest {
+    private static final int RATE = 44100;
+    private static final String HASH = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    @Test
+    public void sealRecordsLengthAndChecksums() throws IOException {
+        int frames = 3 * 4096 + 100;
+        File file = folder.newFile();
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            PCMCacheHeader.writeUnsealed(fos, RATE, 2);
+            fos.write(TestAudio.toBytes(TestAudio.noise(frames, 2, 1)));
+        }
+        PCMCacheHeader unsealed = PCMCacheHeader.read(file);
+        assertFalse(unsealed.isSealed());
+        assertEquals(frames, unsealed.framesOnDisk(file));
+        assertEquals(frames, PCMCacheHeader.getFrameCount(file));
+        
+        assertEquals(frames, PCMCacheHeader.seal(file));
+        PCMCacheHeader header = PCMCacheHeader.read(file);
+        assertTrue(header.isSealed());
+        assertFalse(header.legacy);
+        assertEquals(frames, header.totalFrames);
+        assertEquals(RATE, header.sampleRate);
+        assertEquals(2, header.channels);
+        assertEquals(PCMCacheHeader.HEADER_SIZE, header.dataOffset);
+        assertEquals(4096, header.crcBlockFrames);
+        assertEquals(4, header.crcs.length);
+        assertTrue(PCMCacheHeader.verify(file));
+    }
+    
+    @Test
+    public void sealDropsAPartialFrame() throws IOException {
+        File file = folder.newFile();
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            PCMCacheHeader.writeUnsealed(fos, RATE, 2);
+            fos.write(new byte[10 * 4 + 3]);
+        }
+        assertEquals(10, PCMCacheHeader.seal(file));
+        assertEquals(PCMCacheHeader.HEADER_SIZE + 40, file.length());
+        assertTrue(PCMCacheHeader.verify(file));
+    }
+    
+    @Test
+    public void verifyFindsAChangedSampleInEveryBlock() throws IOException {
+        int frames = 5 * 4096 + 7;
+        File original = TestAudio.writeCache(folder.newFile(), TestAudio.noise(frames, 2, 2), RATE, 2);
+        byte[] bytes = Files.readAllBytes(original.toPath());
+        // First byte, a block boundary, the middle and the last byte of the short final block
+        long[] offsets = {0, 4096 * 4 - 1, 4096 * 4, frames * 2L, frames * 4L - 1};
+        for (long offset : offsets) {
+            File copy = folder.newFile();
+            byte[] corrupt = bytes.clone();
+            corrupt[(int) (PCMCacheHeader.HEADER_SIZE + offset)] ^= 0x01;
+            Files.write(copy.toPath(), corrupt);
+            assertFalse("Flipped bit at data byte " + offset, PCMCacheHeader.verify(copy));
+        }
+    }
+    
+    @Test
+    public void truncatedFilesFailTheLengthCheck() throws IOException {
+        File file = TestAudio.writeCache(folder.newFile(), TestAudio.noise(10000, 2, 3), RATE, 2);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 4 * 100);
+        }
+        assertFalse(PCMCacheHeader.verify(file));
+        try {
+            PCMCacheHeader.getFrameCount(file);
+            fail("Accepted a truncated cache");
+        } catch (IOException expected) {
+            // The sealed count no longer matches the data
+        }
+    }
+    
+    @Test
+    public void longFilesUseLongerBlocks() throws IOException {
+        long frames = (long) PCMCacheHeader.MAX_CRC_BLOCKS * 4096 * 3 + 5;
+        File file = folder.newFile();
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            PCMCacheHeader.writeUnsealed(fos, RATE, 1);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(PCMCacheHeader.HEADER_SIZE + frames * 2);
+        }
+        assertEquals(frames, PCMCacheHeader.seal(file));
+        PCMCacheHeader header = PCMCacheHeader.read(file);
+        assertTrue(header.crcs.length <= PCMCacheHeader.MAX_CRC_BLOCKS);
+        assertTrue(header.crcBlockFrames > 3 * 4096);
+        assertTrue(PCMCacheHeader.verify(file));
+    }
+    
+    @Test
+    public void headerlessFilesAreReadAsLegacyStereo() throws IOException {
+        short[] samples = TestAudio.noise(5000, 2, 4);
+        File file = new File(folder.getRoot(), MediaCache.FILE_PREFIX + HASH + "_48000.pcm");
+        Files.write(file.toPath(), TestAudio.toBytes(samples));
+        
+        PCMCacheHeader header = PCMCacheHeader.read(file);
+        assertTrue(header.legacy);
+        assertTrue(header.isSealed());
+        assertEquals(2, header.channels);
+        assertEquals(48000, header.sampleRate);
+        assertEquals(0, header.dataOffset);
+        assertEquals(5000, header.totalFrames);
+        assertEquals(5000, PCMCacheHeader.getFrameCount(file));
+        // Nothing to check and nothing to write
+        assertTrue(PCMCacheHeader.verify(file));
+        assertEquals(5000, PCMCacheHeader.seal(file));
+        assertEquals(samples.length * 2L, file.length());
+        
+        PCMFileStream stream = new PCMFileStream(file, 48000, 2);
+        try {
+            assertArrayEquals(samples, TestAudio.readAll(stream, 1000));
+        } finally {
+            stream.close();
+        }
+    }
+    
+    @Test
+    public void legacyFilesWithoutARateTagUseTheDefault() throws IOException {
+        File file = new File(folder.getRoot(), MediaCache.FILE_PREFIX + HASH + ".pcm");
+        Files.write(file.toPath(), new byte[400]);
+        PCMCacheHeader header = PCMCacheHeader.read(file);
+        assertTrue(header.legacy);
+        assertEquals(EngineFormat.DEFAULT_SAMPLE_RATE, header.sampleRate);
+        assertEquals(100, header.totalFrames);
+    }
+    
+    @Test
+    public void fileBeingWrittenIsNotTakenForLegacy() throws IOException {
+        File file = new File(folder.getRoot(), "decoding.pcm");
+        DecodeProgress progress = DecodeProgress.begin(file, 1000);
+        try {
+            PCMCacheHeader.read(file);
+            fail("Read an empty file that is still being decoded");
+        } catch (IOException expected) {
+            // The header has not been written yet
+        } finally {
+            progress.fail();
+        }
+    }
+    
+    @Test
+    public void corruptHeadersAreRejected() throws IOException {
+        File file = TestAudio.writeCache(folder.newFile(), new short[200], RATE, 2);
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        for (int offset : new int[] {4, 6, 8}) { // Version, channels, sample rate
+            byte[] corrupt = bytes.clone();
+            Arrays.fill(corrupt, offset, offset + 2, (byte) 0);
+            Files.write(file.toPath(), corrupt);
+            try {
+                PCMCacheHeader.read(file);
+                fail("Accepted a zeroed field at " + offset);
+            } catch (IOException expected) {
+                // Corrupt header
+            }
+        }
+    }
+    
+    @Test
+    public void monoCachesAreUpmixedWhenRead() throws IOException {
+        short[] mono = TestAudio.noise(3000, 1, 5);
+        File file = TestAudio.writeCache(folder.newFile(), mono, RATE, 1);
+        assertEquals(PCMCacheHeader.HEADER_SIZE + mono.length * 2L, file.length());
+        PCMFileStream stream = new PCMFileStream(file, RATE, 2);
+        try {
+            short[] stereo = TestAudio.readAll(stream, 700);
+            for (int i = 0; i < mono.length; i++) {
+                assertEquals(mono[i], stereo[i * 2]);
+                assertEquals(mono[i], stereo[i * 2 + 1]);
+            }
+        } finally {
+            stream.close();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.mixapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Splitting, overlap trimming and stitching of ParallelDecoder against a serial decode of the
+ * same source, and the speedup it gives.
+ *
+ * MediaCodec does not run on the JVM, so the ranges are decoded by FakeCodec: it cuts stored PCM
+ * into codec-sized packets with presentation times, starts at the packet before a seek target like
+ * SEEK_TO_PREVIOUS_SYNC, stops after the last packet at or before the stop time, and garbles the
+ * first WARM_UP_FRAMES after a seek the way a codec does until its bit reservoir and MDCT overlap
+ * have filled. The stitched output must be bit-identical to the serial one: the overlap has to
+ * cover the warm-up and the resampler filter, and every join has to land on the same sample.
+ */
+public class ParallelDecoderTest {
+    private static final int PACKET_FRAMES = 1152;
+    private static final int WARM_UP_FRAMES = 2 * PACKET_FRAMES;
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    // Cache written by the last decode()
+    private File lastOutput;
+    
+    @Test
+    public void parallelMatchesSerialAtEveryJoin() throws IOException {
+        int[][] rates = {{44100, 44100}, {48000, 44100}, {32000, 48000}, {22050, 44100}};
+        for (int[] pair : rates) {
+            FakeCodec codec = new FakeCodec(TestAudio.noise(20 * pair[0] + 333, 2, pair[0]), 2, pair[0]);
+            short[] serial = decode(codec, 1, codec.durationUs(), pair[1]);
+            for (int ranges = 2; ranges <= 4; ranges++) {
+                assertSame(pair[0] + " -> " + pair[1] + " in " + ranges + " ranges",
+                        serial, decode(codec, ranges, codec.durationUs(), pair[1]));
+            }
+        }
+    }
+    
+    @Test
+    public void monoSourcesStayMono() throws IOException {
+        FakeCodec codec = new FakeCodec(TestAudio.noise(10 * 48000, 1, 1), 1, 48000);
+        short[] serial = decode(codec, 1, codec.durationUs(), 44100);
+        assertSame("Mono", serial, decode(codec, 3, codec.durationUs(), 44100));
+        assertEquals(1, PCMCacheHeader.read(lastOutput).channels);
+    }
+    
+    @Test
+    public void inaccurateDurationOnlyMovesTheBoundaries() throws IOException {
+        // Container durations of VBR files are estimates; the last range runs to the end anyway
+        FakeCodec codec = new FakeCodec(TestAudio.noise(20 * 44100, 2, 2), 2, 44100);
+        short[] serial = decode(codec, 1, codec.durationUs(), 48000);
+        for (double factor : new double[] {0.9, 0.97, 1.03, 1.2}) {
+            long durationUs = (long) (codec.durationUs() * factor);
+            assertSame("Duration x" + factor, serial, decode(codec, 4, durationUs, 48000));
+        }
+    }
+    
+    @Test
+    public void testCatchesAWarmUpLongerThanTheOverlap() throws IOException {
+        // The check is only worth something if it would notice a bad join
+        FakeCodec codec = new FakeCodec(TestAudio.noise(20 * 44100, 2, 3), 2, 44100);
+        short[] serial = decode(codec, 1, codec.durationUs(), 44100);
+        codec.warmUpFrames = 44100;
+        short[] parallel = decode(codec, 2, codec.durationUs(), 44100);
+        try {
+            assertSame("Long warm-up", serial, parallel);
+        } catch (AssertionError expected) {
+            return;
+        }
+        fail("A garbled join went unnoticed");
+    }
+    
+    /**
+     * Serial and four-range wall time for ten minutes of 48 kHz stereo going into a 44.1 kHz
+     * cache. The fake codec costs almost nothing, so this measures the resampling and file work
+     * that parallel decoding spreads over the cores; real codecs add per-range work on top.
+     */
+    @Test
+    public void benchmarkSpeedup() throws IOException {
+        int seconds = 600;
+        FakeCodec codec = new FakeCodec(TestAudio.noise(seconds * 48000, 2, 4), 2, 48000);
+        decode(codec, 4, codec.durationUs(), 44100); // Warm up the JIT
+        
+        long start = System.nanoTime();
+        short[] serial = decode(codec, 1, codec.durationUs(), 44100);
+        long serialNs = System.nanoTime() - start;
+        start = System.nanoTime();
+        short[] parallel = decode(codec, 4, codec.durationUs(), 44100);
+        long parallelNs = System.nanoTime() - start;
+        
+        assertSame("Benchmark", serial, parallel);
+        int cores = Runtime.getRuntime().availableProcessors();
+        double speedup = serialNs / (double) parallelNs;
+        System.out.printf("Parallel decode: %d s of stereo, serial %.0f ms, 4 ranges %.0f ms (%.2fx on %d cores)%n",
+                seconds, serialNs / 1e6, parallelNs / 1e6, speedup, cores);
+        if (cores >= 4) {
+            assertTrue("Speedup only " + speedup, speedup > 1.5);
+        }
+    }
+    
+    private short[] decode(FakeCodec codec, int ranges, long durationUs, int outputRate) throws IOException {
+        lastOutput = folder.newFile();
+        MP3Decoder.DecodeResult result = ParallelDecoder.decodeToFile(codec, codec.sampleRate, codec.channels,
+                durationUs, ranges, lastOutput, outputRate, null, null, Resampler.Quality.STANDARD);
+        assertTrue(PCMCacheHeader.verify(lastOutput));
+        short[] samples = TestAudio.readCache(lastOutput);
+        assertEquals(result.sampleCount * result.channels, samples.length);
+        return samples;
+    }
+    
+    /**
+     * Compare two decodes, naming the first frame that differs
+     */
+    private static void assertSame(String message, short[] expected, short[] actual) {
+        for (int i = 0; i < Math.min(expected.length, actual.length); i++) {
+            if (expected[i] != actual[i]) {
+                fail(message + ": first difference at sample " + i + " (" + expected[i] + " vs " + actual[i] + ")");
+            }
+        }
+        assertEquals(message + ": length", expected.length, actual.length);
+    }
+    
+    /**
+     * Stand-in for an extractor and codec decoding a range of stored PCM
+     */
+    private static class FakeCodec implements ParallelDecoder.RangeSource {
+        final short[] samples;
+        final int channels;
+        final int sampleRate;
+        volatile int warmUpFrames = WARM_UP_FRAMES;
+        
+        FakeCodec(short[] samples, int channels, int sampleRate) {
+            this.samples = samples;
+            this.channels = channels;
+            this.sampleRate = sampleRate;
+        }
+        
+        long durationUs() {
+            return (samples.length / channels) * 1000000L / sampleRate;
+        }
+        
+        @Override
+        public void decode(long startSourceFrame, long stopTimeUs, MP3Decoder.ChunkSink sink) throws IOException {
+            long totalFrames = samples.length / channels;
+            long frame = startSourceFrame / PACKET_FRAMES * PACKET_FRAMES;
+            long garbled = frame > 0 ? warmUpFrames : 0;
+            byte[] bytes = new byte[PACKET_FRAMES * channels * 2];
+            while (frame < totalFrames) {
+                long timeUs = frame * 1000000L / sampleRate;
+                if (timeUs > stopTimeUs) {
+                    break;
+                }
+                int frames = (int) Math.min(PACKET_FRAMES, totalFrames - frame);
+                for (int i = 0; i < frames * channels; i++) {
+                    short s = samples[(int) (frame * channels) + i];
+                    if (i / channels < garbled) {
+                        s = (short) (s ^ 0x5555);
+                    }
+                    bytes[i * 2] = (byte) s;
+                    bytes[i * 2 + 1] = (byte) (s >> 8);
+                }
+                garbled = Math.max(0, garbled - frames);
+                sink.onChunk(bytes, frames * channels * 2, timeUs);
+                frame += frames;
+            }
+        }
+    }
+}
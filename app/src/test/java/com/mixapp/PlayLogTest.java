@@ -0,0 +1,94 @@
+package com.mixapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Start/finish pairing of the proof-of-play log, and how the day report shows it
+ */
+public class PlayLogTest {
+    private static final int RATE = 48000;
+    private static final long DAY_MS = 24 * 3600 * 1000L;
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    @Test
+    public void startsEndedOnceArePaired() {
+        PlayLog.Pairing pairing = PlayLog.checkPairing(Arrays.asList(
+                entry(1000, 1, PlayLog.KIND_TRACK, PlayLog.EVENT_START, 0),
+                entry(2000, 2, PlayLog.KIND_ANNOUNCEMENT, PlayLog.EVENT_START, 0),
+                entry(3000, 2, PlayLog.KIND_ANNOUNCEMENT, PlayLog.EVENT_FINISH, RATE),
+                // Entered mid-way after a seek, then cut by the next one
+                entry(4000, 1, PlayLog.KIND_TRACK, PlayLog.EVENT_CUT, 3 * RATE),
+                entry(4000, 1, PlayLog.KIND_TRACK, PlayLog.EVENT_START, 60 * RATE),
+                entry(9000, 1, PlayLog.KIND_TRACK, PlayLog.EVENT_CUT, 5 * RATE)), 0);
+        assertTrue(pairing.isClean());
+    }
+    
+    @Test
+    public void missingEventsAreFound() {
+        PlayLog.Entry again = entry(1000, 1, PlayLog.KIND_TRACK, PlayLog.EVENT_START, 0);
+        PlayLog.Entry orphan = entry(5000, 2, PlayLog.KIND_ANNOUNCEMENT, PlayLog.EVENT_FINISH, RATE);
+        PlayLog.Entry open = entry(6000, 1, PlayLog.KIND_TRACK, PlayLog.EVENT_START, 0);
+        PlayLog.Pairing pairing = PlayLog.checkPairing(Arrays.asList(again,
+                entry(2000, 1, PlayLog.KIND_TRACK, PlayLog.EVENT_START, 0),
+                entry(3000, 1, PlayLog.KIND_TRACK, PlayLog.EVENT_FINISH, RATE),
+                orphan, open), 0);
+        assertEquals(Arrays.asList(again, orphan), pairing.unpaired);
+        assertEquals(1, pairing.open.size());
+        assertSame(open, pairing.open.get(0));
+    }
+    
+    @Test
+    public void itemsOnAirAtTheStartAreNotUnpaired() {
+        // Started ten seconds before the range and finished in it
+        PlayLog.Pairing pairing = PlayLog.checkPairing(Arrays.asList(
+                entry(DAY_MS + 5000, 1, PlayLog.KIND_TRACK, PlayLog.EVENT_FINISH, 15 * RATE)), DAY_MS);
+        assertTrue(pairing.isClean());
+        // One kind of an item doesn't end another
+        pairing = PlayLog.checkPairing(Arrays.asList(
+                entry(1000, 1, PlayLog.KIND_ANNOUNCEMENT, PlayLog.EVENT_START, 0),
+                entry(2000, 1, PlayLog.KIND_TIMED_ANNOUNCEMENT, PlayLog.EVENT_FINISH, RATE / 2)), 0);
+        assertEquals(1, pairing.unpaired.size());
+        assertEquals(1, pairing.open.size());
+    }
+    
+    @Test
+    public void reportListsUnpairedEvents() throws IOException {
+        long dayMs = LocalDate.of(2026, 5, 4).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+        PlayLog log = PlayLog.open(folder.newFolder());
+        try {
+            int item = log.intern("Spot", "spot.pcm");
+            int frames = EngineFormat.getSampleRate();
+            log.append(dayMs + 1000, 0, item, PlayLog.KIND_ANNOUNCEMENT, PlayLog.EVENT_START, 0);
+            log.append(dayMs + 2000, frames, item, PlayLog.KIND_ANNOUNCEMENT, PlayLog.EVENT_FINISH, frames);
+            log.append(dayMs + 9000, 8L * frames, item, PlayLog.KIND_ANNOUNCEMENT, PlayLog.EVENT_CUT, frames);
+            StringWriter out = new StringWriter();
+            assertEquals(3, log.exportDay(LocalDate.of(2026, 5, 4), ZoneId.of("UTC"), out));
+            String report = out.toString();
+            assertTrue(report, report.contains("# Pairing: 1 unpaired, 0 not ended by midnight\n"));
+            assertTrue(report, report.contains("00:00:09.000,cut,announcement,Spot,spot.pcm," + 8L * frames +
+                    ",ended without a start\n"));
+            // Starts count no time on air
+            assertTrue(report, report.contains("Spot,spot.pcm,announcement,1,1,1,2.0\n"));
+        } finally {
+            log.close();
+        }
+    }
+    
+    private static PlayLog.Entry entry(long timeMs, int item, int kind, int event, long playedFrames) {
+        return new PlayLog.Entry(timeMs, timeMs * RATE / 1000, item, kind, event, playedFrames, RATE);
+    }
+}
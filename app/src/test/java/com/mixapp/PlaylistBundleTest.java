@@ -0,0 +1,207 @@
+package com.mixapp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Random;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Writing and reading playlist bundles, and what a damaged or hostile bundle is refused for
+ */
+public class PlaylistBundleTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private File sourceDirectory;
+    private File targetDirectory;
+    private MediaCache sourceCache;
+    private MediaCache targetCache;
+    private File cacheFile;
+    private File keptSource;
+    private JSONObject playlist;
+    private long bundleSize; // As reported by the last write
+    
+    @Before
+    public void setUp() throws IOException, JSONException {
+        sourceDirectory = folder.newFolder("from");
+        targetDirectory = folder.newFolder("to");
+        sourceCache = new MediaCache(sourceDirectory);
+        targetCache = new MediaCache(targetDirectory);
+        cacheFile = file(sourceDirectory, 1, ".pcm", 300 * 1024);
+        keptSource = file(sourceDirectory, 1, ".mp3", 40 * 1024);
+        sourceCache.register(cacheFile, 76800, keptSource);
+        
+        playlist = new JSONObject();
+        playlist.put("id", "playlist");
+        playlist.put("name", "Morning");
+        JSONObject track = new JSONObject();
+        track.put("name", "Track");
+        track.put("dataFile", cacheFile.getName());
+        track.put("sampleCount", 76800);
+        playlist.put("tracks", new JSONArray().put(track));
+        playlist.put("announcements", new JSONArray());
+    }
+    
+    @Test
+    public void roundTrip() throws IOException, JSONException {
+        File bundle = writeBundle();
+        assertEquals(bundle.length(), bundleSize);
+        
+        JSONObject read;
+        try (RandomAccessFile in = new RandomAccessFile(bundle, "r")) {
+            read = PlaylistBundle.read(in.getChannel(), targetCache, targetDirectory);
+        }
+        assertEquals(playlist.toString(), read.toString());
+        File copied = new File(targetDirectory, cacheFile.getName());
+        File copiedSource = new File(targetDirectory, keptSource.getName());
+        assertArrayEquals(Files.readAllBytes(cacheFile.toPath()), Files.readAllBytes(copied.toPath()));
+        assertArrayEquals(Files.readAllBytes(keptSource.toPath()), Files.readAllBytes(copiedSource.toPath()));
+        assertEquals(76800, targetCache.getRecordedSampleCount(copied));
+        assertEquals(copiedSource, targetCache.getSource(copied));
+        
+        // Files already in the store are left alone on a second import
+        long modified = copied.lastModified() - 60 * 1000;
+        assertTrue(copied.setLastModified(modified));
+        try (RandomAccessFile in = new RandomAccessFile(bundle, "r")) {
+            PlaylistBundle.read(in.getChannel(), targetCache, targetDirectory);
+        }
+        assertEquals(modified, copied.lastModified());
+    }
+    
+    @Test
+    public void checksumMismatchIsRefused() throws IOException, JSONException {
+        File bundle = writeBundle();
+        // Flip a byte in the first payload (the cache file)
+        long position = bundle.length() - keptSource.length() - 1000;
+        try (RandomAccessFile file = new RandomAccessFile(bundle, "rw")) {
+            file.seek(position);
+            int value = file.read();
+            file.seek(position);
+            file.write(value ^ 0x55);
+        }
+        try (RandomAccessFile in = new RandomAccessFile(bundle, "r")) {
+            PlaylistBundle.read(in.getChannel(), targetCache, targetDirectory);
+            fail("Damaged bundle was read");
+        } catch (IOException e) {
+            assertEquals("Checksum mismatch for " + cacheFile.getName(), e.getMessage());
+        }
+        assertStoreEmpty();
+    }
+    
+    @Test
+    public void truncatedBundleIsRefused() throws IOException, JSONException {
+        File bundle = writeBundle();
+        try (RandomAccessFile file = new RandomAccessFile(bundle, "rw")) {
+            file.setLength(bundle.length() - keptSource.length() - 1000);
+        }
+        try (RandomAccessFile in = new RandomAccessFile(bundle, "r")) {
+            PlaylistBundle.read(in.getChannel(), targetCache, targetDirectory);
+            fail("Truncated bundle was read");
+        } catch (EOFException e) {
+            assertEquals("Bundle is truncated at " + cacheFile.getName(), e.getMessage());
+        }
+        assertStoreEmpty();
+        
+        // Cut inside the manifest
+        try (RandomAccessFile file = new RandomAccessFile(bundle, "rw")) {
+            file.setLength(100);
+        }
+        try (RandomAccessFile in = new RandomAccessFile(bundle, "r")) {
+            PlaylistBundle.read(in.getChannel(), targetCache, targetDirectory);
+            fail("Truncated bundle was read");
+        } catch (EOFException e) {
+            assertEquals("Bundle is truncated", e.getMessage());
+        }
+    }
+    
+    @Test
+    public void pathLikeNamesAreRejected() throws IOException, JSONException {
+        PlaylistBundle.checkName(cacheFile.getName());
+        String[] bad = {
+            "../" + cacheFile.getName(),
+            MediaCache.FILE_PREFIX + "../../databases/library.db",
+            MediaCache.FILE_PREFIX + "a/b.pcm",
+            MediaCache.FILE_PREFIX + "..",
+            "/data/" + cacheFile.getName(),
+            "media_index.json",
+            "playlist.json",
+        };
+        for (String name : bad) {
+            try {
+                PlaylistBundle.checkName(name);
+                fail("Accepted " + name);
+            } catch (IOException e) {
+                assertEquals("Bad file name in bundle: " + name, e.getMessage());
+            }
+        }
+        
+        // A bundle naming a file outside the store writes nothing
+        String escape = MediaCache.FILE_PREFIX + "../escaped.pcm";
+        JSONObject manifest = new JSONObject();
+        manifest.put("version", 1);
+        manifest.put("playlist", playlist);
+        manifest.put("caches", new JSONArray());
+        manifest.put("files", new JSONArray().put(new JSONObject().put("name", escape).put("size", 4).put("crc32", 0)));
+        byte[] manifestBytes = manifest.toString().getBytes(StandardCharsets.UTF_8);
+        File bundle = folder.newFile("hostile.bundle");
+        try (RandomAccessFile file = new RandomAccessFile(bundle, "rw")) {
+            file.write("MIXBNDL1".getBytes(StandardCharsets.US_ASCII));
+            file.writeInt(manifestBytes.length);
+            file.write(manifestBytes);
+            file.write(new byte[4]);
+        }
+        try (RandomAccessFile in = new RandomAccessFile(bundle, "r")) {
+            PlaylistBundle.read(in.getChannel(), targetCache, targetDirectory);
+            fail("Hostile bundle was read");
+        } catch (IOException e) {
+            assertEquals("Bad file name in bundle: " + escape, e.getMessage());
+        }
+        assertFalse(new File(folder.getRoot(), "escaped.pcm").exists());
+        assertStoreEmpty();
+    }
+    
+    private File writeBundle() throws IOException, JSONException {
+        File bundle = folder.newFile("playlist.bundle");
+        try (RandomAccessFile out = new RandomAccessFile(bundle, "rw")) {
+            FileChannel channel = out.getChannel();
+            bundleSize = PlaylistBundle.write(playlist, sourceCache, sourceDirectory, channel);
+        }
+        return bundle;
+    }
+    
+    /**
+     * Nothing was stored, not even a temp file (the store's own index aside)
+     */
+    private void assertStoreEmpty() {
+        String[] names = targetDirectory.list();
+        for (String name : names) {
+            assertEquals("media_index.json", name);
+        }
+    }
+    
+    private static File file(File directory, int hash, String extension, int size) throws IOException {
+        File file = new File(directory, MediaCache.FILE_PREFIX + String.format(Locale.ROOT, "%064x", hash) + extension);
+        byte[] bytes = new byte[size];
+        new Random(hash * 31 + size).nextBytes(bytes);
+        Files.write(file.toPath(), bytes);
+        return file;
+    }
+}
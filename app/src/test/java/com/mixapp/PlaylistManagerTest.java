@@ -0,0 +1,212 @@
+package com.mixapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.UUID;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Startup of the playlist store from its summary index, against reading every playlist file
+ * (and every cache header) the way startup used to.
+ *
+ * The store is written the way the app writes it, with playlists sharing a pool of caches and a
+ * media index listing the playlists of each cache. Startup is the whole PlaylistManager
+ * constructor, with a context that only supplies the files directory and a stand-in for the
+ * SQLite catalog (the JVM has no database).
+ */
+public class PlaylistManagerTest {
+    private static final int PLAYLISTS = 1000;
+    private static final int TRACKS = 20;
+    private static final int ANNOUNCEMENTS = 5;
+    private static final int CACHES = 200;
+    private static final String INDEX_FILE = "playlist_index.json";
+    private static final String MEDIA_INDEX_FILE = "media_index.json";
+    
+    /**
+     * The catalog, as left by an earlier run (already filled, so it is not rebuilt)
+     */
+    private static class FilledLibrary extends MediaLibrary {
+        FilledLibrary(Context context, File directory) {
+            super(context, directory);
+        }
+        
+        @Override
+        public boolean isEmpty() {
+            return false;
+        }
+    }
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private File directory;
+    private File[] caches;
+    private JSONObject mediaIndex;
+    
+    @Before
+    public void setUp() throws IOException, JSONException {
+        directory = folder.newFolder("playlists");
+        int rate = EngineFormat.getSampleRate();
+        caches = new File[CACHES];
+        for (int i = 0; i < CACHES; i++) {
+            String hash = String.format(Locale.ROOT, "%064x", i + 1);
+            caches[i] = TestAudio.writeCache(new File(directory, MediaCache.FILE_PREFIX + hash + ".pcm"),
+                    new short[(100 + i) * 2], rate, 2);
+        }
+        
+        mediaIndex = new JSONObject();
+        for (int i = 0; i < CACHES; i++) {
+            JSONObject entry = new JSONObject();
+            entry.put("sampleCount", 100 + i);
+            entry.put("registeredAt", 1);
+            entry.put("lastUsed", 1);
+            entry.put("playlists", new JSONArray());
+            mediaIndex.put(caches[i].getName(), entry);
+        }
+        
+        Random random = new Random(1);
+        JSONArray index = new JSONArray();
+        for (int p = 0; p < PLAYLISTS; p++) {
+            JSONObject json = new JSONObject();
+            String id = playlistId(p);
+            json.put("id", id);
+            json.put("name", "Playlist " + p);
+            json.put("tracks", items(id, "Track", TRACKS, random));
+            json.put("announcements", items(id, "Spot", ANNOUNCEMENTS, random));
+            File file = new File(directory, id + ".json");
+            Files.write(file.toPath(), json.toString().getBytes(StandardCharsets.UTF_8));
+            index.put(PlaylistManager.summarize(json, file.lastModified()).toJson());
+        }
+        Files.write(new File(directory, INDEX_FILE).toPath(), index.toString().getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(directory, MEDIA_INDEX_FILE).toPath(), mediaIndex.toString().getBytes(StandardCharsets.UTF_8));
+    }
+    
+    @Test
+    public void indexMatchesThePlaylistFiles() throws IOException, JSONException {
+        List<PlaylistSummary> summaries = PlaylistManager.readIndex(new File(directory, INDEX_FILE));
+        assertEquals(PLAYLISTS, summaries.size());
+        for (PlaylistSummary summary : summaries) {
+            File file = new File(directory, summary.getId() + ".json");
+            JSONObject json = new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+            PlaylistSummary expected = PlaylistManager.summarize(json, file.lastModified());
+            assertEquals(expected.getName(), summary.getName());
+            assertEquals(TRACKS, summary.getTrackCount());
+            assertEquals(ANNOUNCEMENTS, summary.getAnnouncementCount());
+            assertEquals(expected.getDurationMs(), summary.getDurationMs());
+            assertEquals(file.lastModified(), summary.getModifiedTime());
+        }
+    }
+    
+    /**
+     * The PlaylistManager constructor (what runs on the main thread before the first frame) for
+     * 1,000 playlists, against the best of three full reads and of three reads of the media index.
+     * The constructor runs once: each instance starts background work on the same files. Times
+     * are the calling thread's CPU time, so the background work the constructor starts (which
+     * includes reading the media index) is not counted even on a single core.
+     */
+    @Test
+    public void benchmarkStartupWith1000Playlists() throws IOException, JSONException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        // Warm up the JIT and the page cache
+        readEverything();
+        PlaylistManager.readIndex(new File(directory, INDEX_FILE));
+        new MediaCache(directory).load();
+        
+        long fullNs = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            long start = threads.getCurrentThreadCpuTime();
+            assertEquals(PLAYLISTS * (TRACKS + ANNOUNCEMENTS), readEverything());
+            fullNs = Math.min(fullNs, threads.getCurrentThreadCpuTime() - start);
+        }
+        long mediaIndexNs = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            long start = threads.getCurrentThreadCpuTime();
+            new MediaCache(directory).load();
+            mediaIndexNs = Math.min(mediaIndexNs, threads.getCurrentThreadCpuTime() - start);
+        }
+        
+        Context context = new ContextWrapper(null) {
+            @Override
+            public File getFilesDir() {
+                return folder.getRoot();
+            }
+        };
+        long start = threads.getCurrentThreadCpuTime();
+        PlaylistManager manager = new PlaylistManager(context, new FilledLibrary(context, directory));
+        long startupNs = threads.getCurrentThreadCpuTime() - start;
+        
+        assertEquals(PLAYLISTS, manager.getPlaylistSummaries().size());
+        // The media index is still there when it is needed (read in the background meanwhile)
+        assertEquals(100 + CACHES - 1, manager.getMediaCache().getRecordedSampleCount(caches[CACHES - 1]));
+        System.out.printf("Startup with %d playlists: constructor %.1f ms, every playlist and cache header %.1f ms " +
+                "(%.0fx), media index of %d KB %.1f ms%n", PLAYLISTS, startupNs / 1e6, fullNs / 1e6,
+                fullNs / (double) startupNs, new File(directory, MEDIA_INDEX_FILE).length() / 1024, mediaIndexNs / 1e6);
+        assertTrue("Startup took " + startupNs / 1000000 + " ms", startupNs < fullNs / 5);
+    }
+    
+    /**
+     * Startup as it was: parse every playlist and read the length of every item from its cache
+     * @return Items read
+     */
+    private int readEverything() throws IOException, JSONException {
+        int items = 0;
+        for (int p = 0; p < PLAYLISTS; p++) {
+            File file = new File(directory, playlistId(p) + ".json");
+            JSONObject json = new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+            for (String key : Arrays.asList("tracks", "announcements")) {
+                JSONArray array = json.getJSONArray(key);
+                for (int i = 0; i < array.length(); i++) {
+                    File cache = new File(directory, array.getJSONObject(i).getString("dataFile"));
+                    assertTrue(PCMCacheHeader.getFrameCount(cache) > 0);
+                    items++;
+                }
+            }
+        }
+        return items;
+    }
+    
+    /**
+     * A UUID, as createPlaylist makes them (their length sets the size of the media index)
+     */
+    private static String playlistId(int playlist) {
+        return new UUID(0x6d69786170700000L, playlist).toString();
+    }
+    
+    /**
+     * Playlist items as savePlaylist stores them (and their references in the media index)
+     */
+    private JSONArray items(String playlistId, String name, int count, Random random) throws JSONException {
+        JSONArray array = new JSONArray();
+        for (int i = 0; i < count; i++) {
+            int cache = random.nextInt(CACHES);
+            mediaIndex.getJSONObject(caches[cache].getName()).getJSONArray("playlists").put(playlistId);
+            JSONObject item = new JSONObject();
+            item.put("name", name + " " + i);
+            item.put("index", i);
+            item.put("dataFile", caches[cache].getName());
+            item.put("sampleCount", 100 + cache);
+            item.put("sampleRate", EngineFormat.getSampleRate());
+            array.put(item);
+        }
+        return array;
+    }
+}
@@ -0,0 +1,184 @@
+package com.mixapp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import org.junit.Test;
+
+/**
+ * Output length, chunk continuity and accuracy of the streaming resampler, and its speed and
+ * quality next to the linear interpolation it replaced.
+ */
+public class ResamplerTest {
+    private static final int[][] RATE_PAIRS = {
+        {44100, 48000}, {48000, 44100}, {22050, 48000}, {8000, 44100}, {96000, 44100}, {44100, 44100}
+    };
+    
+    @Test
+    public void outputLengthIsExactCeiling() {
+        for (int[] rates : RATE_PAIRS) {
+            for (int frames : new int[] {0, 1, 7, 999, 44103}) {
+                Resampler resampler = new Resampler(rates[0], rates[1], 2, Resampler.Quality.STANDARD);
+                short[] output = resampleAll(resampler, TestAudio.noise(frames, 2, 1), frames, 2, frames + 1);
+                long expected = ((long) frames * rates[1] + rates[0] - 1) / rates[0];
+                assertEquals(rates[0] + " -> " + rates[1] + ", " + frames + " frames", expected, output.length / 2);
+                assertEquals(expected, resampler.getOutputFramesProduced());
+                assertEquals(frames, resampler.getInputFramesConsumed());
+            }
+        }
+    }
+    
+    @Test
+    public void chunkedOutputMatchesOneCall() {
+        int frames = 3 * 48000 + 17;
+        short[] input = TestAudio.noise(frames, 2, 2);
+        for (int[] rates : RATE_PAIRS) {
+            short[] whole = resampleAll(new Resampler(rates[0], rates[1], 2, Resampler.Quality.STANDARD),
+                    input, frames, 2, frames);
+            for (int chunk : new int[] {1, 17, 4096, rates[0]}) {
+                short[] chunked = resampleAll(new Resampler(rates[0], rates[1], 2, Resampler.Quality.STANDARD),
+                        input, frames, 2, chunk);
+                assertArrayEquals(rates[0] + " -> " + rates[1] + " in chunks of " + chunk, whole, chunked);
+            }
+        }
+    }
+    
+    @Test
+    public void sineStaysSineAcrossChunkBoundaries() {
+        // One-second chunks, as the decoder feeds them; the old path reset its phase at each one
+        int inRate = 48000;
+        int outRate = 44100;
+        int frames = 5 * inRate;
+        double amplitude = 10000;
+        short[] input = TestAudio.sine(frames, inRate, 1000, amplitude, 1);
+        short[] output = resampleAll(new Resampler(inRate, outRate, 1, Resampler.Quality.STANDARD),
+                input, frames, 1, inRate);
+        double worst = 0;
+        // Skip the filter's run-in and run-out at the very start and end
+        for (int i = 100; i < output.length - 100; i++) {
+            double expected = amplitude * Math.sin(2 * Math.PI * 1000 * i / (double) outRate);
+            worst = Math.max(worst, Math.abs(output[i] - expected));
+        }
+        assertTrue("Largest error " + worst, worst < amplitude * 0.005);
+    }
+    
+    @Test
+    public void channelsStayApart() {
+        int frames = 10000;
+        short[] input = new short[frames * 2];
+        short[] left = TestAudio.sine(frames, 44100, 440, 8000, 1);
+        for (int i = 0; i < frames; i++) {
+            input[i * 2] = left[i];
+        }
+        short[] output = resampleAll(new Resampler(44100, 48000, 2, Resampler.Quality.HIGH), input, frames, 2, 1024);
+        for (int i = 1; i < output.length; i += 2) {
+            assertEquals("Right channel frame " + i / 2, 0, output[i]);
+        }
+    }
+    
+    /**
+     * Throughput and aliasing of each quality against the old linear interpolation, on a tone
+     * near the top of the band (48 kHz to 44.1 kHz). Every quality must run well above real time.
+     */
+    @Test
+    public void benchmarkAgainstLinear() {
+        int inRate = 48000;
+        int outRate = 44100;
+        int frames = 10 * inRate;
+        double amplitude = 8000;
+        short[] input = TestAudio.sine(frames, inRate, 15000, amplitude, 2);
+        
+        long start = System.nanoTime();
+        short[] linear = new short[0];
+        for (int second = 0; second < 10; second++) {
+            short[] chunk = Arrays.copyOfRange(input, second * inRate * 2, (second + 1) * inRate * 2);
+            linear = concat(linear, linearResample(chunk, inRate, outRate, 2));
+        }
+        report("linear", System.nanoTime() - start, frames, inRate, toneError(linear, outRate, 15000, amplitude));
+        
+        for (Resampler.Quality quality : Resampler.Quality.values()) {
+            // Once to warm up the JIT, then timed
+            resampleAll(new Resampler(inRate, outRate, 2, quality), input, frames, 2, inRate);
+            start = System.nanoTime();
+            short[] output = resampleAll(new Resampler(inRate, outRate, 2, quality), input, frames, 2, inRate);
+            long elapsed = System.nanoTime() - start;
+            double error = toneError(output, outRate, 15000, amplitude);
+            report(quality.name(), elapsed, frames, inRate, error);
+            assertTrue(quality + " too slow", elapsed < 10_000_000_000L / 10);
+            assertTrue(quality + " error " + error, error < 0.01);
+        }
+    }
+    
+    private static void report(String name, long nanos, int frames, int rate, double error) {
+        double realTime = (frames / (double) rate) / (nanos / 1e9);
+        System.out.printf("%-8s %7.1f ms  %6.0fx real time  error %.4f%n", name, nanos / 1e6, realTime, error);
+    }
+    
+    /**
+     * RMS difference from the ideal tone, relative to its amplitude (middle of the output only)
+     */
+    private static double toneError(short[] output, int rate, double frequency, double amplitude) {
+        int frames = output.length / 2;
+        double sum = 0;
+        int count = 0;
+        for (int i = frames / 10; i < frames * 9 / 10; i++) {
+            double expected = amplitude * Math.sin(2 * Math.PI * frequency * i / rate);
+            double d = output[i * 2] - expected;
+            sum += d * d;
+            count++;
+        }
+        return Math.sqrt(sum / count) / amplitude;
+    }
+    
+    /**
+     * Feed input in chunks and flush, returning all output
+     */
+    static short[] resampleAll(Resampler resampler, short[] input, int frames, int channels, int chunkFrames) {
+        chunkFrames = Math.max(1, chunkFrames);
+        // Enough for everything: nothing has been fed yet
+        short[] out = new short[resampler.getMaxOutputFrames(frames) * channels];
+        int outFrames = 0;
+        short[] chunk = new short[chunkFrames * channels];
+        for (int pos = 0; pos < frames; pos += chunkFrames) {
+            int n = Math.min(chunkFrames, frames - pos);
+            System.arraycopy(input, pos * channels, chunk, 0, n * channels);
+            short[] buffer = new short[resampler.getMaxOutputFrames(n) * channels];
+            int produced = resampler.process(chunk, n, buffer);
+            System.arraycopy(buffer, 0, out, outFrames * channels, produced * channels);
+            outFrames += produced;
+        }
+        short[] tail = new short[resampler.getMaxOutputFrames(0) * channels];
+        int produced = resampler.flush(tail);
+        System.arraycopy(tail, 0, out, outFrames * channels, produced * channels);
+        return Arrays.copyOf(out, (outFrames + produced) * channels);
+    }
+    
+    private static short[] concat(short[] a, short[] b) {
+        short[] joined = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, joined, a.length, b.length);
+        return joined;
+    }
+    
+    /**
+     * The linear interpolation MP3Decoder used before the windowed-sinc resampler, applied per
+     * chunk as it was
+     */
+    private static short[] linearResample(short[] input, int inputRate, int outputRate, int channels) {
+        double ratio = (double) outputRate / inputRate;
+        int outputLength = (int) (input.length * ratio);
+        short[] output = new short[outputLength];
+        for (int i = 0; i < outputLength; i += channels) {
+            double srcIndex = i / ratio;
+            int srcIndexInt = (int) srcIndex;
+            double fraction = srcIndex - srcIndexInt;
+            for (int ch = 0; ch < channels && i + ch < outputLength; ch++) {
+                int idx = Math.min(srcIndexInt + ch, input.length - 1);
+                int nextIdx = Math.min(idx + channels, input.length - channels + ch);
+                output[i + ch] = (short) (input[idx] * (1 - fraction) + input[nextIdx] * fraction);
+            }
+        }
+        return output;
+    }
+}
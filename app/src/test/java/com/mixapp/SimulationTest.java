@@ -0,0 +1,740 @@
+package com.mixapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.util.Log;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Headless soak test of the mixer and scheduler on virtual time.
+ *
+ * Runs the real AudioMixer (reading real cache files through the stream pool and clip cache)
+ * and Scheduler against a virtual clock and a simulated output device. The device plays a
+ * buffer the moment it is written and moves the clock on by its length, so simulated time
+ * passes as fast as the mix can be computed; at the lowest engine rate a week takes minutes.
+ * The schedule crosses a daylight saving change and a one-off holiday. Checked along the way:
+ *   - every daypart starts on time (within two buffers) and in the expected order
+ *   - every timed announcement starts on its frame, or right after a rotation announcement
+ *     that was already playing, and none is skipped
+ *   - heap use and open file descriptors level off after the first day, and pooled streams
+ *     and cached clips stay within their limits
+ *   - the proof-of-play log has every timed announcement, and every start is followed by a
+ *     finish or a cut, also across the seeks and the reloads while paused the driver makes
+ *
+ * Runs with the unit tests (two days by default; ./gradlew test -PsimulationDays=14 for the
+ * full soak) and fails with the list of checks that did not hold.
+ */
+public class SimulationTest {
+    private static final String TAG = "SimulationTest";
+    private static final int DEFAULT_DAYS = 2;
+    // Lowest engine rate: least work per simulated second
+    private static final int SAMPLE_RATE = 8000;
+    private static final int BUFFER_FRAMES = 1600;
+    private static final ZoneId ZONE = ZoneId.of("Europe/Berlin");
+    // A few days before the spring daylight saving change
+    private static final LocalDateTime START = LocalDateTime.of(2026, 3, 26, 23, 0);
+    private static final long DAY_MS = 24 * 3600 * 1000L;
+    // Real time the driver waits for the mixer's next buffer before calling it stalled
+    private static final long STALL_TIMEOUT_MS = 5000;
+    // Simulated time between resource samples
+    private static final long SAMPLE_INTERVAL_MS = 6 * 3600 * 1000L;
+    private static final long HEAP_GROWTH_LIMIT = 32L * 1024 * 1024;
+    private static final int FD_GROWTH_LIMIT = 8;
+    private static final int ROTATION_INTERVAL_SECONDS = 600;
+    // Simulated time between seeks (alternately within the track and across the playlist)
+    private static final long SEEK_INTERVAL_MS = 5 * 3600 * 1000L;
+    
+    /**
+     * Outcome of a run
+     */
+    static class Report {
+        public final List<String> failures = new ArrayList<>();
+        public long simulatedMs;
+        public long realMs;
+        public int daypartStarts;
+        public int timedAnnouncements;
+        public long maxTimedAnnouncementErrorMs;
+        public long heapGrowthBytes;
+        public int fdGrowth;
+        public int playLogEntries;
+        public int seeks;
+        public long playReportMs; // Time to export the busiest day's report
+        
+        public boolean passed() {
+            return failures.isEmpty();
+        }
+        
+        @Override
+        public String toString() {
+            return (passed() ? "PASSED" : "FAILED (" + failures.size() + " failures)") + ": " +
+                   simulatedMs / DAY_MS + " days in " + realMs / 1000 + " s, " + daypartStarts + " daypart starts, " +
+                   timedAnnouncements + " timed announcements (max error " + maxTimedAnnouncementErrorMs + " ms), " +
+                   "heap growth " + heapGrowthBytes / 1024 + " KB, fd growth " + fdGrowth + ", " +
+                   playLogEntries + " play log entries after " + seeks + " seeks (day report in " + playReportMs + " ms)";
+        }
+    }
+    
+    /**
+     * Time that moves only when audio is rendered (or the driver idles)
+     */
+    private static class VirtualClock implements EngineClock {
+        private final long startMs;
+        private final AtomicLong frames = new AtomicLong();
+        
+        VirtualClock(long startMs) {
+            this.startMs = startMs;
+        }
+        
+        void advance(long frameCount) {
+            frames.addAndGet(frameCount);
+        }
+        
+        @Override
+        public long currentTimeMillis() {
+            return startMs + elapsedRealtime();
+        }
+        
+        @Override
+        public long elapsedRealtime() {
+            return frames.get() * 1000 / SAMPLE_RATE;
+        }
+        
+        @Override
+        public ZoneId getZone() {
+            return ZONE;
+        }
+    }
+    
+    /**
+     * Simulated device: each written buffer advances the clock, then the writer waits until the
+     * driver has handled that moment (lockstep, so runs are repeatable). Played frames trail
+     * written ones by one buffer, as on a device, and the head counter wraps like a device's.
+     */
+    private static class VirtualSink implements AudioSink {
+        private final VirtualClock clock;
+        private long framesWritten = 0;
+        private boolean playing = false;
+        private boolean bufferPending = false;
+        
+        VirtualSink(VirtualClock clock) {
+            this.clock = clock;
+        }
+        
+        @Override
+        public synchronized int write(short[] data, int offset, int length) {
+            if (!playing) {
+                return length;
+            }
+            framesWritten += length / EngineFormat.CHANNELS;
+            clock.advance(length / EngineFormat.CHANNELS);
+            bufferPending = true;
+            notifyAll();
+            while (bufferPending && playing) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            return length;
+        }
+        
+        @Override
+        public synchronized int getPlaybackHeadPosition() {
+            return (int) Math.max(0, framesWritten - BUFFER_FRAMES);
+        }
+        
+        /**
+         * Wait for the mixer to write its next buffer
+         * @return False if it did not within STALL_TIMEOUT_MS (real time)
+         */
+        synchronized boolean awaitBuffer() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + STALL_TIMEOUT_MS;
+            while (!bufferPending && playing) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(remaining);
+            }
+            return true;
+        }
+        
+        /**
+         * Let the mixer go on to the next buffer
+         */
+        synchronized void proceed() {
+            bufferPending = false;
+            notifyAll();
+        }
+        
+        @Override
+        public synchronized void play() {
+            playing = true;
+        }
+        
+        @Override
+        public synchronized void pause() {
+            stop();
+        }
+        
+        @Override
+        public synchronized void stop() {
+            playing = false;
+            bufferPending = false;
+            notifyAll();
+        }
+        
+        @Override
+        public void release() {
+        }
+    }
+    
+    /**
+     * A timed announcement as heard
+     */
+    private static class TimedStart {
+        final long dueMs;
+        final long heardAtMs;
+        
+        TimedStart(long dueMs, long heardAtMs) {
+            this.dueMs = dueMs;
+            this.heardAtMs = heardAtMs;
+        }
+    }
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private File directory;
+    private int previousSampleRate;
+    private final Map<String, Playlist> playlists = new HashMap<>();
+    private final List<Long> daypartStarts = new ArrayList<>();
+    private final List<String> daypartPlaylists = new ArrayList<>();
+    private final List<TimedStart> timedStarts = Collections.synchronizedList(new ArrayList<>());
+    private Playlist pendingSwitch;
+    
+    @Before
+    public void setUp() {
+        directory = folder.getRoot();
+        previousSampleRate = EngineFormat.getSampleRate();
+    }
+    
+    @After
+    public void tearDown() {
+        // The engine rate is global; leave it as the other tests expect it
+        EngineFormat.setSampleRate(previousSampleRate);
+    }
+    
+    @Test
+    public void soak() throws Exception {
+        int days = Integer.parseInt(System.getProperty("simulation.days", String.valueOf(DEFAULT_DAYS)));
+        Report report = run(days);
+        System.out.println(report);
+        assertTrue(report + "\n" + String.join("\n", report.failures), report.passed());
+    }
+    
+    /**
+     * The monotonic clock runs on while the device sleeps, so a long sleep shows no clock change.
+     * Events missed in it must not be fired back to back on waking: the daypart in effect is
+     * reported once, missed cues are skipped, and the next events come on time.
+     */
+    @Test
+    public void sleepThroughEvents() throws IOException {
+        File scheduleFile = new File(directory, "sleep_schedule.json");
+        Schedule schedule = Schedule.load(scheduleFile);
+        schedule.add(new Schedule.Daypart("d1", Schedule.ALL_DAYS, null, 2 * 3600, "night"));
+        schedule.add(new Schedule.Daypart("d2", Schedule.ALL_DAYS, null, 4 * 3600, "early"));
+        for (int hour = 0; hour < 24; hour++) {
+            schedule.add(new Schedule.Cue("c" + hour, Schedule.ALL_DAYS, null, hour * 3600 + 15 * 60,
+                    "chime", "chime.pcm"));
+        }
+        VirtualClock clock = new VirtualClock(START.atZone(ZONE).toInstant().toEpochMilli());
+        List<String> started = new ArrayList<>();
+        List<long[]> cues = new ArrayList<>(); // {start, prepared at}
+        Scheduler scheduler = new Scheduler(schedule, new Scheduler.Listener() {
+            @Override
+            public void onPrepareDaypart(Schedule.Daypart daypart, long startMs) {
+            }
+            
+            @Override
+            public void onDaypartStart(Schedule.Daypart daypart) {
+                started.add(daypart.playlistId);
+            }
+            
+            @Override
+            public void onPrepareCue(Schedule.Cue cue, long startMs) {
+                cues.add(new long[]{startMs, clock.currentTimeMillis()});
+            }
+        }, clock);
+        scheduler.poll();
+        assertEquals(Collections.singletonList("early"), started);
+        
+        // Asleep from 23:00 to 03:30: past the night daypart's start and five cues
+        clock.advance((4 * 3600 + 30 * 60) * (long) SAMPLE_RATE);
+        long wokeMs = clock.currentTimeMillis();
+        scheduler.poll();
+        assertEquals(Arrays.asList("early", "night"), started);
+        assertTrue("Missed cues were fired on waking", cues.isEmpty());
+        
+        // Awake again until 05:00: the early daypart starts and the 04:15 cue is prepared on time
+        long earlyMs = at(START.toLocalDate().plusDays(1), 4 * 3600);
+        long earlySeenMs = -1;
+        while (clock.currentTimeMillis() < wokeMs + 90 * 60 * 1000) {
+            clock.advance(BUFFER_FRAMES);
+            scheduler.poll();
+            if (earlySeenMs < 0 && started.size() == 3) {
+                earlySeenMs = clock.currentTimeMillis();
+            }
+        }
+        assertEquals(Arrays.asList("early", "night", "early"), started);
+        assertTrue("Daypart due " + describe(earlyMs) + " started " + describe(earlySeenMs),
+                earlySeenMs >= earlyMs && earlySeenMs - earlyMs <= BUFFER_FRAMES * 1000L / SAMPLE_RATE);
+        assertEquals(1, cues.size());
+        assertEquals(earlyMs + 15 * 60 * 1000, cues.get(0)[0]);
+        long leadMs = cues.get(0)[0] - cues.get(0)[1];
+        assertTrue("Cue prepared " + leadMs + " ms ahead", leadMs > 0 && leadMs <= 30 * 1000);
+    }
+    
+    /**
+     * A rotation clip that ends within the buffer it starts in is finished like any other: the
+     * next one waits for the interval, and every start is logged with its finish
+     */
+    @Test
+    public void shortRotationClipKeepsTheInterval() throws IOException, InterruptedException {
+        EngineFormat.setSampleRate(SAMPLE_RATE);
+        File blip = TestAudio.writeCache(new File(directory, "sim_blip.pcm"),
+                TestAudio.noise(BUFFER_FRAMES / 2, EngineFormat.CHANNELS, 1), SAMPLE_RATE, EngineFormat.CHANNELS);
+        addPlaylist("short", tone("sim_bed.pcm", 120, 220, 2)).addAnnouncement(
+                new AudioMixer.AnnouncementData("blip", blip, frameCount(blip)));
+        
+        VirtualClock clock = new VirtualClock(START.atZone(ZONE).toInstant().toEpochMilli());
+        VirtualSink sink = new VirtualSink(clock);
+        AudioMixer mixer = new AudioMixer(clock, sink, BUFFER_FRAMES * EngineFormat.CHANNELS * 2);
+        mixer.setAnnouncementInterval(10);
+        PlayLog playLog = PlayLog.open(new File(directory, "short_playlog"), clock);
+        mixer.setPlayLog(playLog);
+        long startMs = clock.currentTimeMillis();
+        try {
+            mixer.loadPlaylist(playlists.get("short"));
+            mixer.play();
+            while (clock.currentTimeMillis() < startMs + 65 * 1000) {
+                assertTrue("Mixer stalled", sink.awaitBuffer());
+                sink.proceed();
+            }
+        } finally {
+            mixer.release();
+            playLog.close();
+            ClipCache.clear();
+        }
+        
+        playLog = PlayLog.open(new File(directory, "short_playlog"), clock);
+        try {
+            List<PlayLog.Entry> entries = playLog.query(startMs, clock.currentTimeMillis() + 1);
+            List<Long> starts = new ArrayList<>();
+            int finishes = 0;
+            for (PlayLog.Entry entry : entries) {
+                if (entry.kind == PlayLog.KIND_ANNOUNCEMENT) {
+                    if (entry.event == PlayLog.EVENT_START) {
+                        starts.add(entry.timeMs);
+                    } else if (entry.event == PlayLog.EVENT_FINISH) {
+                        finishes++;
+                    }
+                }
+            }
+            // Right away, then every ten seconds (counted from the buffer the previous one ended in)
+            assertTrue(starts.size() + " starts", starts.size() >= 6 && starts.size() <= 7);
+            assertEquals(starts.size(), finishes);
+            for (int i = 1; i < starts.size(); i++) {
+                long gapMs = starts.get(i) - starts.get(i - 1);
+                assertTrue("Started " + gapMs + " ms after the previous one", gapMs >= 10 * 1000);
+            }
+        } finally {
+            playLog.close();
+        }
+    }
+    
+    /**
+     * Simulate a number of days of unattended playback
+     */
+    private Report run(int days) throws IOException, InterruptedException {
+        long realStart = System.currentTimeMillis();
+        EngineFormat.setSampleRate(SAMPLE_RATE);
+        Report report = new Report();
+        
+        // Media: tracks of odd lengths so track ends drift against the schedule, one announcement
+        // short enough for the clip cache and one too long for it
+        File shortClip = tone("sim_closing.pcm", 6, 880, 1);
+        File longClip = tone("sim_promo.pcm", 25, 660, 2);
+        addPlaylist("morning", tone("sim_morning_a.pcm", 47, 220, 2), tone("sim_morning_b.pcm", 131, 247, 1));
+        addPlaylist("midday", tone("sim_midday.pcm", 63, 330, 2)).addAnnouncement(
+                new AudioMixer.AnnouncementData("promo", longClip, frameCount(longClip)));
+        addPlaylist("evening", tone("sim_evening.pcm", 91, 196, 2)).addAnnouncement(
+                new AudioMixer.AnnouncementData("closing", shortClip, frameCount(shortClip)));
+        long longestRotationMs = EngineFormat.framesToMs(frameCount(longClip));
+        
+        File scheduleFile = new File(directory, "sim_schedule.json");
+        scheduleFile.delete();
+        Schedule schedule = Schedule.load(scheduleFile);
+        int weekdays = 0x1f;
+        int weekend = 0x60;
+        schedule.add(new Schedule.Daypart("d1", weekdays, null, 7 * 3600, "morning"));
+        schedule.add(new Schedule.Daypart("d2", weekdays, null, 12 * 3600, "midday"));
+        schedule.add(new Schedule.Daypart("d3", weekdays, null, 18 * 3600, "evening"));
+        schedule.add(new Schedule.Daypart("d4", weekend, null, 9 * 3600, "midday"));
+        // Inside the hour skipped by the daylight saving change on its Sunday
+        schedule.add(new Schedule.Daypart("d5", weekend, null, 2 * 3600 + 30 * 60, "evening"));
+        LocalDate holiday = START.toLocalDate().plusDays(5);
+        schedule.add(new Schedule.Daypart("h1", 0, holiday, 10 * 3600, "evening"));
+        schedule.add(new Schedule.Daypart("h2", 0, holiday, 15 * 3600, "morning"));
+        for (int hour = 0; hour < 24; hour++) {
+            schedule.add(new Schedule.Cue("c" + hour, Schedule.ALL_DAYS, null, hour * 3600 + 15 * 60,
+                    "chime", shortClip.getName()));
+        }
+        schedule.add(new Schedule.Cue("c-close", weekdays, null, 20 * 3600 + 45 * 60, "closing", shortClip.getName()));
+        schedule.add(new Schedule.Cue("c-promo", weekend, null, 2 * 3600 + 40 * 60, "promo", longClip.getName()));
+        
+        VirtualClock clock = new VirtualClock(START.atZone(ZONE).toInstant().toEpochMilli());
+        VirtualSink sink = new VirtualSink(clock);
+        AudioMixer mixer = new AudioMixer(clock, sink, BUFFER_FRAMES * EngineFormat.CHANNELS * 2);
+        mixer.setAnnouncementInterval(ROTATION_INTERVAL_SECONDS);
+        mixer.setListener((ann, dueMs, heardAtMs) -> timedStarts.add(new TimedStart(dueMs, heardAtMs)));
+        File playLogDirectory = new File(directory, "sim_playlog");
+        File[] oldLog = playLogDirectory.listFiles();
+        if (oldLog != null) {
+            for (File file : oldLog) {
+                file.delete();
+            }
+        }
+        PlayLog playLog = PlayLog.open(playLogDirectory, clock);
+        mixer.setPlayLog(playLog);
+        Scheduler scheduler = new Scheduler(schedule, new Scheduler.Listener() {
+            @Override
+            public void onPrepareDaypart(Schedule.Daypart daypart, long startMs) {
+                mixer.prewarm(playlists.get(daypart.playlistId));
+            }
+            
+            @Override
+            public void onDaypartStart(Schedule.Daypart daypart) {
+                daypartStarts.add(clock.currentTimeMillis());
+                daypartPlaylists.add(daypart.playlistId);
+                pendingSwitch = playlists.get(daypart.playlistId);
+            }
+            
+            @Override
+            public void onPrepareCue(Schedule.Cue cue, long startMs) {
+                File file = new File(directory, cue.dataFile);
+                mixer.scheduleAnnouncement(new AudioMixer.AnnouncementData(cue.name, file, frameCount(file)), startMs);
+            }
+        }, clock);
+        
+        long startMs = clock.currentTimeMillis();
+        long endMs = startMs + days * DAY_MS;
+        long nextSampleMs = startMs + DAY_MS;
+        long nextSeekMs = startMs + SEEK_INTERVAL_MS;
+        int switches = 0;
+        long baselineHeap = -1;
+        int baselineFds = -1;
+        try {
+            while (clock.currentTimeMillis() < endMs) {
+                if (mixer.isPlaying()) {
+                    if (!sink.awaitBuffer()) {
+                        report.failures.add("Mixer stalled at " + describe(clock.currentTimeMillis()));
+                        break;
+                    }
+                } else {
+                    clock.advance(BUFFER_FRAMES);
+                }
+                scheduler.poll();
+                if (pendingSwitch != null) {
+                    // Every other switch is made while paused, as the operator might
+                    if (switches++ % 2 == 1) {
+                        mixer.pause();
+                    }
+                    mixer.loadPlaylist(pendingSwitch);
+                    pendingSwitch = null;
+                    if (!mixer.isPlaying()) {
+                        mixer.play();
+                    }
+                }
+                if (clock.currentTimeMillis() >= nextSeekMs && mixer.isPlaying()) {
+                    nextSeekMs += SEEK_INTERVAL_MS;
+                    if (report.seeks++ % 2 == 0) {
+                        mixer.seekToTrackPosition(30 * 1000);
+                    } else {
+                        mixer.seekToPlaylistPosition(mixer.getPlaylistDuration() / 2);
+                    }
+                }
+                
+                if (StreamPool.getOpenCount() > StreamPool.MAX_OPEN + 2) {
+                    report.failures.add(StreamPool.getOpenCount() + " streams open at " + describe(clock.currentTimeMillis()));
+                }
+                if (ClipCache.getCachedBytes() > ClipCache.getBudgetBytes()) {
+                    report.failures.add("Clip cache over budget at " + describe(clock.currentTimeMillis()));
+                }
+                if (clock.currentTimeMillis() >= nextSampleMs) {
+                    nextSampleMs += SAMPLE_INTERVAL_MS;
+                    long heap = usedHeap();
+                    int fds = countOpenFiles();
+                    if (baselineHeap < 0) {
+                        baselineHeap = heap;
+                        baselineFds = fds;
+                    }
+                    report.heapGrowthBytes = Math.max(report.heapGrowthBytes, heap - baselineHeap);
+                    report.fdGrowth = Math.max(report.fdGrowth, fds - baselineFds);
+                    Log.d(TAG, describe(clock.currentTimeMillis()) + ": heap " + heap / 1024 + " KB, " + fds + " fds, " +
+                          StreamPool.getStats() + ", " + ClipCache.getStats());
+                }
+                sink.proceed();
+            }
+        } finally {
+            mixer.release();
+            playLog.close();
+            ClipCache.clear();
+        }
+        
+        report.simulatedMs = clock.currentTimeMillis() - startMs;
+        checkDayparts(schedule, startMs, clock.currentTimeMillis(), report);
+        checkTimedAnnouncements(schedule, startMs, clock.currentTimeMillis(), longestRotationMs, report);
+        checkPlayLog(PlayLog.open(playLogDirectory, clock), startMs, clock.currentTimeMillis(), report);
+        if (report.heapGrowthBytes > HEAP_GROWTH_LIMIT) {
+            report.failures.add("Heap grew by " + report.heapGrowthBytes / 1024 + " KB after the first day");
+        }
+        if (report.fdGrowth > FD_GROWTH_LIMIT) {
+            report.failures.add(report.fdGrowth + " more file descriptors open than after the first day");
+        }
+        report.realMs = System.currentTimeMillis() - realStart;
+        Log.d(TAG, report.toString());
+        return report;
+    }
+    
+    /**
+     * Compare the daypart starts with the ones worked out from the calendar
+     */
+    private void checkDayparts(Schedule schedule, long startMs, long endMs, Report report) {
+        List<long[]> expected = new ArrayList<>(); // {start, entry index}
+        List<Schedule.Daypart> dayparts = new ArrayList<>();
+        for (Schedule.Entry entry : schedule.getEntries()) {
+            if (entry instanceof Schedule.Daypart) {
+                dayparts.add((Schedule.Daypart) entry);
+            }
+        }
+        for (LocalDate day = START.toLocalDate(); !day.atStartOfDay(ZONE).toInstant().isAfter(
+                java.time.Instant.ofEpochMilli(endMs)); day = day.plusDays(1)) {
+            boolean holiday = false;
+            for (Schedule.Daypart daypart : dayparts) {
+                holiday |= day.equals(daypart.date);
+            }
+            for (int i = 0; i < dayparts.size(); i++) {
+                Schedule.Daypart daypart = dayparts.get(i);
+                boolean applies = holiday ? day.equals(daypart.date) : (daypart.date == null && onDay(daypart.days, day));
+                long start = at(day, daypart.secondOfDay);
+                if (applies && start > startMs && start < endMs) {
+                    expected.add(new long[]{start, i});
+                }
+            }
+        }
+        Collections.sort(expected, (a, b) -> Long.compare(a[0], b[0]));
+        
+        // The first start reported is the daypart already in effect when the run began
+        report.daypartStarts = daypartStarts.size();
+        if (daypartStarts.size() != expected.size() + 1) {
+            report.failures.add(expected.size() + " daypart starts expected, " + Math.max(0, daypartStarts.size() - 1) + " seen");
+            return;
+        }
+        long toleranceMs = 2 * EngineFormat.framesToMs(BUFFER_FRAMES);
+        for (int i = 0; i < expected.size(); i++) {
+            long[] want = expected.get(i);
+            long seenAt = daypartStarts.get(i + 1);
+            String seenPlaylist = daypartPlaylists.get(i + 1);
+            String wantPlaylist = dayparts.get((int) want[1]).playlistId;
+            if (seenAt < want[0] || seenAt - want[0] > toleranceMs || !seenPlaylist.equals(wantPlaylist)) {
+                report.failures.add("Daypart " + wantPlaylist + " due " + describe(want[0]) + ", started " +
+                                    seenPlaylist + " at " + describe(seenAt));
+            }
+        }
+    }
+    
+    /**
+     * Check that every timed announcement played, on its frame or right after a rotation announcement
+     */
+    private void checkTimedAnnouncements(Schedule schedule, long startMs, long endMs, long longestRotationMs,
+                                         Report report) {
+        List<Long> expected = new ArrayList<>();
+        for (Schedule.Cue cue : schedule.getCues()) {
+            for (LocalDate day = START.toLocalDate(); !day.atStartOfDay(ZONE).toInstant().isAfter(
+                    java.time.Instant.ofEpochMilli(endMs)); day = day.plusDays(1)) {
+                long start = at(day, cue.secondOfDay);
+                // The last minute is left out: it may still be waiting for a rotation announcement
+                if (onDay(cue.days, day) && start > startMs && start < endMs - 60 * 1000) {
+                    expected.add(start);
+                }
+            }
+        }
+        Collections.sort(expected);
+        List<TimedStart> seen = new ArrayList<>(timedStarts);
+        report.timedAnnouncements = seen.size();
+        int next = 0;
+        for (long due : expected) {
+            while (next < seen.size() && seen.get(next).dueMs < due) {
+                next++;
+            }
+            // Two cues can share a start time; each needs its own play
+            if (next >= seen.size() || seen.get(next).dueMs != due) {
+                report.failures.add("Timed announcement due " + describe(due) + " did not play");
+                continue;
+            }
+            long errorMs = seen.get(next).heardAtMs - due;
+            report.maxTimedAnnouncementErrorMs = Math.max(report.maxTimedAnnouncementErrorMs, Math.abs(errorMs));
+            if (errorMs < -1 || errorMs > longestRotationMs + EngineFormat.framesToMs(BUFFER_FRAMES)) {
+                report.failures.add("Timed announcement due " + describe(due) + " heard " + errorMs + " ms off");
+            }
+            next++;
+        }
+    }
+    
+    /**
+     * Check the proof-of-play log against what the mixer reported, reading it back from disk
+     */
+    private void checkPlayLog(PlayLog playLog, long startMs, long endMs, Report report) throws IOException {
+        try {
+            List<PlayLog.Entry> entries = playLog.query(startMs, endMs + 1);
+            report.playLogEntries = entries.size();
+            if (playLog.getDroppedCount() > 0) {
+                report.failures.add(playLog.getDroppedCount() + " play log entries dropped");
+            }
+            int timed = 0;
+            int midwayStarts = 0;
+            for (PlayLog.Entry entry : entries) {
+                if (entry.kind == PlayLog.KIND_TIMED_ANNOUNCEMENT && entry.event == PlayLog.EVENT_START) {
+                    timed++;
+                }
+                if (entry.kind == PlayLog.KIND_TRACK && entry.event == PlayLog.EVENT_START && entry.playedFrames > 0) {
+                    midwayStarts++;
+                }
+            }
+            // Every seek lands inside a track, which has to be logged as started there
+            if (midwayStarts < report.seeks) {
+                report.failures.add("Play log has " + midwayStarts + " tracks started mid-way after " + report.seeks + " seeks");
+            }
+            PlayLog.Pairing pairing = PlayLog.checkPairing(entries, startMs);
+            for (PlayLog.Entry entry : pairing.unpaired) {
+                report.failures.add("Play log " + (entry.event == PlayLog.EVENT_START ? "starts an item again" :
+                        "ends an item it never started") + " at " + describe(entry.timeMs));
+            }
+            if (!pairing.open.isEmpty()) {
+                report.failures.add(pairing.open.size() + " play log start(s) without a finish or cut");
+            }
+            if (timed != timedStarts.size()) {
+                report.failures.add("Play log has " + timed + " timed announcements, mixer started " + timedStarts.size());
+            }
+            
+            long reportStart = System.nanoTime();
+            playLog.exportDay(START.toLocalDate().plusDays(1), ZONE, new java.io.StringWriter());
+            report.playReportMs = (System.nanoTime() - reportStart) / 1000000;
+        } finally {
+            playLog.close();
+        }
+    }
+    
+    private Playlist addPlaylist(String id, File... tracks) {
+        Playlist playlist = new Playlist(id, id);
+        for (File track : tracks) {
+            playlist.addTrack(new AudioMixer.TrackData(track.getName(), track, frameCount(track)));
+        }
+        playlists.put(id, playlist);
+        return playlist;
+    }
+    
+    /**
+     * Write a sealed PCM cache holding a sine tone (reused if it is already there)
+     */
+    private File tone(String name, int seconds, double frequency, int channels) throws IOException {
+        File file = new File(directory, name);
+        if (file.exists() && PCMCacheHeader.verify(file) && frameCount(file) == (long) seconds * SAMPLE_RATE) {
+            return file;
+        }
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            PCMCacheHeader.writeUnsealed(fos, SAMPLE_RATE, channels);
+            ByteBuffer buffer = ByteBuffer.allocate(SAMPLE_RATE * channels * 2).order(ByteOrder.LITTLE_ENDIAN);
+            for (int second = 0; second < seconds; second++) {
+                buffer.clear();
+                for (int i = 0; i < SAMPLE_RATE; i++) {
+                    double t = (double) (second * SAMPLE_RATE + i) / SAMPLE_RATE;
+                    short sample = (short) (Math.sin(2 * Math.PI * frequency * t) * 8000);
+                    for (int c = 0; c < channels; c++) {
+                        buffer.putShort(sample);
+                    }
+                }
+                fos.write(buffer.array());
+            }
+        }
+        PCMCacheHeader.seal(file);
+        return file;
+    }
+    
+    private static long frameCount(File file) {
+        try {
+            return PCMCacheHeader.getFrameCount(file);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unreadable simulation media: " + file.getName(), e);
+        }
+    }
+    
+    private static boolean onDay(int days, LocalDate day) {
+        return (days & (1 << (day.getDayOfWeek().getValue() - 1))) != 0;
+    }
+    
+    /**
+     * A local time on a day, in epoch milliseconds (times skipped by daylight saving move forward)
+     */
+    private static long at(LocalDate day, int secondOfDay) {
+        return day.atTime(LocalTime.ofSecondOfDay(secondOfDay)).atZone(ZONE).toInstant().toEpochMilli();
+    }
+    
+    private static String describe(long timeMs) {
+        java.time.ZonedDateTime time = java.time.Instant.ofEpochMilli(timeMs).atZone(ZONE);
+        DayOfWeek day = time.getDayOfWeek();
+        return day.toString().substring(0, 3) + " " + time.toLocalDateTime();
+    }
+    
+    /**
+     * Live heap after a collection, so samples compare retained memory rather than garbage
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+    
+    /**
+     * Open file descriptors of this process (Linux), or 0 where that can't be told
+     */
+    private static int countOpenFiles() {
+        String[] fds = new File("/proc/self/fd").list();
+        return (fds != null) ? fds.length : 0;
+    }
+}
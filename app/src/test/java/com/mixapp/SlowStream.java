@@ -0,0 +1,76 @@
+package com.mixapp;
+
+/**
+ * A stream that behaves like one decoded on the fly: it returns nothing for its first reads and
+ * then every few reads (as CompressedAudioStream does when its wait for the decoder runs out),
+ * at most half of what is asked otherwise, and may report a length that is only an estimate.
+ */
+class SlowStream implements AudioStream {
+    private final short[] samples;
+    private final long frames;
+    private final int startStalls;
+    private final int stallEvery;
+    long estimatedFrames; // What getTotalSamples() reports
+    long stallAfter = Long.MAX_VALUE; // Produces nothing from this frame on
+    int stalls = 0;
+    private int reads = 0;
+    
+    /**
+     * @param samples Interleaved, at the engine rate and channel count
+     * @param stallEvery Return nothing on every n-th read (0 for never)
+     */
+    SlowStream(short[] samples, int startStalls, int stallEvery) {
+        this.samples = samples;
+        this.frames = samples.length / EngineFormat.CHANNELS;
+        this.startStalls = startStalls;
+        this.stallEvery = stallEvery;
+        this.estimatedFrames = frames;
+    }
+    
+    @Override
+    public int readSamples(long startSample, int numSamples, short[] outputBuffer) {
+        reads++;
+        if (reads <= startStalls || (stallEvery > 0 && reads % stallEvery == 0) || startSample >= stallAfter) {
+            stalls++;
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return 0;
+        }
+        int count = (int) Math.min(Math.max(1, numSamples / 2), frames - startSample);
+        System.arraycopy(samples, (int) startSample * EngineFormat.CHANNELS, outputBuffer, 0,
+                count * EngineFormat.CHANNELS);
+        return count;
+    }
+    
+    @Override
+    public long getTotalSamples() {
+        return estimatedFrames;
+    }
+    
+    @Override
+    public boolean isEndOfStream(long position) {
+        return position >= frames;
+    }
+    
+    @Override
+    public int getSampleRate() {
+        return EngineFormat.getSampleRate();
+    }
+    
+    @Override
+    public int getChannels() {
+        return EngineFormat.CHANNELS;
+    }
+    
+    @Override
+    public void close() {
+    }
+    
+    @Override
+    public boolean isClosed() {
+        return false;
+    }
+}
@@ -0,0 +1,100 @@
+package com.mixapp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Test signals and cache files
+ */
+final class TestAudio {
+    private TestAudio() {
+    }
+    
+    static short[] sine(int frames, int rate, double frequency, double amplitude, int channels) {
+        short[] samples = new short[frames * channels];
+        for (int i = 0; i < frames; i++) {
+            short s = (short) Math.round(amplitude * Math.sin(2 * Math.PI * frequency * i / rate));
+            for (int c = 0; c < channels; c++) {
+                samples[i * channels + c] = s;
+            }
+        }
+        return samples;
+    }
+    
+    static short[] noise(int frames, int channels, long seed) {
+        Random random = new Random(seed);
+        short[] samples = new short[frames * channels];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) (random.nextGaussian() * 4000);
+        }
+        return samples;
+    }
+    
+    static byte[] toBytes(short[] samples) {
+        ByteBuffer buffer = ByteBuffer.allocate(samples.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asShortBuffer().put(samples);
+        return buffer.array();
+    }
+    
+    /**
+     * Write a sealed PCM cache holding the given interleaved samples
+     */
+    static File writeCache(File file, short[] samples, int rate, int channels) throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            PCMCacheHeader.writeUnsealed(fos, rate, channels);
+            fos.write(toBytes(samples));
+        }
+        PCMCacheHeader.seal(file);
+        return file;
+    }
+    
+    /**
+     * Interleaved samples of a PCM cache, in its stored channel count
+     */
+    static short[] readCache(File file) throws IOException {
+        PCMCacheHeader header = PCMCacheHeader.read(file);
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        int offset = (int) header.dataOffset;
+        short[] samples = new short[(bytes.length - offset) / 2];
+        ByteBuffer.wrap(bytes, offset, samples.length * 2).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(samples);
+        return samples;
+    }
+    
+    /**
+     * Read a whole stream in reads of a given size
+     */
+    static short[] readAll(AudioStream stream, int chunkFrames) throws IOException {
+        int channels = stream.getChannels();
+        short[] all = new short[(int) stream.getTotalSamples() * channels];
+        short[] chunk = new short[chunkFrames * channels];
+        long position = 0;
+        while (position < stream.getTotalSamples()) {
+            int read = stream.readSamples(position, chunkFrames, chunk);
+            if (read <= 0) {
+                throw new IOException("Stream stopped at frame " + position);
+            }
+            System.arraycopy(chunk, 0, all, (int) position * channels, read * channels);
+            position += read;
+        }
+        return all;
+    }
+    
+    /**
+     * Signal-to-noise ratio of a copy against the original, in dB
+     */
+    static double snrDb(short[] original, short[] copy) {
+        double signal = 0;
+        double noise = 0;
+        for (int i = 0; i < original.length; i++) {
+            double d = copy[i] - original[i];
+            signal += (double) original[i] * original[i];
+            noise += d * d;
+        }
+        return 10 * Math.log10(signal / Math.max(noise, 1e-9));
+    }
+}
@@ -0,0 +1,389 @@
+package com.mixapp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Sample formats, chunk layouts and odd data sizes of the pure-Java WAV reader, and its speed
+ */
+public class WavDecoderTest {
+    private static final int RATE = 44100;
+    private static final int PCM = 1;
+    private static final int FLOAT = 3;
+    private static final int EXTENSIBLE = 0xFFFE;
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    // Cache written by the last decode()
+    private File cached;
+    
+    @Test
+    public void sixteenBitIsCopiedExactly() throws IOException {
+        short[] samples = TestAudio.noise(10000, 2, 1);
+        File wav = write(new Wav(PCM, 2, 16).data(TestAudio.toBytes(samples)));
+        assertArrayEquals(samples, decode(wav, RATE, 2));
+    }
+    
+    @Test
+    public void eightBitIsUnsignedAroundHalf() throws IOException {
+        byte[] data = {(byte) 128, (byte) 128, 0, (byte) 255, (byte) 192, 64};
+        File wav = write(new Wav(PCM, 2, 8).data(data));
+        assertArrayEquals(new short[] {0, 0, -32768, 127 << 8, 64 << 8, -64 << 8}, decode(wav, RATE, 2));
+    }
+    
+    @Test
+    public void twentyFourBitKeepsTheTopSixteenBits() throws IOException {
+        int[] values = {0, 0x7FFFFF, -0x800000, 0x123456, -0x123456, 0xFF};
+        ByteBuffer data = ByteBuffer.allocate(values.length * 3);
+        for (int v : values) {
+            data.put((byte) v).put((byte) (v >> 8)).put((byte) (v >> 16));
+        }
+        File wav = write(new Wav(PCM, 2, 24).data(data.array()));
+        short[] expected = new short[values.length];
+        for (int i = 0; i < values.length; i++) {
+            expected[i] = (short) (values[i] >> 8);
+        }
+        assertArrayEquals(expected, decode(wav, RATE, 2));
+    }
+    
+    @Test
+    public void thirtyTwoBitKeepsTheTopSixteenBits() throws IOException {
+        int[] values = {0, Integer.MAX_VALUE, Integer.MIN_VALUE, 0x12345678, -0x12345678, 0xFFFF};
+        ByteBuffer data = ByteBuffer.allocate(values.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        short[] expected = new short[values.length];
+        for (int i = 0; i < values.length; i++) {
+            data.putInt(values[i]);
+            expected[i] = (short) (values[i] >> 16);
+        }
+        File wav = write(new Wav(PCM, 2, 32).data(data.array()));
+        assertArrayEquals(expected, decode(wav, RATE, 2));
+    }
+    
+    @Test
+    public void floatIsScaledAndClipped() throws IOException {
+        double[] values = {0, 0.5, -0.5, 1, -1, 1.5, -2, 0.25};
+        // Rounded half up, so -0.5 gives -16383
+        short[] expected = {0, 16384, -16383, 32767, -32767, 32767, -32768, 8192};
+        ByteBuffer single = ByteBuffer.allocate(values.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer dual = ByteBuffer.allocate(values.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+        for (double v : values) {
+            single.putFloat((float) v);
+            dual.putDouble(v);
+        }
+        assertArrayEquals(expected, decode(write(new Wav(FLOAT, 2, 32).data(single.array())), RATE, 2));
+        assertArrayEquals(expected, decode(write(new Wav(FLOAT, 2, 64).data(dual.array())), RATE, 2));
+    }
+    
+    @Test
+    public void extensibleUsesTheSubFormat() throws IOException {
+        short[] samples = TestAudio.noise(1000, 2, 2);
+        File pcm = write(new Wav(EXTENSIBLE, 2, 16).subFormat(PCM).data(TestAudio.toBytes(samples)));
+        assertArrayEquals(samples, decode(pcm, RATE, 2));
+        
+        ByteBuffer floats = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putFloat(0.5f).putFloat(-0.5f);
+        File ieee = write(new Wav(EXTENSIBLE, 2, 32).subFormat(FLOAT).data(floats.array()));
+        assertArrayEquals(new short[] {16384, -16383}, decode(ieee, RATE, 2));
+    }
+    
+    @Test
+    public void oddSizedChunksArePadded() throws IOException {
+        short[] samples = TestAudio.noise(500, 2, 3);
+        // An odd-length chunk before and after fmt; a reader that ignores the pad byte lands mid-header
+        File wav = write(new Wav(PCM, 2, 16).chunkBeforeFmt("junk", 3).chunkBeforeData("LIST", 5)
+                .data(TestAudio.toBytes(samples)));
+        WavDecoder.Info info = WavDecoder.readInfo(wav);
+        assertEquals(500, info.totalFrames());
+        assertArrayEquals(samples, decode(wav, RATE, 2));
+    }
+    
+    @Test
+    public void zeroAndUnsetDataSizesReadToTheEnd() throws IOException {
+        short[] samples = TestAudio.noise(700, 2, 4);
+        for (long size : new long[] {0, 0xFFFFFFFFL}) {
+            File wav = write(new Wav(PCM, 2, 16).data(TestAudio.toBytes(samples)).dataSize(size));
+            assertEquals("Data size " + size, 700, WavDecoder.readInfo(wav).totalFrames());
+            assertArrayEquals("Data size " + size, samples, decode(wav, RATE, 2));
+        }
+    }
+    
+    @Test
+    public void dataSizeIsHonouredAndPartialFramesDropped() throws IOException {
+        short[] samples = TestAudio.noise(100, 2, 5);
+        byte[] bytes = TestAudio.toBytes(samples);
+        // Declared size stops short of the file end (a trailing chunk follows)
+        File shorter = write(new Wav(PCM, 2, 16).data(bytes).dataSize(40 * 4).trailer("id3 ", 32));
+        assertEquals(40, WavDecoder.readInfo(shorter).totalFrames());
+        // A file cut off mid-frame keeps only whole frames
+        File cut = write(new Wav(PCM, 2, 16).data(Arrays.copyOf(bytes, bytes.length - 3)));
+        assertEquals(99, WavDecoder.readInfo(cut).totalFrames());
+        assertEquals(99 * 2, decode(cut, RATE, 2).length);
+    }
+    
+    @Test
+    public void monoStaysMonoAndSurroundBecomesStereo() throws IOException {
+        File mono = write(new Wav(PCM, 1, 16).data(TestAudio.toBytes(TestAudio.noise(300, 1, 6))));
+        assertEquals(300, decode(mono, RATE, 2).length);
+        assertEquals(1, PCMCacheHeader.read(cached).channels);
+        
+        File surround = write(new Wav(PCM, 6, 16).data(TestAudio.toBytes(TestAudio.noise(300, 6, 7))));
+        assertEquals(300 * 2, decode(surround, RATE, 2).length);
+        assertEquals(2, PCMCacheHeader.read(cached).channels);
+    }
+    
+    @Test
+    public void otherRatesAreResampled() throws IOException {
+        File wav = write(new Wav(PCM, 2, 16).rate(48000).data(TestAudio.toBytes(TestAudio.noise(48000, 2, 8))));
+        short[] output = decode(wav, 44100, 2);
+        assertEquals(44100 * 2, output.length);
+        assertEquals(44100, PCMCacheHeader.read(cached).sampleRate);
+    }
+    
+    @Test
+    public void resumedConversionMatchesAnUninterruptedOne() throws IOException {
+        int[][] rates = {{48000, 44100}, {44100, 44100}, {22050, 48000}};
+        for (int[] pair : rates) {
+            File wav = write(new Wav(PCM, 2, 16).rate(pair[0]).data(TestAudio.toBytes(TestAudio.noise(3 * pair[0], 2, 10))));
+            short[] whole = decode(wav, pair[1], 2);
+            // Interrupted mid-way, off any period boundary, with the header still unsealed
+            for (long written : new long[] {1, pair[1] / 3 + 7, 2 * pair[1] + 123}) {
+                File partial = folder.newFile();
+                try (FileOutputStream fos = new FileOutputStream(partial)) {
+                    PCMCacheHeader.writeUnsealed(fos, pair[1], 2);
+                    fos.write(TestAudio.toBytes(Arrays.copyOf(whole, (int) written * 2)));
+                }
+                long frames = WavDecoder.decodeToFile(wav, partial, pair[1], 2, Resampler.Quality.STANDARD, null,
+                        written, null);
+                assertEquals(whole.length / 2, frames);
+                assertTrue(PCMCacheHeader.verify(partial));
+                assertArrayEquals(pair[0] + " -> " + pair[1] + " resumed at " + written,
+                        whole, TestAudio.readCache(partial));
+            }
+        }
+    }
+    
+    @Test
+    public void unusablePartialOutputStartsOver() throws IOException {
+        short[] samples = TestAudio.noise(5000, 2, 11);
+        File wav = write(new Wav(PCM, 2, 16).data(TestAudio.toBytes(samples)));
+        // A cache written in another channel layout cannot be continued
+        File partial = TestAudio.writeCache(folder.newFile(), new short[3000], RATE, 1);
+        assertEquals(5000, WavDecoder.decodeToFile(wav, partial, RATE, 2, Resampler.Quality.STANDARD, null,
+                3000, null));
+        assertArrayEquals(samples, TestAudio.readCache(partial));
+    }
+    
+    @Test
+    public void rejectsWhatItCannotRead() throws IOException {
+        File text = folder.newFile();
+        try (FileOutputStream fos = new FileOutputStream(text)) {
+            fos.write("not a wav file at all".getBytes("US-ASCII"));
+        }
+        assertFalse(WavDecoder.isWavFile(text));
+        assertTrue(WavDecoder.isWavFile(write(new Wav(PCM, 2, 16).data(new byte[4]))));
+        
+        expectFailure(new Wav(0x55, 2, 16).data(new byte[4]));  // MPEG Layer 3 in a WAV wrapper
+        expectFailure(new Wav(PCM, 2, 12).data(new byte[6]));
+        expectFailure(new Wav(FLOAT, 2, 16).data(new byte[4]));
+        expectFailure(new Wav(PCM, 0, 16).data(new byte[4]));
+        expectFailure(new Wav(PCM, 2, 16).dataBeforeFmt().data(new byte[4]));
+    }
+    
+    /**
+     * Conversion speed of a 60 s stereo file, as 16-bit (bulk copy) and 24-bit (byte unpacking),
+     * at the engine rate. Both must be far faster than real time.
+     */
+    @Test
+    public void benchmarkDecodeThroughput() throws IOException {
+        int seconds = 60;
+        int frames = seconds * RATE;
+        byte[] sixteen = TestAudio.toBytes(TestAudio.noise(frames, 2, 9));
+        byte[] twentyFour = new byte[frames * 2 * 3];
+        for (int i = 0, b = 0; i < sixteen.length; i += 2, b += 3) {
+            twentyFour[b + 1] = sixteen[i];
+            twentyFour[b + 2] = sixteen[i + 1];
+        }
+        File[] files = {
+            write(new Wav(PCM, 2, 16).data(sixteen)), write(new Wav(PCM, 2, 24).data(twentyFour))
+        };
+        for (File wav : files) {
+            int bits = WavDecoder.readInfo(wav).bitsPerSample;
+            decode(wav, RATE, 2); // Warm up the JIT
+            long start = System.nanoTime();
+            short[] output = decode(wav, RATE, 2);
+            long elapsed = System.nanoTime() - start;
+            assertEquals(frames * 2, output.length);
+            double realTime = seconds / (elapsed / 1e9);
+            System.out.printf("WAV %d-bit: %d s of stereo in %.1f ms (%.0fx real time)%n",
+                    bits, seconds, elapsed / 1e6, realTime);
+            assertTrue(bits + "-bit only " + realTime + "x real time", realTime > 50);
+        }
+    }
+    
+    private short[] decode(File wav, int outputRate, int outputChannels) throws IOException {
+        cached = folder.newFile();
+        long frames = WavDecoder.decodeToFile(wav, cached, outputRate, outputChannels,
+                Resampler.Quality.STANDARD, null);
+        assertTrue(PCMCacheHeader.verify(cached));
+        short[] samples = TestAudio.readCache(cached);
+        assertEquals(frames * PCMCacheHeader.read(cached).channels, samples.length);
+        return samples;
+    }
+    
+    private void expectFailure(Wav wav) throws IOException {
+        File file = write(wav);
+        try {
+            WavDecoder.readInfo(file);
+            fail("Read " + wav.formatTag + "/" + wav.bits + " bits");
+        } catch (IOException expected) {
+            // Rejected with a message, not a crash
+        }
+    }
+    
+    private File write(Wav wav) throws IOException {
+        File file = folder.newFile();
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            fos.write(wav.toBytes());
+        }
+        return file;
+    }
+    
+    /**
+     * Builds a RIFF/WAVE file with the quirks seen in the wild
+     */
+    private static class Wav {
+        final int formatTag;
+        final int channels;
+        final int bits;
+        int rate = RATE;
+        int subFormat = -1;
+        byte[] data = new byte[0];
+        long dataSize = -1;
+        boolean dataFirst;
+        final ByteArrayOutputStream beforeFmt = new ByteArrayOutputStream();
+        final ByteArrayOutputStream beforeData = new ByteArrayOutputStream();
+        final ByteArrayOutputStream after = new ByteArrayOutputStream();
+        
+        Wav(int formatTag, int channels, int bits) {
+            this.formatTag = formatTag;
+            this.channels = channels;
+            this.bits = bits;
+        }
+        
+        Wav rate(int rate) {
+            this.rate = rate;
+            return this;
+        }
+        
+        Wav subFormat(int tag) {
+            this.subFormat = tag;
+            return this;
+        }
+        
+        Wav data(byte[] data) {
+            this.data = data;
+            return this;
+        }
+        
+        Wav dataSize(long size) {
+            this.dataSize = size;
+            return this;
+        }
+        
+        Wav dataBeforeFmt() {
+            this.dataFirst = true;
+            return this;
+        }
+        
+        Wav chunkBeforeFmt(String id, int size) {
+            writeChunk(beforeFmt, id, new byte[size]);
+            return this;
+        }
+        
+        Wav chunkBeforeData(String id, int size) {
+            writeChunk(beforeData, id, new byte[size]);
+            return this;
+        }
+        
+        Wav trailer(String id, int size) {
+            writeChunk(after, id, new byte[size]);
+            return this;
+        }
+        
+        byte[] toBytes() {
+            int blockAlign = channels * bits / 8;
+            ByteBuffer fmt = ByteBuffer.allocate(subFormat >= 0 ? 40 : 16).order(ByteOrder.LITTLE_ENDIAN);
+            fmt.putShort((short) formatTag).putShort((short) channels).putInt(rate)
+                    .putInt(rate * blockAlign).putShort((short) blockAlign).putShort((short) bits);
+            if (subFormat >= 0) {
+                // cbSize, valid bits, channel mask, then the SubFormat GUID (tag in its first two bytes)
+                fmt.putShort((short) 22).putShort((short) bits).putInt(0).putShort((short) subFormat)
+                        .put(new byte[] {0, 0, 0, 0, 0x10, 0, (byte) 0x80, 0, 0, (byte) 0xAA, 0, 0x38,
+                                (byte) 0x9B, 0x71});
+            }
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            body.write('W');
+            body.write('A');
+            body.write('V');
+            body.write('E');
+            writeBytes(body, beforeFmt.toByteArray());
+            if (dataFirst) {
+                writeData(body);
+            }
+            writeChunk(body, "fmt ", fmt.array());
+            writeBytes(body, beforeData.toByteArray());
+            if (!dataFirst) {
+                writeData(body);
+            }
+            writeBytes(body, after.toByteArray());
+            
+            ByteArrayOutputStream file = new ByteArrayOutputStream();
+            writeHeader(file, "RIFF", body.size());
+            writeBytes(file, body.toByteArray());
+            return file.toByteArray();
+        }
+        
+        private void writeData(ByteArrayOutputStream out) {
+            writeHeader(out, "data", dataSize >= 0 ? dataSize : data.length);
+            writeBytes(out, data);
+            if (dataSize < 0 && (data.length & 1) != 0 && after.size() > 0) {
+                out.write(0);
+            }
+        }
+        
+        private static void writeChunk(ByteArrayOutputStream out, String id, byte[] body) {
+            writeHeader(out, id, body.length);
+            writeBytes(out, body);
+            if ((body.length & 1) != 0) {
+                out.write(0);
+            }
+        }
+        
+        private static void writeHeader(ByteArrayOutputStream out, String id, long size) {
+            ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < 4; i++) {
+                header.put((byte) id.charAt(i));
+            }
+            header.putInt((int) size);
+            writeBytes(out, header.array());
+        }
+        
+        private static void writeBytes(ByteArrayOutputStream out, byte[] bytes) {
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+}